@@ -16,19 +16,19 @@
 
 package com.ichi2.anki;
 
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 
 
 import com.ichi2.anki.exception.OutOfSpaceException;
-import com.ichi2.compat.CompatHelper;
 import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.utils.FileUtil;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -36,10 +36,10 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 import java.util.UnknownFormatConversionException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -58,6 +58,9 @@ public class BackupManager {
     /** Number of hours after which a backup new backup is created */
     private static final int BACKUP_INTERVAL = 5;
 
+    /** A full backup is made every this many backups; the others only contain the pages changed since the last one */
+    private static final int FULL_BACKUP_INTERVAL = 7;
+
     public static boolean isActivated() {
         return true;
     }
@@ -102,7 +105,8 @@ public class BackupManager {
         File backupFile = getBackupFile(colFile, "ankiDroidv16.colpkg");
 
         try {
-            return performBackup(colFile, backupFile);
+            // The backup has to be restorable on its own
+            return performBackup(colFile, backupFile, false);
         } catch (Exception e) {
             Timber.w(e);
             AnkiDroidApp.sendExceptionReport(e, "performBackupInForeground");
@@ -199,7 +203,7 @@ public class BackupManager {
             try {
                 len--;
                 lastBackupDate = df.parse(deckBackups[len].getName().replaceAll(
-                        "^.*-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}).colpkg$", "$1"));
+                        "^.*-(\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}).(colpkg|coldelta)$", "$1"));
             } catch (ParseException e) {
                 Timber.w(e);
                 lastBackupDate = null;
@@ -228,23 +232,34 @@ public class BackupManager {
 
 
     protected boolean performBackup(File colFile, File backupFile) {
+        return performBackup(colFile, backupFile, true);
+    }
+
+
+    /**
+     * @param allowIncremental Whether only the pages changed since the last full backup may be saved, in a
+     *                         .coldelta next to backupFile
+     */
+    private boolean performBackup(File colFile, File backupFile, boolean allowIncremental) {
         String colPath = colFile.getAbsolutePath();
-        // Save collection file as zip archive
+        long start = SystemClock.elapsedRealtime();
         try {
-            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(backupFile)));
-            ZipEntry ze = new ZipEntry(CollectionHelper.COLLECTION_FILENAME);
-            zos.putNextEntry(ze);
-            CompatHelper.getCompat().copyFile(colPath, zos);
-            zos.close();
+            File written = allowIncremental ? performIncrementalBackup(colFile, backupFile) : null;
+            if (written == null) {
+                // Save collection file as zip archive
+                IncrementalBackup.writeFull(colFile, backupFile);
+                written = backupFile;
+            }
             // Delete old backup files if needed
             SharedPreferences prefs = AnkiDroidApp.getSharedPrefs(AnkiDroidApp.getInstance().getBaseContext());
             deleteDeckBackups(colPath, prefs.getInt("backupMax", 8));
             // set timestamp of file in order to avoid creating a new backup unless its changed
-            if (!backupFile.setLastModified(colFile.lastModified())) {
-                Timber.w("performBackupInBackground() setLastModified() failed on file %s", backupFile.getName());
+            if (!written.setLastModified(colFile.lastModified())) {
+                Timber.w("performBackupInBackground() setLastModified() failed on file %s", written.getName());
                 return false;
             }
-            Timber.i("Backup created succesfully");
+            Timber.i("Backup created succesfully: %s, %d bytes in %d ms", written.getName(), written.length(),
+                    SystemClock.elapsedRealtime() - start);
             return true;
         } catch (IOException e) {
             Timber.w(e);
@@ -253,6 +268,66 @@ public class BackupManager {
     }
 
 
+    /**
+     * Save the pages of the collection which changed since the last full backup, unless a full backup is due.
+     * @return The incremental backup, or null if a full backup should be made
+     */
+    @Nullable
+    private File performIncrementalBackup(File colFile, File backupFile) {
+        File[] backups = getBackups(colFile);
+        int base = backups.length - 1;
+        while (base >= 0 && IncrementalBackup.isDelta(backups[base])) {
+            base--;
+        }
+        if (base < 0 || backups.length - base >= FULL_BACKUP_INTERVAL) {
+            return null;
+        }
+        File deltaFile = new File(backupFile.getParentFile(),
+                backupFile.getName().replaceAll("\\.colpkg$", "." + IncrementalBackup.DELTA_EXTENSION));
+        try {
+            IncrementalBackup.PageHashes hashes = IncrementalBackup.readPageHashes(backups[base]);
+            // Past half the collection, a full backup is worth it, as later deltas are smaller
+            if (hashes != null && IncrementalBackup.writeDelta(colFile, backups[base], hashes, deltaFile, colFile.length() / 2)) {
+                return deltaFile;
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Incremental backup failed, making a full backup");
+        }
+        return null;
+    }
+
+
+    /**
+     * Reassemble the collection of an incremental backup, and check it.
+     * @return Whether target contains a valid collection
+     */
+    public static boolean restoreIncrementalBackup(@NonNull File backup, @NonNull File target, @NonNull Context context) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            IncrementalBackup.restoreDelta(backup, target);
+            Collection col = Storage.Collection(context, target.getAbsolutePath());
+            try {
+                if (!col.basicCheck()) {
+                    Timber.w("Restored collection of %s fails the basic check", backup.getName());
+                    return false;
+                }
+            } finally {
+                col.close();
+            }
+            Timber.i("Restored %s in %d ms", backup.getName(), SystemClock.elapsedRealtime() - start);
+            return true;
+        } catch (Exception e) {
+            Timber.w(e, "Could not restore %s", backup.getName());
+            return false;
+        }
+    }
+
+
+    public static boolean isIncrementalBackup(@NonNull String path) {
+        return IncrementalBackup.isDelta(new File(path));
+    }
+
+
     protected boolean collectionIsTooSmallToBeValid(File colFile) {
         return colFile.length()
                 < MIN_BACKUP_COL_SIZE;
@@ -379,7 +454,7 @@ public class BackupManager {
         }
         ArrayList<File> deckBackups = new ArrayList<>(files.length);
         for (File aktFile : files) {
-            if (aktFile.getName().replaceAll("^(.*)-\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}.(apkg|colpkg)$", "$1")
+            if (aktFile.getName().replaceAll("^(.*)-\\d{4}-\\d{2}-\\d{2}-\\d{2}-\\d{2}.(apkg|colpkg|coldelta)$", "$1")
                     .equals(colFile.getName().replace(".anki2",""))) {
                 deckBackups.add(aktFile);
             }
@@ -396,11 +471,26 @@ public class BackupManager {
     }
 
 
-    private static boolean deleteDeckBackups(File[] backups, int keepNumber) {
+    @VisibleForTesting
+    static boolean deleteDeckBackups(File[] backups, int keepNumber) {
         if (backups == null) {
             return false;
         }
+        // The full backups which the kept incremental backups are made of can't be deleted
+        Set<String> bases = new HashSet<>();
+        for (int i = Math.max(0, backups.length - keepNumber); i < backups.length; i++) {
+            if (IncrementalBackup.isDelta(backups[i])) {
+                try {
+                    bases.add(IncrementalBackup.baseName(backups[i]));
+                } catch (IOException e) {
+                    Timber.w(e);
+                }
+            }
+        }
         for (int i = 0; i < backups.length - keepNumber; i++) {
+            if (bases.contains(backups[i].getName())) {
+                continue;
+            }
             if (!backups[i].delete()) {
                 Timber.e("deleteDeckBackups() failed to delete %s", backups[i].getAbsolutePath());
             } else {
@@ -87,6 +87,7 @@ import com.ichi2.ui.CardBrowserSearchView;
 import com.ichi2.upgrade.Upgrade;
 import com.ichi2.utils.FunctionalInterfaces;
 import com.ichi2.utils.HashUtil;
+import com.ichi2.utils.LongLongHashMap;
 import com.ichi2.utils.LanguageUtil;
 import com.ichi2.utils.Computation;
 import com.ichi2.utils.Permissions;
@@ -95,16 +96,19 @@ import com.ichi2.widget.WidgetStatus;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 
 import timber.log.Timber;
@@ -286,7 +290,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
     private TextView mActionBarTitle;
     private boolean mReloadRequired = false;
     private boolean mInMultiSelectMode = false;
-    private final @NonNull Set<CardCache> mCheckedCards = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final @NonNull CheckedCards mCheckedCards = new CheckedCards();
     private int mLastSelectedPosition;
     @Nullable
     private Menu mActionBarMenu;
@@ -498,9 +502,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
     }
 
     private List<Long> getSelectedCardIds() {
-        List<Long> ids = new ArrayList<>(mCheckedCards.size());
-        for (CardCache cardPosition : mCheckedCards) {
-            ids.add(cardPosition.getId());
+        long[] checked = mCheckedCards.getIds(mCards);
+        List<Long> ids = new ArrayList<>(checked.length);
+        for (long id : checked) {
+            ids.add(id);
         }
         return ids;
     }
@@ -735,10 +740,8 @@ public class CardBrowser extends NavigationDrawerActivity implements
             if (mInMultiSelectMode) {
                 boolean hasChanged = false;
                 for (int i = Math.min(mLastSelectedPosition, position); i <= Math.max(mLastSelectedPosition, position); i++) {
-                    CardCache card = (CardCache) mCardsListView.getItemAtPosition(i);
-
                     // Add to the set of checked cards
-                    hasChanged |= mCheckedCards.add(card);
+                    hasChanged |= mCheckedCards.check(getIdAt(mCards, i));
                 }
                 if (hasChanged) {
                     onSelectionChanged();
@@ -1097,9 +1100,9 @@ public class CardBrowser extends NavigationDrawerActivity implements
             return;
         }
 
-        if (!mCheckedCards.isEmpty()) {
+        if (hasSelectedCards()) {
             TaskManager.cancelAllTasks(CollectionTask.CheckCardSelection.class);
-            TaskManager.launchCollectionTask(new CollectionTask.CheckCardSelection(mCheckedCards),
+            TaskManager.launchCollectionTask(new CollectionTask.CheckCardSelection(mCheckedCards.getIds(mCards)),
                     mCheckSelectedCardsHandler);
         }
 
@@ -1112,7 +1115,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
 
     private boolean hasSelectedCards() {
-        return !mCheckedCards.isEmpty();
+        return checkedCardCount() > 0;
     }
 
     private boolean hasSelectedAllCards() {
@@ -1376,10 +1379,11 @@ public class CardBrowser extends NavigationDrawerActivity implements
         if (mInMultiSelectMode && checkedCardCount() > 1) {
             // Multiple cards have been explicitly selected, so preview only those cards
             int index = 0;
-            return getPreviewIntent(index, Utils.toPrimitive(getSelectedCardIds()));
+            return getPreviewIntent(index, mCheckedCards.getIds(mCards));
         } else {
             // Preview all cards, starting from the one that is currently selected
-            int startIndex = mCheckedCards.isEmpty() ? 0 : mCheckedCards.iterator().next().getPosition();
+            long[] checked = mCheckedCards.getIds(mCards);
+            int startIndex = checked.length == 0 ? 0 : Math.max(0, positionOf(mCards, checked[0]));
             return getPreviewIntent(startIndex, getAllCardIds());
         }
     }
@@ -1582,12 +1586,45 @@ public class CardBrowser extends NavigationDrawerActivity implements
     }
 
 
-    private static Map<Long, Integer> getPositionMap(CardCollection<CardCache> list) {
-        Map<Long, Integer> positions = HashUtil.HashMapInit(list.size());
-        for (int i = 0; i < list.size(); i++) {
-            positions.put(list.get(i).getId(), i);
+    /** @return The position of the card whose id is cardId in list, or -1 if it is not there. */
+    private static int positionOf(CardCollection<CardCache> list, long cardId) {
+        java.util.Collection<CardCache> wrapped = list.unsafeGetWrapped();
+        if (wrapped instanceof CardCacheList) {
+            return ((CardCacheList) wrapped).positionOf(cardId);
+        }
+        int position = 0;
+        for (CardCache card : wrapped) {
+            if (card.getId() == cardId) {
+                return position;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+
+    /** @return The id of the card at position in list, without creating a cache for it. */
+    private static long getIdAt(CardCollection<CardCache> list, int position) {
+        java.util.Collection<CardCache> wrapped = list.unsafeGetWrapped();
+        if (wrapped instanceof CardCacheList) {
+            return ((CardCacheList) wrapped).getId(position);
         }
-        return positions;
+        return list.get(position).getId();
+    }
+
+
+    /** @return The ids of the cards of list, in order, without creating a cache for each of them. */
+    private static long[] getIds(CardCollection<CardCache> list) {
+        java.util.Collection<CardCache> wrapped = list.unsafeGetWrapped();
+        if (wrapped instanceof CardCacheList) {
+            return ((CardCacheList) wrapped).getIds();
+        }
+        CardCache[] cards = wrapped.toArray(new CardCache[0]);
+        long[] ids = new long[cards.length];
+        for (int i = 0; i < cards.length; i++) {
+            ids[i] = cards[i].getId();
+        }
+        return ids;
     }
 
     // convenience method for updateCardsInList(...)
@@ -1707,11 +1744,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
      */
     private void updateCardsInList(List<Card> cards) {
         CardCollection<CardCache> cardList = getCards();
-        Map<Long, Integer> idToPos = getPositionMap(cardList);
         for (Card c : cards) {
-            // get position in the mCards search results HashMap
-            Integer pos = idToPos.get(c.getId());
-            if (pos == null || pos >= getCardCount()) {
+            // get position in the mCards search results
+            int pos = positionOf(cardList, c.getId());
+            if (pos == -1 || pos >= getCardCount()) {
                 continue;
             }
             // update Q & A etc
@@ -1818,25 +1854,30 @@ public class CardBrowser extends NavigationDrawerActivity implements
     private void removeNotesView(java.util.Collection<Long> cardsIds, boolean reorderCards) {
         long reviewerCardId = getReviewerCardId();
         CardCollection<CardCache> oldMCards = getCards();
-        Map<Long, Integer> idToPos = getPositionMap(oldMCards);
         Set<Long> idToRemove = new HashSet<>();
         for (Long cardId : cardsIds) {
             if (cardId == reviewerCardId) {
                 mReloadRequired = true;
             }
-            if (idToPos.containsKey(cardId)) {
+            if (positionOf(oldMCards, cardId) != -1) {
                 idToRemove.add(cardId);
             }
         }
 
-        List<CardCache> newMCards = new ArrayList<>(oldMCards.size());
-        int pos = 0;
-        for (CardCache card: oldMCards) {
-            if (!idToRemove.contains(card.getId())) {
-                newMCards.add(new CardCache(card, pos++));
+        java.util.Collection<CardCache> oldWrapped = oldMCards.unsafeGetWrapped();
+        if (oldWrapped instanceof CardCacheList) {
+            mCards.replaceWith(((CardCacheList) oldWrapped).without(idToRemove));
+        } else {
+            List<CardCache> newMCards = new ArrayList<>(oldMCards.size());
+            int pos = 0;
+            for (CardCache card : oldMCards) {
+                if (!idToRemove.contains(card.getId())) {
+                    newMCards.add(new CardCache(card, pos++));
+                }
             }
+            mCards.replaceWith(newMCards);
         }
-        mCards.replaceWith(newMCards);
+        mCheckedCards.forget(idToRemove);
 
         if (reorderCards) {
             //Suboptimal from a UX perspective, we should reorder
@@ -2050,9 +2091,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
         if (mCards.size() == 0) {
             return CARD_NOT_AVAILABLE;
         }
-        for (CardCache card : mCards) {
-            if (card.getId() == mOldCardId) {
-                return card.mPosition;
+        long[] ids = getIds(mCards);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == mOldCardId) {
+                return i;
             }
         }
         return CARD_NOT_AVAILABLE;
@@ -2342,7 +2384,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
             // if in multi-select mode, be sure to show the checkboxes
             if(mInMultiSelectMode) {
                 checkBox.setVisibility(View.VISIBLE);
-                checkBox.setChecked(mCheckedCards.contains(card));
+                checkBox.setChecked(mCheckedCards.isChecked(card.getId()));
                 // this prevents checkboxes from showing an animation from selected -> unselected when
                 // checkbox was selected, then selection mode was ended and now restarted
                 checkBox.jumpDrawablesToCurrentState();
@@ -2404,12 +2446,12 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     private void onCheck(int position, View cell) {
         CheckBox checkBox = cell.findViewById(R.id.card_checkbox);
-        CardCache card = getCards().get(position);
+        long cardId = getIdAt(getCards(), position);
 
         if (checkBox.isChecked()) {
-            mCheckedCards.add(card);
+            mCheckedCards.check(cardId);
         } else {
-            mCheckedCards.remove(card);
+            mCheckedCards.uncheck(cardId);
         }
 
        onSelectionChanged();
@@ -2417,7 +2459,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting
     void onSelectAll() {
-        mCheckedCards.addAll(mCards.unsafeGetWrapped());
+        mCheckedCards.checkAll();
         onSelectionChanged();
     }
 
@@ -2430,10 +2472,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
     private void onSelectionChanged() {
         Timber.d("onSelectionChanged()");
         try {
-            if (!mInMultiSelectMode && !mCheckedCards.isEmpty()) {
+            if (!mInMultiSelectMode && hasSelectedCards()) {
                 //If we have selected cards, load multiselect
                 loadMultiSelectMode();
-            } else if (mInMultiSelectMode && mCheckedCards.isEmpty()) {
+            } else if (mInMultiSelectMode && !hasSelectedCards()) {
                 //If we don't have cards, unload multiselect
                 endMultiSelectMode();
             }
@@ -2471,7 +2513,10 @@ public class CardBrowser extends NavigationDrawerActivity implements
             cardIds.add(c.getId());
         }
 
-        for (CardCache props : mCards) {
+        java.util.Collection<CardCache> wrapped = mCards.unsafeGetWrapped();
+        // Caches which were not created have nothing to reload
+        Iterable<CardCache> created = wrapped instanceof CardCacheList ? ((CardCacheList) wrapped).getCreated() : wrapped;
+        for (CardCache props : created) {
             if (cardIds.contains(props.getId())) {
                 props.reload();
             }
@@ -2486,13 +2531,190 @@ public class CardBrowser extends NavigationDrawerActivity implements
     }
 
     private long[] getAllCardIds() {
-        long[] l = new long[mCards.size()];
-        for (int i = 0; i < mCards.size(); i++) {
-            l[i] = mCards.get(i).getId();
+        return getIds(mCards);
+    }
+
+    /**
+     * The cards of a search result, as a list of {@link CardCache}.
+     *
+     * A search can return every card of the collection. Only the ids are kept for all positions; the caches, which hold
+     * the card, its note and the rendered question and answer, are created when a position is accessed and only the
+     * last {@link #WINDOW} of them are kept. A position which left the window is reloaded from the database if it is
+     * displayed again.
+     */
+    public static class CardCacheList extends AbstractList<CardCache> implements RandomAccess {
+        /** Number of caches kept. A few screens of cards, and a full render of the visible part while scrolling. */
+        @VisibleForTesting
+        static final int WINDOW = 500;
+
+        private final Collection mCol;
+        private final long[] mIds;
+        private final Map<Integer, CardCache> mWindow = new LinkedHashMap<Integer, CardCache>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CardCache> eldest) {
+                return size() > WINDOW;
+            }
+        };
+        /** Position of each id, built the first time a position is looked up. */
+        @Nullable
+        private LongLongHashMap mPositions;
+
+
+        public CardCacheList(@NonNull Collection col, @NonNull long[] ids) {
+            mCol = col;
+            mIds = ids;
+        }
+
+
+        @Override
+        public synchronized CardCache get(int position) {
+            CardCache card = mWindow.get(position);
+            if (card == null) {
+                card = new CardCache(mIds[position], mCol, position);
+                mWindow.put(position, card);
+            }
+            return card;
+        }
+
+
+        @Override
+        public int size() {
+            return mIds.length;
+        }
+
+
+        public long getId(int position) {
+            return mIds[position];
+        }
+
+
+        /** @return The position of the card whose id is cardId, or -1 if it is not in this list. */
+        public synchronized int positionOf(long cardId) {
+            if (mPositions == null) {
+                mPositions = new LongLongHashMap(mIds.length);
+                for (int i = 0; i < mIds.length; i++) {
+                    mPositions.put(mIds[i], i);
+                }
+            }
+            return (int) mPositions.get(cardId, -1);
+        }
+
+
+        /** @return A copy of the ids, in order. Does not create any cache. */
+        @NonNull
+        public long[] getIds() {
+            return mIds.clone();
+        }
+
+
+        /** @return The caches currently kept, those which may hold loaded data. */
+        @NonNull
+        public synchronized List<CardCache> getCreated() {
+            return new ArrayList<>(mWindow.values());
+        }
+
+
+        /** @return The same cards in reverse order. Caches are not kept, since their positions change. */
+        @NonNull
+        public CardCacheList reversed() {
+            long[] ids = new long[mIds.length];
+            for (int i = 0; i < mIds.length; i++) {
+                ids[i] = mIds[mIds.length - 1 - i];
+            }
+            return new CardCacheList(mCol, ids);
+        }
+
+
+        /** @return The same cards, without those whose id is in removed. */
+        @NonNull
+        public CardCacheList without(@NonNull Set<Long> removed) {
+            long[] ids = new long[mIds.length];
+            int size = 0;
+            for (long id : mIds) {
+                if (!removed.contains(id)) {
+                    ids[size++] = id;
+                }
+            }
+            return new CardCacheList(mCol, Arrays.copyOf(ids, size));
         }
-        return l;
     }
 
+
+    /**
+     * The cards checked in multi-select mode, by id, so that the selection survives a change of the order of the list.
+     *
+     * Selecting all the cards of a search does not list them: the selection is then kept as the ids which were
+     * unchecked since.
+     */
+    static class CheckedCards {
+        private boolean mAll = false;
+        /** The checked ids, in the order they were checked; or the unchecked ones if {@link #mAll} */
+        private final Set<Long> mIds = new LinkedHashSet<>();
+
+
+        /** @return Whether the card was not checked already */
+        public synchronized boolean check(long cardId) {
+            return mAll ? mIds.remove(cardId) : mIds.add(cardId);
+        }
+
+
+        /** @return Whether the card was checked */
+        public synchronized boolean uncheck(long cardId) {
+            return mAll ? mIds.add(cardId) : mIds.remove(cardId);
+        }
+
+
+        public synchronized boolean isChecked(long cardId) {
+            return mAll != mIds.contains(cardId);
+        }
+
+
+        public synchronized void checkAll() {
+            mAll = true;
+            mIds.clear();
+        }
+
+
+        public synchronized void clear() {
+            mAll = false;
+            mIds.clear();
+        }
+
+
+        /** Cards which left the list are neither checked nor unchecked anymore. */
+        public synchronized void forget(@NonNull java.util.Collection<Long> cardIds) {
+            mIds.removeAll(cardIds);
+        }
+
+
+        /** @param cardCount The number of cards in the list */
+        public synchronized int size(int cardCount) {
+            return mAll ? cardCount - mIds.size() : mIds.size();
+        }
+
+
+        /**
+         * @param cards The list the cards were checked in
+         * @return The checked ids, in the order they were checked, or in the order of the list if all cards were checked
+         */
+        @NonNull
+        public synchronized long[] getIds(@NonNull CardCollection<CardCache> cards) {
+            if (!mAll) {
+                return Utils.toPrimitive(mIds);
+            }
+            long[] all = CardBrowser.getIds(cards);
+            long[] ids = new long[all.length];
+            int size = 0;
+            for (long id : all) {
+                if (!mIds.contains(id)) {
+                    ids[size++] = id;
+                }
+            }
+            return Arrays.copyOf(ids, size);
+        }
+    }
+
+
     // This could be better: use a wrapper class PositionAware<T> to store the position so it's
     // no longer a responsibility of CardCache and we can guarantee it's consistent just by using this collection
     /** A position-aware collection to ensure consistency between the position of items and the collection */
@@ -2517,7 +2739,13 @@ public class CardBrowser extends NavigationDrawerActivity implements
             mWrapped = value;
         }
 
+        @SuppressWarnings("unchecked")
         public void reverse() {
+            if (mWrapped instanceof CardCacheList) {
+                // only the ids are reversed, the caches would be recreated on access anyway
+                mWrapped = (List<T>) ((CardCacheList) mWrapped).reversed();
+                return;
+            }
             Collections.reverse(mWrapped);
             int position = 0;
             for (int i = 0; i < mWrapped.size(); i++) {
@@ -2832,7 +3060,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting
     public int checkedCardCount() {
-        return mCheckedCards.size();
+        return mCheckedCards.size(mCards.size());
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
@@ -2869,12 +3097,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     long[] getCardIds() {
-        CardCache[] cardsCopy = mCards.unsafeGetWrapped().toArray(new CardCache[0]);
-        long[] ret = new long[cardsCopy.length];
-        for (int i = 0; i < cardsCopy.length; i++) {
-            ret[i] = cardsCopy[i].getId();
-        }
-        return ret;
+        return getIds(mCards);
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
@@ -2885,14 +3108,14 @@ public class CardBrowser extends NavigationDrawerActivity implements
                         String.format(Locale.US, "Attempted to check card at index %d. %d cards available",
                                 position, mCards.size()));
             }
-            mCheckedCards.add(getCards().get(position));
+            mCheckedCards.check(getIdAt(getCards(), position));
         }
         onSelectionChanged();
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     boolean hasCheckedCardAtPosition(int i) {
-        return mCheckedCards.contains(getCards().get(i));
+        return mCheckedCards.isChecked(getIdAt(getCards(), i));
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
@@ -2910,12 +3133,7 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     public List<Long> getCheckedCardIds() {
-        List<Long> cardIds = new ArrayList<>(mCheckedCards.size());
-        for (CardCache card : mCheckedCards) {
-            long id = card.getId();
-            cardIds.add(id);
-        }
-        return cardIds;
+        return getSelectedCardIds();
     }
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE) //should only be called from changeDeck()
@@ -2929,11 +3147,9 @@ public class CardBrowser extends NavigationDrawerActivity implements
 
     @VisibleForTesting(otherwise = VisibleForTesting.NONE)
     public CardCache getPropertiesForCardId(long cardId) {
-        for (CardCache props : mCards) {
-            long id = props.getId();
-            if (id == cardId) {
-                return props;
-            }
+        int position = positionOf(mCards, cardId);
+        if (position != -1) {
+            return mCards.get(position);
         }
         throw new IllegalStateException(String.format(Locale.US, "Card '%d' not found", cardId));
     }
@@ -227,6 +227,7 @@ public class DeckPicker extends NavigationDrawerActivity implements
     private String mExportFileName;
 
     @Nullable private Cancellable mEmptyCardTask = null;
+    @Nullable private Cancellable mMediaCheckTask = null;
 
     @VisibleForTesting
     public List<? extends AbstractDeckTreeNode<?>> mDueTree;
@@ -348,12 +349,24 @@ public class DeckPicker extends NavigationDrawerActivity implements
         @Override
         public void actualOnPreExecute(@NonNull DeckPicker deckPicker) {
             if (deckPicker.mProgressDialog == null || !deckPicker.mProgressDialog.isShowing()) {
+                // Cancelling stops the import between two batches, and rolls back what it added
                 deckPicker.mProgressDialog = StyledProgressDialog.show(deckPicker,
-                        deckPicker.getResources().getString(R.string.import_title), null, false);
+                        deckPicker.getResources().getString(R.string.import_title), null, true,
+                        dialog -> TaskManager.cancelAllTasks(CollectionTask.ImportAdd.class));
             }
         }
 
 
+        @Override
+        public void actualOnCancelled(@NonNull DeckPicker deckPicker) {
+            Timber.i("Import: Add cancelled");
+            if (deckPicker.mProgressDialog != null && deckPicker.mProgressDialog.isShowing()) {
+                deckPicker.mProgressDialog.dismiss();
+            }
+            deckPicker.updateDeckList();
+        }
+
+
         @Override
         public void actualOnProgressUpdate(@NonNull DeckPicker deckPicker, String content) {
             deckPicker.mProgressDialog.setContent(content);
@@ -1466,7 +1479,7 @@ public class DeckPicker extends NavigationDrawerActivity implements
     private MediaCheckListener mediaCheckListener() {
         return new MediaCheckListener(this);
     }
-    private static class MediaCheckListener extends TaskListenerWithContext<DeckPicker, Void, Computation<List<List<String>>>>{
+    private static class MediaCheckListener extends TaskListenerWithContext<DeckPicker, Integer, Computation<List<List<String>>>>{
         public MediaCheckListener (DeckPicker deckPicker) {
             super(deckPicker);
         }
@@ -1474,12 +1487,32 @@ public class DeckPicker extends NavigationDrawerActivity implements
         @Override
         public void actualOnPreExecute(@NonNull DeckPicker deckPicker) {
             deckPicker.mProgressDialog = StyledProgressDialog.show(deckPicker, null,
-                    deckPicker.getResources().getString(R.string.check_media_message), false);
+                    deckPicker.getResources().getString(R.string.check_media_message), true, (dialogInterface) -> {
+                        Cancellable mediaCheckTask = deckPicker.mMediaCheckTask;
+                        if (mediaCheckTask != null) {
+                            mediaCheckTask.safeCancel();
+                        }
+                    });
+        }
+
+
+        @Override
+        public void actualOnProgressUpdate(@NonNull DeckPicker deckPicker, @NonNull Integer percent) {
+            if (deckPicker.mProgressDialog != null && deckPicker.mProgressDialog.isShowing()) {
+                deckPicker.mProgressDialog.setContent(deckPicker.getResources().getString(R.string.check_media_progress, percent));
+            }
+        }
+
+
+        @Override
+        public void actualOnCancelled(@NonNull DeckPicker deckPicker) {
+            deckPicker.mMediaCheckTask = null;
         }
 
 
         @Override
         public void actualOnPostExecute(@NonNull DeckPicker deckPicker, Computation<List<List<String>>> result) {
+            deckPicker.mMediaCheckTask = null;
             if (deckPicker.mProgressDialog != null && deckPicker.mProgressDialog.isShowing()) {
                 deckPicker.mProgressDialog.dismiss();
             }
@@ -1494,7 +1527,7 @@ public class DeckPicker extends NavigationDrawerActivity implements
     }
     @Override
     public void mediaCheck() {
-        TaskManager.launchCollectionTask(new CollectionTask.CheckMedia(), mediaCheckListener());
+        mMediaCheckTask = TaskManager.launchCollectionTask(new CollectionTask.CheckMedia(), mediaCheckListener());
     }
 
     private MediaDeleteListener mediaDeleteListener() {
@@ -0,0 +1,300 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki;
+
+import com.ichi2.libanki.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Backups of a collection made of its SQLite pages.
+ * <p>
+ * A full backup is a .colpkg which, besides the collection, contains the hash of each page of the collection. An
+ * incremental backup is a .coldelta zip which only contains the pages which differ from those of a full backup, so
+ * that a collection in which a few cards were reviewed is backed up in a few kilobytes.
+ */
+class IncrementalBackup {
+    static final String DELTA_EXTENSION = "coldelta";
+    private static final String PAGES_ENTRY = "pages";
+    private static final String DELTA_ENTRY = "delta";
+    /** "AKDT", to recognize the content of a delta */
+    private static final int DELTA_MAGIC = 0x414b4454;
+    private static final int BUFFER_SIZE = 65536;
+
+
+    /** The hashes of the pages of a collection, as saved in a full backup */
+    static final class PageHashes {
+        private final int mPageSize;
+        private final long[] mHashes;
+
+
+        private PageHashes(int pageSize, @NonNull long[] hashes) {
+            mPageSize = pageSize;
+            mHashes = hashes;
+        }
+    }
+
+
+    static boolean isDelta(@NonNull File backup) {
+        return backup.getName().endsWith("." + DELTA_EXTENSION);
+    }
+
+
+    /** @return The page size of the SQLite database, from its header */
+    static int pageSize(@NonNull File colFile) throws IOException {
+        byte[] header = new byte[18];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(colFile))) {
+            in.readFully(header);
+        }
+        int pageSize = ((header[16] & 0xff) << 8) | (header[17] & 0xff);
+        if (pageSize == 1) {
+            pageSize = 65536;
+        }
+        if (pageSize < 512 || Integer.bitCount(pageSize) != 1) {
+            throw new IOException("Not an SQLite database: " + colFile);
+        }
+        return pageSize;
+    }
+
+
+    /** Write colFile to backupFile as a full backup. */
+    static void writeFull(@NonNull File colFile, @NonNull File backupFile) throws IOException {
+        int pageSize = pageSize(colFile);
+        MessageDigest md = newDigest();
+        long[] hashes = new long[(int) (colFile.length() / pageSize) + 1];
+        int count = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(colFile), BUFFER_SIZE);
+             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(backupFile), BUFFER_SIZE))) {
+            zos.putNextEntry(new ZipEntry(CollectionHelper.COLLECTION_FILENAME));
+            byte[] page = new byte[pageSize];
+            int len;
+            while ((len = readPage(in, page)) > 0) {
+                zos.write(page, 0, len);
+                if (count == hashes.length) {
+                    // the collection grew while it was read
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                hashes[count++] = hash(md, page, len);
+            }
+            zos.closeEntry();
+
+            zos.putNextEntry(new ZipEntry(PAGES_ENTRY));
+            // Not closed, as it would close the zip
+            DataOutputStream out = new DataOutputStream(zos);
+            out.writeInt(pageSize);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(hashes[i]);
+            }
+            out.flush();
+            zos.closeEntry();
+        }
+    }
+
+
+    /** @return The page hashes saved in a full backup, or null if it has none, as backups of older versions. */
+    @Nullable
+    static PageHashes readPageHashes(@NonNull File fullBackup) throws IOException {
+        try (ZipFile zip = new ZipFile(fullBackup)) {
+            ZipEntry entry = zip.getEntry(PAGES_ENTRY);
+            if (entry == null) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(zip.getInputStream(entry), BUFFER_SIZE))) {
+                int pageSize = in.readInt();
+                long[] hashes = new long[in.readInt()];
+                for (int i = 0; i < hashes.length; i++) {
+                    hashes[i] = in.readLong();
+                }
+                return new PageHashes(pageSize, hashes);
+            }
+        }
+    }
+
+
+    /**
+     * Write the pages of colFile which differ from those of the full backup base to deltaFile.
+     * @return Whether the delta was written. It is not when it would be larger than maxSize, in which case a full
+     * backup is a better use of space.
+     */
+    static boolean writeDelta(@NonNull File colFile, @NonNull File base, @NonNull PageHashes baseHashes,
+                              @NonNull File deltaFile, long maxSize) throws IOException {
+        int pageSize = pageSize(colFile);
+        if (pageSize != baseHashes.mPageSize) {
+            return false;
+        }
+        MessageDigest md = newDigest();
+        long written = 0;
+        boolean complete = false;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(colFile), BUFFER_SIZE);
+             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(deltaFile), BUFFER_SIZE))) {
+            zos.putNextEntry(new ZipEntry(DELTA_ENTRY));
+            // Not closed, as it would close the zip
+            DataOutputStream out = new DataOutputStream(zos);
+            out.writeInt(DELTA_MAGIC);
+            out.writeUTF(base.getName());
+            out.writeInt(pageSize);
+            byte[] page = new byte[pageSize];
+            long length = 0;
+            int len;
+            for (int i = 0; (len = readPage(in, page)) > 0; i++) {
+                length += len;
+                if (i < baseHashes.mHashes.length && len == pageSize && hash(md, page, len) == baseHashes.mHashes[i]) {
+                    continue;
+                }
+                written += len;
+                if (written > maxSize) {
+                    break;
+                }
+                out.writeInt(i);
+                out.writeInt(len);
+                out.write(page, 0, len);
+            }
+            if (written <= maxSize) {
+                out.writeInt(-1);
+                out.writeLong(length);
+                out.flush();
+                zos.closeEntry();
+                complete = true;
+            }
+        } finally {
+            if (!complete && deltaFile.exists() && !deltaFile.delete()) {
+                deltaFile.deleteOnExit();
+            }
+        }
+        return complete;
+    }
+
+
+    /** @return The name of the full backup a delta applies to. It is in the same directory. */
+    @NonNull
+    static String baseName(@NonNull File deltaFile) throws IOException {
+        try (ZipFile zip = new ZipFile(deltaFile);
+             DataInputStream in = openDelta(zip)) {
+            return in.readUTF();
+        }
+    }
+
+
+    /** Reassemble the collection of a delta and its full backup into target. */
+    static void restoreDelta(@NonNull File deltaFile, @NonNull File target) throws IOException {
+        try (ZipFile zip = new ZipFile(deltaFile);
+             DataInputStream in = openDelta(zip)) {
+            String baseName = in.readUTF();
+            File base = new File(deltaFile.getParentFile(), baseName);
+            if (baseName.contains(File.separator) || !base.exists()) {
+                throw new IOException("Missing full backup " + base.getName());
+            }
+            int pageSize = in.readInt();
+            File dir = target.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create directory " + dir);
+            }
+            try (ZipFile baseZip = new ZipFile(base)) {
+                ZipEntry col = baseZip.getEntry(CollectionHelper.COLLECTION_FILENAME);
+                if (col == null) {
+                    throw new IOException("No collection in " + base.getName());
+                }
+                try (InputStream colIn = baseZip.getInputStream(col)) {
+                    Utils.writeToFile(colIn, target.getAbsolutePath());
+                }
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+                byte[] page = new byte[pageSize];
+                int index;
+                while ((index = in.readInt()) >= 0) {
+                    int len = in.readInt();
+                    if (len > pageSize) {
+                        throw new IOException("Invalid page length " + len);
+                    }
+                    in.readFully(page, 0, len);
+                    raf.seek((long) index * pageSize);
+                    raf.write(page, 0, len);
+                }
+                raf.setLength(in.readLong());
+            }
+        }
+    }
+
+
+    @NonNull
+    private static DataInputStream openDelta(@NonNull ZipFile zip) throws IOException {
+        ZipEntry entry = zip.getEntry(DELTA_ENTRY);
+        if (entry == null) {
+            throw new IOException("Not an incremental backup");
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(zip.getInputStream(entry), BUFFER_SIZE));
+        if (in.readInt() != DELTA_MAGIC) {
+            in.close();
+            throw new IOException("Not an incremental backup");
+        }
+        return in;
+    }
+
+
+    /** Fill page from in. @return The number of bytes read, which is less than a page only at the end of the file. */
+    private static int readPage(@NonNull InputStream in, @NonNull byte[] page) throws IOException {
+        int read = 0;
+        while (read < page.length) {
+            int len = in.read(page, read, page.length - read);
+            if (len == -1) {
+                break;
+            }
+            read += len;
+        }
+        return read;
+    }
+
+
+    private static long hash(@NonNull MessageDigest md, @NonNull byte[] page, int len) {
+        md.update(page, 0, len);
+        byte[] digest = md.digest();
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+
+    @NonNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -52,6 +52,8 @@ import com.ichi2.anki.reviewer.FullScreenMode;
 import com.ichi2.anki.services.BootService;
 import com.ichi2.anki.services.NotificationService;
 import com.ichi2.anki.web.CustomSyncServer;
+import com.ichi2.async.CollectionTask;
+import com.ichi2.async.TaskManager;
 import com.ichi2.compat.CompatHelper;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Utils;
@@ -709,6 +711,9 @@ public class Preferences extends AnkiActivity {
                         }
                         break;
                     }
+                    case "searchIndex":
+                        TaskManager.launchCollectionTask(new CollectionTask.SetSearchIndex(((CheckBoxPreference) pref).isChecked()));
+                        break;
                     case "providerEnabled": {
                         ComponentName providerName = new ComponentName(preferencesActivity, "com.ichi2.anki.provider.CardContentProvider");
                         PackageManager pm = preferencesActivity.getPackageManager();
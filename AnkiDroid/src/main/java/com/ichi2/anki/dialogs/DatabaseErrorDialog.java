@@ -225,7 +225,7 @@ public class DatabaseErrorDialog extends AsyncDialogFragment {
                     String[] dates = new String[mBackups.length];
                     for (int i = 0; i < mBackups.length; i++) {
                         dates[i] = mBackups[i].getName().replaceAll(
-                                ".*-(\\d{4}-\\d{2}-\\d{2})-(\\d{2})-(\\d{2}).apkg", "$1 ($2:$3 h)");
+                                ".*-(\\d{4}-\\d{2}-\\d{2})-(\\d{2})-(\\d{2}).(apkg|colpkg|coldelta)", "$1 ($2:$3 h)");
                     }
                     builder.title(res.getString(R.string.backup_restore_select_title))
                             .negativeText(R.string.dialog_cancel)
@@ -39,7 +39,6 @@ import com.ichi2.libanki.Media;
 import com.ichi2.libanki.Model;
 import com.ichi2.libanki.Models;
 import com.ichi2.libanki.UndoAction;
-import com.ichi2.libanki.WrongId;
 import com.ichi2.libanki.sched.AbstractSched;
 import com.ichi2.libanki.AnkiPackageExporter;
 import com.ichi2.libanki.Card;
@@ -79,6 +78,11 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
@@ -464,7 +468,9 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         protected Computation<?> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Card> collectionTask) {
             try {
                 col.getDb().executeInTransaction(() -> {
-                    col.getSched().deferReset();
+                    // Only the cards of the note may change, the queues can be updated rather than refilled
+                    long[] noteCids = Utils.collection2Array(col.getDb().queryLongList("SELECT id FROM cards WHERE nid = ?", mCard.getNid()));
+                    col.getSched().deferReset(noteCids);
                     actualTask(col);
                     // With sHadCardQueue set, getCard() resets the scheduler prior to getting the next card
                     collectionTask.doProgress(col.getSched().getCard());
@@ -800,7 +806,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                 c.load();
             }
 
-            sched.deferReset();
+            sched.deferReset(cids);
             return true;
         }
     }
@@ -879,8 +885,13 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
 
             col.markUndo(new UndoDeleteNoteMulti(notesArr, allCards));
 
+            long[] allCids = new long[allCards.size()];
+            for (int i = 0; i < allCids.length; i++) {
+                allCids[i] = allCards.get(i).getId();
+            }
+
             col.remNotes(uniqueNoteIds);
-            sched.deferReset();
+            sched.deferReset(allCids);
             // pass back all cards because they can't be retrieved anymore by the caller (since the note is deleted)
             collectionTask.doProgress(allCards.toArray(new Card[allCards.size()]));
             return true;
@@ -1022,8 +1033,9 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             /* card review undone, set up to review that card again */
             Timber.d("Single card review undo succeeded");
             card.startTimer();
-            col.reset();
-            sched.deferReset(card);
+            // Only the card and its siblings were restored, unless the undo action did reset the collection itself
+            long[] noteCids = Utils.collection2Array(col.getDb().queryLongList("SELECT id FROM cards WHERE nid = ?", card.getNid()));
+            sched.deferReset(card, noteCids);
         }
         return card;
     }
@@ -1139,14 +1151,10 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                 Timber.d("doInBackgroundSearchCards was cancelled so return null");
                 return null;
             }
-            List<CardBrowser.CardCache> searchResult = new ArrayList<>();
-            List<Long> searchResult_ = col.findCards(mQuery, mOrder, new PartialSearch(searchResult, mColumn1Index, mColumn2Index, mNumCardsToRender, collectionTask, col));
-            Timber.d("The search found %d cards", searchResult_.size());
-            int position = 0;
-            for (Long cid : searchResult_) {
-                CardBrowser.CardCache card = new CardBrowser.CardCache(cid, col, position++);
-                searchResult.add(card);
-            }
+            long[] cids = col.findCardIds(mQuery, mOrder, new PartialSearch(new ArrayList<>(0), mColumn1Index, mColumn2Index, mNumCardsToRender, collectionTask, col));
+            Timber.d("The search found %d cards", cids.length);
+            // Caches are created when the browser displays their position
+            CardBrowser.CardCacheList searchResult = new CardBrowser.CardCacheList(col, cids);
             // Render the first few items
             for (int i = 0; i < Math.min(mNumCardsToRender, searchResult.size()); i++) {
                 if (collectionTask.isCancelled()) {
@@ -1173,6 +1181,22 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
         private final int mColumn1Index;
         private final int mColumn2Index;
 
+        /**
+         * Threads rendering the questions and answers of the browser. Rendering a card only reads the collection and
+         * its models, so cards are rendered in parallel once loaded. Idle threads stop after a while.
+         */
+        private static final ExecutorService RENDER_EXECUTOR = createRenderExecutor();
+
+
+        @NonNull
+        private static ExecutorService createRenderExecutor() {
+            // Leave a core to the UI thread, which draws the rendered rows
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
 
         public RenderBrowserQA(CardBrowser.CardCollection<CardBrowser.CardCache> cards, Integer startPos, Integer n, int column1Index, int column2Index) {
             this.mCards = cards;
@@ -1188,12 +1212,8 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
 
             List<Long> invalidCardIds = new ArrayList<>();
             // for each specified card in the browser list
+            List<CardBrowser.CardCache> toRender = new ArrayList<>(Math.max(mN, 0));
             for (int i = mStartPos; i < mStartPos + mN; i++) {
-                // Stop if cancelled
-                if (collectionTask.isCancelled()) {
-                    Timber.d("doInBackgroundRenderBrowserQA was aborted");
-                    return null;
-                }
                 if (i < 0 || i >= mCards.size()) {
                     continue;
                 }
@@ -1211,26 +1231,69 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                     //We've already rendered the answer, we don't need to do it again.
                     continue;
                 }
-                // Extract card item
-                try {
-                    // Ensure that card still exists.
-                    card.getCard();
-                } catch (WrongId e) {
+                toRender.add(card);
+            }
+            if (toRender.isEmpty()) {
+                return new Pair<>(mCards, invalidCardIds);
+            }
+
+            // Load the cards and their notes with two queries instead of two per card
+            long[] ids = new long[toRender.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = toRender.get(i).getId();
+            }
+            Map<Long, Card> cards = col.getCardsWithNotes(ids);
+
+            // Render on the pool, each card independently of the others
+            List<Future<?>> renders = new ArrayList<>(toRender.size());
+            for (CardBrowser.CardCache card : toRender) {
+                Card loaded = cards.get(card.getId());
+                if (loaded == null) {
                     //#5891 - card can be inconsistent between the deck browser screen and the collection.
                     //Realistically, we can skip any exception as it's a rendering task which should not kill the
                     //process
-                    long cardId = card.getId();
-                    Timber.e(e, "Could not process card '%d' - skipping and removing from sight", cardId);
-                    invalidCardIds.add(cardId);
+                    Timber.e("Could not process card '%d' - skipping and removing from sight", card.getId());
+                    invalidCardIds.add(card.getId());
                     continue;
                 }
-                // Update item
-                card.load(false, mColumn1Index, mColumn2Index);
-                float progress = (float) i / mN * 100;
-                collectionTask.doProgress((int) progress);
+                card.setCard(loaded);
+                renders.add(RENDER_EXECUTOR.submit(() -> card.load(false, mColumn1Index, mColumn2Index)));
+            }
+
+            // Wait for the renders in the order of the list, so that progress is reported as it was without threads
+            long start = System.currentTimeMillis();
+            try {
+                for (int i = 0; i < renders.size(); i++) {
+                    // Stop if cancelled
+                    if (collectionTask.isCancelled()) {
+                        Timber.d("doInBackgroundRenderBrowserQA was aborted");
+                        cancelAll(renders);
+                        return null;
+                    }
+                    try {
+                        renders.get(i).get();
+                    } catch (ExecutionException e) {
+                        // The card stays unloaded, and is rendered again when it is displayed
+                        Timber.w(e.getCause(), "Could not render a card of the browser");
+                    }
+                    float progress = (float) (i + 1) / mN * 100;
+                    collectionTask.doProgress((int) progress);
+                }
+            } catch (InterruptedException e) {
+                cancelAll(renders);
+                Thread.currentThread().interrupt();
+                return null;
             }
+            Timber.d("Rendered %d cards of the browser in %d ms", renders.size(), System.currentTimeMillis() - start);
             return new Pair<>(mCards, invalidCardIds);
         }
+
+
+        private static void cancelAll(@NonNull List<Future<?>> renders) {
+            for (Future<?> render : renders) {
+                render.cancel(false);
+            }
+        }
     }
 
     public static class CheckDatabase extends TaskDelegate<String, Pair<Boolean, Collection.CheckDatabaseResult>> {
@@ -1319,6 +1382,26 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
     }
 
 
+    public static class SetSearchIndex extends TaskDelegate<Void, Boolean> {
+        private final boolean mEnabled;
+
+
+        public SetSearchIndex(boolean enabled) {
+            mEnabled = enabled;
+        }
+
+
+        protected Boolean task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
+            Timber.d("doInBackgroundSetSearchIndex %b", mEnabled);
+            if (mEnabled) {
+                return col.getSearchIndex().enable();
+            }
+            col.getSearchIndex().disable();
+            return true;
+        }
+    }
+
+
     public static class RebuildCram extends TaskDelegate<Void, StudyOptionsFragment.DeckStudyData> {
         protected StudyOptionsFragment.DeckStudyData task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
             Timber.d("doInBackgroundRebuildCram");
@@ -1349,6 +1432,7 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             Resources res = AnkiDroidApp.getInstance().getBaseContext().getResources();
             AnkiPackageImporter imp = new AnkiPackageImporter(col, mPath);
             imp.setProgressCallback(new TaskManager.ProgressCallback(collectionTask, res));
+            imp.setCancelListener(collectionTask);
             try {
                 imp.run();
             } catch (ImportExportException e) {
@@ -1383,23 +1467,31 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
 
             // from anki2.py
             String colname = "collection.anki21";
-            ZipFile zip;
-            try {
-                zip = new ZipFile(new File(mPath));
-            } catch (IOException e) {
-                Timber.e(e, "doInBackgroundImportReplace - Error while unzipping");
-                AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace0");
-                return ERR;
-            }
-            try {
-                // v2 scheduler?
-                if (zip.getEntry(colname) == null) {
-                    colname = CollectionHelper.COLLECTION_FILENAME;
+            ZipFile zip = null;
+            if (BackupManager.isIncrementalBackup(mPath)) {
+                // reassemble the collection from its last full backup. There is no media.
+                colname = CollectionHelper.COLLECTION_FILENAME;
+                if (!BackupManager.restoreIncrementalBackup(new File(mPath), new File(dir, colname), context)) {
+                    return ERR;
+                }
+            } else {
+                try {
+                    zip = new ZipFile(new File(mPath));
+                } catch (IOException e) {
+                    Timber.e(e, "doInBackgroundImportReplace - Error while unzipping");
+                    AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace0");
+                    return ERR;
+                }
+                try {
+                    // v2 scheduler?
+                    if (zip.getEntry(colname) == null) {
+                        colname = CollectionHelper.COLLECTION_FILENAME;
+                    }
+                    Utils.unzipFiles(zip, dir.getAbsolutePath(), new String[] {colname, "media"}, null);
+                } catch (IOException e) {
+                    AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace - unzip");
+                    return ERR;
                 }
-                Utils.unzipFiles(zip, dir.getAbsolutePath(), new String[] {colname, "media"}, null);
-            } catch (IOException e) {
-                AnkiDroidApp.sendExceptionReport(e, "doInBackgroundImportReplace - unzip");
-                return ERR;
             }
             String colFile = new File(dir, colname).getAbsolutePath();
             if (!(new File(colFile)).exists()) {
@@ -1486,7 +1578,9 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
                     ++i;
                     collectionTask.doProgress(res.getString(R.string.import_media_count, (i + 1) * 100 / total));
                 }
-                zip.close();
+                if (zip != null) {
+                    zip.close();
+                }
                 // delete tmp dir
                 BackupManager.removeDir(dir);
                 return OK;
@@ -1693,9 +1787,10 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
     /**
      * @return The results list from the check, or false if any errors.
      */
-    public static class CheckMedia extends TaskDelegate<Void, Computation<List<List<String>>>> {
+    /** The progress is the percentage of notes whose references were found. Returns ERR if cancelled. */
+    public static class CheckMedia extends TaskDelegate<Integer, Computation<List<List<String>>>> {
         @Override
-        protected Computation<List<List<String>>> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
+        protected Computation<List<List<String>>> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Integer> collectionTask) {
             Timber.d("doInBackgroundCheckMedia");
             // Ensure that the DB is valid - unknown why, but some users were missing the meta table.
             try {
@@ -1707,7 +1802,11 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
             // A media check on AnkiDroid will also update the media db
             col.getMedia().findChanges(true);
             // Then do the actual check
-            return new Computation<>(col.getMedia().check());
+            List<List<String>> result = col.getMedia().check(collectionTask);
+            if (result == null) {
+                return ERR;
+            }
+            return new Computation<>(result);
         }
     }
 
@@ -1978,23 +2077,23 @@ public class CollectionTask<Progress, Result> extends BaseAsyncTask<Void, Progre
      * @return If there are unselected cards, if there are unmarked cards
      */
     public static class CheckCardSelection extends TaskDelegate<Void, Pair<Boolean, Boolean>> {
-        private final @NonNull Set<CardBrowser.CardCache> mCheckedCards;
+        private final @NonNull long[] mCheckedCardIds;
 
 
-        public CheckCardSelection(@NonNull Set<CardBrowser.CardCache> checkedCards) {
-            this.mCheckedCards = checkedCards;
+        public CheckCardSelection(@NonNull long[] checkedCardIds) {
+            this.mCheckedCardIds = checkedCardIds;
         }
 
 
         protected @Nullable Pair<Boolean, Boolean> task(@NonNull Collection col, @NonNull ProgressSenderAndCancelListener<Void> collectionTask) {
             boolean hasUnsuspended = false;
             boolean hasUnmarked = false;
-            for (CardBrowser.CardCache c: mCheckedCards) {
+            for (long cardId : mCheckedCardIds) {
                 if (collectionTask.isCancelled()) {
                     Timber.v("doInBackgroundCheckCardSelection: cancelled.");
                     return null;
                 }
-                Card card = c.getCard();
+                Card card = col.getCard(cardId);
                 hasUnsuspended = hasUnsuspended || card.getQueue() != Consts.QUEUE_TYPE_SUSPENDED;
                 hasUnmarked = hasUnmarked || !card.note().hasTag("marked");
                 if (hasUnsuspended && hasUnmarked)
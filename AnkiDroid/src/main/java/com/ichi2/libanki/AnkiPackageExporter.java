@@ -19,6 +19,7 @@ package com.ichi2.libanki;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
 
 import com.ichi2.anki.CollectionHelper;
 import com.ichi2.anki.R;
@@ -38,11 +39,19 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
 
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -431,23 +440,42 @@ public final class AnkiPackageExporter extends AnkiExporter {
         Timber.i("Starting export into %s", path);
         _v2sched = mCol.schedVer() != 1 && mIncludeSched;
 
+        long start = SystemClock.elapsedRealtime();
         // open a zip file
         ZipFile z = new ZipFile(path);
-        // if all decks and scheduling included, full export
-        JSONObject media;
-        if (mIncludeSched && mDid == null) {
-            media = exportVerbatim(z, context);
-        } else {
-            // otherwise, filter
-            media = exportFiltered(z, path, context);
+        try {
+            // if all decks and scheduling included, full export
+            JSONObject media;
+            if (mIncludeSched && mDid == null) {
+                media = exportVerbatim(z, context);
+            } else {
+                // otherwise, filter
+                media = exportFiltered(z, path, context);
+            }
+            long collectionDone = SystemClock.elapsedRealtime();
+            // wait for the media compressed in the background
+            z.writeQueued();
+            long mediaDone = SystemClock.elapsedRealtime();
+            // media map
+            z.writeStr("media", Utils.jsonToString(media));
+            Timber.i("Exported in %d ms: collection %d ms, then waiting for media %d ms",
+                    SystemClock.elapsedRealtime() - start, collectionDone - start, mediaDone - collectionDone);
+        } finally {
+            z.close();
         }
-        // media map
-        z.writeStr("media", Utils.jsonToString(media));
-        z.close();
     }
 
 
     private JSONObject exportVerbatim(ZipFile z, Context context) throws IOException {
+        // copy all media. It is compressed while the collection is written.
+        JSONObject media = new JSONObject();
+        if (mIncludeMedia) {
+            File mdir = new File(mCol.getMedia().dir());
+            if (mdir.exists() && mdir.isDirectory()) {
+                File[] mediaFiles = mdir.listFiles();
+                media = _exportMedia(z, mediaFiles, ValidateFiles.SKIP_VALIDATION);
+            }
+        }
         // close our deck & write it into the zip file, and reopen
         mCount = mCol.cardCount();
         mCol.close();
@@ -459,17 +487,7 @@ public final class AnkiPackageExporter extends AnkiExporter {
         }
 
         mCol.reopen();
-        // copy all media
-        if (!mIncludeMedia) {
-            return new JSONObject();
-        }
-        File mdir = new File(mCol.getMedia().dir());
-        if (mdir.exists() && mdir.isDirectory()) {
-            File[] mediaFiles = mdir.listFiles();
-            return _exportMedia(z, mediaFiles, ValidateFiles.SKIP_VALIDATION);
-        } else {
-            return new JSONObject();
-        }
+        return media;
     }
 
     private JSONObject _exportMedia(ZipFile z, ArrayList<String> fileNames, String mdir) throws IOException {
@@ -486,13 +504,17 @@ public final class AnkiPackageExporter extends AnkiExporter {
         int c = 0;
         JSONObject media = new JSONObject();
         for (File file : files) {
-            // todo: deflate SVG files, as in dae/anki@a5b0852360b132c0d04094f5ca8f1933f64d7c7e
             if (validateFiles == ValidateFiles.VALIDATE && !file.exists()) {
                 // Anki 2.1.30 does the same
                 Timber.d("Skipping missing file %s", file);
                 continue;
             }
-            z.write(file.getPath(), Integer.toString(c));
+            if (file.isDirectory()) {
+                Timber.d("Skipping folder %s", file);
+                continue;
+            }
+            // deflating already compressed formats wastes time for nothing
+            z.writeQueued(file, Integer.toString(c), Media.isCompressed(file.getName()));
             try {
                 media.put(Integer.toString(c), file.getName());
                 c++;
@@ -509,10 +531,10 @@ public final class AnkiPackageExporter extends AnkiExporter {
         String colfile = path.replace(".apkg", ".anki2");
 
         super.exportInto(colfile, context);
-        z.write(colfile, CollectionHelper.COLLECTION_FILENAME);
-        // and media
+        // media, compressed while the collection is written
         prepareMedia();
-    	JSONObject media = _exportMedia(z, mMediaFiles, mCol.getMedia().dir());
+        JSONObject media = _exportMedia(z, mMediaFiles, mCol.getMedia().dir());
+        z.write(colfile, CollectionHelper.COLLECTION_FILENAME);
         // tidy up intermediate files
         SQLiteDatabase.deleteDatabase(new File(colfile));
         SQLiteDatabase.deleteDatabase(new File(path.replace(".apkg", ".media.ad.db2")));
@@ -565,16 +587,31 @@ public final class AnkiPackageExporter extends AnkiExporter {
 
 /**
  * Wrapper around standard Python zip class used in this module for exporting to APKG
- * 
+ * <p>
+ * Files written with {@link #write(String, String)} are compressed on the calling thread. Files queued with
+ * {@link #writeQueued(File, String, boolean)} are compressed on worker threads, into temporary files next to the zip,
+ * and appended by {@link #writeQueued()}. The temporary files left by a failed export are deleted by {@link #close()}.
+ *
  * @author Tim
  */
 class ZipFile {
-    private static final int BUFFER_SIZE = 1024;
-    private ZipArchiveOutputStream mZos;
+    private static final int BUFFER_SIZE = 65536;
+    /** Time allowed to the workers to stop when the export is closed */
+    private static final int WORKER_TIMEOUT_S = 10;
+    private final ZipArchiveOutputStream mZos;
+    /** Where the entries compressed in parallel are kept until they are written */
+    private final File mTempDir;
+    @Nullable
+    private ExecutorService mExecutor;
+    @Nullable
+    private ParallelScatterZipCreator mScatter;
+    /** The temporary files of the worker threads, created when a worker starts */
+    private final List<FileBasedScatterGatherBackingStore> mStores = Collections.synchronizedList(new ArrayList<>());
 
 
     public ZipFile(String path) throws FileNotFoundException {
-        mZos = new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        mZos = new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(path), BUFFER_SIZE));
+        mTempDir = new File(path).getAbsoluteFile().getParentFile();
     }
 
 
@@ -585,6 +622,51 @@ class ZipFile {
     }
 
 
+    /**
+     * Compress file as entry on a worker thread.
+     * @param store Whether to store the file as is, for formats which are already compressed
+     */
+    public void writeQueued(File file, String entry, boolean store) {
+        if (mScatter == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            mExecutor = Executors.newFixedThreadPool(threads);
+            mScatter = new ParallelScatterZipCreator(mExecutor, () -> {
+                FileBasedScatterGatherBackingStore store = new FileBasedScatterGatherBackingStore(File.createTempFile("scatter", ".zip", mTempDir));
+                mStores.add(store);
+                return store;
+            });
+        }
+        ZipArchiveEntry ze = new ZipArchiveEntry(entry);
+        ze.setMethod(store ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        mScatter.addArchiveEntry(ze, () -> {
+            try {
+                return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+
+    /** Wait for the queued files to be compressed, and write them. */
+    public void writeQueued() throws IOException {
+        if (mScatter == null) {
+            return;
+        }
+        try {
+            mScatter.writeTo(mZos);
+            Timber.i("Media compressed in parallel: %s", mScatter.getStatisticsMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            mScatter = null;
+        }
+    }
+
+
     public void writeStr(String entry, String value) throws IOException {
         // TODO: Does this work with abnormal characters?
         InputStream is = new ByteArrayInputStream(value.getBytes());
@@ -596,17 +678,43 @@ class ZipFile {
 
     private void writeEntry(BufferedInputStream bis, ZipArchiveEntry ze) throws IOException {
         byte[] buf = new byte[BUFFER_SIZE];
-        mZos.putArchiveEntry(ze);
-        int len;
-        while ((len = bis.read(buf, 0, BUFFER_SIZE)) != -1) {
-            mZos.write(buf, 0, len);
+        try {
+            mZos.putArchiveEntry(ze);
+            int len;
+            while ((len = bis.read(buf, 0, BUFFER_SIZE)) != -1) {
+                mZos.write(buf, 0, len);
+            }
+            mZos.closeArchiveEntry();
+        } finally {
+            bis.close();
         }
-        mZos.closeArchiveEntry();
-        bis.close();
     }
 
 
     public void close() {
+        if (mExecutor != null) {
+            // stops the compression of queued files if the export failed
+            mExecutor.shutdownNow();
+            try {
+                // a worker which is still compressing a file would keep writing its temporary file
+                if (!mExecutor.awaitTermination(WORKER_TIMEOUT_S, TimeUnit.SECONDS)) {
+                    Timber.w("Media compression did not stop in %d s", WORKER_TIMEOUT_S);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // the stores of a successful export were already deleted once written
+        synchronized (mStores) {
+            for (FileBasedScatterGatherBackingStore store : mStores) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    Timber.w(e, "Could not delete a temporary file of the export");
+                }
+            }
+            mStores.clear();
+        }
         try {
             mZos.close();
         } catch (IOException e) {
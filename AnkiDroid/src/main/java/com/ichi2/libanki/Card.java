@@ -152,30 +152,45 @@ public class Card implements Cloneable {
     }
 
 
+    /**
+     * @param cursor Positioned on a row of "SELECT * FROM cards". Used to load many cards with a single query.
+     */
+    public Card(@NonNull Collection col, @NonNull Cursor cursor) {
+        mCol = col;
+        mTimerStarted = 0L;
+        load(cursor);
+    }
+
+
     public void load() {
         try (Cursor cursor = mCol.getDb().query("SELECT * FROM cards WHERE id = ?", mId)) {
             if (!cursor.moveToFirst()) {
                 throw new WrongId(mId, "card");
             }
-            mId = cursor.getLong(0);
-            mNid = cursor.getLong(1);
-            mDid = cursor.getLong(2);
-            mOrd = cursor.getInt(3);
-            mMod = cursor.getLong(4);
-            mUsn = cursor.getInt(5);
-            mType = cursor.getInt(6);
-            mQueue = cursor.getInt(7);
-            mDue = cursor.getInt(8);
-            mIvl = cursor.getInt(9);
-            mFactor = cursor.getInt(10);
-            mReps = cursor.getInt(11);
-            mLapses = cursor.getInt(12);
-            mLeft = cursor.getInt(13);
-            mODue = cursor.getLong(14);
-            mODid = cursor.getLong(15);
-            mFlags = cursor.getInt(16);
-            mData = cursor.getString(17);
+            load(cursor);
         }
+    }
+
+
+    private void load(@NonNull Cursor cursor) {
+        mId = cursor.getLong(0);
+        mNid = cursor.getLong(1);
+        mDid = cursor.getLong(2);
+        mOrd = cursor.getInt(3);
+        mMod = cursor.getLong(4);
+        mUsn = cursor.getInt(5);
+        mType = cursor.getInt(6);
+        mQueue = cursor.getInt(7);
+        mDue = cursor.getInt(8);
+        mIvl = cursor.getInt(9);
+        mFactor = cursor.getInt(10);
+        mReps = cursor.getInt(11);
+        mLapses = cursor.getInt(12);
+        mLeft = cursor.getInt(13);
+        mODue = cursor.getLong(14);
+        mODid = cursor.getLong(15);
+        mFlags = cursor.getInt(16);
+        mData = cursor.getString(17);
         mQA = null;
         mNote = null;
     }
@@ -292,12 +307,17 @@ public class Card implements Cloneable {
             Model m = model();
             JSONObject t = template();
             long did = isInDynamicDeck() ? mODid : mDid;
-            if (browser) {
-                String bqfmt = t.getString("bqfmt");
-                String bafmt = t.getString("bafmt");
-                mQA = mCol._renderQA(mId, m, did, mOrd, f.stringTags(), f.getFields(), mFlags, browser, bqfmt, bafmt);
-            } else {
-                mQA = mCol._renderQA(mId, m, did, mOrd, f.stringTags(), f.getFields(), mFlags);
+            RenderCache.Key key = new RenderCache.Key(f, m, t, mOrd, did, mCol.getDecks().name(did), mFlags, browser);
+            mQA = mCol.getRenderCache().get(key);
+            if (mQA == null) {
+                if (browser) {
+                    String bqfmt = t.getString("bqfmt");
+                    String bafmt = t.getString("bafmt");
+                    mQA = mCol._renderQA(mId, m, did, mOrd, f.stringTags(), f.getFields(), mFlags, browser, bqfmt, bafmt);
+                } else {
+                    mQA = mCol._renderQA(mId, m, did, mOrd, f.stringTags(), f.getFields(), mFlags);
+                }
+                mCol.getRenderCache().put(key, mQA);
             }
         }
         return mQA;
@@ -317,6 +337,12 @@ public class Card implements Cloneable {
     }
 
 
+    /** Use a note which was already loaded, instead of loading it on first access. */
+    public void setNote(@NonNull Note note) {
+        mNote = note;
+    }
+
+
     // not in upstream
     public Model model() {
         return note().model();
@@ -801,6 +827,11 @@ public class Card implements Cloneable {
             return mCard;
         }
 
+        /** Use a card which was already loaded, e.g. with other cards in a single query. */
+        public synchronized void setCard(@NonNull Card card) {
+            mCard = card;
+        }
+
         /** Next access to card will reload the card from the database. */
         public synchronized void reload() {
             mCard = null;
@@ -0,0 +1,354 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.ichi2.async.CancelListener;
+import com.ichi2.async.ProgressSender;
+import com.ichi2.libanki.template.ParsedNode;
+import com.ichi2.utils.JSONArray;
+import com.ichi2.utils.LongLongHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+import static com.ichi2.async.CancelListener.isCancelled;
+
+/**
+ * Not in libanki.
+ * Adds the missing cards of notes of a note type, and finds their cards which should not exist.
+ * See {@link Collection#genCards(String, Model, ProgressSender)}.
+ *
+ * Notes are read by increasing id from a single query, {@link #CHUNK_SIZE} at a time, and the cards of each chunk are
+ * read in the same order, so that only the cards of the current note are held. The new cards of a chunk are inserted
+ * before the next chunk is read.
+ *
+ * Whether a standard template is empty only depends on which of the fields it uses are empty. So the non-empty fields
+ * of a note are kept as a bitmask, and whether a template is empty is computed once by combination of the fields it
+ * uses.
+ */
+class CardGenerator {
+    /** Number of notes read at once */
+    private static final int CHUNK_SIZE = 1000;
+
+    private final Collection mCol;
+    private final DB mDb;
+    private final Model mModel;
+    private final int mFieldCount;
+    /** Question of each template of a standard note type, null if it can't be parsed. Null for cloze. */
+    @Nullable
+    private final List<ParsedNode> mNodes;
+    /** For each template, the bits of the fields it uses. Null for cloze, or if there are more than 64 fields. */
+    @Nullable
+    private final long[] mUsedFields;
+    /** For each template, 1 if it is not empty and 0 if it is, by the bits of the non-empty fields it uses */
+    @Nullable
+    private final LongLongHashMap[] mAvailByFields;
+    /** Deck of each template, 0 if the template does not override the deck */
+    private final long[] mTemplateDids;
+    /** Deck in which cards are added, by deck requested */
+    private final LongLongHashMap mResolvedDids = new LongLongHashMap();
+
+    /* Cards of the current note */
+    private int mCardCount;
+    private long[] mCardIds = new long[8];
+    private int[] mCardOrds = new int[8];
+    /** Deck of all the cards of the current note, 0 if they are in different decks */
+    private long mNoteDid;
+    /** Due of a new card of the current note, if it has any */
+    private boolean mHasDue;
+    private long mNoteDue;
+
+    /* Ords of the cards the current note should have */
+    private int mAvailCount;
+    private int[] mAvail = new int[8];
+
+    /** Id of the next card */
+    private long mTs;
+
+
+    CardGenerator(@NonNull Collection col, @NonNull Model model) {
+        mCol = col;
+        mDb = col.getDb();
+        mModel = model;
+        List<String> fieldNames = model.getFieldsNames();
+        mFieldCount = fieldNames.size();
+        JSONArray tmpls = model.getJSONArray("tmpls");
+        if (model.isStd()) {
+            mNodes = model.parsedNodes();
+            mTemplateDids = new long[tmpls.length()];
+            for (int i = 0; i < tmpls.length(); i++) {
+                mTemplateDids[i] = tmpls.getJSONObject(i).optLong("did", 0);
+            }
+        } else {
+            mNodes = null;
+            // cloze cards are copies of the first template
+            mTemplateDids = new long[] {tmpls.getJSONObject(0).optLong("did", 0)};
+        }
+        if (mNodes == null || mFieldCount > Long.SIZE) {
+            mUsedFields = null;
+            mAvailByFields = null;
+            return;
+        }
+        mUsedFields = new long[mNodes.size()];
+        mAvailByFields = new LongLongHashMap[mNodes.size()];
+        for (int i = 0; i < mNodes.size(); i++) {
+            ParsedNode node = mNodes.get(i);
+            mAvailByFields[i] = new LongLongHashMap();
+            if (node == null) {
+                continue;
+            }
+            Set<String> used = new HashSet<>();
+            node.add_used_fields(used);
+            // other names, such as Tags or Deck, are never in the non-empty fields
+            for (int f = 0; f < mFieldCount; f++) {
+                if (used.contains(fieldNames.get(f))) {
+                    mUsedFields[i] |= 1L << f;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @param snids Ids of notes of the note type, as a list in parentheses
+     * @param task Task to check for cancellation and to which the number of cards of each note is sent
+     * @return Cards that should be removed because they should not be generated, or null if cancelled. Cards generated
+     * before the cancellation are kept.
+     */
+    @Nullable
+    <T extends ProgressSender<Integer> & CancelListener> ArrayList<Long> generate(@NonNull String snids, @Nullable T task) {
+        ArrayList<Long> rem = new ArrayList<>();
+        mTs = mCol.getTime().maxID(mDb);
+        long now = mCol.getTime().intTime();
+        int usn = mCol.usn();
+        long modelDid = mModel.getLong("did");
+        long[] nids = new long[CHUNK_SIZE];
+        String[] flds = new String[CHUNK_SIZE];
+        List<Object[]> data = new ArrayList<>();
+        int added = 0;
+        // a single query for the notes, which are only read: the cards inserted don't change its result
+        try (Cursor notes = mDb.query("SELECT id, flds FROM notes WHERE id IN " + snids + " ORDER BY id")) {
+            int count;
+            do {
+                count = 0;
+                while (count < CHUNK_SIZE && notes.moveToNext()) {
+                    nids[count] = notes.getLong(0);
+                    flds[count] = notes.getString(1);
+                    count++;
+                }
+                if (count == 0) {
+                    break;
+                }
+                // merge the cards, by nid, with the notes of the chunk
+                try (Cursor cur = mDb.query("SELECT id, nid, ord, (CASE WHEN odid != 0 THEN odid ELSE did END), " +
+                        "(CASE WHEN odid != 0 THEN odue ELSE due END), type FROM cards WHERE nid BETWEEN ? AND ? ORDER BY nid",
+                        nids[0], nids[count - 1])) {
+                    boolean hasCard = cur.moveToNext();
+                    for (int i = 0; i < count; i++) {
+                        if (isCancelled(task)) {
+                            Timber.v("Empty card cancelled");
+                            return null;
+                        }
+                        long nid = nids[i];
+                        mCardCount = 0;
+                        mHasDue = false;
+                        // cards of notes which are not generated
+                        while (hasCard && cur.getLong(1) < nid) {
+                            hasCard = cur.moveToNext();
+                        }
+                        while (hasCard && cur.getLong(1) == nid) {
+                            addCard(cur.getLong(0), cur.getInt(2), cur.getLong(3), cur.getLong(4), cur.getInt(5));
+                            hasCard = cur.moveToNext();
+                        }
+                        availOrds(Utils.splitFields(flds[i]));
+                        if (task != null) {
+                            task.doProgress(mAvailCount);
+                        }
+                        generateNote(nid, modelDid, now, usn, data);
+                        // note any cards that need removing
+                        for (int c = 0; c < mCardCount; c++) {
+                            if (!isAvail(mCardOrds[c])) {
+                                rem.add(mCardIds[c]);
+                            }
+                        }
+                    }
+                }
+                Arrays.fill(flds, null);
+                // bulk update
+                if (!data.isEmpty()) {
+                    mDb.executeMany("INSERT INTO cards VALUES (?,?,?,?,?,?,0,0,?,0,0,0,0,0,0,0,0,\"\")", data);
+                    added += data.size();
+                    data.clear();
+                }
+            } while (count == CHUNK_SIZE);
+        }
+        Timber.d("Generated %d cards", added);
+        return rem;
+    }
+
+
+    private void addCard(long id, int ord, long did, long due, @Consts.CARD_TYPE int type) {
+        if (mCardCount == mCardIds.length) {
+            mCardIds = Arrays.copyOf(mCardIds, mCardCount * 2);
+            mCardOrds = Arrays.copyOf(mCardOrds, mCardCount * 2);
+        }
+        mCardIds[mCardCount] = id;
+        mCardOrds[mCardCount] = ord;
+        if (mCardCount == 0) {
+            // first card or multiple cards in same deck
+            mNoteDid = did;
+        } else if (mNoteDid != did) {
+            // cards are in two or more different decks; revert to model default
+            mNoteDid = 0;
+        }
+        mCardCount++;
+        if (!mHasDue && type == Consts.CARD_TYPE_NEW) {
+            mHasDue = true;
+            mNoteDue = due;
+        }
+    }
+
+
+    /** Add any missing card of the current note to data. */
+    private void generateNote(long nid, long modelDid, long now, int usn, @NonNull List<Object[]> data) {
+        long did = mCardCount == 0 || mNoteDid == 0 ? modelDid : mNoteDid;
+        for (int a = 0; a < mAvailCount; a++) {
+            int ord = mAvail[a];
+            if (hasCard(ord)) {
+                continue;
+            }
+            long ndid = mTemplateDids[mNodes == null ? 0 : ord];
+            if (ndid != 0) {
+                did = ndid;
+            }
+            // use sibling due if there is one, else use a new id
+            if (!mHasDue) {
+                mHasDue = true;
+                mNoteDue = mCol.nextID("pos");
+            }
+            data.add(new Object[] {mTs, nid, resolveDid(did), ord, now, usn, mNoteDue});
+            mTs += 1;
+        }
+    }
+
+
+    /** @return The deck in which a card requested in did is added */
+    private long resolveDid(long did) {
+        if (mResolvedDids.containsKey(did)) {
+            return mResolvedDids.get(did, did);
+        }
+        long resolved = did;
+        // check deck is not a cram deck
+        if (mCol.getDecks().isDyn(resolved)) {
+            resolved = 1L;
+        }
+        // if the deck doesn't exist, use default instead
+        resolved = mCol.getDecks().get(resolved).getLong("id");
+        mResolvedDids.put(did, resolved);
+        return resolved;
+    }
+
+
+    private boolean hasCard(int ord) {
+        for (int c = 0; c < mCardCount; c++) {
+            if (mCardOrds[c] == ord) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private boolean isAvail(int ord) {
+        for (int a = 0; a < mAvailCount; a++) {
+            if (mAvail[a] == ord) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** Set mAvail to the ords of the cards of a note with these fields, allowing a card 1 if they are all empty. */
+    private void availOrds(@NonNull String[] sflds) {
+        mAvailCount = 0;
+        if (mAvailByFields == null) {
+            for (int ord : Models.availOrds(mModel, sflds, mNodes, Models.AllowEmpty.TRUE)) {
+                addAvail(ord);
+            }
+            return;
+        }
+        long nonEmpty = 0;
+        for (int f = 0; f < Math.min(sflds.length, mFieldCount); f++) {
+            if (!TextUtils.isEmpty(sflds[f].trim())) {
+                nonEmpty |= 1L << f;
+            }
+        }
+        for (int ord = 0; ord < mAvailByFields.length; ord++) {
+            if (templateIsAvail(ord, nonEmpty & mUsedFields[ord])) {
+                addAvail(ord);
+            }
+        }
+        if (mAvailCount == 0) {
+            /* According to anki documentation:
+            When adding/importing, if a normal note doesn’t generate any cards, Anki will now add a blank card 1 instead of refusing to add the note. */
+            addAvail(0);
+        }
+    }
+
+
+    /** @return Whether template ord is not empty when exactly the fields of the bitmask, among those it uses, are not empty */
+    private boolean templateIsAvail(int ord, long fields) {
+        LongLongHashMap avail = mAvailByFields[ord];
+        long known = avail.get(fields, -1);
+        if (known != -1) {
+            return known == 1;
+        }
+        ParsedNode node = mNodes.get(ord);
+        boolean result = false;
+        if (node != null) {
+            List<String> fieldNames = mModel.getFieldsNames();
+            Set<String> nonEmptyFields = new HashSet<>();
+            for (int f = 0; f < mFieldCount; f++) {
+                if ((fields & (1L << f)) != 0) {
+                    nonEmptyFields.add(fieldNames.get(f));
+                }
+            }
+            result = !node.template_is_empty(nonEmptyFields);
+        }
+        avail.put(fields, result ? 1 : 0);
+        return result;
+    }
+
+
+    private void addAvail(int ord) {
+        if (mAvailCount == mAvail.length) {
+            mAvail = Arrays.copyOf(mAvail, mAvailCount * 2);
+        }
+        mAvail[mAvailCount++] = ord;
+    }
+}
@@ -43,6 +43,7 @@ import com.ichi2.libanki.hooks.ChessFilter;
 import com.ichi2.libanki.sched.AbstractSched;
 import com.ichi2.libanki.sched.Sched;
 import com.ichi2.libanki.sched.SchedV2;
+import com.ichi2.libanki.stats.ReviewRollup;
 import com.ichi2.libanki.template.ParsedNode;
 import com.ichi2.libanki.template.TemplateError;
 import com.ichi2.libanki.utils.Time;
@@ -78,7 +79,6 @@ import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import androidx.annotation.CheckResult;
 import androidx.annotation.NonNull;
@@ -88,8 +88,6 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteStatement;
 import timber.log.Timber;
 
-import static com.ichi2.async.CancelListener.isCancelled;
-
 // Anki maintains a cache of used tags so it can quickly present a list of tags
 // for autocomplete and in the browser. For efficiency, deletions are not
 // tracked, so unused tags can only be removed from the list with a DB check.
@@ -112,6 +110,9 @@ public class Collection implements CollectionGetter {
     private final TagManager mTags;
 
     private AbstractSched mSched;
+    private final SearchPlanCache mSearchPlanCache = new SearchPlanCache();
+    private final RenderCache mRenderCache = new RenderCache();
+    private final NoteSearchIndex mSearchIndex;
 
     private long mStartTime;
     private int mStartReps;
@@ -134,9 +135,6 @@ public class Collection implements CollectionGetter {
     private boolean mDebugLog;
     private PrintWriter mLogHnd;
 
-    private static final Pattern fClozePatternQ = Pattern.compile("\\{\\{(?!type:)(.*?)cloze:");
-    private static final Pattern fClozePatternA = Pattern.compile("\\{\\{(.*?)cloze:");
-    private static final Pattern fClozeTagStart = Pattern.compile("<%cloze:");
 
     /**
      * This is only used for collections which were created before
@@ -179,7 +177,10 @@ public class Collection implements CollectionGetter {
         mMedia = new Media(this, server);
         mDecks = new Decks(this);
         mTags = new Tags(this);
+        mSearchIndex = new NoteSearchIndex(this);
         load();
+        mSearchIndex.open();
+        ReviewRollup.open(mDb);
         if (mCrt == 0) {
             mCrt = UIUtils.getDayStart(getTime()) / 1000;
         }
@@ -286,6 +287,8 @@ public class Collection implements CollectionGetter {
         // application layer can asynchronously pre-fetch those parts;
         // otherwise they get loaded when required.
         mDecks.load(loadColumn("decks"), deckConf);
+        mSearchPlanCache.clear();
+        mRenderCache.clear();
     }
 
     private static int sChunk = 0;
@@ -416,6 +419,7 @@ public class Collection implements CollectionGetter {
                 Timber.w(e);
                 AnkiDroidApp.sendExceptionReport(e, "closeDB");
             }
+            mSearchIndex.close();
             if (!mServer) {
                 mDb.getDatabase().disableWriteAheadLogging();
             }
@@ -423,6 +427,7 @@ public class Collection implements CollectionGetter {
             mDb = null;
             mMedia.close();
             _closeLog();
+            Timber.i("Render cache: %s", mRenderCache);
             Timber.i("Collection closed");
         }
     }
@@ -433,6 +438,8 @@ public class Collection implements CollectionGetter {
         if (mDb == null) {
             mDb = mDroidBackend.openCollectionDatabase(mPath);
             mMedia.connect();
+            mSearchIndex.open();
+            ReviewRollup.open(mDb);
             _openLog();
         }
     }
@@ -523,6 +530,45 @@ public class Collection implements CollectionGetter {
     }
 
 
+    /**
+     * Load cards and their notes with one query for the cards and one for the notes, instead of two queries per card.
+     * @return The cards by id, with their note loaded. Ids of cards which don't exist anymore are absent.
+     */
+    @NonNull
+    public Map<Long, Card> getCardsWithNotes(@NonNull long[] ids) {
+        Map<Long, Card> cards = HashUtil.HashMapInit(ids.length);
+        try (Cursor cur = mDb.query("SELECT * FROM cards WHERE id IN " + Utils.ids2str(ids))) {
+            while (cur.moveToNext()) {
+                Card card = new Card(this, cur);
+                cards.put(card.getId(), card);
+            }
+        }
+        Map<Long, List<Card>> cardsByNid = HashUtil.HashMapInit(cards.size());
+        for (Card card : cards.values()) {
+            List<Card> noteCards = cardsByNid.get(card.getNid());
+            if (noteCards == null) {
+                noteCards = new ArrayList<>(1);
+                cardsByNid.put(card.getNid(), noteCards);
+            }
+            noteCards.add(card);
+        }
+        long[] nids = new long[cardsByNid.size()];
+        int i = 0;
+        for (long nid : cardsByNid.keySet()) {
+            nids[i++] = nid;
+        }
+        try (Cursor cur = mDb.query("SELECT " + Note.LOAD_COLUMNS + " FROM notes WHERE id IN " + Utils.ids2str(nids))) {
+            while (cur.moveToNext()) {
+                Note note = new Note(this, cur);
+                for (Card card : cardsByNid.get(note.getId())) {
+                    card.setNote(note);
+                }
+            }
+        }
+        return cards;
+    }
+
+
     /**
      * Utils ******************************************************************** ***************************
      */
@@ -663,6 +709,7 @@ public class Collection implements CollectionGetter {
         // more card templates
         _logRem(ids, Consts.REM_NOTE);
         mDb.execute("DELETE FROM notes WHERE id IN " + strids);
+        mSearchIndex.remove(strids);
     }
 
 
@@ -761,119 +808,7 @@ public class Collection implements CollectionGetter {
      * @param <T>
      */
     public <T extends ProgressSender<Integer> & CancelListener> ArrayList<Long> genCards(String snids, @NonNull Model model, @Nullable T task) {
-        int nbCount = noteCount();
-        // For each note, indicates ords of cards it contains
-        HashMap<Long, HashMap<Integer, Long>> have = HashUtil.HashMapInit(nbCount);
-        // For each note, the deck containing all of its cards, or 0 if siblings in multiple deck
-        HashMap<Long, Long> dids = HashUtil.HashMapInit(nbCount);
-        // For each note, an arbitrary due of one of its due card processed, if any exists
-        HashMap<Long, Long> dues = HashUtil.HashMapInit(nbCount);
-        List<ParsedNode> nodes = null;
-        if (model.getInt("type") != Consts.MODEL_CLOZE) {
-            nodes = model.parsedNodes();
-        }
-        try (Cursor cur = mDb.query("select id, nid, ord, (CASE WHEN odid != 0 THEN odid ELSE did END), (CASE WHEN odid != 0 THEN odue ELSE due END), type from cards where nid in " + snids)) {
-            while (cur.moveToNext()) {
-                if (isCancelled(task)) {
-                    Timber.v("Empty card cancelled");
-                    return null;
-                }
-                @NonNull Long id = cur.getLong(0);
-                @NonNull Long nid = cur.getLong(1);
-                @NonNull Integer ord = cur.getInt(2);
-                @NonNull Long did = cur.getLong(3);
-                @NonNull Long due = cur.getLong(4);
-                @Consts.CARD_TYPE int type = cur.getInt(5);
-
-                // existing cards
-                if (!have.containsKey(nid)) {
-                    have.put(nid, new HashMap<>());
-                }
-                have.get(nid).put(ord, id);
-                // and their dids
-                if (dids.containsKey(nid)) {
-                    if (dids.get(nid) != 0 && !Utils.equals(dids.get(nid), did)) {
-                        // cards are in two or more different decks; revert to model default
-                        dids.put(nid, 0L);
-                    }
-                } else {
-                    // first card or multiple cards in same deck
-                    dids.put(nid, did);
-                }
-                if (!dues.containsKey(nid) && type == Consts.CARD_TYPE_NEW) {
-                    dues.put(nid, due);
-                }
-            }
-        }
-        // build cards for each note
-        ArrayList<Object[]> data = new ArrayList<>();
-        long ts = getTime().maxID(mDb);
-        long now = getTime().intTime();
-        ArrayList<Long> rem = new ArrayList<>(mDb.queryScalar("SELECT count() FROM notes where id in " + snids));
-        int usn = usn();
-        try (Cursor cur = mDb.query("SELECT id, flds FROM notes WHERE id IN " + snids)) {
-            while (cur.moveToNext()) {
-                if (isCancelled(task)) {
-                    Timber.v("Empty card cancelled");
-                    return null;
-                }
-                @NonNull Long nid = cur.getLong(0);
-                String flds = cur.getString(1);
-                ArrayList<Integer> avail = Models.availOrds(model, Utils.splitFields(flds), nodes, Models.AllowEmpty.TRUE);
-                if (task != null) {
-                    task.doProgress(avail.size());
-                }
-                Long did = dids.get(nid);
-                // use sibling due if there is one, else use a new id
-                @NonNull Long due;
-                if (dues.containsKey(nid)) {
-                    due = dues.get(nid);
-                } else {
-                    due = (long) nextID("pos");
-                }
-                if (did == null || did == 0L) {
-                    did = model.getLong("did");
-                }
-                // add any missing cards
-                ArrayList<JSONObject> tmpls = _tmplsFromOrds(model, avail);
-                for (JSONObject t : tmpls) {
-                    int tord = t.getInt("ord");
-                    boolean doHave = have.containsKey(nid) && have.get(nid).containsKey(tord);
-                    if (!doHave) {
-                        // check deck is not a cram deck
-                        long ndid;
-                        try {
-                            ndid = t.optLong("did", 0);
-                            if (ndid != 0) {
-                                did = ndid;
-                            }
-                        } catch (JSONException e) {
-                            Timber.w(e);
-                            // do nothing
-                        }
-                        if (getDecks().isDyn(did)) {
-                            did = 1L;
-                        }
-                        // if the deck doesn't exist, use default instead
-                        did = mDecks.get(did).getLong("id");
-                        // give it a new id instead
-                        data.add(new Object[] { ts, nid, did, tord, now, usn, due});
-                        ts += 1;
-                    }
-                }
-                // note any cards that need removing
-                if (have.containsKey(nid)) {
-                    for (Map.Entry<Integer, Long> n : have.get(nid).entrySet()) {
-                        if (!avail.contains(n.getKey())) {
-                            rem.add(n.getValue());
-                        }
-                    }
-                }
-            }
-        }
-        // bulk update
-        mDb.executeMany("INSERT INTO cards VALUES (?,?,?,?,?,?,0,0,?,0,0,0,0,0,0,0,0,\"\")", data);
-        return rem;
+        return new CardGenerator(this, model).generate(snids, task);
     }
 
     /**
@@ -1071,6 +1006,7 @@ public class Collection implements CollectionGetter {
         }
         // apply, relying on calling code to bump usn+mod
         mDb.executeMany("UPDATE notes SET sfld=?, csum=? WHERE id=?", r);
+        mSearchIndex.update(snids);
     }
 
 
@@ -1120,18 +1056,15 @@ public class Collection implements CollectionGetter {
             String type = p.first;
             String format = p.second;
             if ("q".equals(type)) {
-                format = fClozePatternQ.matcher(format).replaceAll(String.format(Locale.US, "{{$1cq-%d:", cardNum));
-                format = fClozeTagStart.matcher(format).replaceAll(String.format(Locale.US, "<%%cq:%d:", cardNum));
                 fields.put("FrontSide", "");
             } else {
-                format = fClozePatternA.matcher(format).replaceAll(String.format(Locale.US, "{{$1ca-%d:", cardNum));
-                format = fClozeTagStart.matcher(format).replaceAll(String.format(Locale.US, "<%%ca:%d:", cardNum));
                 // the following line differs from libanki // TODO: why?
                 fields.put("FrontSide", d.get("q")); // fields.put("FrontSide", mMedia.stripAudio(d.get("q")));
             }
             String html;
             try {
-                html = ParsedNode.parse_inner(format).render(fields, "q".equals(type), getContext());
+                // The template is parsed once; the cloze filters show the cloze of cardNum
+                html = ParsedNode.parse_inner(format).render(fields, "q".equals(type), cardNum, getContext());
             } catch (TemplateError er) {
                 Timber.w(er);
                 html = er.message(getContext());
@@ -1209,6 +1142,12 @@ public class Collection implements CollectionGetter {
     }
 
 
+    /** Return the card ids as an array, to avoid boxing when the search returns many cards */
+    public long[] findCardIds(String search, boolean order, CollectionTask.PartialSearch task) {
+        return new Finder(this).findCardIds(search, order, task);
+    }
+
+
     /** Return a list of note ids */
     public List<Long> findNotes(String query) {
         return new Finder(this).findNotes(query);
@@ -1415,7 +1354,7 @@ public class Collection implements CollectionGetter {
         File file = new File(mPath);
         CheckDatabaseResult result = new CheckDatabaseResult(file.length());
         final int[] currentTask = {1};
-        int totalTasks = (getModels().all().size() * 4) + 27; // a few fixes are in all-models loops, the rest are one-offs
+        int totalTasks = (getModels().all().size() * 4) + 28; // a few fixes are in all-models loops, the rest are one-offs
         Runnable notifyProgress = () -> fixIntegrityProgress(progressCallback, currentTask[0]++, totalTasks);
         FunctionalInterfaces.Consumer<FunctionalInterfaces.FunctionThrowable<Runnable, List<String>, JSONException>> executeIntegrityTask =
                 function -> {
@@ -1473,6 +1412,7 @@ public class Collection implements CollectionGetter {
         executeIntegrityTask.consume(this::resetInvalidDeckOptions);
         executeIntegrityTask.consume(this::rebuildTags);
         executeIntegrityTask.consume(this::updateFieldCache);
+        executeIntegrityTask.consume(this::rebuildSearchIndex);
         executeIntegrityTask.consume(this::fixNewCardDuePositionOverflow);
         executeIntegrityTask.consume(this::resetNewCardInsertionPosition);
         executeIntegrityTask.consume(this::fixExcessiveReviewDueDates);
@@ -1692,6 +1632,14 @@ public class Collection implements CollectionGetter {
     }
 
 
+    private List<String> rebuildSearchIndex(Runnable notifyProgress) {
+        Timber.d("rebuildSearchIndex");
+        notifyProgress.run();
+        mSearchIndex.rebuild();
+        return Collections.emptyList();
+    }
+
+
     private List<String> rebuildTags(Runnable notifyProgress) {
         Timber.d("rebuildTags");
         // tags
@@ -2031,6 +1979,23 @@ public class Collection implements CollectionGetter {
     }
 
 
+    public NoteSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+
+    /** The last questions and answers rendered, and their statistics. */
+    public RenderCache getRenderCache() {
+        return mRenderCache;
+    }
+
+
+    /** The compiled searches of {@link Finder}, and their statistics. */
+    public SearchPlanCache getSearchPlanCache() {
+        return mSearchPlanCache;
+    }
+
+
     /**
      * On first call, load the model if it was not loaded.
      *
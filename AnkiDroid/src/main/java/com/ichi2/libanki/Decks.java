@@ -289,6 +289,7 @@ public class Decks extends DeckManager {
             g.put("usn", mCol.usn());
         }
         mChanged = true;
+        mCol.getSearchPlanCache().clear();
     }
 
 
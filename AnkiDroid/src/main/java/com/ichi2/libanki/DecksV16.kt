@@ -209,6 +209,7 @@ class DecksV16(private val col: Collection, private val decksBackend: DecksBacke
     fun rem(did: did, cardsToo: bool = true, childrenToo: bool = true) {
         assert(cardsToo && childrenToo)
         decksBackend.remove_deck(did)
+        col.searchPlanCache.clear()
     }
 
     /** A sorted sequence of deck names and IDs. */
@@ -303,6 +304,8 @@ class DecksV16(private val col: Collection, private val decksBackend: DecksBacke
     /** Add or update an existing deck. Used for syncing and merging. */
     fun update(g: DeckV16, preserve_usn: bool = true) {
         g.id = decksBackend.add_or_update_deck_legacy(g, preserve_usn)
+        col.searchPlanCache.clear()
+        col.renderCache.clear()
     }
 
     /** Rename deck prefix to NAME if not exists. Updates children. */
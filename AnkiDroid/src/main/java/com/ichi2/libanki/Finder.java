@@ -28,6 +28,7 @@ import com.ichi2.async.CancelListener;
 import com.ichi2.async.CollectionTask;
 import com.ichi2.async.ProgressSender;
 import com.ichi2.libanki.Deck;
+import com.ichi2.libanki.sched.AbstractSched;
 import com.ichi2.utils.HashUtil;
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONObject;
@@ -45,6 +46,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import androidx.annotation.CheckResult;
+import androidx.annotation.Nullable;
 import timber.log.Timber;
 
 import static com.ichi2.async.CancelListener.isCancelled;
@@ -59,6 +61,8 @@ public class Finder {
     private static final Pattern fMidPattern = Pattern.compile("[^0-9]");
 
     private final Collection mCol;
+    /** Whether the search being compiled only depends on what {@link SearchPlanCache} tracks */
+    private boolean mCacheable;
 
 
     public Finder(Collection col) {
@@ -89,6 +93,53 @@ public class Finder {
     }
 
 
+    /**
+     * Same as {@link #findCards(String, boolean, CollectionTask.PartialSearch)}, without boxing the ids. Used when the
+     * result can contain all cards of a big collection.
+     */
+    @CheckResult
+    public long[] findCardIds(String query, boolean _order, CollectionTask.PartialSearch task) {
+        SearchPlanCache.Plan plan = _plan(query, _order, false);
+        if (plan == null) {
+            return new long[0];
+        }
+        ProgressSender<Long> progress = task == null ? null : task.getProgressSender();
+        SearchPlanCache cache = mCol.getSearchPlanCache();
+        long[] res = new long[256];
+        int size = 0;
+        long start = System.nanoTime();
+        try (Cursor cur = mCol.getDb().getDatabase().query(plan.sql, plan.args)) {
+            while (cur.moveToNext()) {
+                if (isCancelled(task)) {
+                    return new long[0];
+                }
+                if (size == res.length) {
+                    res = Arrays.copyOf(res, size * 2);
+                }
+                long cid = cur.getLong(0);
+                res[size++] = cid;
+                publishProgress(progress, cid);
+            }
+        } catch (SQLException e) {
+            // invalid grouping
+            Timber.w(e);
+            return new long[0];
+        } finally {
+            cache.recordExecute(System.nanoTime() - start);
+        }
+        res = Arrays.copyOf(res, size);
+        if (plan.reverse) {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                long tmp = res[i];
+                res[i] = res[j];
+                res[j] = tmp;
+            }
+        }
+        Timber.d("Search '%s' found %d cards. Searches so far: %s", query, size, cache);
+        return res;
+    }
+
+
     @CheckResult
     private List<Long> _findCards(String query, Object _order) {
         return _findCards(query, _order, null, null);
@@ -96,20 +147,14 @@ public class Finder {
 
     @CheckResult
     private List<Long> _findCards(String query, Object _order, CancelListener cancellation, ProgressSender<Long> progress) {
-        String[] tokens = _tokenize(query);
-        Pair<String, String[]> res1 = _where(tokens);
-        String preds = res1.first;
-        String[] args = res1.second;
         List<Long> res = new ArrayList<>();
-        if (preds == null) {
+        SearchPlanCache.Plan plan = _plan(query, _order, false);
+        if (plan == null) {
             return res;
         }
-        Pair<String, Boolean> res2 = _order instanceof Boolean ? _order((Boolean) _order) : _order((String) _order);
-        String order = res2.first;
-        boolean rev = res2.second;
-        String sql = _query(preds, order);
-        Timber.v("Search query '%s' is compiled as '%s'.", query, sql);
-        try (Cursor cur = mCol.getDb().getDatabase().query(sql, args)) {
+        SearchPlanCache cache = mCol.getSearchPlanCache();
+        long start = System.nanoTime();
+        try (Cursor cur = mCol.getDb().getDatabase().query(plan.sql, plan.args)) {
             while (cur.moveToNext()) {
                 if (isCancelled(cancellation)) {
                     return new ArrayList<>(0);
@@ -121,30 +166,26 @@ public class Finder {
             // invalid grouping
             Timber.w(e);
             return new ArrayList<>(0);
+        } finally {
+            cache.recordExecute(System.nanoTime() - start);
         }
-        if (rev) {
+        if (plan.reverse) {
             Collections.reverse(res);
         }
+        Timber.d("Search '%s' found %d cards. Searches so far: %s", query, res.size(), cache);
         return res;
     }
 
 
     public List<Long> findNotes(String query) {
-        String[] tokens = _tokenize(query);
-        Pair<String, String[]> res1 = _where(tokens);
-        String preds = res1.first;
-        String[] args = res1.second;
         List<Long> res = new ArrayList<>();
-        if (preds == null) {
+        SearchPlanCache.Plan plan = _plan(query, null, true);
+        if (plan == null) {
             return res;
         }
-        if ("".equals(preds)) {
-            preds = "1";
-        } else {
-            preds = "(" + preds + ")";
-        }
-        String sql = "select distinct(n.id) from cards c, notes n where c.nid=n.id and " + preds;
-        try (Cursor cur = mCol.getDb().getDatabase().query(sql, args)) {
+        SearchPlanCache cache = mCol.getSearchPlanCache();
+        long start = System.nanoTime();
+        try (Cursor cur = mCol.getDb().getDatabase().query(plan.sql, plan.args)) {
             while (cur.moveToNext()) {
                 res.add(cur.getLong(0));
             }
@@ -152,11 +193,94 @@ public class Finder {
             Timber.w(e);
             // invalid grouping
             return new ArrayList<>(0);
+        } finally {
+            cache.recordExecute(System.nanoTime() - start);
         }
         return res;
     }
 
 
+    /**
+     * Plans
+     * ***********************************************************
+     */
+
+    /**
+     * @param _order The order of findCards, ignored for notes.
+     * @param notes Whether the plan should return note ids instead of card ids.
+     * @return The SQL and arguments of the search, from the collection's cache if it was already compiled; or null
+     * if the search is invalid.
+     */
+    @Nullable
+    private SearchPlanCache.Plan _plan(String query, Object _order, boolean notes) {
+        SearchPlanCache cache = mCol.getSearchPlanCache();
+        long start = System.nanoTime();
+        String[] tokens = _tokenize(query);
+        cache.validate(_planContext());
+        String key = _planKey(tokens, _order, notes);
+        SearchPlanCache.Plan plan = cache.get(key);
+        if (plan != null) {
+            return plan;
+        }
+        mCacheable = true;
+        Pair<String, String[]> res1 = _where(tokens);
+        String preds = res1.first;
+        String[] args = res1.second;
+        if (preds == null) {
+            cache.recordCompile(System.nanoTime() - start);
+            return null;
+        }
+        if (notes) {
+            if ("".equals(preds)) {
+                preds = "1";
+            } else {
+                preds = "(" + preds + ")";
+            }
+            String sql = "select distinct(n.id) from cards c, notes n where c.nid=n.id and " + preds;
+            plan = new SearchPlanCache.Plan(sql, args, false);
+        } else {
+            Pair<String, Boolean> res2 = _order instanceof Boolean ? _order((Boolean) _order) : _order((String) _order);
+            String order = res2.first;
+            boolean rev = res2.second;
+            String sql = _query(preds, order);
+            plan = new SearchPlanCache.Plan(sql, args, rev);
+        }
+        Timber.v("Search query '%s' is compiled as '%s'.", query, plan.sql);
+        if (mCacheable) {
+            cache.put(key, plan);
+        }
+        cache.recordCompile(System.nanoTime() - start);
+        return plan;
+    }
+
+
+    /** Everything a plan may depend on, apart from models, decks and the sort order. */
+    private String _planContext() {
+        AbstractSched sched = mCol.getSched();
+        return mCol.getScm() + ":" + sched.getToday() + ":" + sched.getDayCutoff() + ":" + mCol.getDecks().selected() +
+                ":" + mCol.getSearchIndex().isSearchable();
+    }
+
+
+    private String _planKey(String[] tokens, Object _order, boolean notes) {
+        StringBuilder key = new StringBuilder();
+        if (notes) {
+            key.append("notes");
+        } else if (_order instanceof Boolean) {
+            if ((Boolean) _order) {
+                key.append("sort:").append(mCol.get_config_string("sortType"))
+                        .append(':').append(mCol.get_config_boolean("sortBackwards"));
+            }
+        } else if (_order != null) {
+            key.append("order:").append(_order);
+        }
+        for (String token : tokens) {
+            key.append('\u0000').append(token);
+        }
+        return key.toString();
+    }
+
+
     /**
      * Tokenizing
      * ***********************************************************
@@ -339,13 +463,20 @@ public class Finder {
                     case "tag":
                         s.add(_findTag(val, args));
                         break;
+                    case "w":
+                        s.add(_findWords(val, args));
+                        break;
                     case "dupe":
+                        // depends on the content of notes
+                        mCacheable = false;
                         s.add(_findDupes(val));
                         break;
                     case "is":
                         s.add(_findCardState(val));
                         break;
                     default:
+                        // depends on the content of notes
+                        mCacheable = false;
                         s.add(_findField(cmd, val));
                         break;
                 }
@@ -809,6 +940,58 @@ public class Finder {
     }
 
 
+    /**
+     * Notes containing all the words of val, separated by spaces. A word ending in * is a prefix. Uses the search index
+     * if it is enabled, otherwise checks the fields of each note which may contain the words.
+     */
+    private String _findWords(String val, List<String> args) {
+        String fromIndex = mCol.getSearchIndex().findWords(val, args);
+        if (fromIndex != null) {
+            return fromIndex;
+        }
+        // depends on the content of notes
+        mCacheable = false;
+        String[] words = val.trim().split("\\s+");
+        List<Pattern> patterns = new ArrayList<>(words.length);
+        StringBuilder like = new StringBuilder("1");
+        List<String> likeArgs = new ArrayList<>(words.length);
+        for (String word : words) {
+            boolean prefix = word.endsWith("*");
+            String stem = prefix ? word.substring(0, word.length() - 1) : word;
+            if (stem.isEmpty()) {
+                continue;
+            }
+            patterns.add(Pattern.compile("(?<![\\p{L}\\p{N}])" + Pattern.quote(stem) + (prefix ? "" : "(?![\\p{L}\\p{N}])"),
+                    Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+            like.append(" and flds like ? escape '\\'");
+            likeArgs.add("%" + stem.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+        }
+        if (patterns.isEmpty()) {
+            return null;
+        }
+        List<Long> nids = new ArrayList<>();
+        try (Cursor cur = mCol.getDb().query("select id, flds from notes where " + like, likeArgs.toArray())) {
+            while (cur.moveToNext()) {
+                String text = Utils.stripHTMLMedia(cur.getString(1).replace(Consts.FIELD_SEPARATOR, " "));
+                boolean all = true;
+                for (Pattern pattern : patterns) {
+                    if (!pattern.matcher(text).find()) {
+                        all = false;
+                        break;
+                    }
+                }
+                if (all) {
+                    nids.add(cur.getLong(0));
+                }
+            }
+        }
+        if (nids.isEmpty()) {
+            return "0";
+        }
+        return "n.id in " + Utils.ids2str(nids);
+    }
+
+
     private String _findDupes(String val) {
         // caller must call stripHTMLMedia on passed val
         String[] split = val.split(",", 1);
@@ -25,21 +25,16 @@ import android.text.TextUtils;
 import android.util.Pair;
 
 import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.async.CancelListener;
+import com.ichi2.async.ProgressSender;
 import com.ichi2.libanki.exception.EmptyMediaException;
 import com.ichi2.libanki.template.TemplateFilters;
 import com.ichi2.utils.Assert;
 
 import com.ichi2.utils.ExceptionUtil;
-import com.ichi2.utils.HashUtil;
-import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -54,13 +49,19 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import timber.log.Timber;
 
 import static java.lang.Math.min;
@@ -117,9 +118,24 @@ public class Media {
 
     public static final List<Pattern> REGEXPS =  Arrays.asList(fSoundRegexps, fImgRegExpQ, fImgRegExpU);
 
+    /** Extensions of formats which are already compressed */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "mp4",
+            "m4v", "webm", "mkv", "mov", "3gp", "zip", "gz", "apkg"));
+    /** Number of threads hashing files when the media folder is scanned */
+    private static final int HASH_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** Number of changes found by a scan which are written at once */
+    private static final int CHANGES_BATCH_SIZE = 500;
+    /**
+     * Suffix of the folder next to the media folder in which media sync extracts files until they are recorded in the
+     * database. It is on the same file system, so that the files are renamed rather than copied.
+     */
+    private static final String DOWNLOAD_DIR_SUFFIX = ".download";
+
     private final Collection mCol;
     private final String mDir;
     private DB mDb;
+    private MediaSnapshot mSnapshot;
 
 
     public Media(Collection col, boolean server) {
@@ -161,6 +177,7 @@ public class Media {
             _initDB();
         }
         maybeUpgrade();
+        _initSnapshot();
     }
 
 
@@ -177,6 +194,13 @@ public class Media {
     }
 
 
+    /** Create the snapshot table, which older media databases don't have. */
+    private void _initSnapshot() {
+        mDb.execute(MediaSnapshot.SCHEMA);
+        mSnapshot = new MediaSnapshot(mDb);
+    }
+
+
     public void maybeUpgrade() {
         String oldpath = dir() + ".db";
         File oldDbFile = new File(oldpath);
@@ -435,80 +459,70 @@ public class Media {
     }
 
 
-    private @NonNull List<List<String>> check(File[] local) {
+    /**
+     * Finds missing, unused and invalid media files. The references of the notes are found by a
+     * {@link MediaReferenceScanner}.
+     *
+     * @param task Receives the percentage of notes scanned, and may cancel the check
+     * @return A list containing three lists of files (missingFiles, unusedFiles, invalidFiles), or null if the check
+     *         was cancelled
+     */
+    public <T extends ProgressSender<Integer> & CancelListener> List<List<String>> check(@Nullable T task) {
         File mdir = new File(dir());
         // gather all media references in NFC form
-        Set<String> allRefs = new HashSet<>();
-        try (Cursor cur = mCol.getDb().query("select id, mid, flds from notes")) {
-            while (cur.moveToNext()) {
-                long nid = cur.getLong(0);
-                long mid = cur.getLong(1);
-                String flds = cur.getString(2);
-                List<String> noteRefs = filesInStr(mid, flds);
-                // check the refs are in NFC
-                for (String f : noteRefs) {
-                    // if they're not, we'll need to fix them first
-                    if (!f.equals(Utils.nfcNormalized(f))) {
-                        _normalizeNoteRefs(nid);
-                        noteRefs = filesInStr(mid, flds);
-                        break;
-                    }
-                }
-                allRefs.addAll(noteRefs);
-            }
+        MediaReferenceScanner.Result scan = new MediaReferenceScanner(mCol, this).scan(task);
+        if (scan == null) {
+            return null;
+        }
+        // the references found are already in NFC form, the notes are fixed so that they match the files
+        for (long nid : scan.getNotNfc()) {
+            _normalizeNoteRefs(nid);
         }
+        String[] allRefs = scan.getRefs();
+        boolean[] found = new boolean[allRefs.length];
         // loop through media folder
         List<String> unused = new ArrayList<>();
         List<String> invalid = new ArrayList<>();
-        File[] files;
-        if (local == null) {
-            files = mdir.listFiles();
-        } else {
-            files = local;
-        }
-        boolean renamedFiles = false;
-        for (File file : files) {
-            if (local == null) {
+        boolean renamedFiles;
+        do {
+            unused.clear();
+            renamedFiles = false;
+            for (File file : mdir.listFiles()) {
                 if (file.isDirectory()) {
                     // ignore directories
                     continue;
                 }
-            }
-            if (file.getName().startsWith("_")) {
-                // leading _ says to ignore file
-                continue;
-            }
-            File nfcFile = new File(dir(), Utils.nfcNormalized(file.getName()));
-            // we enforce NFC fs encoding
-            if (local == null) {
+                if (file.getName().startsWith("_")) {
+                    // leading _ says to ignore file
+                    continue;
+                }
+                File nfcFile = new File(dir(), Utils.nfcNormalized(file.getName()));
+                // we enforce NFC fs encoding
                 if (!file.getName().equals(nfcFile.getName())) {
                     // delete if we already have the NFC form, otherwise rename
                     if (nfcFile.exists()) {
                         file.delete();
-                        renamedFiles = true;
                     } else {
                         file.renameTo(nfcFile);
-                        renamedFiles = true;
                     }
+                    renamedFiles = true;
                     file = nfcFile;
                 }
+                // compare
+                int ref = Arrays.binarySearch(allRefs, nfcFile.getName());
+                if (ref < 0) {
+                    unused.add(file.getName());
+                } else {
+                    found[ref] = true;
+                }
             }
-            // compare
-            if (!allRefs.contains(nfcFile.getName())) {
-                unused.add(file.getName());
-            } else {
-                allRefs.remove(nfcFile.getName());
-            }
-        }
-        // if we renamed any files to nfc format, we must rerun the check
-        // to make sure the renamed files are not marked as unused
-        if (renamedFiles) {
-            return check(local);
-        }
+            // if we renamed any files to nfc format, we must list them again
+            // to make sure the renamed files are not marked as unused
+        } while (renamedFiles);
         List<String> nohave = new ArrayList<>();
-        for (String x : allRefs) {
-            if (!x.startsWith("_")) {
-                nohave.add(x);
+        for (int i = 0; i < allRefs.length; i++) {
+            if (!found[i] && !allRefs[i].startsWith("_")) {
+                nohave.add(allRefs[i]);
             }
         }
         // make sure the media DB is valid
@@ -678,40 +692,23 @@ public class Media {
     }
 
 
-    private void _logChanges()  {
-        Pair<List<String>, List<String>> result = _changes();
-        List<String> added = result.first;
-        List<String> removed = result.second;
-        ArrayList<Object[]> media = new ArrayList<>(added.size() + removed.size());
-        for (String f : added) {
-            String path = new File(dir(), f).getAbsolutePath();
-            long mt = _mtime(path);
-            media.add(new Object[] { f, _checksum(path), mt, 1 });
-        }
-        for (String f : removed) {
-            media.add(new Object[] { f, null, 0, 1});
-        }
-        // update media db
-        mDb.executeMany("insert or replace into media values (?,?,?,?)", media);
-        mDb.execute("update meta set dirMod = ?", _mtime(dir()));
-        mDb.commit();
-    }
-
-
-    private Pair<List<String>, List<String>> _changes() {
-        Map<String, Object[]> cache = HashUtil.HashMapInit(mDb.queryScalar("SELECT count() FROM media WHERE csum IS NOT NULL"));
-        try (Cursor cur = mDb.query("select fname, csum, mtime from media where csum is not null")) {
+    /**
+     * Record the files of the media folder which were added, modified or removed since the last scan. A file whose
+     * size, modification time and inode are the ones in the {@link MediaSnapshot} is not read. The other files are
+     * hashed on {@link #HASH_THREADS} threads, and the changes are written every {@link #CHANGES_BATCH_SIZE} files.
+     */
+    private void _logChanges() {
+        long start = System.currentTimeMillis();
+        Map<String, MediaSnapshot.Stat> snapshot = mSnapshot.load();
+        // Files with a checksum but no snapshot, e.g. recorded before the snapshot existed
+        Map<String, Long> unsnapshotted = new HashMap<>();
+        try (Cursor cur = mDb.query("select fname, mtime from media where csum is not null and fname not in (select fname from snapshot)")) {
             while (cur.moveToNext()) {
-                String name = cur.getString(0);
-                String csum = cur.getString(1);
-                long mod = cur.getLong(2);
-                cache.put(name, new Object[] { csum, mod, false });
+                unsnapshotted.put(cur.getString(0), cur.getLong(1));
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
         }
-        List<String> added = new ArrayList<>();
-        List<String> removed = new ArrayList<>();
+        List<Object[]> toHash = new ArrayList<>();
+        List<Object[]> unchanged = new ArrayList<>();
         // loop through on-disk files
         for (File f : new File(dir()).listFiles()) {
             // ignore folders and thumbs.db
@@ -742,33 +739,108 @@ public class Media {
                 // wrong filename encoding which will cause sync errors
                 File nf = new File(dir(), normf);
                 if (nf.exists()) {
+                    // the normalized file is listed by itself
                     f.delete();
-                } else {
-                    f.renameTo(nf);
+                    continue;
                 }
+                f.renameTo(nf);
+                f = nf;
+                fname = normf;
             }
-            // newly added?
-            if (!cache.containsKey(fname)) {
-                added.add(fname);
-            } else {
-                // modified since last time?
-                if (_mtime(f.getAbsolutePath()) != (Long) cache.get(fname)[1]) {
-                    // and has different checksum?
-                    if (!_checksum(f.getAbsolutePath()).equals(cache.get(fname)[0])) {
-                        added.add(fname);
-                    }
-                }
-                // mark as used
-                cache.get(fname)[2] = true;
+            MediaSnapshot.Stat stat = MediaSnapshot.Stat.of(f);
+            // mark as used, what remains was removed
+            MediaSnapshot.Stat known = snapshot.remove(fname);
+            Long mtime = unsnapshotted.remove(fname);
+            if (known != null && known.equals(stat)) {
+                continue;
+            }
+            if (known == null && mtime != null && mtime == stat.getMtimeSeconds()) {
+                // not modified since it was recorded, as long as this is known
+                unchanged.add(new Object[] {fname, stat});
+                continue;
             }
+            toHash.add(new Object[] {fname, stat, known != null || mtime != null});
+        }
+        List<String> removed = new ArrayList<>(snapshot.keySet());
+        removed.addAll(unsnapshotted.keySet());
+
+        int changed = _hashChanges(toHash, unchanged);
+        List<Object[]> media = new ArrayList<>(removed.size());
+        List<Object[]> forget = new ArrayList<>(removed.size());
+        for (String f : removed) {
+            media.add(new Object[] {f, null, 0, 1});
+            forget.add(new Object[] {f});
         }
-        // look for any entries in the cache that no longer exist on disk
-        for (Map.Entry<String, Object[]> entry : cache.entrySet()) {
-            if (!((Boolean) entry.getValue()[2])) {
-                removed.add(entry.getKey());
+        // update media db
+        mDb.executeInTransaction(() -> {
+            mDb.executeManyNoTransaction("insert or replace into media values (?,?,?,?)", media);
+            mDb.executeManyNoTransaction("delete from snapshot where fname = ?", forget);
+            mDb.execute("update meta set dirMod = ?", _mtime(dir()));
+        });
+        mDb.commit();
+        Timber.i("Media folder scanned in %d ms: %d files hashed, %d added or modified, %d removed",
+                System.currentTimeMillis() - start, toHash.size(), changed, removed.size());
+    }
+
+
+    /**
+     * Hash files on a bounded pool, and record the new and modified ones as dirty while the others are hashed.
+     * @param toHash fname, {@link MediaSnapshot.Stat}, and whether the file has a checksum in the media table
+     * @param unchanged fname and {@link MediaSnapshot.Stat} of files whose snapshot is missing, recorded with the others
+     * @return The number of files added or modified
+     */
+    private int _hashChanges(@NonNull List<Object[]> toHash, @NonNull List<Object[]> unchanged) {
+        ExecutorService executor = Executors.newFixedThreadPool(HASH_THREADS);
+        CompletionService<String> hashes = new ExecutorCompletionService<>(executor);
+        Map<Future<String>, Object[]> pending = new HashMap<>();
+        List<Object[]> media = new ArrayList<>(CHANGES_BATCH_SIZE);
+        List<Object[]> stats = new ArrayList<>(unchanged);
+        int changed = 0;
+        int next = 0;
+        try {
+            while (next < toHash.size() || !pending.isEmpty()) {
+                // a few files per thread are queued, so that threads don't wait while results are written
+                while (next < toHash.size() && pending.size() < HASH_THREADS * 4) {
+                    Object[] file = toHash.get(next++);
+                    String path = new File(dir(), (String) file[0]).getAbsolutePath();
+                    pending.put(hashes.submit(() -> _checksum(path)), file);
+                }
+                Future<String> done = hashes.take();
+                Object[] file = pending.remove(done);
+                String fname = (String) file[0];
+                MediaSnapshot.Stat stat = (MediaSnapshot.Stat) file[1];
+                String csum = done.get();
+                stats.add(new Object[] {fname, stat});
+                // the modification time changed, but not necessarily the content
+                if (!(Boolean) file[2] || !csum.equals(syncInfo(fname).first)) {
+                    media.add(new Object[] {fname, csum, stat.getMtimeSeconds(), 1});
+                    changed++;
+                }
+                if (media.size() + stats.size() >= CHANGES_BATCH_SIZE) {
+                    _recordHashes(media, stats);
+                }
             }
+            _recordHashes(media, stats);
+            return changed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
-        return new Pair<>(added, removed);
+    }
+
+
+    /** Write a batch of changes found by {@link #_hashChanges(List, List)}, and clear it. */
+    private void _recordHashes(@NonNull List<Object[]> media, @NonNull List<Object[]> stats) {
+        mDb.executeInTransaction(() -> {
+            mDb.executeManyNoTransaction("insert or replace into media values (?,?,?,?)", media);
+            mSnapshot.recordNoTransaction(stats);
+        });
+        media.clear();
+        stats.clear();
     }
 
 
@@ -814,6 +886,7 @@ public class Media {
             f.delete();
         }
         mDb.execute("delete from media where fname=?", fname);
+        mSnapshot.forget(fname);
     }
 
 
@@ -829,6 +902,7 @@ public class Media {
 
     public void forceResync() {
         mDb.execute("delete from media");
+        mSnapshot.clear();
         mDb.execute("update meta set lastUsn=0,dirMod=0");
         mDb.execute("vacuum");
         mDb.execute("analyze");
@@ -842,8 +916,8 @@ public class Media {
      */
 
     /**
-     * Unlike python, our temp zip file will be on disk instead of in memory. This avoids storing
-     * potentially large files in memory which is not feasible with Android's limited heap space.
+     * Unlike python, the zip is neither in memory nor on disk: it is written to the request by {@link MediaChangesZip}.
+     * Only the compressed content of small files is kept in memory.
      * <p>
      * Notes:
      * <p>
@@ -858,24 +932,13 @@ public class Media {
      * and mark it as removed in the database. (This behaviour differs from the desktop client).
      * <p>
      */
-    public Pair<File, List<String>> mediaChangesZip() {
-        File f = new File(mCol.getPath().replaceFirst("collection\\.anki2$", "tmpSyncToServer.zip"));
+    public MediaChangesZip mediaChangesZip() {
         List<String> fnames = new ArrayList<>();
-        try (ZipOutputStream z = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
-             Cursor cur = mDb.query(
+        List<MediaChangesZip.Change> changes = new ArrayList<>();
+        try (Cursor cur = mDb.query(
                 "select fname, csum from media where dirty=1 limit " + Consts.SYNC_ZIP_COUNT)
         ) {
-            z.setMethod(ZipOutputStream.DEFLATED);
-
-            // meta is a list of (fname, zipname), where zipname of null is a deleted file
-            // NOTE: In python, meta is a list of tuples that then gets serialized into json and added
-            // to the zip as a string. In our version, we use JSON objects from the start to avoid the
-            // serialization step. Instead of a list of tuples, we use JSONArrays of JSONArrays.
-            JSONArray meta = new JSONArray();
-            int sz = 0;
-            byte[] buffer = new byte[2048];
-
-
+            long sz = 0;
             for (int c = 0; cur.moveToNext(); c++) {
                 String fname = cur.getString(0);
                 String csum = cur.getString(1);
@@ -883,40 +946,27 @@ public class Media {
                 String normname = Utils.nfcNormalized(fname);
 
                 if (!TextUtils.isEmpty(csum)) {
-                    try {
-                        mCol.log("+media zip " + fname);
-                        File file = new File(dir(), fname);
-                        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file), 2048);
-                        z.putNextEntry(new ZipEntry(Integer.toString(c)));
-                        int count = 0;
-                        while ((count = bis.read(buffer, 0, 2048)) != -1) {
-                            z.write(buffer, 0, count);
-                        }
-                        z.closeEntry();
-                        bis.close();
-                        meta.put(new JSONArray().put(normname).put(Integer.toString(c)));
-                        sz += file.length();
-                    } catch (FileNotFoundException e) {
-                        Timber.w(e);
-                        // A file has been marked as added but no longer exists in the media directory.
-                        // Skip over it and mark it as removed in the db.
-                        removeFile(fname);
-                    }
+                    mCol.log("+media zip " + fname);
+                    File file = new File(dir(), fname);
+                    changes.add(new MediaChangesZip.Change(fname, normname, Integer.toString(c), file));
+                    sz += file.length();
                 } else {
                     mCol.log("-media zip " + fname);
-                    meta.put(new JSONArray().put(normname).put(""));
+                    changes.add(new MediaChangesZip.Change(fname, normname, "", null));
                 }
                 if (sz >= Consts.SYNC_ZIP_SIZE) {
                     break;
                 }
             }
-
-            z.putNextEntry(new ZipEntry("_meta"));
-            z.write(Utils.jsonToString(meta).getBytes());
-            z.closeEntry();
-            // Don't leave lingering temp files if the VM terminates.
-            f.deleteOnExit();
-            return new Pair<>(f, fnames);
+        }
+        try {
+            MediaChangesZip zip = MediaChangesZip.prepare(fnames, changes);
+            for (String fname : zip.getMissing()) {
+                // A file has been marked as added but no longer exists in the media directory.
+                // Skip over it and mark it as removed in the db.
+                removeFile(fname);
+            }
+            return zip;
         } catch (IOException e) {
             Timber.e(e, "Failed to create media changes zip: ");
             throw new RuntimeException(e);
@@ -924,6 +974,13 @@ public class Media {
     }
 
 
+    /** @return Whether the format of the file is already compressed, so that zipping it again would not save space */
+    public static boolean isCompressed(@NonNull String fname) {
+        int dot = fname.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fname.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+
     /**
      * Extract zip data; return the number of files extracted. Unlike the python version, this method consumes a
      * ZipFile stored on disk instead of a String buffer. Holding the entire downloaded data in memory is not feasible
@@ -932,11 +989,31 @@ public class Media {
      * This method closes the file before it returns.
      */
     public int addFilesFromZip(ZipFile z) throws IOException {
+        List<Object[]> media = extractFilesFromZip(z);
+        addFilesToDb(media);
+        return media.size();
+    }
+
+
+    /**
+     * Write the files of a zip downloaded by media sync to a download folder, without touching the database, so that
+     * several zips can be extracted at once. They are moved to the media folder by {@link #addFilesToDb(List)}. If the
+     * extraction fails, the files already written are deleted.
+     *
+     * This method closes the file before it returns.
+     * @return The rows of the media table of the extracted files, to be given to {@link #addFilesToDb(List)}
+     */
+    public List<Object[]> extractFilesFromZip(ZipFile z) throws IOException {
+        File downloadDir = downloadDir();
+        if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) {
+            z.close();
+            throw new IOException("Could not create " + downloadDir);
+        }
+        List<File> written = new ArrayList<>();
         try {
             // get meta info first
             JSONObject meta = new JSONObject(Utils.convertStreamToString(z.getInputStream(z.getEntry("_meta"))));
             // then loop through all files
-            int cnt = 0;
             ArrayList<? extends ZipEntry> zipEntries = Collections.list(z.entries());
             List<Object[]> media = new ArrayList<>(zipEntries.size());
             for (ZipEntry i : zipEntries) {
@@ -949,25 +1026,87 @@ public class Media {
                 // normalize name for platform
                 name = Utils.nfcNormalized(name);
                 // save file
-                String destPath = (dir() + File.separator) + name;
+                File dest = new File(downloadDir, name);
+                written.add(dest);
+                String destPath = dest.getAbsolutePath();
                 try (InputStream zipInputStream = z.getInputStream(i)) {
                     Utils.writeToFile(zipInputStream, destPath);
                 }
                 String csum = Utils.fileChecksum(destPath);
-                // update db
                 media.add(new Object[] {name, csum, _mtime(destPath), 0});
-                cnt += 1;
             }
-            if (!media.isEmpty()) {
-                mDb.executeMany("insert or replace into media values (?,?,?,?)", media);
+            return media;
+        } catch (IOException | RuntimeException e) {
+            for (File file : written) {
+                deleteDownload(file);
             }
-            return cnt;
+            throw e;
         } finally {
             z.close();
         }
     }
 
 
+    /**
+     * Record files written by {@link #extractFilesFromZip(ZipFile)} as clean, in a single transaction, then move them
+     * to the media folder. A file is never in the media folder without its row, so a sync which stops midway does not
+     * leave a partial file that a media check would take for a local change.
+     */
+    public void addFilesToDb(List<Object[]> media) {
+        if (media.isEmpty()) {
+            return;
+        }
+        File downloadDir = downloadDir();
+        List<Object[]> stats = new ArrayList<>(media.size());
+        for (Object[] row : media) {
+            // a rename keeps the size, the mtime and the inode
+            stats.add(new Object[] {row[0], MediaSnapshot.Stat.of(new File(downloadDir, (String) row[0]))});
+        }
+        mDb.executeInTransaction(() -> {
+            mDb.executeManyNoTransaction("insert or replace into media values (?,?,?,?)", media);
+            mSnapshot.recordNoTransaction(stats);
+        });
+        for (Object[] row : media) {
+            String name = (String) row[0];
+            File downloaded = new File(downloadDir, name);
+            if (!downloaded.renameTo(new File(dir(), name))) {
+                // as if it was not downloaded, rather than a deletion to send
+                Timber.w("Could not move downloaded file %s to the media folder", name);
+                mDb.execute("delete from media where fname = ?", name);
+                mSnapshot.forget(name);
+                deleteDownload(downloaded);
+            }
+        }
+    }
+
+
+    /** Delete the files extracted by media sync which were not recorded, such as those of a sync which stopped. */
+    public void clearDownloads() {
+        File downloadDir = downloadDir();
+        File[] files = downloadDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            deleteDownload(file);
+        }
+        deleteDownload(downloadDir);
+    }
+
+
+    @NonNull
+    private File downloadDir() {
+        return new File(dir() + DOWNLOAD_DIR_SUFFIX);
+    }
+
+
+    private static void deleteDownload(@NonNull File file) {
+        if (file.exists() && !file.delete()) {
+            Timber.w("Could not delete downloaded file %s", file.getName());
+        }
+    }
+
+
     /*
      * ***********************************************************
      * The methods below are not in LibAnki.
@@ -997,10 +1136,20 @@ public class Media {
      * if it already exists.
      */
     public void markFileAdd(String fname) {
+        markFileAdd(fname, _checksum(new File(dir(), fname).getAbsolutePath()));
+    }
+
+
+    /**
+     * Like {@link #markFileAdd(String)}, for a file whose checksum is already known.
+     */
+    public void markFileAdd(String fname, @NonNull String csum) {
         Timber.d("Marking media file addition in media db: %s", fname);
-        String path = new File(dir(), fname).getAbsolutePath();
+        File file = new File(dir(), fname);
+        MediaSnapshot.Stat stat = MediaSnapshot.Stat.of(file);
         mDb.execute("insert or replace into media values (?,?,?,?)",
-                fname, _checksum(path), _mtime(path), 1);
+                fname, csum, stat.getMtimeSeconds(), 1);
+        mSnapshot.record(fname, stat);
     }
 
 
@@ -1015,6 +1164,7 @@ public class Media {
         Timber.d("Marking media file removal in media db: %s", fname);
         mDb.execute("insert or replace into media values (?,?,?,?)",
                fname, null, 0, 1);
+        mSnapshot.forget(fname);
     }
 
 
@@ -1053,6 +1203,7 @@ public class Media {
 
         mDb = new DB(path);
         _initDB();
+        _initSnapshot();
     }
 
 
@@ -0,0 +1,273 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.libanki.sync.StreamingRequestBody;
+import com.ichi2.utils.JSONArray;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+/**
+ * A zip of media changes, sent by media sync. It is written directly to the request, and written again if the request
+ * is retried, so nothing is stored on disk.
+ *
+ * Files whose format is already compressed are stored. The others are deflated on a pool while the zip is prepared,
+ * unless they are larger than {@link Consts#SYNC_ZIP_SIZE}, in which case they are deflated while the zip is written:
+ * a zip holds at most one such file, as it is full once it is added.
+ */
+public class MediaChangesZip implements StreamingRequestBody.Payload {
+    private static final int BUFFER_SIZE = 65536;
+    private static final ExecutorService COMPRESS_EXECUTOR = createCompressExecutor();
+
+    /** A file added or modified, or a deletion if the file is null */
+    public static final class Change {
+        private final String mFname;
+        private final String mNormname;
+        private final String mZipName;
+        @Nullable
+        private final File mFile;
+
+
+        public Change(@NonNull String fname, @NonNull String normname, @NonNull String zipName, @Nullable File file) {
+            mFname = fname;
+            mNormname = normname;
+            mZipName = zipName;
+            mFile = file;
+        }
+    }
+
+    /** A file ready to be written in the zip */
+    private static final class Entry {
+        private final Change mChange;
+        private final int mMethod;
+        private final long mSize;
+        private final long mCrc;
+        /** The deflated or stored content, or null if the file is read while the zip is written */
+        @Nullable
+        private final byte[] mRaw;
+
+
+        private Entry(Change change, int method, long size, long crc, @Nullable byte[] raw) {
+            mChange = change;
+            mMethod = method;
+            mSize = size;
+            mCrc = crc;
+            mRaw = raw;
+        }
+    }
+
+    private final List<String> mFnames;
+    private final List<Entry> mEntries;
+    private final List<String> mMissing;
+    private final byte[] mMeta;
+
+
+    private MediaChangesZip(@NonNull List<String> fnames, @NonNull List<Entry> entries, @NonNull List<String> missing, @NonNull byte[] meta) {
+        mFnames = fnames;
+        mEntries = entries;
+        mMissing = missing;
+        mMeta = meta;
+    }
+
+
+    @NonNull
+    private static ExecutorService createCompressExecutor() {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * Read and compress the files of the changes at once.
+     * @param fnames The files of the media table whose changes are sent, in the order of the changes
+     */
+    @NonNull
+    public static MediaChangesZip prepare(@NonNull List<String> fnames, @NonNull List<Change> changes) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Future<Entry>> prepared = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            prepared.add(change.mFile == null ? null : COMPRESS_EXECUTOR.submit(() -> prepare(change)));
+        }
+        List<Entry> entries = new ArrayList<>(changes.size());
+        List<String> missing = new ArrayList<>();
+        // meta is a list of (fname, zipname), where zipname of null is a deleted file
+        JSONArray meta = new JSONArray();
+        long size = 0;
+        try {
+            for (int i = 0; i < changes.size(); i++) {
+                Change change = changes.get(i);
+                if (change.mFile == null) {
+                    meta.put(new JSONArray().put(change.mNormname).put(""));
+                    continue;
+                }
+                Entry entry = prepared.get(i).get();
+                if (entry == null) {
+                    missing.add(change.mFname);
+                    continue;
+                }
+                entries.add(entry);
+                meta.put(new JSONArray().put(change.mNormname).put(change.mZipName));
+                size += entry.mSize;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<Entry> future : prepared) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+        Timber.d("Media changes zip of %d files, %d bytes prepared in %d ms", entries.size(), size, System.currentTimeMillis() - start);
+        return new MediaChangesZip(fnames, entries, missing, Utils.jsonToString(meta).getBytes());
+    }
+
+
+    /** @return The entry of the file, or null if it does not exist anymore. Runs on the compression threads. */
+    @Nullable
+    private static Entry prepare(@NonNull Change change) throws IOException {
+        File file = change.mFile;
+        long size = file.length();
+        boolean compress = !Media.isCompressed(change.mFname);
+        boolean inMemory = size <= Consts.SYNC_ZIP_SIZE;
+        if (!inMemory && compress) {
+            // deflated while written, with a data descriptor
+            return file.exists() ? new Entry(change, ZipEntry.DEFLATED, size, -1, null) : null;
+        }
+        CRC32 crc = new CRC32();
+        ByteArrayOutputStream raw = inMemory ? new ByteArrayOutputStream((int) (compress ? size / 2 + 64 : size)) : null;
+        Deflater deflater = compress ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = raw == null ? null : compress ? new DeflaterOutputStream(raw, deflater, BUFFER_SIZE) : raw) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            size = 0;
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                crc.update(buf, 0, len);
+                size += len;
+                if (out != null) {
+                    out.write(buf, 0, len);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            Timber.w(e);
+            return null;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return new Entry(change, compress ? ZipEntry.DEFLATED : ZipEntry.STORED, size, crc.getValue(),
+                raw == null ? null : raw.toByteArray());
+    }
+
+
+    /** @return The files of the media table whose changes are sent */
+    @NonNull
+    public List<String> getFnames() {
+        return mFnames;
+    }
+
+
+    /** @return Files which were marked as added but don't exist anymore, and should be marked as removed */
+    @NonNull
+    public List<String> getMissing() {
+        return mMissing;
+    }
+
+
+    @Override
+    public void writeTo(@NonNull OutputStream out) throws IOException {
+        // The zip must not close the request's stream
+        ZipArchiveOutputStream z = new ZipArchiveOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        for (Entry entry : mEntries) {
+            ZipArchiveEntry ze = new ZipArchiveEntry(entry.mChange.mZipName);
+            ze.setMethod(entry.mMethod);
+            if (entry.mRaw != null) {
+                ze.setSize(entry.mSize);
+                ze.setCompressedSize(entry.mRaw.length);
+                ze.setCrc(entry.mCrc);
+                z.addRawArchiveEntry(ze, new ByteArrayInputStream(entry.mRaw));
+                continue;
+            }
+            if (entry.mMethod == ZipEntry.STORED) {
+                ze.setSize(entry.mSize);
+                ze.setCrc(entry.mCrc);
+            }
+            z.putArchiveEntry(ze);
+            try (InputStream in = new FileInputStream(entry.mChange.mFile)) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    z.write(buf, 0, len);
+                }
+            }
+            z.closeArchiveEntry();
+        }
+        ZipArchiveEntry meta = new ZipArchiveEntry("_meta");
+        z.putArchiveEntry(meta);
+        z.write(mMeta);
+        z.closeArchiveEntry();
+        z.close();
+    }
+}
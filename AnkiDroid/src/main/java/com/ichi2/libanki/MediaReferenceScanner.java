@@ -0,0 +1,399 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+
+import com.ichi2.async.CancelListener;
+import com.ichi2.async.ProgressSender;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import timber.log.Timber;
+
+import static com.ichi2.async.CancelListener.isCancelled;
+
+/**
+ * Finds the media files referenced by the notes, for {@link Media#check()}.
+ *
+ * Notes are read by id range on the calling thread, and each range is scanned on a fork-join pool while the next one is
+ * read. At most {@link #RANGES_IN_FLIGHT} ranges are read and not yet scanned, so that the fields held in memory don't
+ * grow with the collection. A field is scanned once for sounds and images, instead of once per regular expression of
+ * {@link Media#REGEXPS}. Only fields with LaTeX, or with both a cloze and a media tag, go through
+ * {@link Media#filesInStr(Long, String)}: the images of LaTeX are named after the expanded clozes, and a cloze may be
+ * part of a file name, as in &lt;img src="{{c1::a.jpg}}"&gt;. The other clozes don't change which files are referenced.
+ *
+ * The references of each range are sorted and merged, so that the result is a sorted array rather than a set.
+ */
+public class MediaReferenceScanner {
+    /** Notes read from the database at once */
+    private static final int CHUNK_SIZE = 2000;
+    /** Notes scanned by a single fork-join task */
+    private static final int LEAF_SIZE = 250;
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** Ranges read and not yet scanned. Enough for the threads to have work while the next range is read. */
+    private static final int RANGES_IN_FLIGHT = THREADS * 2;
+
+    /** The media referenced by the notes */
+    public static final class Result {
+        private final String[] mRefs;
+        private final long[] mNotNfc;
+
+
+        private Result(@NonNull String[] refs, @NonNull long[] notNfc) {
+            mRefs = refs;
+            mNotNfc = notNfc;
+        }
+
+
+        /** @return The names of the referenced files in NFC form, sorted and distinct */
+        @NonNull
+        public String[] getRefs() {
+            return mRefs;
+        }
+
+
+        /** @return The notes whose references are not in NFC form */
+        @NonNull
+        public long[] getNotNfc() {
+            return mNotNfc;
+        }
+    }
+
+    private final Collection mCol;
+    private final Media mMedia;
+
+
+    public MediaReferenceScanner(@NonNull Collection col, @NonNull Media media) {
+        mCol = col;
+        mMedia = media;
+    }
+
+
+    /**
+     * @param task Receives the percentage of notes scanned, and may cancel the scan
+     * @return The references of all notes, or null if the scan was cancelled
+     */
+    @Nullable
+    public <T extends ProgressSender<Integer> & CancelListener> Result scan(@Nullable T task) {
+        long start = System.currentTimeMillis();
+        int total = mCol.getDb().queryScalar("select count() from notes");
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        Deque<ScanTask> pending = new ArrayDeque<>(RANGES_IN_FLIGHT);
+        List<Result> results = new ArrayList<>();
+        int scanned = 0;
+        try {
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                if (isCancelled(task)) {
+                    Timber.i("Media check cancelled");
+                    return null;
+                }
+                long[] nids = new long[CHUNK_SIZE];
+                long[] mids = new long[CHUNK_SIZE];
+                String[] flds = new String[CHUNK_SIZE];
+                int count = 0;
+                try (Cursor cur = mCol.getDb().query("select id, mid, flds from notes where id > ? order by id limit " + CHUNK_SIZE, lastId)) {
+                    while (cur.moveToNext()) {
+                        nids[count] = cur.getLong(0);
+                        mids[count] = cur.getLong(1);
+                        flds[count] = cur.getString(2);
+                        count++;
+                    }
+                }
+                if (count == 0) {
+                    break;
+                }
+                lastId = nids[count - 1];
+                if (pending.size() == RANGES_IN_FLIGHT) {
+                    scanned += joinOldest(pending, results);
+                    publishProgress(task, scanned, total);
+                }
+                ScanTask range = new ScanTask(nids, mids, flds, 0, count);
+                pool.execute(range);
+                pending.add(range);
+            }
+            while (!pending.isEmpty()) {
+                scanned += joinOldest(pending, results);
+                publishProgress(task, scanned, total);
+            }
+            Result result = mergeAll(results);
+            Timber.i("Media references of %d notes found in %d ms: %d files", scanned, System.currentTimeMillis() - start, result.mRefs.length);
+            return result;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Wait for the oldest range and add its references to results.
+     * @return The number of notes of the range
+     */
+    private static int joinOldest(@NonNull Deque<ScanTask> pending, @NonNull List<Result> results) {
+        ScanTask oldest = pending.poll();
+        results.add(oldest.join());
+        return oldest.mTo - oldest.mFrom;
+    }
+
+
+    private static void publishProgress(@Nullable ProgressSender<Integer> task, int scanned, int total) {
+        if (task != null && total > 0) {
+            task.doProgress(scanned * 100 / total);
+        }
+    }
+
+
+    /** Scans a range of notes, by splitting it until it is small enough */
+    private class ScanTask extends RecursiveTask<Result> {
+        private final long[] mNids;
+        private final long[] mMids;
+        private final String[] mFlds;
+        private final int mFrom;
+        private final int mTo;
+
+
+        private ScanTask(long[] nids, long[] mids, String[] flds, int from, int to) {
+            mNids = nids;
+            mMids = mids;
+            mFlds = flds;
+            mFrom = from;
+            mTo = to;
+        }
+
+
+        @Override
+        protected Result compute() {
+            if (mTo - mFrom > LEAF_SIZE) {
+                int mid = (mFrom + mTo) >>> 1;
+                ScanTask left = new ScanTask(mNids, mMids, mFlds, mFrom, mid);
+                left.fork();
+                Result right = new ScanTask(mNids, mMids, mFlds, mid, mTo).compute();
+                return merge(left.join(), right);
+            }
+            List<String> refs = new ArrayList<>();
+            long[] notNfc = new long[0];
+            for (int i = mFrom; i < mTo; i++) {
+                int first = refs.size();
+                if (hasLatex(mFlds[i]) || hasClozeAndMedia(mFlds[i])) {
+                    refs.addAll(mMedia.filesInStr(mMids[i], mFlds[i]));
+                } else {
+                    addReferences(mFlds[i], refs);
+                }
+                boolean normalized = false;
+                for (int j = first; j < refs.size(); j++) {
+                    String nfc = Utils.nfcNormalized(refs.get(j));
+                    if (!nfc.equals(refs.get(j))) {
+                        refs.set(j, nfc);
+                        normalized = true;
+                    }
+                }
+                if (normalized) {
+                    notNfc = Arrays.copyOf(notNfc, notNfc.length + 1);
+                    notNfc[notNfc.length - 1] = mNids[i];
+                }
+                // The fields are not needed anymore
+                mFlds[i] = null;
+            }
+            String[] sorted = refs.toArray(new String[0]);
+            Arrays.sort(sorted);
+            return new Result(distinct(sorted, sorted.length), notNfc);
+        }
+    }
+
+
+    @NonNull
+    private static Result mergeAll(@NonNull List<Result> results) {
+        if (results.isEmpty()) {
+            return new Result(new String[0], new long[0]);
+        }
+        // Pairwise, so that each reference is copied a logarithmic number of times
+        while (results.size() > 1) {
+            List<Result> merged = new ArrayList<>((results.size() + 1) / 2);
+            for (int i = 0; i < results.size(); i += 2) {
+                merged.add(i + 1 < results.size() ? merge(results.get(i), results.get(i + 1)) : results.get(i));
+            }
+            results = merged;
+        }
+        return results.get(0);
+    }
+
+
+    @NonNull
+    private static Result merge(@NonNull Result a, @NonNull Result b) {
+        String[] refs = new String[a.mRefs.length + b.mRefs.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.mRefs.length || j < b.mRefs.length) {
+            int cmp = i == a.mRefs.length ? 1 : j == b.mRefs.length ? -1 : a.mRefs[i].compareTo(b.mRefs[j]);
+            if (cmp <= 0) {
+                refs[n++] = a.mRefs[i++];
+                if (cmp == 0) {
+                    j++;
+                }
+            } else {
+                refs[n++] = b.mRefs[j++];
+            }
+        }
+        long[] notNfc = Arrays.copyOf(a.mNotNfc, a.mNotNfc.length + b.mNotNfc.length);
+        System.arraycopy(b.mNotNfc, 0, notNfc, a.mNotNfc.length, b.mNotNfc.length);
+        return new Result(n == refs.length ? refs : Arrays.copyOf(refs, n), notNfc);
+    }
+
+
+    /** @return The first len elements of sorted, without duplicates */
+    @NonNull
+    private static String[] distinct(@NonNull String[] sorted, int len) {
+        int n = 0;
+        for (int i = 0; i < len; i++) {
+            if (n == 0 || !sorted[i].equals(sorted[n - 1])) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+
+    /** @return Whether s has a [latex], [$] or [$$] tag, whose image is only known once rendered */
+    private static boolean hasLatex(@NonNull String s) {
+        for (int i = s.indexOf('['); i >= 0; i = s.indexOf('[', i + 1)) {
+            if ((i + 1 < s.length() && s.charAt(i + 1) == '$') || s.regionMatches(true, i, "[latex]", 0, 7)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** @return Whether s has a cloze and a [sound: or &lt;img tag, in which the cloze may be */
+    private static boolean hasClozeAndMedia(@NonNull String s) {
+        if (!s.contains("{{c")) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '[' && s.regionMatches(true, i, "[sound:", 0, 7)) || (c == '<' && s.regionMatches(true, i, "<img", 0, 4))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Add the local files referenced by [sound:...] and &lt;img src=...&gt; in s to refs, in a single pass. It finds
+     * the same files as the regular expressions of {@link Media#REGEXPS}, each of which is matched independently: a
+     * sound tag may contain an image tag.
+     */
+    public static void addReferences(@NonNull String s, @NonNull List<String> refs) {
+        int len = s.length();
+        // Where the next match of each expression may start
+        int soundFrom = 0;
+        int quotedFrom = 0;
+        int unquotedFrom = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '[' && i >= soundFrom && s.regionMatches(true, i, "[sound:", 0, 7)) {
+                int close = s.indexOf(']', i + 7);
+                if (close < 0) {
+                    soundFrom = len;
+                } else if (close > i + 7) {
+                    addLocal(s.substring(i + 7, close), refs);
+                    soundFrom = close + 1;
+                }
+            } else if (c == '<' && (i >= quotedFrom || i >= unquotedFrom) && s.regionMatches(true, i, "<img", 0, 4)) {
+                int tagEnd = s.indexOf('>', i + 4);
+                if (tagEnd < 0) {
+                    // Neither image expression can match without a closing bracket
+                    quotedFrom = len;
+                    unquotedFrom = len;
+                    continue;
+                }
+                if (i >= quotedFrom && addQuotedSrc(s, i + 4, tagEnd, refs)) {
+                    quotedFrom = tagEnd + 1;
+                }
+                if (i >= unquotedFrom && addUnquotedSrc(s, i + 4, tagEnd, refs)) {
+                    unquotedFrom = tagEnd + 1;
+                }
+            }
+        }
+    }
+
+
+    /** Like fImgRegExpQ: the last " src=" of the tag followed by a quoted name */
+    private static boolean addQuotedSrc(@NonNull String s, int from, int tagEnd, @NonNull List<String> refs) {
+        for (int src = lastSrc(s, from, tagEnd); src >= 0; src = lastSrc(s, from, src)) {
+            int start = src + 5;
+            char quote = start < tagEnd ? s.charAt(start) : 0;
+            if (quote != '"' && quote != '\'') {
+                continue;
+            }
+            // the name has at least one character
+            int close = start + 2 <= tagEnd ? s.indexOf(quote, start + 2) : -1;
+            if (close > 0 && close < tagEnd) {
+                addLocal(s.substring(start + 1, close), refs);
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** Like fImgRegExpU: the last " src=" of the tag followed by a name which is not quoted */
+    private static boolean addUnquotedSrc(@NonNull String s, int from, int tagEnd, @NonNull List<String> refs) {
+        for (int src = lastSrc(s, from, tagEnd); src >= 0; src = lastSrc(s, from, src)) {
+            int start = src + 5;
+            int end = start;
+            while (end < tagEnd && s.charAt(end) != ' ') {
+                end++;
+            }
+            char first = start < tagEnd ? s.charAt(start) : '"';
+            if (end > start && first != '"' && first != '\'') {
+                addLocal(s.substring(start, end), refs);
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** @return The index of the last " src=" starting at from or after, and before before, case insensitive; or -1 */
+    private static int lastSrc(@NonNull String s, int from, int before) {
+        for (int i = Math.min(before, s.length()) - 1; i >= from; i--) {
+            if (s.charAt(i) == ' ' && s.regionMatches(true, i, " src=", 0, 5)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private static void addLocal(@NonNull String fname, @NonNull List<String> refs) {
+        String lower = fname.toLowerCase(Locale.getDefault());
+        if (!lower.contains("http://") && !lower.contains("https://") && !lower.contains("ftp://")) {
+            refs.add(fname);
+        }
+    }
+}
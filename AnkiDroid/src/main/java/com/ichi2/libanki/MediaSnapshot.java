@@ -0,0 +1,162 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import com.ichi2.utils.HashUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import timber.log.Timber;
+
+/**
+ * The size, modification time and inode of the media files, when their checksum in the media database was last
+ * computed. It is kept in the media database, in the table "snapshot".
+ *
+ * A file whose stat is the same as in the snapshot is not read again by {@link Media#findChanges()}. The other files
+ * are hashed, so that an edited file is found even if its modification time was kept. A file has a snapshot row only
+ * while its media row has a checksum: adding or removing a file through {@link Media} updates both.
+ */
+public class MediaSnapshot {
+    public static final String SCHEMA = "create table if not exists snapshot (\n" +
+            " fname text not null primary key,\n" +
+            " size int not null,\n" +
+            " mtime int not null,  -- milliseconds\n" +
+            " inode int not null   -- zero if unknown\n" +
+            ")";
+
+    private static final String INSERT = "insert or replace into snapshot values (?,?,?,?)";
+
+
+    /** What a file looked like on disk */
+    public static final class Stat {
+        private final long mSize;
+        private final long mMtime;
+        private final long mInode;
+
+
+        public Stat(long size, long mtime, long inode) {
+            mSize = size;
+            mMtime = mtime;
+            mInode = inode;
+        }
+
+
+        /** @return The stat of file, with an inode of 0 if the system does not give it */
+        @NonNull
+        public static Stat of(@NonNull File file) {
+            long inode = 0;
+            try {
+                StructStat st = Os.stat(file.getAbsolutePath());
+                inode = st.st_ino;
+            } catch (ErrnoException | RuntimeException | UnsatisfiedLinkError e) {
+                Timber.v(e, "No inode for %s", file);
+            }
+            return new Stat(file.length(), file.lastModified(), inode);
+        }
+
+
+        public long getSize() {
+            return mSize;
+        }
+
+
+        /** @return The modification time in seconds, as stored in the media table */
+        public long getMtimeSeconds() {
+            return mMtime / 1000;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Stat)) {
+                return false;
+            }
+            Stat stat = (Stat) o;
+            // A file system may not give inodes, in which case the other fields are enough
+            return mSize == stat.mSize && mMtime == stat.mMtime &&
+                    (mInode == 0 || stat.mInode == 0 || mInode == stat.mInode);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mSize) * 31 + Long.hashCode(mMtime);
+        }
+    }
+
+
+    private final DB mDb;
+
+
+    public MediaSnapshot(@NonNull DB db) {
+        mDb = db;
+    }
+
+
+    /** @return The stat of each file in the snapshot */
+    @NonNull
+    public Map<String, Stat> load() {
+        Map<String, Stat> snapshot = HashUtil.HashMapInit(mDb.queryScalar("select count() from snapshot"));
+        try (Cursor cur = mDb.query("select fname, size, mtime, inode from snapshot")) {
+            while (cur.moveToNext()) {
+                snapshot.put(cur.getString(0), new Stat(cur.getLong(1), cur.getLong(2), cur.getLong(3)));
+            }
+        }
+        return snapshot;
+    }
+
+
+    /** Record the stat of a file whose checksum was just computed. */
+    public void record(@NonNull String fname, @NonNull Stat stat) {
+        mDb.execute(INSERT, fname, stat.mSize, stat.mMtime, stat.mInode);
+    }
+
+
+    /** Record the stats of files whose checksums were just computed, in the current transaction.
+     * @param rows fname and {@link Stat} */
+    public void recordNoTransaction(@NonNull List<Object[]> rows) {
+        List<Object[]> snapshot = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            Stat stat = (Stat) row[1];
+            snapshot.add(new Object[] {row[0], stat.mSize, stat.mMtime, stat.mInode});
+        }
+        mDb.executeManyNoTransaction(INSERT, snapshot);
+    }
+
+
+    /** Forget a file which was removed, or whose content is not known anymore. */
+    public void forget(@NonNull String fname) {
+        mDb.execute("delete from snapshot where fname = ?", fname);
+    }
+
+
+    public void clear() {
+        mDb.execute("delete from snapshot");
+    }
+}
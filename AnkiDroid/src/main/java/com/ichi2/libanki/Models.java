@@ -196,6 +196,10 @@ public class Models extends ModelManager {
             }
         }
         mChanged = true;
+        mCol.getSearchPlanCache().clear();
+        if (m != null && m.has("id")) {
+            mCol.getRenderCache().removeModel(m.getLong("id"));
+        }
         // The following hook rebuilds the tree in the Anki Desktop browser -- we don't need it
         // runHook("newModel")
     }
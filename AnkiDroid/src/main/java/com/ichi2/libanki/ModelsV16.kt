@@ -281,6 +281,7 @@ class ModelsV16(col: Collection) : ModelManager(col) {
     fun remove(id: int) {
         _remove_from_cache(id)
         modelsBackend.remove_notetype(id)
+        col.searchPlanCache.clear()
     }
 
     override fun add(m: NoteType) {
@@ -306,6 +307,8 @@ class ModelsV16(col: Collection) : ModelManager(col) {
         m.id = modelsBackend.add_or_update_notetype(model = m, preserve_usn_and_mtime = preserve_usn_and_mtime)
         setCurrent(m)
         _mutate_after_write(m)
+        col.searchPlanCache.clear()
+        col.renderCache.removeModel(m.id)
     }
 
     private fun _mutate_after_write(nt: NoteType) {
@@ -79,6 +79,20 @@ public class Note implements Cloneable {
     }
 
 
+    /** The columns read by {@link #Note(Collection, Cursor)}, to select many notes with a single query. */
+    public static final String LOAD_COLUMNS = "guid, mid, mod, usn, tags, flds, flags, data, id";
+
+
+    /**
+     * @param cursor Positioned on a row of "SELECT {@link #LOAD_COLUMNS} FROM notes".
+     */
+    public Note(@NonNull Collection col, @NonNull Cursor cursor) {
+        mCol = col;
+        mId = cursor.getLong(8);
+        load(cursor);
+    }
+
+
     public void load() {
         Timber.d("load()");
         try (Cursor cursor = mCol.getDb()
@@ -86,20 +100,25 @@ public class Note implements Cloneable {
             if (!cursor.moveToFirst()) {
                 throw new WrongId(mId, "note");
             }
-            mGuId = cursor.getString(0);
-            mMid = cursor.getLong(1);
-            mMod = cursor.getLong(2);
-            mUsn = cursor.getInt(3);
-            mTags = new ArrayList<>(mCol.getTags().split(cursor.getString(4)));
-            mFields = Utils.splitFields(cursor.getString(5));
-            mFlags = cursor.getInt(6);
-            mData = cursor.getString(7);
-            mModel = mCol.getModels().get(mMid);
-            mFMap = Models.fieldMap(mModel);
-            mScm = mCol.getScm();
+            load(cursor);
         }
     }
 
+
+    private void load(@NonNull Cursor cursor) {
+        mGuId = cursor.getString(0);
+        mMid = cursor.getLong(1);
+        mMod = cursor.getLong(2);
+        mUsn = cursor.getInt(3);
+        mTags = new ArrayList<>(mCol.getTags().split(cursor.getString(4)));
+        mFields = Utils.splitFields(cursor.getString(5));
+        mFlags = cursor.getInt(6);
+        mData = cursor.getString(7);
+        mModel = mCol.getModels().get(mMid);
+        mFMap = Models.fieldMap(mModel);
+        mScm = mCol.getScm();
+    }
+
     public void reloadModel() {
         mModel = mCol.getModels().get(mMid);
     }
@@ -135,6 +154,8 @@ public class Note implements Cloneable {
         mMod = mod != null ? mod : mCol.getTime().intTime();
         mCol.getDb().execute("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)",
                 mId, mGuId, mMid, mMod, mUsn, tags, fields, sfld, csum, mFlags, mData);
+        mCol.getSearchIndex().update(mId, fields);
+        mCol.getRenderCache().removeNote(mId);
         mCol.getTags().register(mTags);
         _postFlush();
     }
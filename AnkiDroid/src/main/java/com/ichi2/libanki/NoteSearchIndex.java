@@ -0,0 +1,367 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import android.database.Cursor;
+import android.database.SQLException;
+
+import com.ichi2.async.CancelListener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+import static com.ichi2.async.CancelListener.isCancelled;
+
+/**
+ * An optional full text index of the fields of the notes, used by {@link Finder} for word searches ("w:").
+ *
+ * The index is a FTS4 table in a separate database, attached to the collection's connection. It is never part of the
+ * collection file, so it is neither synced nor exported, and a collection copied to another device simply has no index.
+ * The index is enabled when its database file exists.
+ *
+ * The collection file may be replaced while the index is not attached, by a full sync, the restoration of a backup or
+ * the import of a collection. So closing the collection records its schema and modification times and its number of
+ * notes in the index. The index is rebuilt when it is opened with a collection which does not match, or which was not
+ * closed properly. This rebuild runs in the background, so that opening the collection stays fast, and searches do not
+ * use the index until it is done.
+ *
+ * Each row contains the fields of a note, with HTML and media references removed, and has the note id as docid. It is
+ * kept up to date by {@link Note#flush()}, {@link Collection#_remNotes(java.util.Collection)} and
+ * {@link Collection#updateFieldCache(String)}, which importers and sync call after writing notes directly.
+ */
+public class NoteSearchIndex {
+    private static final String SCHEMA = "search";
+    private static final String TABLE = SCHEMA + ".notes_fts";
+    /** The collection the index matched when it was last closed. Empty while it is open. */
+    private static final String STATE_TABLE = SCHEMA + ".notes_fts_state";
+    /** Number of notes read and indexed at once during a rebuild */
+    private static final int BATCH_SIZE = 1000;
+
+    private final Collection mCol;
+    private boolean mAttached = false;
+    /** Whether the index contains every note, so that searches can use it */
+    private volatile boolean mComplete = false;
+    /** The rebuild started when the index was opened, null if none is running */
+    @Nullable
+    private Thread mBackgroundRebuild;
+
+
+    public NoteSearchIndex(@NonNull Collection col) {
+        mCol = col;
+    }
+
+
+    @NonNull
+    private File getFile() {
+        return new File(mCol.getPath().replaceFirst("\\.anki2$", "") + ".search.ad.db");
+    }
+
+
+    /** Attach the index to the collection's connection, if it was enabled. To be called when the database is opened. */
+    public void open() {
+        mAttached = false;
+        mComplete = false;
+        if (mCol.getServer() || !getFile().exists()) {
+            return;
+        }
+        try {
+            attach();
+            boolean matches = matchesCollection();
+            // until it is closed, changes of the collection may be missed if the application is killed
+            mCol.getDb().execute("delete from " + STATE_TABLE);
+            if (matches) {
+                mComplete = true;
+            } else {
+                Timber.i("The search index does not match the collection, rebuilding it in the background");
+                startBackgroundRebuild();
+            }
+        } catch (SQLException e) {
+            Timber.w(e, "Could not attach the search index, it is not used");
+            mAttached = false;
+        }
+    }
+
+
+    /**
+     * Record the collection the index matches. To be called before the database is closed. An index which is not
+     * complete records nothing, so that it is rebuilt when it is opened again.
+     */
+    public void close() {
+        stopBackgroundRebuild();
+        if (!mAttached) {
+            return;
+        }
+        if (mComplete) {
+            try {
+                DB db = mCol.getDb();
+                db.execute("delete from " + STATE_TABLE);
+                db.execute("insert into " + STATE_TABLE + " (scm, mod, notes) select scm, mod, (select count() from notes) from col");
+            } catch (SQLException e) {
+                Timber.w(e, "Could not save the state of the search index");
+            }
+        }
+        mAttached = false;
+        mComplete = false;
+    }
+
+
+    private boolean matchesCollection() {
+        return mCol.getDb().queryScalar("select count() from " + STATE_TABLE + " s, col c " +
+                "where s.scm = c.scm and s.mod = c.mod and s.notes = (select count() from notes)") > 0;
+    }
+
+
+    private void attach() {
+        DB db = mCol.getDb();
+        db.execute(String.format(Locale.US, "attach \"%s\" as %s", getFile().getAbsolutePath(), SCHEMA));
+        try {
+            db.execute("create virtual table if not exists " + TABLE + " using fts4(content, tokenize=unicode61)");
+            db.execute("create table if not exists " + STATE_TABLE + " (scm integer not null, mod integer not null, notes integer not null)");
+        } catch (SQLException e) {
+            db.execute("detach " + SCHEMA);
+            throw e;
+        }
+        mAttached = true;
+    }
+
+
+    public boolean isEnabled() {
+        return mAttached;
+    }
+
+
+    /** @return Whether searches use the index: it is enabled, and not being rebuilt */
+    public boolean isSearchable() {
+        return mAttached && mComplete;
+    }
+
+
+    /**
+     * Create and fill the index. Must not be called in a transaction.
+     * @return Whether the index could be created. The SQLite of some devices does not have FTS4.
+     */
+    public boolean enable() {
+        if (mAttached) {
+            return true;
+        }
+        try {
+            attach();
+        } catch (SQLException e) {
+            Timber.w(e, "Could not create the search index");
+            disable();
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+
+
+    /** Remove the index and its file. Must not be called in a transaction. */
+    public void disable() {
+        stopBackgroundRebuild();
+        mComplete = false;
+        if (mAttached) {
+            try {
+                mCol.getDb().execute("detach " + SCHEMA);
+            } catch (SQLException e) {
+                Timber.w(e, "Could not detach the search index");
+            }
+            mAttached = false;
+        }
+        File file = getFile();
+        if (file.exists() && !file.delete()) {
+            Timber.w("Could not delete %s", file);
+        }
+        mCol.getSearchPlanCache().clear();
+    }
+
+
+    /**
+     * Index all notes again. Used after the collection was checked, in case the index missed some changes. Must not be
+     * called in a transaction.
+     */
+    public void rebuild() {
+        stopBackgroundRebuild();
+        if (!mAttached) {
+            return;
+        }
+        mComplete = fill(null);
+    }
+
+
+    private void startBackgroundRebuild() {
+        Thread rebuild = new Thread(() -> {
+            try {
+                if (fill(() -> Thread.currentThread().isInterrupted())) {
+                    mComplete = true;
+                }
+            } catch (RuntimeException e) {
+                // Searches keep not using the index, and it is rebuilt when it is opened again
+                Timber.w(e, "Could not rebuild the search index");
+            }
+        }, "SearchIndexRebuild");
+        rebuild.setPriority(Thread.MIN_PRIORITY);
+        mBackgroundRebuild = rebuild;
+        rebuild.start();
+    }
+
+
+    /** Stop the background rebuild, and wait for the batch being written. */
+    private void stopBackgroundRebuild() {
+        Thread rebuild = mBackgroundRebuild;
+        if (rebuild == null) {
+            return;
+        }
+        mBackgroundRebuild = null;
+        rebuild.interrupt();
+        joinRebuild(rebuild);
+    }
+
+
+    /** Wait for the background rebuild to be done. */
+    @VisibleForTesting
+    void awaitRebuild() {
+        Thread rebuild = mBackgroundRebuild;
+        if (rebuild != null) {
+            joinRebuild(rebuild);
+        }
+    }
+
+
+    private static void joinRebuild(@NonNull Thread rebuild) {
+        try {
+            rebuild.join();
+        } catch (InterruptedException e) {
+            Timber.w(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Index all notes, a batch at a time. Each batch is read and written in a transaction, so that a note modified
+     * meanwhile is indexed by whichever of the batch and {@link #update(long, String)} comes last. It writes to the
+     * SQLite database directly, so that a rebuild does not mark the collection as modified.
+     * @return Whether every note was indexed, rather than the fill being cancelled
+     */
+    private boolean fill(@Nullable CancelListener cancelListener) {
+        long start = System.currentTimeMillis();
+        DB db = mCol.getDb();
+        db.getDatabase().execSQL("delete from " + TABLE);
+        long lastId = Long.MIN_VALUE;
+        int count = 0;
+        while (true) {
+            if (isCancelled(cancelListener)) {
+                Timber.i("Search index rebuild stopped after %d notes", count);
+                return false;
+            }
+            List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+            long from = lastId;
+            db.executeInTransaction(() -> {
+                try (Cursor cur = db.query("select id, flds from notes where id > ? order by id limit " + BATCH_SIZE, from)) {
+                    while (cur.moveToNext()) {
+                        rows.add(new Object[] {cur.getLong(0), content(cur.getString(1))});
+                    }
+                }
+                for (Object[] row : rows) {
+                    db.getDatabase().execSQL("insert or replace into " + TABLE + " (docid, content) values (?, ?)", row);
+                }
+            });
+            if (rows.isEmpty()) {
+                break;
+            }
+            lastId = (long) rows.get(rows.size() - 1)[0];
+            count += rows.size();
+        }
+        Timber.i("Search index of %d notes rebuilt in %d ms", count, System.currentTimeMillis() - start);
+        return true;
+    }
+
+
+    /** Index the fields of a note which was added or modified. */
+    public void update(long nid, @NonNull String flds) {
+        if (!mAttached) {
+            return;
+        }
+        mCol.getDb().execute("insert or replace into " + TABLE + " (docid, content) values (?, ?)", nid, content(flds));
+    }
+
+
+    /** Index the fields of notes which were modified directly in the database.
+     * @param snids comma separated nids, in parenthesis */
+    public void update(@NonNull String snids) {
+        if (!mAttached) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>();
+        try (Cursor cur = mCol.getDb().query("select id, flds from notes where id in " + snids)) {
+            while (cur.moveToNext()) {
+                rows.add(new Object[] {cur.getLong(0), content(cur.getString(1))});
+            }
+        }
+        mCol.getDb().executeMany("insert or replace into " + TABLE + " (docid, content) values (?, ?)", rows);
+    }
+
+
+    /** @param snids comma separated nids, in parenthesis, of removed notes */
+    public void remove(@NonNull String snids) {
+        if (!mAttached) {
+            return;
+        }
+        mCol.getDb().execute("delete from " + TABLE + " where docid in " + snids);
+    }
+
+
+    /**
+     * @param words Words separated by spaces. A word ending in * matches any word it is a prefix of.
+     * @return A predicate on n selecting the notes containing all words, or null if the index can't be used.
+     */
+    @Nullable
+    public String findWords(@NonNull String words, @NonNull List<String> args) {
+        if (!isSearchable()) {
+            return null;
+        }
+        // Quotes and other operators of the match syntax are not searchable words
+        // Lower case, since AND, OR and NOT are operators and the tokenizer ignores case anyway
+        String query = words.replaceAll("[\"()^:\\-]", " ").trim().toLowerCase(Locale.ROOT);
+        if (query.isEmpty()) {
+            return null;
+        }
+        args.add(query);
+        return "n.id in (select docid from " + TABLE + " where content match ?)";
+    }
+
+
+    /** @return Size of the index on disk in bytes, 0 if it is disabled */
+    public long getSize() {
+        File file = getFile();
+        return file.exists() ? file.length() : 0;
+    }
+
+
+    @NonNull
+    private static String content(@NonNull String flds) {
+        return Utils.stripHTMLMedia(flds.replace(Consts.FIELD_SEPARATOR, " "));
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.utils.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * The last questions and answers rendered by {@link Card#_getQA(boolean, boolean)}.
+ *
+ * The same cards are rendered again and again: the browser renders the visible rows each time the list is scrolled or
+ * refreshed, the reviewer renders the question and then the answer, and the previewer renders the cards of a note
+ * when moving back and forth. Rendering parses the template and runs the filters on each field, which is much slower
+ * than a map lookup.
+ *
+ * A render is identified by the note id and modification time, the model id and modification time, the ordinal, the
+ * deck and its name, the flags and whether the browser format was used. A note or model being edited is not saved
+ * yet, so a hash of the fields, tags and template is also part of the key. Saving a note or a model drops the renders
+ * that depend on it. Decks are saved on each review, so a renamed deck only changes the key.
+ */
+public class RenderCache {
+    private static final int MAX_RENDERS = 128;
+
+    /** Everything a render depends on */
+    public static final class Key {
+        private final long mNid;
+        private final long mNoteMod;
+        private final long mMid;
+        private final long mModelMod;
+        private final int mOrd;
+        private final long mDid;
+        @NonNull
+        private final String mDeckName;
+        private final int mFlags;
+        private final boolean mBrowser;
+        private final int mContentHash;
+
+
+        /**
+         * @param template The template of the card, whose formats are rendered
+         * @param deckName The name of did, which is the Deck field
+         */
+        public Key(@NonNull Note note, @NonNull Model model, @NonNull JSONObject template, int ord, long did,
+                   @NonNull String deckName, int flags, boolean browser) {
+            mNid = note.getId();
+            mNoteMod = note.getMod();
+            mMid = model.getLong("id");
+            mModelMod = model.optLong("mod");
+            mOrd = ord;
+            mDid = did;
+            mDeckName = deckName;
+            mFlags = flags;
+            mBrowser = browser;
+            mContentHash = Objects.hash(note.joinedFields(), note.stringTags(), template.optString("name"),
+                    template.optString("qfmt"), template.optString("afmt"),
+                    browser ? template.optString("bqfmt") : null, browser ? template.optString("bafmt") : null);
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mNid == key.mNid && mNoteMod == key.mNoteMod && mMid == key.mMid && mModelMod == key.mModelMod &&
+                    mOrd == key.mOrd && mDid == key.mDid && mDeckName.equals(key.mDeckName) && mFlags == key.mFlags &&
+                    mBrowser == key.mBrowser && mContentHash == key.mContentHash;
+        }
+
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mNid, mNoteMod, mMid, mModelMod, mOrd, mDid, mDeckName, mFlags, mBrowser, mContentHash);
+        }
+    }
+
+    private final Map<Key, HashMap<String, String>> mRenders = new LinkedHashMap<Key, HashMap<String, String>>(MAX_RENDERS, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, HashMap<String, String>> eldest) {
+            return size() > MAX_RENDERS;
+        }
+    };
+
+    private long mHits;
+    private long mMisses;
+
+
+    /** @return A copy of the render of key, which the caller may modify; or null. Counts a hit or a miss. */
+    @Nullable
+    public synchronized HashMap<String, String> get(@NonNull Key key) {
+        HashMap<String, String> qa = mRenders.get(key);
+        if (qa == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new HashMap<>(qa);
+    }
+
+
+    public synchronized void put(@NonNull Key key, @NonNull HashMap<String, String> qa) {
+        mRenders.put(key, new HashMap<>(qa));
+    }
+
+
+    /** Forget the renders of a note which was saved. */
+    public synchronized void removeNote(long nid) {
+        for (Iterator<Key> it = mRenders.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().mNid == nid) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /** Forget the renders of the notes of a model which was saved. */
+    public synchronized void removeModel(long mid) {
+        for (Iterator<Key> it = mRenders.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().mMid == mid) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /** Forget all renders, e.g. when the collection is loaded again. */
+    public synchronized void clear() {
+        mRenders.clear();
+    }
+
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+
+    /** @return The fraction of renders which were found in the cache, 0 if nothing was rendered yet */
+    public synchronized double getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0 : (double) mHits / total;
+    }
+
+
+    @VisibleForTesting
+    public synchronized int size() {
+        return mRenders.size();
+    }
+
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d hits, %d misses (%.0f%%)", mHits, mMisses, getHitRate() * 100);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * The compiled form of the last searches of the collection.
+ *
+ * The browser repeats the same searches when the user changes the sort order, comes back from the editor or from the
+ * reviewer. Tokenizing the query and translating each command into SQL is done once per search string, and the
+ * resulting SQL and arguments are reused as long as nothing they were computed from changed. Since the SQL text is
+ * identical from one search to the next, SQLite's statement cache also reuses its prepared statement.
+ *
+ * A plan depends on the models and decks (note:, card:, deck:), on the scheduler day (is:due, rated:, added:, prop:due),
+ * on the selected deck (deck:current) and on the sort configuration. Changes to models and decks call {@link #clear()};
+ * the remaining dependencies are checked by {@link #validate(String)} before each lookup.
+ * Plans which depend on the content of notes (field searches, dupe:) are never cached.
+ */
+public class SearchPlanCache {
+    private static final int MAX_PLANS = 32;
+
+    /** A search translated into SQL */
+    public static class Plan {
+        @NonNull public final String sql;
+        @NonNull public final String[] args;
+        /** Whether the ids must be returned in the reverse order of the query */
+        public final boolean reverse;
+
+
+        public Plan(@NonNull String sql, @NonNull String[] args, boolean reverse) {
+            this.sql = sql;
+            this.args = args;
+            this.reverse = reverse;
+        }
+    }
+
+    private final Map<String, Plan> mPlans = new LinkedHashMap<String, Plan>(MAX_PLANS, .75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+            return size() > MAX_PLANS;
+        }
+    };
+    /** The context in which the cached plans were compiled */
+    @Nullable private String mStamp;
+
+    private long mHits;
+    private long mMisses;
+    private long mCompileNanos;
+    private long mExecuteNanos;
+
+
+    /**
+     * Drop the plans if they were compiled in another context.
+     * @param stamp Everything the plans depend on apart from models and decks.
+     */
+    public synchronized void validate(@NonNull String stamp) {
+        if (!stamp.equals(mStamp)) {
+            mPlans.clear();
+            mStamp = stamp;
+        }
+    }
+
+
+    /** @return The plan compiled for key, or null. Counts a hit or a miss. */
+    @Nullable
+    public synchronized Plan get(@NonNull String key) {
+        Plan plan = mPlans.get(key);
+        if (plan == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return plan;
+    }
+
+
+    public synchronized void put(@NonNull String key, @NonNull Plan plan) {
+        mPlans.put(key, plan);
+    }
+
+
+    /** Forget all plans. To be called when a model or a deck is changed. */
+    public synchronized void clear() {
+        mPlans.clear();
+    }
+
+
+    public synchronized void recordCompile(long nanos) {
+        mCompileNanos += nanos;
+    }
+
+
+    public synchronized void recordExecute(long nanos) {
+        mExecuteNanos += nanos;
+    }
+
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+
+    /** @return Time spent tokenizing and translating searches into SQL, in nanoseconds */
+    public synchronized long getCompileNanos() {
+        return mCompileNanos;
+    }
+
+
+    /** @return Time spent running the SQL of searches and reading their results, in nanoseconds */
+    public synchronized long getExecuteNanos() {
+        return mExecuteNanos;
+    }
+
+
+    @VisibleForTesting
+    public synchronized int size() {
+        return mPlans.size();
+    }
+
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d hits, %d misses, %d ms compiling, %d ms executing",
+                mHits, mMisses, mCompileNanos / 1000000, mExecuteNanos / 1000000);
+    }
+}
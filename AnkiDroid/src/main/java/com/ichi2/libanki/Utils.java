@@ -640,6 +640,21 @@ public class Utils {
         } catch (IOException e) {
             Timber.e(e, "Utils.fileChecksum: IO exception.");
         }
+        return sha1Hex(digest);
+    }
+
+
+    public static String fileChecksum(File file) {
+        return fileChecksum(file.getAbsolutePath());
+    }
+
+
+    /**
+     * @param digest A SHA1 digest
+     * @return Its hexadecimal representation, of length 40, as in {@link #fileChecksum(String)}.
+     */
+    @NonNull
+    public static String sha1Hex(byte[] digest) {
         BigInteger biginteger = new BigInteger(1, digest);
         String result = biginteger.toString(16);
         // pad with zeros to length of 40 - SHA1 is 160bit long
@@ -650,11 +665,6 @@ public class Utils {
     }
 
 
-    public static String fileChecksum(File file) {
-        return fileChecksum(file.getAbsolutePath());
-    }
-
-
     /*
      *  Tempo files
      * ***********************************************************************************************
@@ -18,6 +18,7 @@
 package com.ichi2.libanki.importer;
 
 import android.database.Cursor;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -29,12 +30,14 @@ import com.ichi2.libanki.Consts;
 import com.ichi2.libanki.DB;
 import com.ichi2.libanki.Decks;
 import com.ichi2.libanki.Media;
+import com.ichi2.libanki.MediaReferenceScanner;
 import com.ichi2.libanki.Model;
 import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
 import com.ichi2.libanki.DeckConfig;
 import com.ichi2.libanki.Deck;
 import com.ichi2.utils.HashUtil;
+import com.ichi2.utils.LongLongHashMap;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
@@ -49,12 +52,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import androidx.annotation.NonNull;
 import timber.log.Timber;
 
+import static com.ichi2.async.CancelListener.isCancelled;
 import static com.ichi2.libanki.Consts.CARD_TYPE_LRN;
 import static com.ichi2.libanki.Consts.CARD_TYPE_NEW;
 import static com.ichi2.libanki.Consts.CARD_TYPE_REV;
@@ -68,22 +73,16 @@ import static com.ichi2.libanki.Consts.QUEUE_TYPE_REV;
 public class Anki2Importer extends Importer {
 
     private static final int MEDIAPICKLIMIT = 1024;
+    /** Number of notes or cards read from src at once. Below SQLite's limit of 999 variables per statement. */
+    static final int BATCH_SIZE = 500;
 
     private final String mDeckPrefix;
     private final boolean mAllowUpdate;
     private boolean mDupeOnSchemaChange;
 
-    private static class NoteTriple {
-        public final long mNid;
-        public final long mMid;
-        public final long mMod;
-        public NoteTriple(long nid, long mod, long mid) {
-            mNid = nid;
-            mMod = mod;
-            mMid = mid;
-        }
-    }
-    private Map<String, NoteTriple> mNotes;
+    private GuidIndex mNotes;
+    /** Name in dst of the media referenced by imported notes, by model id and name in src */
+    private Map<String, String> mMediaNames;
 
     private Map<Long, Long> mDecks;
     private Map<Long, Long> mModelMap;
@@ -96,6 +95,9 @@ public class Anki2Importer extends Importer {
     /** If importing SchedV1 into SchedV2 we need to reset the learning cards */
     private boolean mMustResetLearning;
 
+    /** Highest heap usage seen between two batches, in bytes */
+    private long mPeakHeap;
+
     public Anki2Importer(Collection col, String file) {
         super(col, file);
         mNeedMapper = false;
@@ -162,12 +164,16 @@ public class Anki2Importer extends Importer {
             Timber.i("Performing post-import");
             _postImport();
             publishProgress(100, 100, 50);
+            Timber.i("Peak heap during import: %d KB", mPeakHeap / 1024);
             mDst.getDb().getDatabase().setTransactionSuccessful();
             mDst.getMedia().getDb().getDatabase().setTransactionSuccessful();
         } catch (Exception err) {
             Timber.e(err, "_import() exception");
             throw err;
         } finally {
+            if (mNotes != null) {
+                mNotes.close();
+            }
             // endTransaction throws about invalid transaction even when you check first!
             DB.safeEndInTransaction(mDst.getDb());
             DB.safeEndInTransaction(mDst.getMedia().getDb());
@@ -200,37 +206,31 @@ public class Anki2Importer extends Importer {
      */
 
     private void _importNotes() {
-        int noteCount = mDst.noteCount();
-        // build guid -> (id,mod,mid) hash & map of existing note ids
-        mNotes = HashUtil.HashMapInit(noteCount);
-        Set<Long> existing = HashUtil.HashSetInit(noteCount);
-        try (Cursor cur = mDst.getDb().query("select id, guid, mod, mid from notes")) {
+        // build guid -> (id,mod,mid) index & set of existing note ids
+        mNotes = GuidIndex.build(mDst.getDb());
+        LongLongHashMap existing = new LongLongHashMap(mDst.noteCount());
+        try (Cursor cur = mDst.getDb().query("select id from notes")) {
             while (cur.moveToNext()) {
-                long id = cur.getLong(0);
-                String guid = cur.getString(1);
-                long mod = cur.getLong(2);
-                long mid = cur.getLong(3);
-                mNotes.put(guid, new NoteTriple(id, mod, mid));
-                existing.add(id);
+                existing.put(cur.getLong(0), 0);
             }
         }
         // we ignore updates to changed schemas. we need to note the ignored
         // guids, so we avoid importing invalid cards
         mIgnoredGuids = new HashSet<>();
+        mMediaNames = new HashMap<>();
         // iterate over source collection
-        int nbNoteToImport = mSrc.noteCount();
-        ArrayList<Object[]> add = new ArrayList<>(nbNoteToImport);
+        ArrayList<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+        List<String> guids = new ArrayList<>(BATCH_SIZE);
+        ArrayList<Object[]> add = new ArrayList<>(BATCH_SIZE);
+        ArrayList<Object[]> update = new ArrayList<>(BATCH_SIZE);
+        ArrayList<Long> dirty = new ArrayList<>(BATCH_SIZE);
         int totalAddCount = 0;
-        final int thresExecAdd = 1000;
-        ArrayList<Object[]> update = new ArrayList<>(nbNoteToImport);
         int totalUpdateCount = 0;
-        final int thresExecUpdate = 1000;
-        ArrayList<Long> dirty = new ArrayList<>(nbNoteToImport);
         int totalDirtyCount = 0;
-        final int thresExecDirty = 1000;
         int usn = mDst.usn();
         int dupes = 0;
-        ArrayList<String> dupesIgnored = new ArrayList<>(nbNoteToImport);
+        ArrayList<String> dupesIgnored = new ArrayList<>();
+        long start = SystemClock.elapsedRealtime();
         mDst.getDb().getDatabase().beginTransaction();
         try (Cursor cur = mSrc.getDb().getDatabase().query("select id, guid, mid, mod, tags, flds, sfld, csum, flags, data  from notes", null)) {
             // Counters for progress updates
@@ -239,98 +239,99 @@ public class Anki2Importer extends Importer {
             int onePercent = total/100;
             int i = 0;
 
-            while (cur.moveToNext()) {
-                // turn the db result into a mutable list
-                long nid = cur.getLong(0);
-                String guid = cur.getString(1);
-                long mid = cur.getLong(2);
-                long mod = cur.getLong(3);
-                String tags = cur.getString(4);
-                String flds = cur.getString(5);
-                String sfld = cur.getString(6);
-                long csum = cur.getLong(7);
-                int flag = cur.getInt(8);
-                String data = cur.getString(9);
-
-                Pair<Boolean, Long> shouldAddAndNewMid = _uniquifyNote(guid, mid);
-                boolean shouldAdd = shouldAddAndNewMid.first;
-                mid = shouldAddAndNewMid.second;
-                if (shouldAdd) {
-                    // ensure nid is unique
-                    while (existing.contains(nid)) {
-                        nid += 999;
-                    }
-                    existing.add(nid);
-                    // bump usn
-                    // update media references in case of dupes
-                    flds = _mungeMedia(mid, flds);
-                    add.add(new Object[]{nid, guid, mid, mod, usn, tags, flds, sfld, csum, flag, data});
-                    dirty.add(nid);
-                    // note we have the added guid
-                    mNotes.put(guid, new NoteTriple(nid, mod, mid));
-                } else {
-                    // a duplicate or changed schema - safe to update?
-                    dupes += 1;
-                    if (mAllowUpdate) {
-                        NoteTriple n = mNotes.get(guid);
-                        long oldNid = n.mNid;
-                        long oldMod = n.mMod;
-                        long oldMid = n.mMid;
-                        // will update if incoming note more recent
-                        if (oldMod < mod) {
-                            // safe if note types identical
-                            if (oldMid == mid) {
-                                // incoming note should use existing id
-                                nid = oldNid;
-                                flds = _mungeMedia(mid, flds);
-                                update.add(new Object[]{nid, guid, mid, mod, usn, tags, flds, sfld, csum, flag, data});
-                                dirty.add(nid);
-                            } else {
-                                dupesIgnored.add(String.format("%s: %s",
-                                        mCol.getModels().get(oldMid).getString("name"),
-                                        flds.replace('\u001f', ',')));
-                                mIgnoredGuids.add(guid);
+            while (true) {
+                // read a batch of notes, and the notes of the same guids in the destination
+                batch.clear();
+                guids.clear();
+                while (batch.size() < BATCH_SIZE && cur.moveToNext()) {
+                    batch.add(new Object[] {cur.getLong(0), cur.getString(1), cur.getLong(2), cur.getLong(3), cur.getString(4),
+                            cur.getString(5), cur.getString(6), cur.getLong(7), cur.getInt(8), cur.getString(9)});
+                    guids.add(cur.getString(1));
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                mNotes.prefetch(guids);
+
+                for (Object[] note : batch) {
+                    long nid = (Long) note[0];
+                    String guid = (String) note[1];
+                    long mid = (Long) note[2];
+                    long mod = (Long) note[3];
+                    String tags = (String) note[4];
+                    String flds = (String) note[5];
+                    String sfld = (String) note[6];
+                    long csum = (Long) note[7];
+                    int flag = (Integer) note[8];
+                    String data = (String) note[9];
+
+                    Pair<Boolean, Long> shouldAddAndNewMid = _uniquifyNote(guid, mid);
+                    boolean shouldAdd = shouldAddAndNewMid.first;
+                    mid = shouldAddAndNewMid.second;
+                    if (shouldAdd) {
+                        // ensure nid is unique
+                        while (existing.containsKey(nid)) {
+                            nid += 999;
+                        }
+                        existing.put(nid, 0);
+                        // bump usn
+                        // update media references in case of dupes
+                        flds = _mungeMedia(mid, flds);
+                        add.add(new Object[]{nid, guid, mid, mod, usn, tags, flds, sfld, csum, flag, data});
+                        dirty.add(nid);
+                        // note we have the added guid
+                        mNotes.put(guid, nid, mod, mid);
+                    } else {
+                        // a duplicate or changed schema - safe to update?
+                        dupes += 1;
+                        if (mAllowUpdate) {
+                            GuidIndex.NoteTriple n = mNotes.get(guid);
+                            long oldNid = n.mNid;
+                            long oldMod = n.mMod;
+                            long oldMid = n.mMid;
+                            // will update if incoming note more recent
+                            if (oldMod < mod) {
+                                // safe if note types identical
+                                if (oldMid == mid) {
+                                    // incoming note should use existing id
+                                    nid = oldNid;
+                                    flds = _mungeMedia(mid, flds);
+                                    update.add(new Object[]{nid, guid, mid, mod, usn, tags, flds, sfld, csum, flag, data});
+                                    dirty.add(nid);
+                                } else {
+                                    dupesIgnored.add(String.format("%s: %s",
+                                            mCol.getModels().get(oldMid).getString("name"),
+                                            flds.replace('\u001f', ',')));
+                                    mIgnoredGuids.add(guid);
+                                }
                             }
                         }
                     }
-                }
-                i++;
+                    i++;
 
-                // add to col partially, so as to avoid OOM
-                if (add.size() >= thresExecAdd) {
-                    totalAddCount  += add.size();
-                    addNotes(add);
-                    add.clear();
-                    Timber.d("add notes: %d", totalAddCount);
-                }
-                // add to col partially, so as to avoid OOM
-                if (update.size() >= thresExecUpdate){
-                    totalUpdateCount  += update.size();
-                    updateNotes(update);
-                    update.clear();
-                    Timber.d("update notes: %d", totalUpdateCount);
-                }
-                // add to col partially, so as to avoid OOM
-                if (dirty.size() >= thresExecDirty) {
-                    totalDirtyCount  += dirty.size();
-                    mDst.updateFieldCache(dirty);
-                    mDst.getTags().registerNotes(dirty);
-                    dirty.clear();
-                    Timber.d("dirty notes: %d", totalDirtyCount);
+                    if (total != 0 && (!largeCollection || i % onePercent == 0)) {
+                        // Calls to publishProgress are reasonably expensive due to res.getString()
+                        publishProgress(i * 100 / total, 0, 0);
+                    }
                 }
 
-                if (total != 0 && (!largeCollection || i % onePercent == 0)) {
-                    // Calls to publishProgress are reasonably expensive due to res.getString()
-                    publishProgress(i * 100 / total, 0, 0);
-                }
+                // add to col partially, so as to avoid OOM
+                totalAddCount += add.size();
+                addNotes(add);
+                add.clear();
+                totalUpdateCount += update.size();
+                updateNotes(update);
+                update.clear();
+                totalDirtyCount += dirty.size();
+                mDst.updateFieldCache(dirty);
+                mDst.getTags().registerNotes(dirty);
+                dirty.clear();
+                sampleHeap();
+                Timber.d("notes: %d added, %d updated", totalAddCount, totalUpdateCount);
+                _throwIfCancelled();
             }
             publishProgress(100, 0, 0);
 
-            // summarize partial add/update/dirty results for total values
-            totalAddCount += add.size();
-            totalUpdateCount += update.size();
-            totalDirtyCount += dirty.size();
-
             if (dupes > 0) {
                 mLog.add(getRes().getString(R.string.import_update_details, totalUpdateCount, dupes));
                 if (!dupesIgnored.isEmpty()) {
@@ -341,22 +342,17 @@ public class Anki2Importer extends Importer {
             mDupes = dupes;
             mAdded = totalAddCount;
             mUpdated = totalUpdateCount;
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+            Timber.i("Imported %d notes in %d ms (%d notes/s, guid index %s)", total, elapsed, total * 1000L / elapsed,
+                    mNotes.isSpilled() ? "spilled to database" : "in memory");
             Timber.d("add notes total:    %d", totalAddCount);
             Timber.d("update notes total: %d", totalUpdateCount);
             Timber.d("dirty notes total:  %d", totalDirtyCount);
-            // add to col (for last chunk)
-            addNotes(add);
-            add.clear();
-            updateNotes(update);
-            update.clear();
             mDst.getDb().getDatabase().setTransactionSuccessful();
 
         } finally {
             DB.safeEndInTransaction(mDst.getDb());
         }
-
-        mDst.updateFieldCache(dirty);
-        mDst.getTags().registerNotes(dirty);
     }
 
     private void addNotes(List<Object[]> add) {
@@ -373,10 +369,10 @@ public class Anki2Importer extends Importer {
         long dstMid = _mid(srcMid);
         // duplicate Schemas?
         if (srcMid == dstMid) {
-            return new Pair<>(!mNotes.containsKey(origGuid), srcMid);
+            return new Pair<>(!mNotes.contains(origGuid), srcMid);
         }
         // differing schemas and note doesn't exist?
-        if (!mNotes.containsKey(origGuid)) {
+        if (!mNotes.contains(origGuid)) {
             return new Pair<>(true, dstMid);
         }
 		// schema changed; don't import
@@ -508,40 +504,22 @@ public class Anki2Importer extends Importer {
                 throw new RuntimeException("Changing the scheduler of an import should not cause schema modification", e);
             }
         }
-        // build map of guid -> (ord -> cid) and used id cache
-        /*
-         * Since we can't use a tuple as a key in Java, we resort to indexing twice with nested maps.
-         * Python: (guid, ord) -> cid
-         * Java: guid -> ord -> cid
-         */
-        int nbCard = mDst.cardCount();
-        Map<String, Map<Integer, Long>> cardsByGuid = HashUtil.HashMapInit(nbCard);
-        Set<Long> existing = HashUtil.HashSetInit(nbCard);
-        try (Cursor cur = mDst.getDb().query(
-                    "select f.guid, c.ord, c.id from cards c, notes f " +
-                    "where c.nid = f.id")) {
+        // used id cache. Which cards of a note already exist is only looked up for each batch.
+        LongLongHashMap existing = new LongLongHashMap(mDst.cardCount());
+        try (Cursor cur = mDst.getDb().query("select id from cards")) {
             while (cur.moveToNext()) {
-                String guid = cur.getString(0);
-                int ord = cur.getInt(1);
-                long cid = cur.getLong(2);
-                existing.add(cid);
-                if (cardsByGuid.containsKey(guid)) {
-                    cardsByGuid.get(guid).put(ord, cid);
-                } else {
-                    Map<Integer, Long> map = new HashMap<>(); // The size is at most the number of card type in the note type.
-                    map.put(ord, cid);
-                    cardsByGuid.put(guid, map);
-                }
+                existing.put(cur.getLong(0), 0);
             }
         }
         // loop through src
-        int nbCardsToImport = mSrc.cardCount();
-        List<Object[]> cards = new ArrayList<>(nbCardsToImport);
+        List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+        List<String> guids = new ArrayList<>(BATCH_SIZE);
+        List<Object[]> cards = new ArrayList<>(BATCH_SIZE);
         int totalCardCount = 0;
-        final int thresExecCards = 1000;
-        List<Object[]> revlog = new ArrayList<>(mSrc.getSched().logCount());
+        List<Object[]> revlog = new ArrayList<>(BATCH_SIZE);
         int totalRevlogCount = 0;
-        final int thresExecRevlog = 1000;
+        // source card id -> destination card id, for the cards of the batch
+        LongLongHashMap cids = new LongLongHashMap(BATCH_SIZE);
         int usn = mDst.usn();
         long aheadBy = mSrc.getSched().getToday() - mDst.getSched().getToday();
         mDst.getDb().getDatabase().beginTransaction();
@@ -555,116 +533,116 @@ public class Anki2Importer extends Importer {
             int onePercent = total/100;
             int i = 0;
 
-            while (cur.moveToNext()) {
-                String guid = cur.getString(0);
-                long cid = cur.getLong(1);
-                long scid = cid; // To keep track of card id in source
-                long did = cur.getLong(2);
-                int ord = cur.getInt(3);
-                @Consts.CARD_TYPE int type = cur.getInt(4);
-                @Consts.CARD_QUEUE int queue = cur.getInt(5);
-                long due = cur.getLong(6);
-                long ivl = cur.getLong(7);
-                long factor = cur.getLong(8);
-                int reps = cur.getInt(9);
-                int lapses = cur.getInt(10);
-                int left = cur.getInt(11);
-                long odue = cur.getLong(12);
-                long odid = cur.getLong(13);
-                int flags = cur.getInt(14);
-                String data = cur.getString(15);
-
-                if (mIgnoredGuids.contains(guid)) {
-                    continue;
-                }
-                // does the card's note exist in dst col?
-                if (!mNotes.containsKey(guid)) {
-                    continue;
-                }
-                NoteTriple dnid = mNotes.get(guid);
-                // does the card already exist in the dst col?
-                if (cardsByGuid.containsKey(guid) && cardsByGuid.get(guid).containsKey(ord)) {
-                    // fixme: in future, could update if newer mod time
-                    continue;
-                }
-                // ensure the card id is unique
-                while (existing.contains(cid)) {
-                    cid += 999;
-                }
-                existing.add(cid);
-                // update cid, nid, etc
-                long nid = mNotes.get(guid).mNid;
-                did = _did(did);
-                long mod = mCol.getTime().intTime();
-                // review cards have a due date relative to collection
-                if (queue == QUEUE_TYPE_REV || queue == QUEUE_TYPE_DAY_LEARN_RELEARN || type == CARD_TYPE_REV) {
-                    due -= aheadBy;
+            while (true) {
+                batch.clear();
+                guids.clear();
+                while (batch.size() < BATCH_SIZE && cur.moveToNext()) {
+                    String guid = cur.getString(0);
+                    if (mIgnoredGuids.contains(guid)) {
+                        continue;
+                    }
+                    batch.add(new Object[] {guid, cur.getLong(1), cur.getLong(2), cur.getInt(3), cur.getInt(4), cur.getInt(5),
+                            cur.getLong(6), cur.getLong(7), cur.getLong(8), cur.getInt(9), cur.getInt(10), cur.getInt(11),
+                            cur.getLong(12), cur.getLong(13), cur.getInt(14), cur.getString(15)});
+                    guids.add(guid);
                 }
-                // odue needs updating too
-                if (odue != 0) {
-                    odue -= aheadBy;
+                if (batch.isEmpty()) {
+                    break;
                 }
-                // if odid true, convert card from filtered to normal
-                if (odid != 0) {
-                    // odid
-                    odid = 0;
-                    // odue
-                    due = odue;
-                    odue = 0;
-                    // queue
-                    if (type == CARD_TYPE_LRN) { // type
-                        queue = QUEUE_TYPE_NEW;
-                    } else {
-                        queue = type;
+                mNotes.prefetch(guids);
+                Map<Long, Set<Integer>> existingOrds = _existingOrds(batch);
+                cids.clear();
+
+                for (Object[] card : batch) {
+                    String guid = (String) card[0];
+                    long cid = (Long) card[1];
+                    long scid = cid; // To keep track of card id in source
+                    long did = (Long) card[2];
+                    int ord = (Integer) card[3];
+                    @Consts.CARD_TYPE int type = (Integer) card[4];
+                    @Consts.CARD_QUEUE int queue = (Integer) card[5];
+                    long due = (Long) card[6];
+                    long ivl = (Long) card[7];
+                    long factor = (Long) card[8];
+                    int reps = (Integer) card[9];
+                    int lapses = (Integer) card[10];
+                    int left = (Integer) card[11];
+                    long odue = (Long) card[12];
+                    long odid = (Long) card[13];
+                    int flags = (Integer) card[14];
+                    String data = (String) card[15];
+
+                    // does the card's note exist in dst col?
+                    GuidIndex.NoteTriple dnid = mNotes.get(guid);
+                    if (dnid == null) {
+                        continue;
                     }
-                    // type
-                    if (type == CARD_TYPE_LRN) {
-                        type = CARD_TYPE_NEW;
+                    long nid = dnid.mNid;
+                    // does the card already exist in the dst col?
+                    Set<Integer> ords = existingOrds.get(nid);
+                    if (ords != null && ords.contains(ord)) {
+                        // fixme: in future, could update if newer mod time
+                        continue;
                     }
-                }
-                cards.add(new Object[]{cid, nid, did, ord, mod, usn, type, queue, due, ivl, factor, reps, lapses, left, odue, odid, flags, data});
-                // we need to import revlog, rewriting card ids and bumping usn
-                try (Cursor cur2 = mSrc.getDb().query("select * from revlog where cid = " + scid)) {
-                    while (cur2.moveToNext()) {
-                        Object[] rev = new Object[] { cur2.getLong(0), cur2.getLong(1), cur2.getInt(2), cur2.getInt(3),
-                                cur2.getLong(4), cur2.getLong(5), cur2.getLong(6), cur2.getLong(7), cur2.getInt(8) };
-                        rev[1] = cid;
-                        rev[2] = mDst.usn();
-                        revlog.add(rev);
+                    // ensure the card id is unique
+                    while (existing.containsKey(cid)) {
+                        cid += 999;
+                    }
+                    existing.put(cid, 0);
+                    cids.put(scid, cid);
+                    // update cid, nid, etc
+                    did = _did(did);
+                    long mod = mCol.getTime().intTime();
+                    // review cards have a due date relative to collection
+                    if (queue == QUEUE_TYPE_REV || queue == QUEUE_TYPE_DAY_LEARN_RELEARN || type == CARD_TYPE_REV) {
+                        due -= aheadBy;
+                    }
+                    // odue needs updating too
+                    if (odue != 0) {
+                        odue -= aheadBy;
+                    }
+                    // if odid true, convert card from filtered to normal
+                    if (odid != 0) {
+                        // odid
+                        odid = 0;
+                        // odue
+                        due = odue;
+                        odue = 0;
+                        // queue
+                        if (type == CARD_TYPE_LRN) { // type
+                            queue = QUEUE_TYPE_NEW;
+                        } else {
+                            queue = type;
+                        }
+                        // type
+                        if (type == CARD_TYPE_LRN) {
+                            type = CARD_TYPE_NEW;
+                        }
+                    }
+                    cards.add(new Object[]{cid, nid, did, ord, mod, usn, type, queue, due, ivl, factor, reps, lapses, left, odue, odid, flags, data});
+                    i++;
+                    if (total != 0 && (!largeCollection || i % onePercent == 0)) {
+                        publishProgress(100, i * 100 / total, 0);
                     }
                 }
-                i++;
-                // apply card changes partially
-                if (cards.size() >= thresExecCards) {
-                    totalCardCount += cards.size();
-                    insertCards(cards);
-                    cards.clear();
-                    Timber.d("add cards: %d", totalCardCount);
-                }
-                // apply revlog changes partially
-                if (revlog.size() >= thresExecRevlog) {
-                    totalRevlogCount += revlog.size();
-                    insertRevlog(revlog);
-                    revlog.clear();
-                    Timber.d("add revlog: %d", totalRevlogCount);
-                }
-
-                if (total != 0 && (!largeCollection || i % onePercent == 0)) {
-                    publishProgress(100, i * 100 / total, 0);
-                }
+                // we need to import revlog, rewriting card ids and bumping usn
+                _collectRevlog(batch, cids, usn, revlog);
+
+                // apply changes partially
+                totalCardCount += cards.size();
+                insertCards(cards);
+                cards.clear();
+                totalRevlogCount += revlog.size();
+                insertRevlog(revlog);
+                revlog.clear();
+                sampleHeap();
+                Timber.d("add cards: %d, revlog: %d", totalCardCount, totalRevlogCount);
+                _throwIfCancelled();
             }
             publishProgress(100, 100, 0);
 
-            // count total values
-            totalCardCount += cards.size();
-            totalRevlogCount += revlog.size();
             Timber.d("add cards total:  %d", totalCardCount);
             Timber.d("add revlog total: %d", totalRevlogCount);
-            // apply (for last chunk)
-            insertCards(cards);
-            cards.clear();
-            insertRevlog(revlog);
-            revlog.clear();
             mLog.add(getRes().getString(R.string.import_complete_count, totalCardCount));
             mDst.getDb().getDatabase().setTransactionSuccessful();
         } finally {
@@ -672,6 +650,66 @@ public class Anki2Importer extends Importer {
         }
     }
 
+
+    /** @return The ords of the cards in dst of the notes of this batch, by note id */
+    @NonNull
+    private Map<Long, Set<Integer>> _existingOrds(@NonNull List<Object[]> batch) {
+        List<Object> nids = new ArrayList<>(batch.size());
+        for (Object[] card : batch) {
+            GuidIndex.NoteTriple note = mNotes.get((String) card[0]);
+            if (note != null) {
+                nids.add(note.mNid);
+            }
+        }
+        Map<Long, Set<Integer>> ords = HashUtil.HashMapInit(nids.size());
+        if (nids.isEmpty()) {
+            return ords;
+        }
+        try (Cursor cur = mDst.getDb().query("select nid, ord from cards where nid in " + _placeholders(nids.size()), nids.toArray())) {
+            while (cur.moveToNext()) {
+                long nid = cur.getLong(0);
+                Set<Integer> noteOrds = ords.get(nid);
+                if (noteOrds == null) {
+                    // The size is at most the number of card type in the note type.
+                    noteOrds = new HashSet<>();
+                    ords.put(nid, noteOrds);
+                }
+                noteOrds.add(cur.getInt(1));
+            }
+        }
+        return ords;
+    }
+
+
+    /** Add the reviews of the imported cards of the batch to revlog, with the new card ids. */
+    private void _collectRevlog(@NonNull List<Object[]> batch, @NonNull LongLongHashMap cids, int usn, @NonNull List<Object[]> revlog) {
+        if (cids.isEmpty()) {
+            return;
+        }
+        List<Object> scids = new ArrayList<>(cids.size());
+        for (Object[] card : batch) {
+            if (cids.containsKey((Long) card[1])) {
+                scids.add(card[1]);
+            }
+        }
+        try (Cursor cur = mSrc.getDb().query("select * from revlog where cid in " + _placeholders(scids.size()), scids.toArray())) {
+            while (cur.moveToNext()) {
+                revlog.add(new Object[] { cur.getLong(0), cids.get(cur.getLong(1), 0), usn, cur.getInt(3),
+                        cur.getLong(4), cur.getLong(5), cur.getLong(6), cur.getLong(7), cur.getInt(8) });
+            }
+        }
+    }
+
+
+    @NonNull
+    private static String _placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2 + 1).append('(');
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(')').toString();
+    }
+
     private void insertCards(List<Object[]> cards) {
         mDst.getDb().executeManyNoTransaction("insert or ignore into cards values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", cards);
     }
@@ -738,6 +776,42 @@ public class Anki2Importer extends Importer {
     }
 
 
+    /**
+     * Whether FNAME is in src collection.
+     */
+    protected boolean _srcHasMedia(String fname) {
+        return new File(mSrc.getMedia().dir(), fname).exists();
+    }
+
+
+    /**
+     * Whether FNAME has the same content in the src and dst collections. It exists in both.
+     */
+    protected boolean _sameMedia(String fname) {
+        try (BufferedInputStream srcData = _srcMediaData(fname);
+             BufferedInputStream dstData = _dstMediaData(fname)) {
+            return srcData != null && dstData != null && compareMedia(srcData, dstData);
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close stream");
+            return false;
+        }
+    }
+
+
+    /**
+     * Copy FNAME from src collection to DSTNAME in dst collection.
+     */
+    protected void _copyMedia(String fname, String dstName) {
+        try (BufferedInputStream srcData = _srcMediaData(fname)) {
+            if (srcData != null) {
+                _writeDstMedia(dstName, srcData);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close stream");
+        }
+    }
+
+
     private void _writeDstMedia(String fname, BufferedInputStream data) {
         try {
             String path = new File(mDst.getMedia().dir(), Utils.nfcNormalized(fname)).getAbsolutePath();
@@ -761,42 +835,23 @@ public class Anki2Importer extends Importer {
 
     // running splitFields() on every note is fairly expensive and actually not necessary
     private String _mungeMedia(long mid, String fields) {
+        // Most notes reference no file, or only files which keep their name
+        List<String> refs = new ArrayList<>();
+        MediaReferenceScanner.addReferences(fields, refs);
+        boolean renamed = false;
+        for (String fname : refs) {
+            renamed |= !fname.equals(_dstMediaName(mid, fname));
+        }
+        if (!renamed) {
+            return fields;
+        }
         for (Pattern p : Media.REGEXPS) {
             Matcher m = p.matcher(fields);
             StringBuffer sb = new StringBuffer();
             int fnameIdx = Media.indexOfFname(p);
             while (m.find()) {
                 String fname = m.group(fnameIdx);
-                try (BufferedInputStream srcData = _srcMediaData(fname);
-                     BufferedInputStream dstData = _dstMediaData(fname)) {
-                    if (srcData == null) {
-                        // file was not in source, ignore
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
-                        continue;
-                    }
-                    // if model-local file exists from a previous import, use that
-                    String[] split = Utils.splitFilename(fname);
-                    String name = split[0];
-                    String ext = split[1];
-
-                    String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
-                    if (mDst.getMedia().have(lname)) {
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
-                        continue;
-                    } else if (dstData == null || compareMedia(srcData, dstData)) { // if missing or the same, pass unmodified
-                        // need to copy?
-                        if (dstData == null) {
-                            _writeDstMedia(fname, srcData);
-                        }
-                        m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0)));
-                        continue;
-                    }
-                    // exists but does not match, so we need to dedupe
-                    _writeDstMedia(lname, srcData);
-                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, lname)));
-                } catch (IOException e) {
-                    Timber.w(e, "Failed to close stream");
-                }
+                m.appendReplacement(sb, Matcher.quoteReplacement(m.group(0).replace(fname, _dstMediaName(mid, fname))));
             }
             m.appendTail(sb);
             fields = sb.toString();
@@ -805,6 +860,43 @@ public class Anki2Importer extends Importer {
     }
 
 
+    /**
+     * The name in dst of the file fname referenced by a note of model mid. Copies the file if needed.
+     * The result is remembered, as most files are referenced by many notes.
+     */
+    @NonNull
+    private String _dstMediaName(long mid, @NonNull String fname) {
+        String key = mid + "\u001f" + fname;
+        String cached = mMediaNames.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        String dstName = fname;
+        if (_srcHasMedia(fname)) {
+            // if model-local file exists from a previous import, use that
+            String[] split = Utils.splitFilename(fname);
+            String name = split[0];
+            String ext = split[1];
+
+            String lname = String.format(Locale.US, "%s_%s%s", name, mid, ext);
+            if (mDst.getMedia().have(lname)) {
+                dstName = lname;
+            } else if (!new File(mDst.getMedia().dir(), fname).exists()) {
+                // if missing, copy it
+                _copyMedia(fname, fname);
+            } else if (!_sameMedia(fname)) {
+                // exists but does not match, so we need to dedupe
+                _copyMedia(fname, lname);
+                dstName = lname;
+            }
+            // else: the same, pass unmodified
+        }
+        // else: file was not in source, ignore
+        mMediaNames.put(key, dstName);
+        return dstName;
+    }
+
+
     /**
      * Post-import cleanup
      * ***********************************************************
@@ -867,11 +959,26 @@ public class Anki2Importer extends Importer {
     }
 
 
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        mPeakHeap = Math.max(mPeakHeap, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+
     /**
      * @param notesDone Percentage of notes complete.
      * @param cardsDone Percentage of cards complete.
      * @param postProcess Percentage of remaining tasks complete.
      */
+    /** Stop the import once it is cancelled. The exception rolls back the transaction of {@link #_import()}. */
+    private void _throwIfCancelled() {
+        if (isCancelled(mCancelListener)) {
+            Timber.i("Import cancelled");
+            throw new CancellationException("Import cancelled");
+        }
+    }
+
+
     protected void publishProgress(int notesDone, int cardsDone, int postProcess) {
         if (mProgress != null) {
             mProgress.publishProgress(getRes().getString(R.string.import_progress,
@@ -17,6 +17,8 @@
 package com.ichi2.libanki.importer;
 
 
+import android.database.Cursor;
+
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
@@ -27,6 +29,7 @@ import com.ichi2.anki.CollectionHelper;
 import com.ichi2.anki.R;
 import com.ichi2.anki.exception.ImportExportException;
 import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.MediaSnapshot;
 import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
 import com.ichi2.utils.HashUtil;
@@ -34,19 +37,42 @@ import com.ichi2.utils.HashUtil;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import timber.log.Timber;
 
 @SuppressWarnings({"PMD.NPathComplexity"})
 public class AnkiPackageImporter extends Anki2Importer {
 
+    private static final int BUFFER_SIZE = 65536;
+
     private ZipFile mZip;
     private Map<String, String> mNameToNum;
+    /**
+     * The media of the package, extracted to a staging directory in the background while notes are imported, by name.
+     * Whoever needs a file first extracts it, if no worker has started yet.
+     */
+    private Map<String, FutureTask<StagedMedia>> mStaged;
+    private ExecutorService mExtractor;
 
     public AnkiPackageImporter(Collection col, String file) {
         super(col, file);
@@ -150,6 +176,8 @@ public class AnkiPackageImporter extends Anki2Importer {
             } catch (IOException e) {
                 Timber.e("Malformed media dict. Media import will be incomplete.");
             }
+            // extract media while the notes are imported
+            _startMediaExtraction(new File(tempDir, "staged"));
             // run anki2 importer
             super.run();
             // import static media
@@ -161,6 +189,10 @@ public class AnkiPackageImporter extends Anki2Importer {
                 }
                 File path = new File(mCol.getMedia().dir(), Utils.nfcNormalized(file));
                 if (!path.exists()) {
+                    StagedMedia staged = _awaitStaged(file);
+                    if (staged != null && staged.moveTo(path)) {
+                        continue;
+                    }
                     try {
                         Utils.unzipFiles(mZip, mCol.getMedia().dir(), new String[]{c}, numToName);
                     } catch (IOException e) {
@@ -169,6 +201,7 @@ public class AnkiPackageImporter extends Anki2Importer {
                 }
             }
         } finally {
+            _stopMediaExtraction();
             long availableSpace = Utils.determineBytesAvailable(mCol.getPath());
             Timber.d("Total available size is: %d", availableSpace);
 
@@ -180,6 +213,133 @@ public class AnkiPackageImporter extends Anki2Importer {
         publishProgress(100, 100, 100);
     }
 
+    /**
+     * Extract each media file of the package to dir on a worker thread, computing its checksum on the way.
+     */
+    private void _startMediaExtraction(@NonNull File dir) {
+        mStaged = HashUtil.HashMapInit(mNameToNum.size());
+        if (mNameToNum.isEmpty() || (!dir.isDirectory() && !dir.mkdirs())) {
+            return;
+        }
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        mExtractor = Executors.newFixedThreadPool(threads);
+        for (Map.Entry<String, String> entry : mNameToNum.entrySet()) {
+            String num = entry.getValue();
+            FutureTask<StagedMedia> task = new FutureTask<>(() -> _extract(num, new File(dir, num)));
+            mStaged.put(entry.getKey(), task);
+            mExtractor.execute(task);
+        }
+        Timber.d("Extracting %d media files on %d threads", mStaged.size(), threads);
+    }
+
+
+    /** Stop extracting media, and wait for the files being written, so that the staging directory can be removed. */
+    private void _stopMediaExtraction() {
+        if (mExtractor == null) {
+            return;
+        }
+        mExtractor.shutdownNow();
+        try {
+            if (!mExtractor.awaitTermination(30, TimeUnit.SECONDS)) {
+                Timber.w("Media extraction did not stop");
+            }
+        } catch (InterruptedException e) {
+            Timber.w(e);
+            Thread.currentThread().interrupt();
+        }
+        mExtractor = null;
+    }
+
+
+    @Nullable
+    private StagedMedia _extract(@NonNull String num, @NonNull File dest) throws IOException, NoSuchAlgorithmException {
+        ZipArchiveEntry ze = mZip.getEntry(num);
+        if (ze == null || ze.isDirectory() || !Utils.isInside(dest, dest.getParentFile())) {
+            return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        byte[] buf = new byte[BUFFER_SIZE];
+        long size = 0;
+        try (InputStream in = mZip.getInputStream(ze);
+             OutputStream out = new FileOutputStream(dest)) {
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                md.update(buf, 0, len);
+                out.write(buf, 0, len);
+                size += len;
+            }
+        }
+        return new StagedMedia(dest, size, Utils.sha1Hex(md.digest()));
+    }
+
+
+    /**
+     * @return The media file fname of the package, extracted. Null if it could not be extracted.
+     */
+    @Nullable
+    private StagedMedia _awaitStaged(@NonNull String fname) {
+        FutureTask<StagedMedia> task = mStaged == null ? null : mStaged.get(fname);
+        if (task == null) {
+            return null;
+        }
+        // Does nothing if a worker already started it
+        task.run();
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Timber.w(e.getCause(), "Could not extract media file %s", fname);
+        } catch (InterruptedException e) {
+            Timber.w(e);
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+
+    @Override
+    protected boolean _srcHasMedia(String fname) {
+        String num = mNameToNum.get(fname);
+        return num != null && mZip.getEntry(num) != null;
+    }
+
+
+    /** Compares the size and checksum of the extracted file to those of the file in the collection. */
+    @Override
+    protected boolean _sameMedia(String fname) {
+        StagedMedia staged = _awaitStaged(fname);
+        if (staged == null) {
+            return super._sameMedia(fname);
+        }
+        File dst = new File(mCol.getMedia().dir(), fname);
+        return dst.length() == staged.mSize && staged.mCsum.equals(_dstChecksum(fname, dst));
+    }
+
+
+    /** The checksum of the media database, unless the file changed since it was computed. */
+    @NonNull
+    private String _dstChecksum(@NonNull String fname, @NonNull File dst) {
+        try (Cursor cur = mCol.getMedia().getDb().query("select csum, mtime from media where fname = ?", fname)) {
+            if (cur.moveToFirst() && !cur.isNull(0)
+                    && cur.getLong(1) == MediaSnapshot.Stat.of(dst).getMtimeSeconds()) {
+                return cur.getString(0);
+            }
+        }
+        return Utils.fileChecksum(dst);
+    }
+
+
+    /** Moves the extracted file into the media folder, so that the file appears in it complete or not at all. */
+    @Override
+    protected void _copyMedia(String fname, String dstName) {
+        StagedMedia staged = _awaitStaged(fname);
+        if (staged != null && staged.moveTo(new File(mCol.getMedia().dir(), Utils.nfcNormalized(dstName)))) {
+            mCol.getMedia().markFileAdd(dstName, staged.mCsum);
+            return;
+        }
+        super._copyMedia(fname, dstName);
+    }
+
+
     @Override
     protected BufferedInputStream _srcMediaData(String fname) {
         if (mNameToNum.containsKey(fname)) {
@@ -191,4 +351,30 @@ public class AnkiPackageImporter extends Anki2Importer {
         }
         return null;
     }
+
+
+    /** A media file of the package, extracted to the staging directory. */
+    private static final class StagedMedia {
+        private final File mFile;
+        private final long mSize;
+        private final String mCsum;
+        /** Whether the file was moved to the media folder. It can then only be extracted again from the zip. */
+        private boolean mMoved;
+
+
+        private StagedMedia(@NonNull File file, long size, @NonNull String csum) {
+            mFile = file;
+            mSize = size;
+            mCsum = csum;
+        }
+
+
+        private boolean moveTo(@NonNull File target) {
+            if (mMoved) {
+                return false;
+            }
+            mMoved = mFile.renameTo(target);
+            return mMoved;
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import com.ichi2.utils.LongLongHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Note ids by the checksum of their first field.
+ *
+ * A checksum almost always belongs to a single note, whose id is kept unboxed. The ids of the other notes sharing a
+ * checksum are kept apart.
+ */
+class ChecksumIndex {
+    private static final long[] NONE = new long[0];
+
+    private final LongLongHashMap mFirst;
+    private final Map<Long, long[]> mOthers = new HashMap<>();
+
+
+    ChecksumIndex(int expectedSize) {
+        mFirst = new LongLongHashMap(expectedSize);
+    }
+
+
+    void add(long csum, long nid) {
+        if (!mFirst.containsKey(csum)) {
+            mFirst.put(csum, nid);
+            return;
+        }
+        long[] others = mOthers.get(csum);
+        long[] extended;
+        if (others == null) {
+            extended = new long[] {nid};
+        } else {
+            extended = new long[others.length + 1];
+            System.arraycopy(others, 0, extended, 0, others.length);
+            extended[others.length] = nid;
+        }
+        mOthers.put(csum, extended);
+    }
+
+
+    boolean contains(long csum) {
+        return mFirst.containsKey(csum);
+    }
+
+
+    /** @return The ids of the notes with this checksum, in the order they were added */
+    @NonNull
+    long[] get(long csum) {
+        if (!mFirst.containsKey(csum)) {
+            return NONE;
+        }
+        long first = mFirst.get(csum, 0);
+        long[] others = mOthers.get(csum);
+        if (others == null) {
+            return new long[] {first};
+        }
+        long[] all = new long[others.length + 1];
+        all[0] = first;
+        System.arraycopy(others, 0, all, 1, others.length);
+        return all;
+    }
+
+
+    int size() {
+        return mFirst.size();
+    }
+}
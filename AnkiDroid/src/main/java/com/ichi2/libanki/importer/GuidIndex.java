@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import android.database.Cursor;
+
+import com.ichi2.libanki.DB;
+import com.ichi2.utils.HashUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+/**
+ * The notes of the collection being imported into, by guid.
+ *
+ * A small collection is indexed in memory. The guids of a large collection are copied to a temporary table instead,
+ * and {@link #prefetch(List)} reads the notes of a batch of guids at once, so that the memory used by an import does
+ * not grow with the size of the collection.
+ */
+class GuidIndex {
+    /** Number of notes above which the guids are kept in the database */
+    @VisibleForTesting
+    static int sSpillThreshold = 50000;
+    private static final String TABLE = "temp.import_guids";
+
+    /** The id, modification time and model of a note */
+    static final class NoteTriple {
+        final long mNid;
+        final long mMod;
+        final long mMid;
+
+
+        NoteTriple(long nid, long mod, long mid) {
+            mNid = nid;
+            mMod = mod;
+            mMid = mid;
+        }
+    }
+
+    private final DB mDb;
+    private final boolean mSpilled;
+    /** All notes in memory. When spilled, the notes of the last batch prefetched, and those added since. */
+    private final Map<String, NoteTriple> mNotes;
+    /** Notes added since the last prefetch, to be written to the table */
+    private final List<Object[]> mAdded = new ArrayList<>();
+
+
+    private GuidIndex(@NonNull DB db, boolean spilled, @NonNull Map<String, NoteTriple> notes) {
+        mDb = db;
+        mSpilled = spilled;
+        mNotes = notes;
+    }
+
+
+    /** Index the notes of the database. */
+    @NonNull
+    static GuidIndex build(@NonNull DB db) {
+        int noteCount = db.queryScalar("select count() from notes");
+        if (noteCount > sSpillThreshold) {
+            db.execute("drop table if exists " + TABLE);
+            db.execute("create table " + TABLE + " (guid text primary key, id integer not null, mod integer not null, mid integer not null)");
+            // a corrupt collection may have several notes with the same guid; as in memory, the last one is kept
+            db.execute("insert or replace into " + TABLE + " select guid, id, mod, mid from notes order by id");
+            Timber.d("Guids of %d notes copied to a temporary table", noteCount);
+            return new GuidIndex(db, true, HashUtil.HashMapInit(Anki2Importer.BATCH_SIZE));
+        }
+        Map<String, NoteTriple> notes = HashUtil.HashMapInit(noteCount);
+        try (Cursor cur = db.query("select id, guid, mod, mid from notes order by id")) {
+            while (cur.moveToNext()) {
+                notes.put(cur.getString(1), new NoteTriple(cur.getLong(0), cur.getLong(2), cur.getLong(3)));
+            }
+        }
+        return new GuidIndex(db, false, notes);
+    }
+
+
+    boolean isSpilled() {
+        return mSpilled;
+    }
+
+
+    /** Read the notes of guids, so that {@link #get(String)} finds them. Forgets the previous batch. */
+    void prefetch(@NonNull List<String> guids) {
+        if (!mSpilled) {
+            return;
+        }
+        flush();
+        mNotes.clear();
+        StringBuilder sql = new StringBuilder("select guid, id, mod, mid from " + TABLE + " where guid in (");
+        for (int i = 0; i < guids.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+        try (Cursor cur = mDb.query(sql.toString(), guids.toArray())) {
+            while (cur.moveToNext()) {
+                mNotes.put(cur.getString(0), new NoteTriple(cur.getLong(1), cur.getLong(2), cur.getLong(3)));
+            }
+        }
+    }
+
+
+    /** @return The note with this guid, which must have been prefetched, or null */
+    @Nullable
+    NoteTriple get(@NonNull String guid) {
+        return mNotes.get(guid);
+    }
+
+
+    boolean contains(@NonNull String guid) {
+        return mNotes.containsKey(guid);
+    }
+
+
+    void put(@NonNull String guid, long nid, long mod, long mid) {
+        mNotes.put(guid, new NoteTriple(nid, mod, mid));
+        if (mSpilled) {
+            mAdded.add(new Object[] {guid, nid, mod, mid});
+        }
+    }
+
+
+    private void flush() {
+        if (!mAdded.isEmpty()) {
+            mDb.executeManyNoTransaction("insert or replace into " + TABLE + " values (?,?,?,?)", mAdded);
+            mAdded.clear();
+        }
+    }
+
+
+    /** Drop the table. The index can't be used anymore. */
+    void close() {
+        mNotes.clear();
+        mAdded.clear();
+        if (mSpilled) {
+            mDb.execute("drop table if exists " + TABLE);
+        }
+    }
+}
@@ -21,17 +21,19 @@ import com.ichi2.utils.JSONObject;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.PluralsRes;
 import androidx.annotation.StringRes;
+import timber.log.Timber;
 
+import static com.ichi2.async.CancelListener.isCancelled;
 import static com.ichi2.libanki.Consts.NEW_CARDS_RANDOM;
 import static com.ichi2.libanki.Utils.fieldChecksum;
 import static com.ichi2.libanki.Utils.guid64;
@@ -48,6 +50,9 @@ public class NoteImporter extends Importer {
     /** A magic string used in {@link this#mMapping} when a csv field should be mapped to the tags of a note */
     public static final String TAGS_IDENTIFIER = "_tags";
 
+    /** Number of notes read, processed and written at once */
+    private static final int BATCH_SIZE = 500;
+
     private boolean mNeedMapper = true;
     private boolean mNeedDelimiter = false;
     private boolean mAllowHTML = false;
@@ -69,9 +74,23 @@ public class NoteImporter extends Importer {
 
     /** _nextID in python */
     private long mNextId;
+    /** Notes of the current batch */
     private ArrayList<Long> mIds;
     private boolean mEmptyNotes;
+    private int mAddCount;
+    private int mDupeCount;
     private int mUpdateCount;
+    /** Index of the first field of the model in the mapping */
+    private int mFld0Index;
+    /** Notes of the model before the import */
+    private ChecksumIndex mExisting;
+    /** Notes added or matched by earlier batches of the import */
+    private ChecksumIndex mSeen;
+    /** First fields of earlier batches whose note could not be added */
+    private Set<String> mUnstoredFirsts;
+    /** First fields of the collection for which a duplicate was added */
+    private Set<String> mDupes;
+    private List<String> mUpdateLog;
     private List<ParsedNode> mTemplateParsed;
 
 
@@ -89,8 +108,12 @@ public class NoteImporter extends Importer {
     public void run() {
         Assert.that(mMapping != null);
         Assert.that(!mMapping.isEmpty());
-        List<ForeignNote> c = foreignNotes();
-        importNotes(c);
+        mLog = new ArrayList<>();
+        try {
+            importNotes(foreignNoteIterator());
+        } finally {
+            close();
+        }
     }
 
 
@@ -128,6 +151,13 @@ public class NoteImporter extends Importer {
         return new ArrayList<>();
     }
 
+
+    /** The notes to import. Importers of large files should read them lazily rather than all at once. */
+    @NonNull
+    protected Iterator<ForeignNote> foreignNoteIterator() {
+        return foreignNotes().iterator();
+    }
+
     /** Open file and ensure it's in the right format. */
     protected void open() {
         // intentionally empty
@@ -141,7 +171,17 @@ public class NoteImporter extends Importer {
 
 
     /** Convert each card into a note, apply attributes and add to col. */
-    public void importNotes(List<ForeignNote> notes) {
+    public void importNotes(@NonNull List<ForeignNote> notes) {
+        importNotes(notes.iterator());
+    }
+
+
+    /**
+     * Convert each card into a note, apply attributes and add to col.
+     * Notes are taken from the iterator {@link #BATCH_SIZE} at a time, and each batch is written before the next one
+     * is read, so the memory used does not depend on the number of notes. Cancelling stops after the current batch.
+     */
+    public void importNotes(@NonNull Iterator<ForeignNote> notes) {
         Assert.that(mappingOk());
         // note whether tags are mapped
         mTagsMapped = false;
@@ -152,32 +192,94 @@ public class NoteImporter extends Importer {
             }
         }
         // gather checks for duplicate comparison
-        HashMap<Long, List<Long>> csums = new HashMap<>();
-        try (Cursor c = mCol.getDb().query("select csum, id from notes where mid = ?", mModel.getLong("id"))) {
+        long mid = mModel.getLong("id");
+        mExisting = new ChecksumIndex(mCol.getDb().queryScalar("select count() from notes where mid = ?", mid));
+        try (Cursor c = mCol.getDb().query("select csum, id from notes where mid = ?", mid)) {
             while (c.moveToNext()) {
-                long csum = c.getLong(0);
-                long id = c.getLong(1);
-                if (csums.containsKey(csum)) {
-                    csums.get(csum).add(id);
-                } else {
-                    csums.put(csum, new ArrayList<>(Collections.singletonList(id)));
-                }
+                mExisting.add(c.getLong(0), c.getLong(1));
             }
         }
+        mSeen = new ChecksumIndex(BATCH_SIZE);
+        mUnstoredFirsts = new HashSet<>();
 
-        HashSet<String> firsts = HashUtil.HashSetInit(notes.size());
-        int fld0index = mMapping.indexOf(mModel.getJSONArray("flds").getJSONObject(0).getString("name"));
+        mFld0Index = mMapping.indexOf(mModel.getJSONArray("flds").getJSONObject(0).getString("name"));
         mFMap = Models.fieldMap(mModel);
         mNextId = mCol.getTime().timestampID(mCol.getDb(), "notes");
-        // loop through the notes
-        List<Object[]> updates = new ArrayList<>(notes.size());
-        List<String> updateLog = new ArrayList<>(notes.size());
         // PORT: Translations moved closer to their sources
-        List<Object[]> _new = new ArrayList<>();
-        mIds = new ArrayList<>();
+        mUpdateLog = new ArrayList<>();
+        mDupes = new HashSet<>();
         mEmptyNotes = false;
-        int dupeCount = 0;
-        List<String> dupes = new ArrayList<>(notes.size());
+        mAddCount = 0;
+        mDupeCount = 0;
+        mUpdateCount = 0;
+        mTotal = 0;
+        boolean emptyCards = false;
+        // loop through the notes
+        List<ForeignNote> batch = new ArrayList<>(BATCH_SIZE);
+        while (notes.hasNext()) {
+            if (isCancelled(mCancelListener)) {
+                Timber.i("Import cancelled after %d notes", mTotal);
+                break;
+            }
+            batch.clear();
+            while (batch.size() < BATCH_SIZE && notes.hasNext()) {
+                batch.add(notes.next());
+            }
+            emptyCards |= importBatch(batch);
+            publishProgress(percentRead(), 0);
+        }
+        Timber.d("Imported %d notes against %d existing checksums", mTotal, mExisting.size());
+        mExisting = null;
+        mSeen = null;
+        mUnstoredFirsts = null;
+        mDupes = null;
+
+        if (emptyCards) {
+            this.getLog().add(0, getString(R.string.note_importer_empty_cards_found));
+        }
+
+
+        // we randomize or order here, to ensure that siblings
+        // have the same due#
+        long did = mCol.getDecks().selected();
+        DeckConfig conf = mCol.getDecks().confForDid(did);
+        // in order due?
+        if (conf.getJSONObject("new").getInt("order") == NEW_CARDS_RANDOM) {
+            mCol.getSched().randomizeCards(did);
+        }
+        publishProgress(100, 100);
+        String part1 = getQuantityString(R.plurals.note_importer_notes_added, mAddCount);
+        String part2 = getQuantityString(R.plurals.note_importer_notes_updated, mUpdateCount);
+        int unchanged;
+        if (mImportMode == UPDATE_MODE) {
+            unchanged = mDupeCount - mUpdateCount;
+        } else if (mImportMode == IGNORE_MODE) {
+            unchanged = mDupeCount;
+        } else {
+            unchanged = 0;
+        }
+        String part3 = getQuantityString(R.plurals.note_importer_notes_unchanged, unchanged);
+        mLog.add(String.format("%s, %s, %s.", part1, part2, part3));
+        mLog.addAll(mUpdateLog);
+        mUpdateLog = null;
+        if (mEmptyNotes) {
+            mLog.add(getString(R.string.note_importer_error_empty_notes));
+        }
+    }
+
+
+    /**
+     * Process, write and generate the cards of a batch of notes.
+     * @return Whether empty cards were found
+     */
+    private boolean importBatch(@NonNull List<ForeignNote> notes) {
+        List<Object[]> updates = new ArrayList<>(notes.size());
+        List<Object[]> _new = new ArrayList<>(notes.size());
+        mIds = new ArrayList<>(notes.size());
+        // first fields of this batch, which are not in the database yet
+        HashSet<String> firsts = HashUtil.HashSetInit(notes.size());
+        // checksum and id of the notes of this batch, to recognize them in the next batches
+        List<long[]> seen = new ArrayList<>(notes.size());
         for (ForeignNote n : notes) {
             for (int c = 0; c < n.mFields.size(); c++) {
                 if (!this.mAllowHTML) {
@@ -188,7 +290,7 @@ public class NoteImporter extends Importer {
                     n.mFields.set(c, n.mFields.get(c).replace("\n", "<br>"));
                 }
             }
-            String fld0 = n.mFields.get(fld0index);
+            String fld0 = n.mFields.get(mFld0Index);
             long csum = fieldChecksum(fld0);
             // first field must exist
             if (fld0 == null || fld0.length() == 0) {
@@ -196,7 +298,7 @@ public class NoteImporter extends Importer {
                 continue;
             }
             // earlier in import?
-            if (firsts.contains(fld0) && mImportMode != ADD_MODE) {
+            if (mImportMode != ADD_MODE && (firsts.contains(fld0) || seenInEarlierBatch(fld0, csum))) {
                 // duplicates in source file; log and ignore
                 getLog().add(getString(R.string.note_importer_error_appeared_twice, fld0));
                 continue;
@@ -204,34 +306,33 @@ public class NoteImporter extends Importer {
             firsts.add(fld0);
             // already exists?
             boolean found = false;
-            if (csums.containsKey(csum)) {
-                // csum is not a guarantee; have to check
-                for (Long id : csums.get(csum)) {
-                    String flds = mCol.getDb().queryString("select flds from notes where id = ?", id);
-                    String[] sflds = splitFields(flds);
-                    if (fld0.equals(sflds[0])) {
-                        // duplicate
-                        found = true;
-                        if (mImportMode == UPDATE_MODE) {
-                            Object[] data = updateData(n, id, sflds);
-                            if (data != null && data.length > 0) {
-                                updates.add(data);
-                                updateLog.add(getString(R.string.note_importer_error_first_field_matched, fld0));
-                                dupeCount += 1;
-                                found = true;
-                            }
-                        } else if (mImportMode == IGNORE_MODE) {
-                            dupeCount += 1;
-                        } else if (mImportMode == ADD_MODE) {
-                            // allow duplicates in this case
-                            if (!dupes.contains(fld0)) {
-                                // only show message once, no matter how many
-                                // duplicates are in the collection already
-                                updateLog.add(getString(R.string.note_importer_error_added_duplicate_first_field, fld0));
-                                dupes.add(fld0);
-                            }
-                            found = false;
+            // csum is not a guarantee; have to check
+            for (long id : mExisting.get(csum)) {
+                String flds = mCol.getDb().queryString("select flds from notes where id = ?", id);
+                String[] sflds = splitFields(flds);
+                if (fld0.equals(sflds[0])) {
+                    // duplicate
+                    found = true;
+                    if (mImportMode == UPDATE_MODE) {
+                        seen.add(new long[] {csum, id});
+                        Object[] data = updateData(n, id, sflds);
+                        if (data != null && data.length > 0) {
+                            updates.add(data);
+                            mUpdateLog.add(getString(R.string.note_importer_error_first_field_matched, fld0));
+                            mDupeCount += 1;
+                            found = true;
                         }
+                    } else if (mImportMode == IGNORE_MODE) {
+                        seen.add(new long[] {csum, id});
+                        mDupeCount += 1;
+                    } else if (mImportMode == ADD_MODE) {
+                        // allow duplicates in this case
+                        if (mDupes.add(fld0)) {
+                            // only show message once, no matter how many
+                            // duplicates are in the collection already
+                            mUpdateLog.add(getString(R.string.note_importer_error_added_duplicate_first_field, fld0));
+                        }
+                        found = false;
                     }
                 }
             }
@@ -240,46 +341,51 @@ public class NoteImporter extends Importer {
                 Object[] data = newData(n);
                 if (data != null && data.length > 0) {
                     _new.add(data);
-                    // note that we've seen this note once already
-                    firsts.add(fld0);
+                    seen.add(new long[] {csum, (long) data[0]});
+                } else if (mImportMode != ADD_MODE) {
+                    mUnstoredFirsts.add(fld0);
                 }
             }
         }
         addNew(_new);
         addUpdates(updates);
+        mAddCount += _new.size();
+        for (long[] s : seen) {
+            mSeen.add(s[0], s[1]);
+        }
         // make sure to update sflds, etc
         mCol.updateFieldCache(mIds);
+        mTotal += mIds.size();
         // generate cards
-        if (!mCol.genCards(mIds, mModel).isEmpty()) {
-            this.getLog().add(0, getString(R.string.note_importer_empty_cards_found));
-        }
+        return !mCol.genCards(mIds, mModel).isEmpty();
+    }
 
 
-        // we randomize or order here, to ensure that siblings
-        // have the same due#
-        long did = mCol.getDecks().selected();
-        DeckConfig conf = mCol.getDecks().confForDid(did);
-        // in order due?
-        if (conf.getJSONObject("new").getInt("order") == NEW_CARDS_RANDOM) {
-            mCol.getSched().randomizeCards(did);
+    /** Whether a note of an earlier batch had this first field. Those notes are in the database already. */
+    private boolean seenInEarlierBatch(@NonNull String fld0, long csum) {
+        if (mUnstoredFirsts.contains(fld0)) {
+            return true;
         }
-        String part1 = getQuantityString(R.plurals.note_importer_notes_added, _new.size());
-        String part2 = getQuantityString(R.plurals.note_importer_notes_updated, mUpdateCount);
-        int unchanged;
-        if (mImportMode == UPDATE_MODE) {
-            unchanged = dupeCount - mUpdateCount;
-        } else if (mImportMode == IGNORE_MODE) {
-            unchanged = dupeCount;
-        } else {
-            unchanged = 0;
+        for (long id : mSeen.get(csum)) {
+            String flds = mCol.getDb().queryString("select flds from notes where id = ?", id);
+            if (fld0.equals(splitFields(flds)[0])) {
+                return true;
+            }
         }
-        String part3 = getQuantityString(R.plurals.note_importer_notes_unchanged, unchanged);
-        mLog.add(String.format("%s, %s, %s.", part1, part2, part3));
-        mLog.addAll(updateLog);
-        if (mEmptyNotes) {
-            mLog.add(getString(R.string.note_importer_error_empty_notes));
+        return false;
+    }
+
+
+    /** @return Percentage of the notes read so far, for progress reports */
+    protected int percentRead() {
+        return 0;
+    }
+
+
+    private void publishProgress(int notesDone, int postProcess) {
+        if (mProgress != null) {
+            mProgress.publishProgress(getString(R.string.import_progress, notesDone, notesDone, postProcess));
         }
-        mTotal = mIds.size();
     }
 
     @Nullable
@@ -306,6 +412,9 @@ public class NoteImporter extends Importer {
     }
 
     private void addNew(List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
         mCol.getDb().executeMany("insert or replace into notes values (?,?,?,?,?,?,?,?,?,?,?)", rows);
     }
 
@@ -333,6 +442,9 @@ public class NoteImporter extends Importer {
 
 
     private void addUpdates(List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
         int changes = mCol.getDb().queryScalar("select total_changes()");
         if (mTagsMapped) {
             mCol.getDb().executeMany(
@@ -355,7 +467,7 @@ public class NoteImporter extends Importer {
             );
         }
         int changes2 = mCol.getDb().queryScalar("select total_changes()");
-        mUpdateCount = changes2 - changes;
+        mUpdateCount += changes2 - changes;
     }
 
 
@@ -22,12 +22,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import timber.log.Timber;
 
@@ -47,6 +49,13 @@ public class TextImporter extends NoteImporter {
 
     private boolean mFirstLineWasTags;
 
+    /** Lines of the file read by the current import, so that they can be closed */
+    @Nullable
+    private Stream<String> mDataStream;
+    /** Length of the file in bytes, and number of characters read from it by the current import */
+    private long mFileLength;
+    private long mCharsRead;
+
 
     public TextImporter(Collection col, String file) {
         super(col, file);
@@ -58,48 +67,103 @@ public class TextImporter extends NoteImporter {
 
     @NonNull
     @Override
-    protected List<ForeignNote> foreignNotes() {
+    protected Iterator<ForeignNote> foreignNoteIterator() {
         open();
-        // process all lines
-        List<String> log = new ArrayList<>(); //Number of element is reader's size
-        List<ForeignNote> notes = new ArrayList<>(); //Number of element is reader's size
-        int lineNum = 0;
-        int ignored = 0;
         // Note: This differs from libAnki as we don't have csv.reader
-        Iterator<String> data = getDataStream().iterator();
+        mFileLength = new File(mFile).length();
+        mCharsRead = 0;
+        mDataStream = getDataStream();
+        Iterator<String> data = mDataStream.peek(line -> mCharsRead += line.length()).iterator();
         CsvReader reader;
         if (mDelimiter != '\0') {
             reader = CsvReader.fromDelimiter(data, mDelimiter);
         } else {
             reader = CsvReader.fromDialect(data, mDialect);
         }
-        try {
-            for (List<String> row : reader) {
-                if (row == null) {
-                    continue;
-                }
-                List<String> rowAsString = new ArrayList<>(row);
-                if (rowAsString.size() != mNumFields) {
-                    if (!rowAsString.isEmpty()) {
-                        String formatted = getString(R.string.csv_importer_error_invalid_field_count,
-                                TextUtils.join(" ", rowAsString),
-                                rowAsString.size(),
-                                mNumFields);
-                        log.add(formatted);
-                        ignored += 1;
+        return new ForeignNoteIterator(reader.iterator());
+    }
+
+
+    /** Closes the lines of the file read by the last import. */
+    @Override
+    protected void close() {
+        if (mDataStream != null) {
+            mDataStream.close();
+            mDataStream = null;
+        }
+    }
+
+
+    @Override
+    protected int percentRead() {
+        if (mFileLength == 0) {
+            return 0;
+        }
+        // characters are counted rather than bytes, the estimate may be too high for non-ASCII files
+        return (int) Math.min(99, mCharsRead * 100 / mFileLength);
+    }
+
 
+    /**
+     * The notes of the rows of the file, read as they are requested.
+     * Rows with the wrong number of fields are logged and skipped; a malformed file is logged and ends the notes.
+     */
+    private class ForeignNoteIterator implements Iterator<ForeignNote> {
+        private final Iterator<List<String>> mRows;
+        @Nullable
+        private ForeignNote mNext;
+
+
+        private ForeignNoteIterator(@NonNull Iterator<List<String>> rows) {
+            mRows = rows;
+            mNext = readNote();
+        }
+
+
+        @Nullable
+        private ForeignNote readNote() {
+            try {
+                while (mRows.hasNext()) {
+                    List<String> row = mRows.next();
+                    if (row == null) {
+                        continue;
                     }
-                    continue;
+                    List<String> rowAsString = new ArrayList<>(row);
+                    if (rowAsString.size() != mNumFields) {
+                        if (!rowAsString.isEmpty()) {
+                            String formatted = getString(R.string.csv_importer_error_invalid_field_count,
+                                    TextUtils.join(" ", rowAsString),
+                                    rowAsString.size(),
+                                    mNumFields);
+                            mLog.add(formatted);
+                        }
+                        continue;
+                    }
+                    return noteFromFields(rowAsString);
                 }
-                ForeignNote note = noteFromFields(rowAsString);
-                notes.add(note);
+            } catch (CsvException e) {
+                mLog.add(getString(R.string.csv_importer_error_exception, e));
+            }
+            mFileobj.close();
+            return null;
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+
+        @Override
+        public ForeignNote next() {
+            if (mNext == null) {
+                throw new NoSuchElementException();
             }
-        } catch (CsvException e) {
-            log.add(getString(R.string.csv_importer_error_exception, e));
+            ForeignNote note = mNext;
+            mNext = readNote();
+            return note;
         }
-        mLog = log;
-        mFileobj.close();
-        return notes;
     }
 
     /**
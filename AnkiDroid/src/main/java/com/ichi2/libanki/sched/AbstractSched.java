@@ -75,6 +75,17 @@ public abstract class AbstractSched {
      * counted. This is called by `undo` with the card send back to the reviewer.*/
     public abstract void deferReset(@Nullable Card undoneCard);
 
+    /**
+     * Ensure that the counts are recomputed before returning any card or count. Contrary to deferReset(), the queues
+     * are kept, and only the cards with ids in changedCids are updated in them, unless the day or the selected deck
+     * changed in the meantime.
+     * @param changedCids The cards whose scheduling may have changed, or which may have been deleted.*/
+    public abstract void deferReset(@NonNull long[] changedCids);
+
+    /**
+     * Same as deferReset(long[]). It then simulates that `getCard` returned undoneCard, as in deferReset(Card).*/
+    public abstract void deferReset(@NonNull Card undoneCard, @NonNull long[] changedCids);
+
     /**
      * Does all actions required to answer the card. That is:
      * Change its interval, due value, queue, mod time, usn, number of step left (if in learning)
@@ -18,18 +18,40 @@ package com.ichi2.libanki.sched;
 
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
+import com.ichi2.utils.LongLongHashMap;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A queue of card ids, stored in a circular buffer of primitive values.
+ *
+ * Each card may be associated to a due value, which is only used by the learning queue. A card removed from the middle
+ * of the queue leaves a 0 in the buffer, as 0 is not a valid card id; those are skipped when the head of the queue is
+ * popped, and dropped when the buffer is reorganized. The card object is only created for the head of the queue,
+ * when it is preloaded or popped.
+ */
 abstract class CardQueue<T extends Card.Cache> {
+    private static final int INITIAL_CAPACITY = 64;
+
     // We need to store mSched and not queue, because during initialization of sched, when CardQueues are initialized
     // sched.getCol is null.
     private final AbstractSched mSched;
-    private final LinkedList<T> mQueue = new LinkedList<>();
+    /** Card ids. The element at position p is in slot p & (mIds.length - 1). */
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private long[] mDues = new long[INITIAL_CAPACITY];
+    /** Position of the first element, and position after the last element. Both are non-removed cards if not empty. */
+    private int mHead = 0;
+    private int mEnd = 0;
+    /** Number of cards in the queue, removed cards excluded. */
+    private int mSize = 0;
+    /** Position of each card in the queue. */
+    private final LongLongHashMap mPositions = new LongLongHashMap(INITIAL_CAPACITY);
+    /** The cache of the card at the head of the queue, if it was already requested. */
+    private @Nullable T mFirst;
 
 
     public CardQueue(AbstractSched sched) {
@@ -37,49 +59,217 @@ abstract class CardQueue<T extends Card.Cache> {
     }
 
 
+    /** @return A cache for the card cid, with due value due. */
+    protected abstract @NonNull T newCache(long cid, long due);
+
+
+    private int slot(int position) {
+        return position & (mIds.length - 1);
+    }
+
+
+    private @NonNull T getFirst() {
+        if (mFirst == null) {
+            int slot = slot(mHead);
+            mFirst = newCache(mIds[slot], mDues[slot]);
+        }
+        return mFirst;
+    }
+
+
     public void loadFirstCard() {
-        if (!mQueue.isEmpty()) {
+        if (!isEmpty()) {
             // No nead to reload. If the card was changed, reset would have been called and emptied the queue
-            mQueue.get(0).loadQA(false, false);
+            getFirst().loadQA(false, false);
         }
     }
 
     public Card removeFirstCard() throws NoSuchElementException {
-        return mQueue.remove().getCard();
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        T first = getFirst();
+        remove(first.getId());
+        return first.getCard();
     }
 
     public boolean remove(long cid) {
-        // CardCache and LrnCache with the same id will be considered as equal so it's a valid implementation.
-        return mQueue.remove(new Card.Cache(getCol(), cid));
+        long position = mPositions.get(cid, -1);
+        if (position == -1) {
+            return false;
+        }
+        mPositions.remove(cid);
+        mIds[slot((int) position)] = 0;
+        mSize--;
+        if (mFirst != null && mFirst.getId() == cid) {
+            mFirst = null;
+        }
+        // Ensures that the first and last elements are cards
+        while (mHead != mEnd && mIds[slot(mHead)] == 0) {
+            mHead++;
+        }
+        while (mHead != mEnd && mIds[slot(mEnd - 1)] == 0) {
+            mEnd--;
+        }
+        return true;
+    }
+
+    /** Adds the card cid at the end of the queue. A card is at most once in the queue. */
+    protected void addCard(long cid, long due) {
+        remove(cid);
+        ensureRoomForOneMore();
+        int slot = slot(mEnd);
+        mIds[slot] = cid;
+        mDues[slot] = due;
+        mPositions.put(cid, mEnd);
+        mEnd++;
+        mSize++;
+    }
+
+    /**
+     * Adds the card cid after the last card whose due is at most due. Assumes the queue is sorted by due.
+     */
+    protected void insertCard(long cid, long due) {
+        remove(cid);
+        ensureRoomForOneMore();
+        int position = mHead;
+        while (position != mEnd && (mIds[slot(position)] == 0 || mDues[slot(position)] <= due)) {
+            position++;
+        }
+        // Shift the following cards by one position
+        for (int p = mEnd; p != position; p--) {
+            int to = slot(p);
+            int from = slot(p - 1);
+            mIds[to] = mIds[from];
+            mDues[to] = mDues[from];
+            if (mIds[to] != 0) {
+                mPositions.put(mIds[to], p);
+            }
+        }
+        int slot = slot(position);
+        mIds[slot] = cid;
+        mDues[slot] = due;
+        mPositions.put(cid, position);
+        mEnd++;
+        mSize++;
+        if (position == mHead) {
+            mFirst = null;
+        }
+    }
+
+    private void ensureRoomForOneMore() {
+        int used = mEnd - mHead;
+        if (used < mIds.length) {
+            return;
+        }
+        // If at least half the buffer are removed cards, dropping them is enough
+        relayout(mSize * 2 < mIds.length ? mIds.length : mIds.length * 2);
     }
 
-    public void add(T elt) {
-        mQueue.add(elt);
+    /** Copy the cards, in order and without removed cards, at the beginning of a buffer of the given capacity. */
+    private void relayout(int capacity) {
+        long[] ids = new long[capacity];
+        long[] dues = new long[capacity];
+        int size = 0;
+        for (int p = mHead; p != mEnd; p++) {
+            int slot = slot(p);
+            if (mIds[slot] != 0) {
+                ids[size] = mIds[slot];
+                dues[size] = mDues[slot];
+                size++;
+            }
+        }
+        mIds = ids;
+        mDues = dues;
+        mHead = 0;
+        mEnd = size;
+        reindex();
+    }
+
+    private void reindex() {
+        mPositions.clear();
+        for (int p = mHead; p != mEnd; p++) {
+            mPositions.put(mIds[slot(p)], p);
+        }
     }
 
     public void clear() {
-        mQueue.clear();
+        mHead = 0;
+        mEnd = 0;
+        mSize = 0;
+        mPositions.clear();
+        mFirst = null;
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean isEmpty() {
-        return mQueue.isEmpty();
+        return mSize == 0;
     }
 
     public int size() {
-        return mQueue.size();
+        return mSize;
     }
 
-    protected LinkedList<T> getQueue() {
-        return mQueue;
+    /** @return the due of the first card. Assumes the queue is not empty. */
+    protected long getFirstDueValue() {
+        return mDues[slot(mHead)];
     }
 
+    /** Same order as Collections.shuffle(list, r) */
     public void shuffle(Random r) {
-        Collections.shuffle(mQueue, r);
+        relayout(mIds.length);
+        for (int i = mSize; i > 1; i--) {
+            swap(i - 1, r.nextInt(i));
+        }
+        reindex();
+        mFirst = null;
     }
 
-    public ListIterator<T> listIterator() {
-        return mQueue.listIterator();
+    private void swap(int i, int j) {
+        long id = mIds[i];
+        long due = mDues[i];
+        mIds[i] = mIds[j];
+        mDues[i] = mDues[j];
+        mIds[j] = id;
+        mDues[j] = due;
+    }
+
+    /** Stable sort of the cards by due. */
+    protected void sortByDue() {
+        relayout(mIds.length);
+        long[] ids = new long[mSize];
+        long[] dues = new long[mSize];
+        mergeSort(0, mSize, ids, dues);
+        reindex();
+        mFirst = null;
+    }
+
+    /** Sort the positions [from, to) of mIds and mDues, using ids and dues as temporary buffers. */
+    private void mergeSort(int from, int to, long[] ids, long[] dues) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(from, middle, ids, dues);
+        mergeSort(middle, to, ids, dues);
+        if (mDues[middle - 1] <= mDues[middle]) {
+            return;
+        }
+        System.arraycopy(mIds, from, ids, from, to - from);
+        System.arraycopy(mDues, from, dues, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int p = from; p < to; p++) {
+            if (right >= to || (left < middle && dues[left] <= dues[right])) {
+                mIds[p] = ids[left];
+                mDues[p] = dues[left];
+                left++;
+            } else {
+                mIds[p] = ids[right];
+                mDues[p] = dues[right];
+                right++;
+            }
+        }
     }
 
     protected Collection getCol() {
@@ -19,7 +19,7 @@ package com.ichi2.libanki.sched;
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 
-class LrnCard extends Card.Cache implements Comparable<LrnCard> {
+class LrnCard extends Card.Cache {
     private final long mDue;
     public LrnCard(Collection col, long due, long cid) {
         super(col, cid);
@@ -29,9 +29,4 @@ class LrnCard extends Card.Cache implements Comparable<LrnCard> {
     public long getDue () {
         return mDue;
     }
-
-    @Override
-    public int compareTo(LrnCard o) {
-        return Long.compare(mDue, o.mDue);
-    }
 }
@@ -16,7 +16,7 @@
 
 package com.ichi2.libanki.sched;
 
-import java.util.Collections;
+import androidx.annotation.NonNull;
 
 class LrnCardQueue extends CardQueue<LrnCard> {
     /**
@@ -30,15 +30,26 @@ class LrnCardQueue extends CardQueue<LrnCard> {
     }
 
     public void add(long due, long cid) {
-        add(new LrnCard(getCol(), due, cid));
+        addCard(cid, due);
+    }
+
+    /** Adds the card after all cards due at or before due. Assumes the queue is sorted. */
+    public void insertSorted(long due, long cid) {
+        insertCard(cid, due);
     }
 
     public void sort() {
-        Collections.sort(getQueue());
+        sortByDue();
     }
 
     public long getFirstDue() {
-        return getQueue().getFirst().getDue();
+        return getFirstDueValue();
+    }
+
+    @NonNull
+    @Override
+    protected LrnCard newCache(long cid, long due) {
+        return new LrnCard(getCol(), due, cid);
     }
 
 
@@ -124,6 +124,7 @@ public class Sched extends SchedV2 {
         } else {
             throw new RuntimeException("Invalid queue");
         }
+        mQueueDeltaCount++;
         _updateStats(card, "time", card.timeTaken());
         card.setMod(getTime().intTime());
         card.setUsn(mCol.usn());
@@ -46,12 +46,14 @@ import com.ichi2.libanki.DeckConfig;
 
 import com.ichi2.libanki.backend.exception.BackendNotSupportedException;
 import com.ichi2.libanki.backend.model.SchedTimingToday;
+import com.ichi2.libanki.stats.ReviewRollup;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.utils.Assert;
 import com.ichi2.utils.HashUtil;
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
+import com.ichi2.utils.LongLongHashMap;
 import com.ichi2.utils.SyncStatus;
 
 import net.ankiweb.rsdroid.RustCleanup;
@@ -61,6 +63,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -123,6 +126,21 @@ public class SchedV2 extends AbstractSched {
     private @NonNull LinkedList<Long> mNewDids = new LinkedList<>();
     protected @NonNull LinkedList<Long> mLrnDids = new LinkedList<>();
 
+    // Not in libanki
+    /**
+     * Whether the queues content, if not up to date, can be updated by considering only the cards in
+     * mQueueDeltas. False if anything else may have changed since the queues were last filled.
+     */
+    private boolean mCanUpdateQueues = false;
+    /** Ids of the cards which changed since the queues were last updated. */
+    private final @NonNull HashSet<Long> mQueueDeltas = new HashSet<>();
+    /** The selected deck and the day when the queues were last filled from scratch. */
+    private long mQueuesDid;
+    private int mQueuesToday;
+    /** Number of time the queues were filled from scratch, and number of time they were updated in place. */
+    private int mQueueRefillCount = 0;
+    protected int mQueueDeltaCount = 0;
+
     // Not in libanki
     protected @Nullable WeakReference<Activity> mContextReference;
 
@@ -172,7 +190,7 @@ public class SchedV2 extends AbstractSched {
     public @Nullable Card getCard() {
         _checkDay();
         if (!mHaveQueues) {
-            resetQueues(false);
+            updateQueues();
         }
         @Nullable Card card = _getCard();
         if (card == null && !mHaveCounts) {
@@ -208,15 +226,37 @@ public class SchedV2 extends AbstractSched {
     public void deferReset(@NonNull Card card){
         mHaveQueues = false;
         mHaveCounts = false;
+        mCanUpdateQueues = false;
         setCurrentCard(card);
     }
 
     public void deferReset() {
         mHaveQueues = false;
         mHaveCounts = false;
+        mCanUpdateQueues = false;
+        discardCurrentCard();
+    }
+
+    @Override
+    public void deferReset(@NonNull Card undoneCard, @NonNull long[] changedCids) {
+        _deferQueueUpdate(changedCids);
+        setCurrentCard(undoneCard);
+    }
+
+    @Override
+    public void deferReset(@NonNull long[] changedCids) {
+        _deferQueueUpdate(changedCids);
         discardCurrentCard();
     }
 
+    private void _deferQueueUpdate(@NonNull long[] changedCids) {
+        mHaveQueues = false;
+        mHaveCounts = false;
+        for (long cid : changedCids) {
+            mQueueDeltas.add(cid);
+        }
+    }
+
     public void reset() {
         _updateCutoff();
         resetCounts(false);
@@ -271,10 +311,87 @@ public class SchedV2 extends AbstractSched {
         _resetLrnQueue();
         _resetRevQueue();
         _resetNewQueue();
+        mQueueDeltas.clear();
+        mQueuesDid = mCol.getDecks().selected();
+        mQueuesToday = mToday;
+        mCanUpdateQueues = true;
+        mQueueRefillCount++;
+        mHaveQueues = true;
+    }
+
+
+    /**
+     * Bring the queues up to date. If only the cards in mQueueDeltas changed since the queues were filled, on the same
+     * day and for the same selected deck, those cards are removed from the queues, and only the queues they now belong
+     * to are emptied so that they get filled again when needed. Otherwise, all queues are filled from scratch.
+     */
+    private void updateQueues() {
+        if (!mCanUpdateQueues || mQueuesToday != mToday || mQueuesDid != mCol.getDecks().selected()) {
+            resetQueues(false);
+            return;
+        }
+        if (!mQueueDeltas.isEmpty()) {
+            for (long cid : mQueueDeltas) {
+                mNewQueue.remove(cid);
+                mLrnQueue.remove(cid);
+                mLrnDayQueue.remove(cid);
+                mRevQueue.remove(cid);
+            }
+            // Cards which are now due in the selected decks may have to be seen before the ones already in the queue.
+            boolean resetNew = false;
+            boolean resetLrn = false;
+            boolean resetRev = false;
+            try (Cursor cur = mCol.getDb().query(
+                    "SELECT queue, due FROM cards WHERE id IN " + Utils.ids2str(mQueueDeltas) + " AND did IN " + _deckLimit())) {
+                while (cur.moveToNext()) {
+                    int queue = cur.getInt(0);
+                    long due = cur.getLong(1);
+                    switch (queue) {
+                        case Consts.QUEUE_TYPE_NEW:
+                            resetNew = true;
+                            break;
+                        case Consts.QUEUE_TYPE_LRN:
+                        case Consts.QUEUE_TYPE_PREVIEW:
+                            resetLrn |= due < mDayCutoff;
+                            break;
+                        case Consts.QUEUE_TYPE_DAY_LEARN_RELEARN:
+                            resetLrn |= due <= mToday;
+                            break;
+                        case Consts.QUEUE_TYPE_REV:
+                            resetRev |= due <= mToday;
+                            break;
+                    }
+                }
+            }
+            if (resetNew) {
+                _resetNewQueue();
+            }
+            if (resetLrn) {
+                _resetLrnQueue();
+            }
+            if (resetRev) {
+                _resetRevQueue();
+            }
+            mQueueDeltas.clear();
+        }
+        mQueueDeltaCount++;
         mHaveQueues = true;
     }
 
 
+    /** @return The number of time the queues were filled from scratch. */
+    public int getQueueRefillCount() {
+        return mQueueRefillCount;
+    }
+
+
+    /** @return The number of time the queues were updated in place, by answering a card or through
+     * {@link #deferReset(long[])}. */
+    public int getQueueDeltaCount() {
+        return mQueueDeltaCount;
+    }
+
+
     /**
      * Does all actions required to answer the card. That is:
      * Change its interval, due value, queue, mod time, usn, number of step left (if in learning)
@@ -292,6 +409,9 @@ public class SchedV2 extends AbstractSched {
         _burySiblings(card);
 
         _answerCard(card, ease);
+        // The queues are updated in place: the card was removed when it was fetched, and is sorted back into the
+        // learning queue if required.
+        mQueueDeltaCount++;
 
         _updateStats(card, "time", card.timeTaken());
         card.setMod(getTime().intTime());
@@ -525,12 +645,41 @@ public class SchedV2 extends AbstractSched {
 
     // Overridden
     public @Nullable List<DeckDueTreeNode> deckDueList(@Nullable CancelListener collectionTask) {
+        return deckDueList(collectionTask, true);
+    }
+
+    /**
+     * @param batched Whether the cards of all decks are counted together with a few grouped queries, instead of a few
+     *                queries by deck. The result is the same.
+     */
+    @VisibleForTesting
+    protected @Nullable List<DeckDueTreeNode> deckDueList(@Nullable CancelListener collectionTask, boolean batched) {
         _checkDay();
         mCol.getDecks().checkIntegrity();
         List<Deck> decks = mCol.getDecks().allSorted();
         HashMap<String, Integer[]> lims = HashUtil.HashMapInit(decks.size());
         ArrayList<DeckDueTreeNode> deckNodes = new ArrayList<>(decks.size());
         Decks.Node childMap = mCol.getDecks().childMap();
+        LongLongHashMap newByDeck = null;
+        LongLongHashMap lrnByDeck = null;
+        LongLongHashMap lrnDayByDeck = null;
+        LongLongHashMap revByDeck = null;
+        if (batched) {
+            newByDeck = _countByDeck("queue = " + Consts.QUEUE_TYPE_NEW);
+            if (isCancelled(collectionTask)) {
+                return null;
+            }
+            lrnByDeck = _countByDeck("queue = " + Consts.QUEUE_TYPE_LRN + " AND due < ?",
+                    getTime().intTime() + mCol.get_config_int("collapseTime"));
+            if (isCancelled(collectionTask)) {
+                return null;
+            }
+            lrnDayByDeck = _countByDeck("queue = " + Consts.QUEUE_TYPE_DAY_LEARN_RELEARN + " AND due <= ?", mToday);
+            if (isCancelled(collectionTask)) {
+                return null;
+            }
+            revByDeck = _countByDeck("queue = " + Consts.QUEUE_TYPE_REV + " AND due <= ?", mToday);
+        }
         for (Deck deck : decks) {
             if (isCancelled(collectionTask)) {
                 return null;
@@ -548,12 +697,27 @@ public class SchedV2 extends AbstractSched {
                 // reviews
                 plim = parentLims[1];
             }
-            int _new = _newForDeck(deck.getLong("id"), nlim);
-            // learning
-            int lrn = _lrnForDeck(deck.getLong("id"));
-            // reviews
+            long did = deck.getLong("id");
             int rlim = _deckRevLimitSingle(deck, plim, false);
-            int rev = _revForDeck(deck.getLong("id"), rlim, childMap);
+            int _new;
+            int lrn;
+            int rev;
+            if (batched) {
+                // Same limits as _newForDeck, _lrnForDeck and _revForDeck
+                _new = (int) Math.min(newByDeck.get(did, 0), Math.min(nlim, mReportLimit));
+                lrn = (int) (Math.min(lrnByDeck.get(did, 0), mReportLimit) + Math.min(lrnDayByDeck.get(did, 0), mReportLimit));
+                long revInTree = revByDeck.get(did, 0);
+                for (long child : mCol.getDecks().childDids(did, childMap)) {
+                    revInTree += revByDeck.get(child, 0);
+                }
+                rev = (int) Math.min(revInTree, Math.min(rlim, mReportLimit));
+            } else {
+                _new = _newForDeck(did, nlim);
+                // learning
+                lrn = _lrnForDeck(did);
+                // reviews
+                rev = _revForDeck(did, rlim, childMap);
+            }
             // save to list
             deckNodes.add(new DeckDueTreeNode(mCol, deck.getString("name"), deck.getLong("id"), rev, lrn, _new));
             // add deck as a parent
@@ -562,6 +726,20 @@ public class SchedV2 extends AbstractSched {
         return deckNodes;
     }
 
+    /**
+     * @param condition A condition on cards, with ? for args
+     * @return The number of cards satisfying the condition in each deck. Decks without such cards are missing.
+     */
+    private @NonNull LongLongHashMap _countByDeck(@NonNull String condition, Object... args) {
+        LongLongHashMap counts = new LongLongHashMap();
+        try (Cursor cur = mCol.getDb().query("SELECT did, count() FROM cards WHERE " + condition + " GROUP BY did", args)) {
+            while (cur.moveToNext()) {
+                counts.put(cur.getLong(0), cur.getLong(1));
+            }
+        }
+        return counts;
+    }
+
     /** Similar to deck due tree, but ignore the number of cards.
 
      It may takes a lot of time to compute the number of card, it
@@ -766,7 +944,7 @@ public class SchedV2 extends AbstractSched {
              resetCounts(false);
         }
         if (!mHaveQueues) {
-            resetQueues(false);
+            updateQueues();
         }
         for (CardQueue<? extends Card.Cache> caches: _fillNextCard()) {
             caches.loadFirstCard();
@@ -1456,8 +1634,10 @@ public class SchedV2 extends AbstractSched {
 
     protected void log(long id, int usn, @Consts.BUTTON_TYPE int ease, int ivl, int lastIvl, int factor, int timeTaken, @Consts.REVLOG_TYPE int type) {
         try {
+            long revlogId = getTime().intTimeMS();
             mCol.getDb().execute("INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
-                    getTime().intTimeMS(), id, usn, ease, ivl, lastIvl, factor, timeTaken, type);
+                    revlogId, id, usn, ease, ivl, lastIvl, factor, timeTaken, type);
+            ReviewRollup.onReviewLogged(mCol.getDb(), revlogId, ease, type, lastIvl, timeTaken);
         } catch (SQLiteConstraintException e) {
             Timber.w(e);
             try {
@@ -3112,14 +3292,7 @@ public class SchedV2 extends AbstractSched {
             // Adding anything is useless while the queue awaits being filled
             return;
         }
-        ListIterator<LrnCard> i = mLrnQueue.listIterator();
-        while (i.hasNext()) {
-            if (i.next().getDue() > due) {
-                i.previous();
-                break;
-            }
-        }
-        i.add(new LrnCard(mCol, due, id));
+        mLrnQueue.insertSorted(due, id);
     }
 
 
@@ -3154,6 +3327,7 @@ public class SchedV2 extends AbstractSched {
         if (! previewing) {
             // and delete revlog entry
             long last = mCol.getDb().queryLongScalar("SELECT id FROM revlog WHERE cid = ? ORDER BY id DESC LIMIT 1", oldCardData.getId());
+            ReviewRollup.onReviewRemoved(mCol.getDb(), last);
             mCol.getDb().execute("DELETE FROM revlog WHERE id = " + last);
         }
         // restore any siblings
@@ -18,7 +18,7 @@ package com.ichi2.libanki.sched;
 
 import com.ichi2.libanki.Card;
 
-import androidx.annotation.VisibleForTesting;
+import androidx.annotation.NonNull;
 
 class SimpleCardQueue extends CardQueue<Card.Cache> {
     public SimpleCardQueue(AbstractSched sched) {
@@ -26,6 +26,12 @@ class SimpleCardQueue extends CardQueue<Card.Cache> {
     }
 
     public void add(long id) {
-        add(new Card.Cache(getCol(), id));
+        addCard(id, 0);
+    }
+
+    @NonNull
+    @Override
+    protected Card.Cache newCache(long cid, long due) {
+        return new Card.Cache(getCol(), cid);
     }
 }
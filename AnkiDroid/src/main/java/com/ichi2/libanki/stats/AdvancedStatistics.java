@@ -40,8 +40,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import timber.log.Timber;
 
@@ -53,8 +56,7 @@ import static com.ichi2.libanki.stats.Stats.SECONDS_PER_DAY;
  * Sequence diagram (https://www.websequencediagrams.com/):
  * Stats->+AdvancedStatistics: runFilter
  * AdvancedStatistics->+ReviewSimulator: simNreviews
- * loop dids
- *   loop nIterations
+ * loop dids × nIterations (in parallel, one SimulationResult per simulation, merged in a fixed order)
  *       loop cards
  *           ReviewSimulator->+Review: newCard
  *           Review->+NewCardSimulator: simulateNewCard
@@ -70,7 +72,6 @@ import static com.ichi2.libanki.stats.Stats.SECONDS_PER_DAY;
  *               Review-->-ReviewSimulator: SimulationResult, Review[]
  *           end
  *        end
- *   end
  * end
  * ReviewSimulator-->-AdvancedStatistics: SimulationResult
  * AdvancedStatistics-->-Stats: StatsMetaInfo
@@ -85,7 +86,7 @@ import static com.ichi2.libanki.stats.Stats.SECONDS_PER_DAY;
  * [Review|prob:double;tElapsed:int]
  * [SimulationResult|nReviews［CARD_TYPE］［t］;nInState［CARD_TYPE］［t］]
  * [ReviewOutcome|prob:double]
- * [ReviewSimulator]uses -.->[CardIterator]
+ * [ReviewSimulator]uses -.->[DeckCards]
  * [ReviewSimulator]uses -.->[DeckFactory]
  * [ReviewSimulator]creates -.->[SimulationResult]
  * [ReviewSimulator]creates -.->[Review]
@@ -144,6 +145,34 @@ public class AdvancedStatistics {
     private final DeckFactory mDecks = new DeckFactory();
     private Settings mSettings;
 
+    /**
+     * Runs the Monte Carlo simulations of all decks and iterations.
+     * Created lazily: most users never enable advanced statistics.
+     */
+    private static ForkJoinPool sSimulationPool;
+
+    /**
+     * Seed of the simulation, or null to draw a new seed for every forecast.
+     */
+    private Long mSeed = null;
+
+    /**
+     * Make the forecast reproducible: with a fixed seed, the same collection always gives the same forecast,
+     * regardless of the number of threads the simulation runs on.
+     * @param seed Seed from which the random stream of each simulation is derived.
+     */
+    @VisibleForTesting
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    private static synchronized ForkJoinPool getSimulationPool() {
+        if (sSimulationPool == null) {
+            sSimulationPool = new ForkJoinPool(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+        }
+        return sSimulationPool;
+    }
+
     /**
      * Determine forecast statistics based on a computation or simulation of future reviews.
      * Returns all information required by stats.java to plot the 'forecast' chart based on these statistics.
@@ -550,17 +579,18 @@ public class AdvancedStatistics {
 
     }
 
-    private static class CardIterator {
-
-        private final Cursor mCur;
-
-        private final int mToday;
-        private final Deck mDeck;
+    /**
+     * The cards of a deck at the start of the simulation, read once and stored column-wise
+     * so that every iteration of every simulation thread can replay them without touching the database.
+     */
+    private static class DeckCards {
 
-        public CardIterator(DB db, int today, Deck deck) {
+        private final long[] mIds;
+        private final int[] mIvls;
+        private final int[] mFactors;
+        private final int[] mDues;
 
-            this.mToday = today;
-            this.mDeck = deck;
+        public DeckCards(DB db, int today, Deck deck) {
 
             long did = deck.getDid();
 
@@ -570,28 +600,33 @@ public class AdvancedStatistics {
                     "AND queue != " + Consts.QUEUE_TYPE_SUSPENDED + " " +   // ignore suspended cards
                     "order by id;";
             Timber.d("Forecast query: %s", query);
-            mCur = db.query(query);
 
+            try (Cursor cur = db.query(query)) {
+                int n = cur.getCount();
+                mIds = new long[n];
+                mIvls = new int[n];
+                mFactors = new int[n];
+                mDues = new int[n];
+
+                for (int i = 0; i < n && cur.moveToNext(); i++) {
+                    mIds[i] = cur.getLong(0);                                               //Id
+                    mIvls[i] = cur.getInt(5) == 0 ? 0 : cur.getInt(2);                      //reps = 0 ? 0 : card interval
+                    mFactors[i] = cur.getInt(3) > 0 ? cur.getInt(3) : deck.getInitialFactor(); //factor
+                    mDues[i] = Math.max(cur.getInt(1) - today, 0);                          //due
+                }
+            }
         }
 
-        public boolean moveToNext() {
-            return mCur.moveToNext();
+        public int size() {
+            return mIds.length;
         }
 
-        public void current(Card card) {
-            card.setAll(mCur.getLong(0),                                             //Id
-                    mCur.getInt(5) == 0 ? 0 : mCur.getInt(2),  		                //reps = 0 ? 0 : card interval
-                    mCur.getInt(3) > 0 ? mCur.getInt(3) :  mDeck.getInitialFactor(),   //factor
-                    Math.max(mCur.getInt(1) - mToday, 0),                             //due
+        public void current(int i, Card card) {
+            card.setAll(mIds[i], mIvls[i], mFactors[i], mDues[i],
                     1,                                                              //correct
                     -1                                                              //lastreview
                     );
         }
-
-        public void close() {
-            if (mCur != null && !mCur.isClosed())
-                mCur.close();
-        }
     }
 
     /**
@@ -674,6 +709,19 @@ public class AdvancedStatistics {
             mRandom = new Random();
         }
 
+        /**
+         * A classifier with the probability distributions of {@code classifier} but its own random stream,
+         * so that simulations running in parallel neither share state nor depend on each other's draws.
+         */
+        public EaseClassifier(EaseClassifier classifier, long seed) {
+            this.mDb = classifier.mDb;
+            this.mProbabilities = classifier.mProbabilities;
+            this.mProbabilitiesCumulative = classifier.mProbabilitiesCumulative;
+
+            mSingleReviewOutcome = new ReviewOutcome(null, 0);
+            mRandom = new Random(seed);
+        }
+
         private double[] cumsum(double[] p) {
 
             double[] q = new double[4];
@@ -893,8 +941,6 @@ public class AdvancedStatistics {
 
         private final int mTMax;
 
-        private final NewCardSimulator mNewCardSimulator = new NewCardSimulator();
-
         public ReviewSimulator(DB db, EaseClassifier classifier, int nTimeBins, int timeBinLength) {
             this.mDb = db;
             this.mClassifier = classifier;
@@ -907,24 +953,99 @@ public class AdvancedStatistics {
 
         public SimulationResult simNreviews(int today, DeckManager decks, String didsStr, TodayStats todayStats) {
 
-            SimulationResult simulationResultAggregated = new SimulationResult(mNTimeBins, mTimeBinLength, SimulationResult.DOUBLE_TO_INT_MODE_ROUND);
-
             long[] dids = mArrayUtils.stringToLongArray(didsStr);
             int nIterations = mSettings.getSimulateNIterations();
-            double nIterationsInv = 1.0 / nIterations;
 
-            for(long did : dids) {
-                for(int iteration = 0; iteration < nIterations; iteration++) {
-                    mNewCardSimulator.reset(todayStats.getNLearned(did));
-                    simulationResultAggregated.add(simNreviews(today, mDecks.createDeck(did, decks)), nIterationsInv);
-                }
+            //The database is only read here, on the calling thread; the simulations only see the loaded arrays.
+            long t0 = System.currentTimeMillis();
+            Deck[] deckList = new Deck[dids.length];
+            DeckCards[] deckCards = new DeckCards[dids.length];
+            int[] nLearned = new int[dids.length];
+            for (int i = 0; i < dids.length; i++) {
+                deckList[i] = mDecks.createDeck(dids[i], decks);
+                deckCards[i] = new DeckCards(mDb, today, deckList[i]);
+                nLearned[i] = todayStats.getNLearned(dids[i]);
+            }
+            long t1 = System.currentTimeMillis();
+            Timber.d("Loading cards of %d decks took: %d ms", dids.length, t1 - t0);
+
+            if (dids.length == 0) {
+                return new SimulationResult(mNTimeBins, mTimeBinLength, SimulationResult.DOUBLE_TO_INT_MODE_ROUND);
             }
 
+            long seed = mSeed != null ? mSeed : new Random().nextLong();
+            SimulationTask task = new SimulationTask(deckList, deckCards, nLearned, nIterations, seed);
+            SimulationResult simulationResultAggregated = getSimulationPool().invoke(task);
+            Timber.d("%d simulations took: %d ms", dids.length * nIterations, System.currentTimeMillis() - t1);
+
             return simulationResultAggregated;
 
         }
 
-        private SimulationResult simNreviews(int today, Deck deck) {
+        /**
+         * Runs the simulations [mFrom, mTo) of all (deck, iteration) pairs, numbered deck by deck.
+         * Ranges are halved until a single simulation remains, which gets its own classifier, new card simulator
+         * and random stream. Each half returns its own aggregate and the halves are always merged left to right,
+         * so the result depends on the seed only and not on how the work was spread over threads.
+         */
+        private class SimulationTask extends RecursiveTask<SimulationResult> {
+
+            private final Deck[] mDeckList;
+            private final DeckCards[] mDeckCards;
+            private final int[] mNLearned;
+            private final int mNIterations;
+            private final long mBaseSeed;
+
+            private final int mFrom;
+            private final int mTo;
+
+            public SimulationTask(Deck[] deckList, DeckCards[] deckCards, int[] nLearned, int nIterations, long seed) {
+                this.mDeckList = deckList;
+                this.mDeckCards = deckCards;
+                this.mNLearned = nLearned;
+                this.mNIterations = nIterations;
+                this.mBaseSeed = seed;
+
+                this.mFrom = 0;
+                this.mTo = deckList.length * nIterations;
+            }
+
+            private SimulationTask(SimulationTask parent, int from, int to) {
+                this.mDeckList = parent.mDeckList;
+                this.mDeckCards = parent.mDeckCards;
+                this.mNLearned = parent.mNLearned;
+                this.mNIterations = parent.mNIterations;
+                this.mBaseSeed = parent.mBaseSeed;
+
+                this.mFrom = from;
+                this.mTo = to;
+            }
+
+            @Override
+            protected SimulationResult compute() {
+                if (mTo - mFrom <= 1) {
+                    int deck = mFrom / mNIterations;
+
+                    NewCardSimulator newCardSimulator = new NewCardSimulator();
+                    newCardSimulator.reset(mNLearned[deck]);
+                    EaseClassifier classifier = new EaseClassifier(mClassifier, streamSeed(mBaseSeed, mFrom));
+
+                    SimulationResult simulationResult = new SimulationResult(mNTimeBins, mTimeBinLength, SimulationResult.DOUBLE_TO_INT_MODE_ROUND);
+                    simulationResult.add(simNreviews(mDeckList[deck], mDeckCards[deck], classifier, newCardSimulator), 1.0 / mNIterations);
+                    return simulationResult;
+                }
+
+                int mid = (mFrom + mTo) >>> 1;
+                SimulationTask left = new SimulationTask(this, mFrom, mid);
+                left.fork();
+                SimulationResult right = new SimulationTask(this, mid, mTo).compute();
+                SimulationResult simulationResult = left.join();
+                simulationResult.merge(right);
+                return simulationResult;
+            }
+        }
+
+        private SimulationResult simNreviews(Deck deck, DeckCards deckCards, EaseClassifier classifier, NewCardSimulator newCardSimulator) {
 
             SimulationResult simulationResult;
 
@@ -944,8 +1065,6 @@ public class AdvancedStatistics {
             //Forecasted final state of deck
             //finalIvl = np.empty((nSmooth, nCards), dtype='f8')
 
-            Timber.d("today: %d", today);
-
             Stack<Review> reviews = new Stack<>();
             ArrayList<Review> reviewList = new ArrayList<>();
 
@@ -962,37 +1081,21 @@ public class AdvancedStatistics {
             //3. Do any combination of these (controlled by computeNDays and computeMaxError)
 
             Card card = new Card(0, 0, 0, 0, 0, 0);
-            CardIterator cardIterator = null;
-            Review review = new Review(deck, simulationResult, mClassifier, reviews, reviewList);
+            Review review = new Review(deck, simulationResult, classifier, reviews, reviewList);
 
-            try {
-                cardIterator = new CardIterator(mDb, today, deck);
+            for (int i = 0; i < deckCards.size(); i++) {
 
-                //int cardN = 0;
+                deckCards.current(i, card);
 
-                while (cardIterator.moveToNext()) {
+                review.newCard(card, newCardSimulator);
 
-                    cardIterator.current(card);
-
-                    review.newCard(card, mNewCardSimulator);
-
-                    if (review.getT() < mTMax)
-                        reviews.push(review);
-
-                    //Timber.d("Card started: %d", cardN);
-
-                    while (!reviews.isEmpty()) {
-                        reviews.pop().simulateReview();
-                    }
-
-                    //Timber.d("Card done: %d", cardN++);
+                if (review.getT() < mTMax)
+                    reviews.push(review);
 
+                while (!reviews.isEmpty()) {
+                    reviews.pop().simulateReview();
                 }
             }
-            finally {
-                if(cardIterator != null)
-                    cardIterator.close();
-            }
             mArrayUtils.formatMatrix("nReviews", simulationResult.getNReviews(), "%04d ");
             mArrayUtils.formatMatrix("nInState", simulationResult.getNInState(), "%04d ");
 
@@ -1000,6 +1103,17 @@ public class AdvancedStatistics {
         }
     }
 
+    /**
+     * Seed of the random stream of the simulation with the given number, derived from the seed of the forecast
+     * with the SplitMix64 mixing function so that neighbouring streams are uncorrelated.
+     */
+    private static long streamSeed(long seed, int stream) {
+        long z = seed + (stream + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
     /**
      * Stores global settings.
      */
@@ -1298,6 +1412,22 @@ public class AdvancedStatistics {
                     this.mNInState[i][j] += nInState[i][j] * prob;
         }
 
+        /**
+         * Adds the statistics aggregated in another SimulationResult, without rounding them first.
+         * Use to combine partial aggregates which have been built up with {@link #add(SimulationResult, double)}.
+         * @param res2Merge Aggregated statistics to be added to the current statistics.
+         */
+        public void merge(SimulationResult res2Merge) {
+
+            for(int i = 0; i < mNReviews.length; i++)
+                for(int j = 0; j < mNReviews[i].length; j++)
+                    this.mNReviews[i][j] += res2Merge.mNReviews[i][j];
+
+            for(int i = 0; i < mNInState.length; i++)
+                for(int j = 0; j < mNInState[i].length; j++)
+                    this.mNInState[i][j] += res2Merge.mNInState[i][j];
+        }
+
         public int[][] getNReviews() {
             return mArrayUtils.toIntMatrix(mNReviews, mDoubleToIntMode);
         }
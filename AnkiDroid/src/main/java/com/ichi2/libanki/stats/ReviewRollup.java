@@ -0,0 +1,258 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.stats;
+
+import android.database.Cursor;
+import android.database.SQLException;
+
+import com.ichi2.libanki.DB;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+import timber.log.Timber;
+
+import static com.ichi2.libanki.stats.Stats.SECONDS_PER_DAY;
+
+/**
+ * Not in libanki.
+ * Number and time of reviews per day, revlog type, maturity and ease, kept in the revlog_daily table so that statistics
+ * over the whole history read a row per day instead of a row per review.
+ *
+ * The tables are in a separate database, attached to the collection's connection as the search index is, so that they
+ * are neither synced nor exported and never grow the collection file. They are derived from revlog only. They are
+ * created and backfilled the first time statistics need them, then kept up to date as reviews are logged and undone
+ * while the database is attached. Whatever else changes revlog (sync, import, check database, replacement of the
+ * collection file) is noticed by {@link #ensureCurrent(DB, long)}: rows added after the last one rolled up are added,
+ * anything else causes a rebuild.
+ *
+ * Days are counted like the statistics do: a review belongs to day ceil((id - cutoff) / day length), where cutoff
+ * is the end of a day. They are stored relative to the time of day of the cutoff only, so a change of the day
+ * rollover hour or of the time zone also causes a rebuild.
+ */
+public class ReviewRollup {
+
+    private static final long MS_PER_DAY = SECONDS_PER_DAY * 1000;
+    private static final String SCHEMA = "rollup";
+    private static final String TABLE = SCHEMA + ".revlog_daily";
+    private static final String STATE_TABLE = SCHEMA + ".revlog_daily_state";
+
+    private ReviewRollup() {
+    }
+
+
+    /**
+     * @return Number of days from the day ending at {@code cutoffMs} to the day of {@code ms}, rounding up.
+     */
+    static long dayOf(long ms, long cutoffMs) {
+        long delta = ms - cutoffMs;
+        return delta >= 0 ? (delta + MS_PER_DAY - 1) / MS_PER_DAY : delta / MS_PER_DAY;
+    }
+
+
+    /** Time of day of the cutoff, in milliseconds since midnight UTC. Days of the table are counted from it. */
+    private static long offsetOf(long dayCutoff) {
+        return (dayCutoff % SECONDS_PER_DAY) * 1000;
+    }
+
+
+    private static String dayExpression(long offsetMs) {
+        // revlog ids are far above the offset, so the integer division rounds up as dayOf does
+        return "((id - " + offsetMs + " + " + (MS_PER_DAY - 1) + ") / " + MS_PER_DAY + ")";
+    }
+
+
+    @NonNull
+    private static File getFile(@NonNull DB db) {
+        return new File(db.getPath().replaceFirst("\\.anki2$", "") + ".rollup.ad.db");
+    }
+
+
+    /**
+     * Attach the rollups to the collection's connection, if statistics already required them. To be called when the
+     * database is opened, outside of a transaction.
+     */
+    public static void open(@NonNull DB db) {
+        if (!getFile(db).exists()) {
+            return;
+        }
+        try {
+            attach(db);
+        } catch (SQLException e) {
+            Timber.w(e, "Could not attach the review rollups, they are rebuilt when statistics need them");
+        }
+    }
+
+
+    private static void attach(@NonNull DB db) {
+        db.execute(String.format(Locale.US, "attach \"%s\" as %s", getFile(db).getAbsolutePath(), SCHEMA));
+        try {
+            db.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                    "day integer not null, type integer not null, mature integer not null, ease integer not null, " +
+                    "cnt integer not null, time integer not null, primary key (day, type, mature, ease))");
+            db.execute("CREATE TABLE IF NOT EXISTS " + STATE_TABLE + " (scm integer not null, day_offset integer not null, " +
+                    "maxid integer not null, cnt integer not null)");
+        } catch (SQLException e) {
+            db.execute("detach " + SCHEMA);
+            throw e;
+        }
+    }
+
+
+    private static boolean isAttached(@NonNull DB db) {
+        try (Cursor cur = db.query("PRAGMA database_list")) {
+            while (cur.moveToNext()) {
+                if (SCHEMA.equals(cur.getString(1))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Add a review which has just been inserted in revlog. Does nothing if statistics never required the table.
+     */
+    public static void onReviewLogged(@NonNull DB db, long id, int ease, int type, int lastIvl, int time) {
+        if (!isAttached(db)) {
+            return;
+        }
+        long offsetMs = db.queryLongScalar("SELECT day_offset FROM " + STATE_TABLE);
+        add(db, dayOf(id, offsetMs), type, lastIvl >= 21, ease, 1, time);
+        db.execute("UPDATE " + STATE_TABLE + " SET cnt = cnt + 1, maxid = max(maxid, ?)", id);
+    }
+
+
+    /**
+     * Remove a review which is about to be deleted from revlog. Does nothing if statistics never required the table.
+     */
+    public static void onReviewRemoved(@NonNull DB db, long id) {
+        if (!isAttached(db)) {
+            return;
+        }
+        long offsetMs = db.queryLongScalar("SELECT day_offset FROM " + STATE_TABLE);
+        try (Cursor cur = db.query("SELECT type, lastIvl >= 21, ease, time FROM revlog WHERE id = ?", id)) {
+            if (!cur.moveToFirst()) {
+                return;
+            }
+            add(db, dayOf(id, offsetMs), cur.getInt(0), cur.getInt(1) != 0, cur.getInt(2), -1, -cur.getLong(3));
+        }
+        db.execute("UPDATE " + STATE_TABLE + " SET cnt = cnt - 1, maxid = (SELECT ifnull(max(id), 0) FROM revlog WHERE id != ?)", id);
+    }
+
+
+    private static void add(DB db, long day, int type, boolean mature, int ease, long cnt, long time) {
+        Object[] key = {day, type, mature ? 1 : 0, ease};
+        db.execute("INSERT OR IGNORE INTO " + TABLE + " (day, type, mature, ease, cnt, time) VALUES (?, ?, ?, ?, 0, 0)", key);
+        db.execute("UPDATE " + TABLE + " SET cnt = cnt + ?, time = time + ? WHERE day = ? AND type = ? AND mature = ? AND ease = ?",
+                cnt, time, day, type, mature ? 1 : 0, ease);
+        if (cnt < 0) {
+            db.execute("DELETE FROM " + TABLE + " WHERE cnt <= 0 AND day = ? AND type = ? AND mature = ? AND ease = ?", key);
+        }
+    }
+
+
+    /**
+     * Bring the table up to date with revlog, backfilling it if it does not exist yet or if revlog was changed in
+     * a way which can't be applied incrementally. Must not be called in a transaction.
+     * @param dayCutoff End of today, in seconds.
+     */
+    static void ensureCurrent(@NonNull DB db, long dayCutoff) {
+        if (!isAttached(db)) {
+            attach(db);
+        }
+        long offsetMs = offsetOf(dayCutoff);
+        long scm = db.queryLongScalar("SELECT scm FROM col");
+        long count;
+        long maxId;
+        try (Cursor cur = db.query("SELECT count(), ifnull(max(id), 0) FROM revlog")) {
+            cur.moveToFirst();
+            count = cur.getLong(0);
+            maxId = cur.getLong(1);
+        }
+
+        try (Cursor cur = db.query("SELECT scm, day_offset, maxid, cnt FROM " + STATE_TABLE)) {
+            if (cur.moveToFirst() && cur.getLong(0) == scm && cur.getLong(1) == offsetMs) {
+                long rolledUpMaxId = cur.getLong(2);
+                long rolledUpCount = cur.getLong(3);
+                if (count == rolledUpCount && maxId == rolledUpMaxId) {
+                    return;
+                }
+                if (count > rolledUpCount && maxId > rolledUpMaxId &&
+                        db.queryLongScalar("SELECT count() FROM revlog WHERE id > ?", rolledUpMaxId) == count - rolledUpCount) {
+                    catchUp(db, offsetMs, rolledUpMaxId, count - rolledUpCount, count, maxId);
+                    return;
+                }
+            }
+        }
+        backfill(db, offsetMs, scm, count, maxId);
+    }
+
+
+    private static void catchUp(DB db, long offsetMs, long fromId, long added, long count, long maxId) {
+        long t0 = System.currentTimeMillis();
+        List<long[]> groups = new ArrayList<>();
+        try (Cursor cur = db.query("SELECT " + dayExpression(offsetMs) + " AS day, type, lastIvl >= 21 AS mature, ease, " +
+                "count(), sum(time) FROM revlog WHERE id > ? GROUP BY day, type, mature, ease", fromId)) {
+            while (cur.moveToNext()) {
+                groups.add(new long[] {cur.getLong(0), cur.getLong(1), cur.getLong(2), cur.getLong(3), cur.getLong(4), cur.getLong(5)});
+            }
+        }
+        db.executeInTransaction(() -> {
+            for (long[] g : groups) {
+                add(db, g[0], (int) g[1], g[2] != 0, (int) g[3], g[4], g[5]);
+            }
+            db.execute("UPDATE " + STATE_TABLE + " SET cnt = ?, maxid = ?", count, maxId);
+        });
+        Timber.d("Rolled up %d new reviews in %d ms", added, System.currentTimeMillis() - t0);
+    }
+
+
+    private static void backfill(DB db, long offsetMs, long scm, long count, long maxId) {
+        long t0 = System.currentTimeMillis();
+        db.executeInTransaction(() -> {
+            db.execute("DELETE FROM " + TABLE);
+            db.execute("INSERT INTO " + TABLE + " (day, type, mature, ease, cnt, time) " +
+                    "SELECT " + dayExpression(offsetMs) + " AS day, type, lastIvl >= 21 AS mature, ease, count(), sum(time) " +
+                    "FROM revlog GROUP BY day, type, mature, ease");
+            db.execute("DELETE FROM " + STATE_TABLE);
+            db.execute("INSERT INTO " + STATE_TABLE + " (scm, day_offset, maxid, cnt) VALUES (?, ?, ?, ?)", scm, offsetMs, maxId, count);
+        });
+        Timber.i("Backfilled daily review rollups from %d reviews in %d ms", count, System.currentTimeMillis() - t0);
+    }
+
+
+    /**
+     * Reviews of all decks from {@code fromDay} on.
+     * {@link #ensureCurrent(DB, long)} must have been called with the same cutoff.
+     * @param dayCutoff End of today, in seconds.
+     * @param fromDay First day to return, counted from today (0) backwards, or Long.MIN_VALUE for all days.
+     * @return Cursor of day (counted from today), revlog type, mature (1 if last interval >= 21 days), ease, count and
+     * time in milliseconds, ordered by day.
+     */
+    static Cursor queryAllDecks(@NonNull DB db, long dayCutoff, long fromDay) {
+        long offsetMs = offsetOf(dayCutoff);
+        long today = (dayCutoff * 1000 - offsetMs) / MS_PER_DAY;
+        String lim = fromDay == Long.MIN_VALUE ? "" : "WHERE day >= " + (fromDay + today) + " ";
+        return db.query("SELECT day - " + today + " AS d, type, mature, ease, cnt, time FROM " + TABLE + " " +
+                lim + "ORDER BY day");
+    }
+}
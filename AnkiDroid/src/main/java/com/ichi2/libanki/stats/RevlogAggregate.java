@@ -0,0 +1,417 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.stats;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Consts;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import androidx.annotation.VisibleForTesting;
+import timber.log.Timber;
+
+import static com.ichi2.libanki.stats.Stats.SECONDS_PER_DAY;
+
+/**
+ * Everything the statistics screen reads from the review log for one deck selection and time span,
+ * gathered in a single scan of revlog.
+ *
+ * The review count and time, hourly and weekly breakdown, answer buttons and overview charts used to each
+ * run their own query over revlog. They now read the histograms below, which hold the same values those
+ * queries returned. The last aggregate is kept until the collection is modified or new reviews are logged,
+ * so the charts of one statistics screen share a single scan.
+ *
+ * For the whole collection, the histograms by day are read from the {@link ReviewRollup} instead of revlog,
+ * and revlog is only scanned if a breakdown by time of day is requested.
+ */
+class RevlogAggregate {
+
+    private static final int DONE_LRN = 0;
+    private static final int DONE_YNG = 1;
+    private static final int DONE_MTR = 2;
+    private static final int DONE_LAPSE = 3;
+    private static final int DONE_CRAM = 4;
+    private static final int DONE_TYPES = 5;
+
+    /** The hour of a review is 23 - (hours before the cutoff % 24), which is 0-46 as the modulo may be negative. */
+    private static final int HOURS = 47;
+    private static final int MIN_REVIEWS_PER_HOUR = 30;
+
+    private static RevlogAggregate sLast;
+
+    // Cache key
+    private final WeakReference<Collection> mCol;
+    private final String mDeckFilter;
+    private final Stats.AxisType mType;
+    private final long mDayCutoff;
+    private final int mRolloverHour;
+    private final int mWeekStartHour;
+    private final long mMod;
+    private final long mMaxRevlogId;
+
+    private final int mChunk;
+
+    /** Reviews per chunk of days and review type, in increasing order of chunk. Times are in milliseconds. */
+    private int mDoneSize = 0;
+    private int[] mDoneChunks = new int[16];
+    private long[][] mDoneCounts = new long[DONE_TYPES][16];
+    private long[][] mDoneTimes = new long[DONE_TYPES][16];
+
+    private int mTotalReviews = 0;
+    private int mDaysStudied = 0;
+    private int mFirstDay = 0;
+    private int mLastDay = 0;
+    private long mTotalTime = 0;
+
+    /** Whether the breakdowns by time of day below have been read */
+    private boolean mTimeOfDayRead = false;
+    private final int[] mHourCounts = new int[HOURS];
+    private final int[] mHourCorrect = new int[HOURS];
+
+    private final int[] mWeekdayCounts = new int[7];
+    private final int[] mWeekdayCorrect = new int[7];
+
+    /** Answers per card type (learn, young, mature) and ease (1-4) */
+    private final int[][] mEaseCounts = new int[3][5];
+
+
+    /**
+     * @param deckFilter Condition on revlog restricting it to the selected decks, or "" for the whole collection.
+     * @param rolloverHour Hour at which the day starts, for the hourly breakdown.
+     * @param weekStartHour Hour of day of the day cutoff, for the weekly breakdown.
+     * @return The aggregate for these parameters, scanning revlog only if the last one is out of date.
+     */
+    static synchronized RevlogAggregate get(Collection col, String deckFilter, Stats.AxisType type, long dayCutoff,
+                                            int rolloverHour, int weekStartHour) {
+        long maxRevlogId = col.getDb().queryLongScalar("SELECT max(id) FROM revlog");
+        if (sLast == null || !sLast.matches(col, deckFilter, type, dayCutoff, rolloverHour, weekStartHour, maxRevlogId)) {
+            sLast = new RevlogAggregate(col, deckFilter, type, dayCutoff, rolloverHour, weekStartHour, maxRevlogId);
+            if (deckFilter.length() == 0) {
+                sLast.readRollups(col);
+            } else {
+                sLast.scan(col, true);
+            }
+        }
+        return sLast;
+    }
+
+
+    @VisibleForTesting
+    static synchronized void clearCache() {
+        sLast = null;
+    }
+
+
+    private RevlogAggregate(Collection col, String deckFilter, Stats.AxisType type, long dayCutoff,
+                            int rolloverHour, int weekStartHour, long maxRevlogId) {
+        mCol = new WeakReference<>(col);
+        mDeckFilter = deckFilter;
+        mType = type;
+        mDayCutoff = dayCutoff;
+        mRolloverHour = rolloverHour;
+        mWeekStartHour = weekStartHour;
+        mMod = col.getMod();
+        mMaxRevlogId = maxRevlogId;
+
+        mChunk = Stats.getChunk(type);
+    }
+
+
+    private boolean matches(Collection col, String deckFilter, Stats.AxisType type, long dayCutoff,
+                            int rolloverHour, int weekStartHour, long maxRevlogId) {
+        return mCol.get() == col && mDeckFilter.equals(deckFilter) && mType == type && mDayCutoff == dayCutoff &&
+                mRolloverHour == rolloverHour && mWeekStartHour == weekStartHour &&
+                mMod == col.getMod() && mMaxRevlogId == maxRevlogId;
+    }
+
+
+    /**
+     * Fill the histograms by day from the daily rollups, which cover all decks together.
+     * The breakdowns by time of day can't be derived from them and are read from revlog once they are requested.
+     */
+    private void readRollups(Collection col) {
+        ReviewRollup.ensureCurrent(col.getDb(), mDayCutoff);
+
+        // First day of each window, as in scan: id > cutoff - n days is day > -n
+        int num = Stats.getNum(mType);
+        int days = mType.days;
+        long doneFrom = num == -1 ? Long.MIN_VALUE : -(num + 1) * mChunk + 1;
+        long periodFrom = days <= 0 ? Long.MIN_VALUE : -days + 1;
+
+        long t0 = System.currentTimeMillis();
+        int rows = 0;
+        try (Cursor cur = ReviewRollup.queryAllDecks(col.getDb(), mDayCutoff, Math.min(doneFrom, periodFrom))) {
+            while (cur.moveToNext()) {
+                rows++;
+                int day = cur.getInt(0);
+                addDay(day, cur.getInt(1), cur.getInt(2) != 0, cur.getInt(3), cur.getLong(4), cur.getLong(5),
+                        day >= doneFrom, day >= periodFrom);
+            }
+        }
+        Timber.d("Aggregated %d daily rollups in %d ms", rows, System.currentTimeMillis() - t0);
+    }
+
+
+    /**
+     * @param byDay Whether to fill the histograms by day too, or only the breakdowns by time of day.
+     */
+    private void scan(Collection col, boolean byDay) {
+        // Each chart looks at its own window of days; the review count chart has the widest one.
+        int num = Stats.getNum(mType);
+        int days = mType.days;
+        long doneFrom = num == -1 ? Long.MIN_VALUE : (mDayCutoff - ((num + 1) * mChunk * SECONDS_PER_DAY)) * 1000;
+        long periodFrom = days <= 0 ? Long.MIN_VALUE : (mDayCutoff - days * SECONDS_PER_DAY) * 1000;
+        long weekFrom = days <= 0 ? Long.MIN_VALUE : (mDayCutoff - (days / 7) * 7 * SECONDS_PER_DAY) * 1000;
+        long scanFrom = Math.min(periodFrom, weekFrom);
+        if (byDay) {
+            scanFrom = Math.min(doneFrom, scanFrom);
+        }
+
+        ArrayList<String> lims = new ArrayList<>(2);
+        if (scanFrom != Long.MIN_VALUE) {
+            lims.add("id > " + scanFrom);
+        }
+        if (mDeckFilter.length() > 0) {
+            lims.add(mDeckFilter);
+        }
+        String query = "SELECT id, ease, type, lastIvl, time FROM revlog " +
+                (lims.isEmpty() ? "" : "WHERE " + TextUtils.join(" AND ", lims)) +
+                " ORDER BY id";
+        Timber.d("Revlog aggregation query: %s", query);
+
+        long cutoffMs = mDayCutoff * 1000;
+        long hourCut = mDayCutoff - mRolloverHour * 3600L;
+        long weekShift = mWeekStartHour * 3600L;
+
+        long t0 = System.currentTimeMillis();
+        int rows = 0;
+        try (Cursor cur = col.getDb().query(query)) {
+            while (cur.moveToNext()) {
+                rows++;
+                long id = cur.getLong(0);
+                int ease = cur.getInt(1);
+                int type = cur.getInt(2);
+                int lastIvl = cur.getInt(3);
+                long time = cur.getLong(4);
+
+                long seconds = id / 1000;
+                boolean scheduled = type == Consts.CARD_TYPE_NEW || type == Consts.CARD_TYPE_LRN || type == Consts.CARD_TYPE_REV;
+
+                if (byDay) {
+                    addDay((int) ReviewRollup.dayOf(id, cutoffMs), type, lastIvl >= 21, ease, 1, time, id > doneFrom, id > periodFrom);
+                }
+
+                if (id > periodFrom && scheduled) {
+                    int hour = 23 - (((int) ((hourCut - seconds) / 3600.0)) % 24);
+                    mHourCounts[hour]++;
+                    if (ease != 1) {
+                        mHourCorrect[hour]++;
+                    }
+                }
+
+                if (id > weekFrom && scheduled) {
+                    long shifted = seconds - weekShift;
+                    long epochDay = shifted / SECONDS_PER_DAY;
+                    if (shifted % SECONDS_PER_DAY < 0) {
+                        epochDay--;
+                    }
+                    // 1970-01-01 was a Thursday; 0 is Sunday as in strftime('%w')
+                    int weekday = (int) (((epochDay + 4) % 7 + 7) % 7);
+                    mWeekdayCounts[weekday]++;
+                    if (ease != 1) {
+                        mWeekdayCorrect[weekday]++;
+                    }
+                }
+            }
+        }
+        mTimeOfDayRead = true;
+        Timber.d("Aggregated %d revlog entries in %d ms", rows, System.currentTimeMillis() - t0);
+    }
+
+
+    /**
+     * Add reviews of one day, which must not be earlier than the day of the previously added ones.
+     */
+    private void addDay(int day, int type, boolean mature, int ease, long count, long time, boolean inDone, boolean inPeriod) {
+        if (inDone) {
+            addDone(day / mChunk, type, mature, count, time);
+        }
+
+        // Anki Desktop logs a '0' ease for manual reschedules, ignore them https://github.com/ankidroid/Anki-Android/issues/8008
+        if (inPeriod && ease > 0) {
+            mTotalReviews += count;
+            mTotalTime += time;
+            if (mDaysStudied == 0) {
+                mFirstDay = day;
+            }
+            if (mDaysStudied == 0 || day != mLastDay) {
+                mDaysStudied++;
+                mLastDay = day;
+            }
+
+            int easeType = type == Consts.CARD_TYPE_NEW || type == Consts.CARD_TYPE_REV ? 0 : mature ? 2 : 1;
+            if (ease < mEaseCounts[easeType].length) {
+                mEaseCounts[easeType][ease] += count;
+            }
+        }
+    }
+
+
+    private void addDone(int chunk, int type, boolean mature, long count, long time) {
+        // Days come in increasing order, so chunks never decrease
+        if (mDoneSize == 0 || mDoneChunks[mDoneSize - 1] != chunk) {
+            if (mDoneSize == mDoneChunks.length) {
+                int capacity = mDoneSize * 2;
+                mDoneChunks = Arrays.copyOf(mDoneChunks, capacity);
+                for (int i = 0; i < DONE_TYPES; i++) {
+                    mDoneCounts[i] = Arrays.copyOf(mDoneCounts[i], capacity);
+                    mDoneTimes[i] = Arrays.copyOf(mDoneTimes[i], capacity);
+                }
+            }
+            mDoneChunks[mDoneSize++] = chunk;
+        }
+
+        int doneType;
+        if (type == Consts.CARD_TYPE_NEW) {
+            doneType = DONE_LRN;
+        } else if (type == Consts.CARD_TYPE_LRN) {
+            doneType = mature ? DONE_MTR : DONE_YNG;
+        } else if (type == Consts.CARD_TYPE_REV) {
+            doneType = DONE_LAPSE;
+        } else if (type == Consts.CARD_TYPE_RELEARNING) {
+            doneType = DONE_CRAM;
+        } else {
+            // Still makes the chunk appear, with nothing in it
+            return;
+        }
+        mDoneCounts[doneType][mDoneSize - 1] += count;
+        mDoneTimes[doneType][mDoneSize - 1] += time;
+    }
+
+
+    private synchronized void readTimeOfDay() {
+        if (mTimeOfDayRead) {
+            return;
+        }
+        Collection col = mCol.get();
+        if (col != null) {
+            scan(col, false);
+        }
+    }
+
+
+    /**
+     * Review count or review time per chunk of days.
+     * @param timeDivisor 0 for the number of reviews, else the number of seconds in the unit of time to return.
+     * @return Rows of {chunk, cram, learn, relearn, young, mature}
+     */
+    ArrayList<double[]> getReviews(double timeDivisor) {
+        ArrayList<double[]> list = new ArrayList<>(mDoneSize);
+        for (int i = 0; i < mDoneSize; i++) {
+            list.add(new double[] { mDoneChunks[i],
+                    done(DONE_CRAM, i, timeDivisor),
+                    done(DONE_LRN, i, timeDivisor),
+                    done(DONE_LAPSE, i, timeDivisor),
+                    done(DONE_YNG, i, timeDivisor),
+                    done(DONE_MTR, i, timeDivisor) });
+        }
+        return list;
+    }
+
+
+    private double done(int doneType, int i, double timeDivisor) {
+        if (timeDivisor == 0) {
+            return mDoneCounts[doneType][i];
+        }
+        return mDoneTimes[doneType][i] / 1000.0 / timeDivisor;
+    }
+
+
+    int getTotalReviews() {
+        return mTotalReviews;
+    }
+
+
+    int getDaysStudied() {
+        return mDaysStudied;
+    }
+
+
+    /** The earliest day with reviews, counted from today, or 0 if there are none. */
+    int getFirstDay() {
+        return mFirstDay;
+    }
+
+
+    /** Total review time in minutes */
+    double getTotalTime() {
+        return mTotalTime / 1000.0 / 60.0;
+    }
+
+
+    /**
+     * @return Rows of {hour, percentage correct, count} of the hours with more than 30 reviews, in increasing order of hour.
+     */
+    ArrayList<double[]> getHours() {
+        readTimeOfDay();
+        ArrayList<double[]> list = new ArrayList<>(HOURS);
+        for (int hour = 0; hour < HOURS; hour++) {
+            if (mHourCounts[hour] > MIN_REVIEWS_PER_HOUR) {
+                list.add(new double[] { hour, mHourCorrect[hour] / (double) mHourCounts[hour] * 100, mHourCounts[hour] });
+            }
+        }
+        return list;
+    }
+
+
+    /**
+     * @return Rows of {day of week, percentage correct, count} of the days with reviews. Sunday is 0.
+     */
+    ArrayList<double[]> getWeekdays() {
+        readTimeOfDay();
+        ArrayList<double[]> list = new ArrayList<>(7);
+        for (int weekday = 0; weekday < 7; weekday++) {
+            if (mWeekdayCounts[weekday] > 0) {
+                list.add(new double[] { weekday, mWeekdayCorrect[weekday] / (double) mWeekdayCounts[weekday] * 100, mWeekdayCounts[weekday] });
+            }
+        }
+        return list;
+    }
+
+
+    /**
+     * @param schedVer Scheduler version. Version 1 had only three buttons for learning cards, so their fourth ease counts as the third.
+     * @return Rows of {card type, ease, count}, where the card type is 0 for learning, 1 for young and 2 for mature cards.
+     */
+    ArrayList<double[]> getEases(int schedVer) {
+        ArrayList<double[]> list = new ArrayList<>(3 * 4); // 3 types * 4 eases
+        for (int type = 0; type < mEaseCounts.length; type++) {
+            for (int ease = 1; ease < mEaseCounts[type].length; ease++) {
+                if (mEaseCounts[type][ease] > 0) {
+                    int shownEase = type == 0 && ease == 4 && schedVer == 1 ? 3 : ease;
+                    list.add(new double[] { type, shownEase, mEaseCounts[type][ease] });
+                }
+            }
+        }
+        return list;
+    }
+}
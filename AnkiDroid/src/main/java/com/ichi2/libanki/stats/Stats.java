@@ -39,7 +39,6 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Vector;
 
 import timber.log.Timber;
 
@@ -178,21 +177,6 @@ public class Stats {
         return new int[]{cards, thetime, failed, lrn, rev, relrn, filt, mcnt, msum};
     }
 
-    private String getRevlogTimeFilter(AxisType timespan, boolean inverse) {
-        if (timespan == AxisType.TYPE_LIFE) {
-            return "";
-        }
-        else {
-            String operator;
-            if (inverse) {
-                operator = "<= ";
-            } else {
-                operator = "> ";
-            }
-            return "id "+ operator + ((mCol.getSched().getDayCutoff() - (timespan.days * SECONDS_PER_DAY)) * 1000);
-        }
-    }
-
     public Pair<Integer, Double> getNewCards(AxisType timespan) {
         int chunk = getChunk(timespan);
         int num = getNum(timespan);
@@ -267,48 +251,14 @@ public class Stats {
     }
 
 
-    private String getRevlogFilter(AxisType timespan,boolean inverseTimeSpan){
-        ArrayList<String> lims = new ArrayList<>(2);
-        String dayFilter = getRevlogTimeFilter(timespan, inverseTimeSpan);
-        if (!TextUtils.isEmpty(dayFilter)) {
-            lims.add(dayFilter);
-        }
-        String lim = _getDeckFilter().replaceAll("[\\[\\]]", "");
-        if (lim.length() > 0){
-            lims.add(lim);
-        }
-
-        // Anki Desktop logs a '0' ease for manual reschedules, ignore them https://github.com/ankidroid/Anki-Android/issues/8008
-        lims.add("ease > 0");
-
-        lim = "WHERE ";
-        lim += TextUtils.join(" AND ", lims.toArray());
-
-        return lim;
-    }
-
     public void calculateOverviewStatistics(AxisType timespan, OverviewStatsBuilder.OverviewStats oStats) {
         oStats.allDays = timespan.days;
-        String lim = getRevlogFilter(timespan,false);
-        try (Cursor cur = mCol.getDb().query(
-                    "SELECT COUNT(*) as num_reviews, sum(case when type = " + Consts.CARD_TYPE_NEW + " then 1 else 0 end) as new_cards FROM revlog " + lim)) {
-            while (cur.moveToNext()) {
-                oStats.totalReviews = cur.getInt(0);
-            }
-        }
-
-        String cntquery = "SELECT  COUNT(*) numDays, MIN(day) firstDay, SUM(time_per_day) sum_time  from (" +
-                " SELECT (cast((id/1000 - " + mCol.getSched().getDayCutoff() + ") / "+SECONDS_PER_DAY+" AS INT)) AS day,  sum(time/1000.0/60.0) AS time_per_day"
-                + " FROM revlog " + lim + " GROUP BY day ORDER BY day)";
-        Timber.d("Count cntquery: %s", cntquery);
-        try (Cursor cur = mCol.getDb().query(cntquery)) {
-            while (cur.moveToNext()) {
-                oStats.daysStudied = cur.getInt(0);
-                oStats.totalTime = cur.getDouble(2);
-                if (timespan == AxisType.TYPE_LIFE) {
-                    oStats.allDays = Math.abs(cur.getInt(1)) + 1; // +1 for today
-                }
-            }
+        RevlogAggregate revlog = getRevlogAggregate(timespan);
+        oStats.totalReviews = revlog.getTotalReviews();
+        oStats.daysStudied = revlog.getDaysStudied();
+        oStats.totalTime = revlog.getTotalTime();
+        if (timespan == AxisType.TYPE_LIFE) {
+            oStats.allDays = Math.abs(revlog.getFirstDay()) + 1; // +1 for today
         }
 
         try (Cursor cur = mCol.getDb().query(
@@ -550,78 +500,20 @@ public class Stats {
                 R.string.statistics_mature };
         mColors = new int[] { R.attr.stats_cram, R.attr.stats_learn, R.attr.stats_relearn, R.attr.stats_young,
                 R.attr.stats_mature };
-        int num = 0;
-        int chunk = 0;
-        switch (type) {
-            case TYPE_MONTH:
-                num = 31;
-                chunk = 1;
-                break;
-            case TYPE_YEAR:
-                num = 52;
-                chunk = 7;
-                break;
-            case TYPE_LIFE:
-                num = -1;
-                chunk = 30;
-                break;
-        }
-        ArrayList<String> lims = new ArrayList<>(2);
-        if (num != -1) {
-            lims.add("id > " + ((mCol.getSched().getDayCutoff() - ((num + 1) * chunk * SECONDS_PER_DAY)) * 1000));
-        }
-        String lim = _getDeckFilter().replaceAll("[\\[\\]]", "");
-        if (lim.length() > 0) {
-            lims.add(lim);
-        }
-        if (!lims.isEmpty()) {
-            lim = "WHERE ";
-            while (lims.size() > 1) {
-                lim += lims.remove(0) + " AND ";
-            }
-            lim += lims.remove(0);
-        } else {
-            lim = "";
-        }
-        String ti;
-        String tf;
+        int num = getNum(type);
+        double timeDivisor;
         if (charType == ChartType.REVIEW_TIME) {
-            ti = "time/1000.0";
             if (mType == AxisType.TYPE_MONTH) {
-                tf = "/60.0"; // minutes
+                timeDivisor = 60.0; // minutes
                 mAxisTitles = new int[] { type.ordinal(), R.string.stats_minutes, R.string.stats_cumulative_time_minutes };
             } else {
-                tf = "/3600.0"; // hours
+                timeDivisor = 3600.0; // hours
                 mAxisTitles = new int[] { type.ordinal(), R.string.stats_hours, R.string.stats_cumulative_time_hours };
             }
         } else {
-            ti = "1";
-            tf = "";
-        }
-        ArrayList<double[]> list = new ArrayList<>();
-        String query = "SELECT (cast((id/1000 - " + mCol.getSched().getDayCutoff() + ") / "+SECONDS_PER_DAY+" AS INT))/"
-                + chunk + " AS day, " + "sum(CASE WHEN type = " + Consts.CARD_TYPE_NEW + " THEN " + ti + " ELSE 0 END)"
-                + tf
-                + ", " // lrn
-                + "sum(CASE WHEN type = " + Consts.CARD_TYPE_LRN + " AND lastIvl < 21 THEN " + ti + " ELSE 0 END)" + tf
-                + ", " // yng
-                + "sum(CASE WHEN type = " + Consts.CARD_TYPE_LRN + " AND lastIvl >= 21 THEN " + ti + " ELSE 0 END)" + tf
-                + ", " // mtr
-                + "sum(CASE WHEN type = 2 THEN " + ti + " ELSE 0 END)" + tf + ", " // lapse
-                + "sum(CASE WHEN type = " + Consts.CARD_TYPE_RELEARNING + " THEN " + ti + " ELSE 0 END)" + tf // cram
-                + " FROM revlog " + lim + " GROUP BY day ORDER BY day";
-
-        Timber.d("ReviewCount query: %s", query);
-
-        try (Cursor cur = mCol
-                    .getDb()
-                    .query(query)) {
-            while (cur.moveToNext()) {
-                list.add(new double[] { cur.getDouble(0), cur.getDouble(5), cur.getDouble(1), cur.getDouble(4),
-                        cur.getDouble(2), cur.getDouble(3)});
-            }
+            timeDivisor = 0; // count
         }
-
+        ArrayList<double[]> list = getRevlogAggregate(type).getReviews(timeDivisor);
 
         // small adjustment for a proper chartbuilding with achartengine
         if (type != AxisType.TYPE_LIFE && (list.isEmpty() || list.get(0)[0] > -num)) {
@@ -716,7 +608,7 @@ public class Stats {
     }
 
 
-    private int getChunk(AxisType axisType) {
+    static int getChunk(AxisType axisType) {
         switch (axisType) {
             case TYPE_MONTH: return 1;
             case TYPE_YEAR: return 7;
@@ -725,7 +617,7 @@ public class Stats {
         }
     }
 
-    private int getNum(AxisType axisType) {
+    static int getNum(AxisType axisType) {
         switch (axisType) {
             case TYPE_MONTH: return 31;
             case TYPE_YEAR: return 52;
@@ -863,37 +755,13 @@ public class Stats {
         mValueLabels = new int[] { R.string.stats_percentage_correct, R.string.stats_answers};
         mColors = new int[] { R.attr.stats_counts, R.attr.stats_hours};
         mType = type;
-        String lim = _getDeckFilter().replaceAll("[\\[\\]]", "");
-
-        if (lim.length() > 0) {
-            lim = " and " + lim;
-        }
-        int rolloverHour = Preferences.getDayOffset(mCol);
-        int pd = _periodDays();
-        if (pd > 0) {
-            lim += " and id > " + ((mCol.getSched().getDayCutoff() -  (SECONDS_PER_DAY * pd)) * 1000);
-        }
-        long cutoff = mCol.getSched().getDayCutoff();
-        long cut = cutoff - rolloverHour * 3600;
 
         ArrayList<double[]> list = new ArrayList<>(24); // number of hours
         for (int i = 0; i < 24; i++) {
             list.add(new double[] { i, 0, 0 });
         }
-        String query = "select " +
-                "23 - ((cast((" + cut + " - id/1000) / 3600.0 as int)) % 24) as hour, " +
-                "sum(case when ease = 1 then 0 else 1 end) / " +
-                "cast(count() as float) * 100, " +
-                "count() " +
-                "from revlog where type in (" + Consts.CARD_TYPE_NEW + "," + Consts.CARD_TYPE_LRN + "," + Consts.CARD_TYPE_REV + ") " + lim +" " +
-                "group by hour having count() > 30 order by hour";
-        Timber.d("%d : %d breakdown query: %s", rolloverHour, cutoff, query);
-        try (Cursor cur = mCol.getDb()
-                    .query(query)) {
-            while (cur.moveToNext()) {
-                double[] hourData = new double[] { cur.getDouble(0), cur.getDouble(1), cur.getDouble(2) };
-                list.set(((((int)hourData[0] % 24) + 24) % 24), hourData); // Force the data to be positive int in 0-23 range
-            }
+        for (double[] hourData : getRevlogAggregate(type).getHours()) {
+            list.set(((((int)hourData[0] % 24) + 24) % 24), hourData); // Force the data to be positive int in 0-23 range
         }
 
         //TODO adjust for breakdown, for now only copied from intervals
@@ -985,38 +853,8 @@ public class Stats {
         mValueLabels = new int[] { R.string.stats_percentage_correct, R.string.stats_answers};
         mColors = new int[] { R.attr.stats_counts, R.attr.stats_hours};
         mType = type;
-        String lim = _getDeckFilter().replaceAll("[\\[\\]]", "");
 
-        if (lim.length() > 0) {
-            lim = " and " + lim;
-        }
-
-        Calendar sd = Time.gregorianCalendar(mCol.getSched().getDayCutoff() * 1000);
-
-        int pd = _periodDays();
-        if (pd > 0) {
-            pd = Math.round( pd / 7 ) * 7;
-            lim += " and id > " + ((mCol.getSched().getDayCutoff() - (SECONDS_PER_DAY * pd)) * 1000);
-        }
-
-        long cutoff = mCol.getSched().getDayCutoff();
-        ArrayList<double[]> list = new ArrayList<>(7); // one by day of the week
-        String query = "SELECT strftime('%w',datetime( cast(id/ 1000  -" + sd.get(Calendar.HOUR_OF_DAY) * 3600 +
-                " as int), 'unixepoch')) as wd, " +
-                "sum(case when ease = 1 then 0 else 1 end) / " +
-                "cast(count() as float) * 100, " +
-                "count() " +
-                "from revlog " +
-                "where type in (" + Consts.CARD_TYPE_NEW + "," + Consts.CARD_TYPE_LRN + "," + Consts.CARD_TYPE_REV + ") " + lim +" " +
-                "group by wd " +
-                "order by wd";
-        Timber.d(sd.get(Calendar.HOUR_OF_DAY) + " : " +cutoff + " weekly breakdown query: %s", query);
-        try (Cursor cur = mCol.getDb()
-                    .query(query)) {
-            while (cur.moveToNext()) {
-                list.add(new double[] { cur.getDouble(0), cur.getDouble(1), cur.getDouble(2) });
-            }
-        }
+        ArrayList<double[]> list = getRevlogAggregate(type).getWeekdays(); // one by day of the week
 
         //TODO adjust for breakdown, for now only copied from intervals
         // small adjustment for a proper chartbuilding with achartengine
@@ -1139,58 +977,7 @@ public class Stats {
 
 
     private ArrayList<double[]> eases(AxisType type) {
-        String lim = _getDeckFilter().replaceAll("[\\[\\]]", "");
-
-        Vector<String> lims = new Vector<>();
-        int days;
-
-        if (lim.length() > 0) {
-            lims.add(lim);
-        }
-
-        if (type == AxisType.TYPE_MONTH) {
-            days = 30;
-        } else if (type == AxisType.TYPE_YEAR) {
-            days = 365;
-        } else {
-            days = -1;
-        }
-
-        if (days > 0) {
-            lims.add("id > " + ((mCol.getSched().getDayCutoff() - (days * SECONDS_PER_DAY)) * 1000));
-        }
-
-        // Anki Desktop logs a '0' ease for manual reschedules, ignore them https://github.com/ankidroid/Anki-Android/issues/8008
-        lims.add("ease > 0");
-
-        lim = "where " + lims.get(0);
-        for (int i = 1; i < lims.size(); i++) {
-            lim += " and " + lims.get(i);
-        }
-
-        String ease4repl;
-        if (mCol.schedVer() == 1) {
-            ease4repl = "3";
-        } else {
-            ease4repl = "ease";
-        }
-        ArrayList<double[]> list = new ArrayList<>(3 * 4); // 3 thetypes * 4 eases
-        String query = "select (case " +
-                "                when type in (" + Consts.CARD_TYPE_NEW + "," + Consts.CARD_TYPE_REV + ") then 0 " +
-                "        when lastIvl < 21 then 1 " +
-                "        else 2 end) as thetype, " +
-                "        (case when type in (" + Consts.CARD_TYPE_NEW + "," + Consts.CARD_TYPE_REV + ") and ease = 4 then " + ease4repl +" else ease end), count() from revlog " + lim + " " +
-                "        group by thetype, ease " +
-                "        order by thetype, ease";
-        Timber.d("AnswerButtons query: %s", query);
-
-        try (Cursor cur = mCol.getDb()
-                    .query(query)) {
-            while (cur.moveToNext()) {
-                list.add(new double[]{cur.getDouble(0), cur.getDouble(1), cur.getDouble(2)});
-            }
-        }
-        return list;
+        return getRevlogAggregate(type).getEases(mCol.schedVer());
     }
 
 
@@ -1281,6 +1068,17 @@ public class Stats {
         }
     }
 
+    /**
+     * Note: NOT in libanki
+     * The review log of the selected decks for the given time span, shared by the charts which are based on it.
+     */
+    private RevlogAggregate getRevlogAggregate(AxisType type) {
+        long cutoff = mCol.getSched().getDayCutoff();
+        int weekStartHour = Time.gregorianCalendar(cutoff * 1000).get(Calendar.HOUR_OF_DAY);
+        return RevlogAggregate.get(mCol, _getDeckFilter().replaceAll("[\\[\\]]", ""), type, cutoff,
+                Preferences.getDayOffset(mCol), weekStartHour);
+    }
+
     private String _getDeckFilter() {
         if (mWholeCollection) {
             return "";
@@ -1323,11 +1121,6 @@ public class Stats {
         return cumulativeValues;
     }
 
-    private int _periodDays() {
-        return _periodDays(mType);
-    }
-
-
     private int _periodDays(AxisType type) {
         switch (type) {
             case TYPE_MONTH:
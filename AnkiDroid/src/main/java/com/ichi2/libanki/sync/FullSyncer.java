@@ -154,7 +154,7 @@ public class FullSyncer extends HttpSyncer {
         Response ret;
         mCon.publishProgress(R.string.sync_uploading_message);
         try {
-            ret = super.req("upload", new FileInputStream(filePath));
+            ret = super.req("upload", new File(filePath), 6);
             if (ret == null || ret.body() == null) {
                 return null;
             }
@@ -35,7 +35,6 @@ import com.ichi2.utils.HashUtil;
 
 import com.ichi2.utils.JSONObject;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -52,7 +51,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.SSLException;
 
@@ -76,6 +74,8 @@ public class HttpSyncer {
 
     private static final String BOUNDARY = "Anki-sync-boundary";
     private static final MediaType ANKI_POST_TYPE = MediaType.get("multipart/form-data; boundary=" + BOUNDARY);
+    /** Payloads up to this size are compressed in memory rather than in a temporary file */
+    private static final long MAX_BUFFERED_IN_MEMORY = 1024 * 1024;
 
     public static final String ANKIWEB_STATUS_OK = "OK";
 
@@ -148,54 +148,97 @@ public class HttpSyncer {
     }
 
     /** Note: Return value must be closed */
-    @SuppressWarnings("CharsetObjectCanBeUsed")
     public Response req(String method, InputStream fobj, int comp) throws UnknownHttpResponseException {
+        File tmpFileBuffer = null;
+        try {
+            StreamingRequestBody.Payload payload = null;
+            if (fobj instanceof ByteArrayInputStream) {
+                // Json requests are in memory already
+                byte[] data = new byte[fobj.available()];
+                int read = 0;
+                while (read < data.length) {
+                    read += fobj.read(data, read, data.length - read);
+                }
+                payload = StreamingRequestBody.payloadOf(data);
+            } else if (fobj != null) {
+                // A stream can only be read once, while the request may be sent again if the connection fails.
+                // Callers with large data pass a file instead, see req(String, File, int)
+                tmpFileBuffer = File.createTempFile("syncer", ".tmp", new File(AnkiDroidApp.getCacheStorageDirectory()));
+                try (OutputStream out = new FileOutputStream(tmpFileBuffer)) {
+                    byte[] chunk = new byte[65536];
+                    int len;
+                    while ((len = fobj.read(chunk)) >= 0) {
+                        out.write(chunk, 0, len);
+                    }
+                }
+                payload = StreamingRequestBody.payloadOf(tmpFileBuffer);
+            }
+            return req(method, payload, comp);
+        } catch (IOException e) {
+            Timber.e(e, "BasicHttpSyncer.sync: IOException");
+            throw new RuntimeException(e);
+        } finally {
+            if (tmpFileBuffer != null && tmpFileBuffer.exists()) {
+                tmpFileBuffer.delete();
+            }
+        }
+    }
+
+
+    /**
+     * Send a file without copying it. It is read while it is sent, and read again if the request is sent again.
+     * Note: Return value must be closed
+     */
+    public Response req(String method, File file, int comp) throws UnknownHttpResponseException {
+        return req(method, StreamingRequestBody.payloadOf(file), comp);
+    }
+
+
+    /**
+     * Send a payload which is written while it is sent, e.g. a zip of media changes. If its length is not known in
+     * advance, e.g. if it is compressed, it is written to a buffer first.
+     * Note: Return value must be closed
+     */
+    @SuppressWarnings("CharsetObjectCanBeUsed")
+    protected Response req(String method, @Nullable StreamingRequestBody.Payload payload, int comp) throws UnknownHttpResponseException {
         File tmpFileBuffer = null;
         try {
             String bdry = "--" + BOUNDARY;
             StringWriter buf = new StringWriter();
             // post vars
-            mPostVars.put("c", comp != 0 ? 1 : 0);
-            for (Map.Entry<String, Object> entry : mPostVars.entrySet()) {
+            // A copy, as media downloads send several requests at once
+            Map<String, Object> postVars = new HashMap<>(mPostVars);
+            postVars.put("c", comp != 0 ? 1 : 0);
+            for (Map.Entry<String, Object> entry : postVars.entrySet()) {
                 buf.write(bdry + "\r\n");
                 buf.write(String.format(Locale.US, "Content-Disposition: form-data; name=\"%s\"\r\n\r\n%s\r\n", entry.getKey(),
                         entry.getValue()));
             }
-            tmpFileBuffer = File.createTempFile("syncer", ".tmp", new File(AnkiDroidApp.getCacheStorageDirectory()));
-            FileOutputStream fos = new FileOutputStream(tmpFileBuffer);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            GZIPOutputStream tgt;
+            String tail;
             // payload as raw data or json
-            if (fobj != null) {
+            if (payload != null) {
                 // header
                 buf.write(bdry + "\r\n");
                 buf.write("Content-Disposition: form-data; name=\"data\"; filename=\"data\"\r\nContent-Type: application/octet-stream\r\n\r\n");
-                buf.close();
-                bos.write(buf.toString().getBytes("UTF-8"));
-                // write file into buffer, optionally compressing
-                int len;
-                BufferedInputStream bfobj = new BufferedInputStream(fobj);
-                byte[] chunk = new byte[65536];
-                if (comp != 0) {
-                    tgt = new GZIPOutputStream(bos);
-                    while ((len = bfobj.read(chunk)) >= 0) {
-                        tgt.write(chunk, 0, len);
-                    }
-                    tgt.close();
-                    bos = new BufferedOutputStream(new FileOutputStream(tmpFileBuffer, true));
+                tail = "\r\n" + bdry + "--\r\n";
+            } else {
+                tail = bdry + "--\r\n";
+            }
+            buf.close();
+            StreamingRequestBody body = new StreamingRequestBody(ANKI_POST_TYPE, buf.toString().getBytes("UTF-8"),
+                    payload, comp != 0, tail.getBytes("UTF-8"), num -> {
+                        bytesSent.addAndGet(num);
+                        publishProgress();
+                    });
+            // A body without a length would be sent in chunks, which some sync servers and proxies refuse
+            if (body.contentLength() < 0) {
+                if (payload.length() >= 0 && payload.length() <= MAX_BUFFERED_IN_MEMORY) {
+                    body = body.bufferedInMemory();
                 } else {
-                    while ((len = bfobj.read(chunk)) >= 0) {
-                        bos.write(chunk, 0, len);
-                    }
+                    tmpFileBuffer = File.createTempFile("syncer", ".tmp", new File(AnkiDroidApp.getCacheStorageDirectory()));
+                    body = body.bufferedInto(tmpFileBuffer);
                 }
-                bos.write(("\r\n" + bdry + "--\r\n").getBytes("UTF-8"));
-            } else {
-                buf.close();
-                bos.write(buf.toString().getBytes("UTF-8"));
-                bos.write((bdry + "--\r\n").getBytes("UTF-8"));
             }
-            bos.flush();
-            bos.close();
             // connection headers
 
             String url = Uri.parse(syncURL()).buildUpon().appendPath(method).toString();
@@ -204,10 +247,7 @@ public class HttpSyncer {
             requestBuilder.url(parseUrl(url));
 
             // Set our request up to count upstream traffic including headers
-            requestBuilder.post(new CountingFileRequestBody(tmpFileBuffer, ANKI_POST_TYPE.toString(), num -> {
-                bytesSent.addAndGet(num);
-                publishProgress();
-            }));
+            requestBuilder.post(body);
             Request httpPost = requestBuilder.build();
             bytesSent.addAndGet(httpPost.headers().byteCount());
             publishProgress();
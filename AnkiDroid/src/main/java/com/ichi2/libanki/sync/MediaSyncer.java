@@ -28,18 +28,29 @@ import com.ichi2.anki.exception.UnknownHttpResponseException;
 import com.ichi2.async.Connection;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.MediaChangesZip;
 
 import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipFile;
 
+import androidx.annotation.VisibleForTesting;
 import timber.log.Timber;
 
 import static com.ichi2.libanki.sync.Syncer.ConnectionResultType;
@@ -73,6 +84,15 @@ import static com.ichi2.libanki.sync.Syncer.ConnectionResultType.*;
 public class MediaSyncer {
     private final Collection mCol;
     private final RemoteMediaServer mServer;
+    /** Number of zips being downloaded or extracted at once */
+    private static final int DOWNLOADS_IN_FLIGHT = 4;
+    /** Number of downloaded files recorded in the media database at once */
+    private static final int MEDIA_COMMIT_ROWS = 1000;
+    /** Time allowed to the extractions running when a download stops. A single batch is extracted by each thread. */
+    private static final int EXTRACTION_TIMEOUT_S = 30;
+    /** How often cancellation is checked while waiting for a download */
+    private static final long CANCEL_CHECK_MS = 200;
+
     private int mDownloadCount;
     // Needed to update progress to UI
     private final Connection mCon;
@@ -185,41 +205,36 @@ public class MediaSyncer {
             boolean updateConflict = false;
             int toSend = mCol.getMedia().dirtyCount();
             while (true) {
-                Pair<File, List<String>> changesZip = mCol.getMedia().mediaChangesZip();
-                File zip = changesZip.first;
-                try {
-                    List<String> fnames = changesZip.second;
-                    if (fnames.isEmpty()) {
-                        break;
-                    }
-
-                    mCon.publishProgress(String.format(
-                                                       AnkiDroidApp.getAppResources().getString(R.string.sync_media_changes_count), toSend));
+                MediaChangesZip zip = mCol.getMedia().mediaChangesZip();
+                List<String> fnames = zip.getFnames();
+                if (fnames.isEmpty()) {
+                    break;
+                }
 
-                    JSONArray changes = mServer.uploadChanges(zip);
-                    int processedCnt = changes.getInt(0);
-                    int serverLastUsn = changes.getInt(1);
-                    mCol.getMedia().markClean(fnames.subList(0, processedCnt));
+                mCon.publishProgress(String.format(
+                                                   AnkiDroidApp.getAppResources().getString(R.string.sync_media_changes_count), toSend));
 
-                    mCol.log(String.format(Locale.US,
-                                           "processed %d, serverUsn %d, clientUsn %d",
-                                           processedCnt, serverLastUsn, lastUsn));
+                JSONArray changes = mServer.uploadChanges(zip);
+                int processedCnt = changes.getInt(0);
+                int serverLastUsn = changes.getInt(1);
+                mCol.getMedia().markClean(fnames.subList(0, processedCnt));
 
-                    if (serverLastUsn - processedCnt == lastUsn) {
-                        mCol.log("lastUsn in sync, updating local");
-                        lastUsn = serverLastUsn;
-                        mCol.getMedia().setLastUsn(serverLastUsn); // commits
-                    } else {
-                        mCol.log("concurrent update, skipping usn update");
-                        // commit for markClean
-                        mCol.getMedia().getDb().commit();
-                        updateConflict = true;
-                    }
+                mCol.log(String.format(Locale.US,
+                                       "processed %d, serverUsn %d, clientUsn %d",
+                                       processedCnt, serverLastUsn, lastUsn));
 
-                    toSend -= processedCnt;
-                } finally {
-                    zip.delete();
+                if (serverLastUsn - processedCnt == lastUsn) {
+                    mCol.log("lastUsn in sync, updating local");
+                    lastUsn = serverLastUsn;
+                    mCol.getMedia().setLastUsn(serverLastUsn); // commits
+                } else {
+                    mCol.log("concurrent update, skipping usn update");
+                    // commit for markClean
+                    mCol.getMedia().getDb().commit();
+                    updateConflict = true;
                 }
+
+                toSend -= processedCnt;
             }
             if (updateConflict) {
                 mCol.log("restart sync due to concurrent update");
@@ -237,30 +252,135 @@ public class MediaSyncer {
     }
 
 
-    private void _downloadFiles(List<String> fnames) {
+    /**
+     * Download the files in batches of {@link Consts#SYNC_ZIP_COUNT}. {@link #DOWNLOADS_IN_FLIGHT} batches are
+     * downloaded at once, while the previous ones are extracted and checksummed on other threads. The files are
+     * recorded in the media database every {@link #MEDIA_COMMIT_ROWS} files.
+     */
+    @VisibleForTesting
+    void _downloadFiles(List<String> fnames) {
         mCol.log(fnames.size() + " files to fetch");
-        while (!fnames.isEmpty()) {
-            try {
-                List<String> top = fnames.subList(0, Math.min(fnames.size(), Consts.SYNC_ZIP_COUNT));
-                mCol.log("fetch " + top);
-                ZipFile zipData = mServer.downloadFiles(top);
-                int cnt = mCol.getMedia().addFilesFromZip(zipData);
-                mDownloadCount += cnt;
+        long start = System.currentTimeMillis();
+        int downloaded = 0;
+        Deque<List<String>> toFetch = new ArrayDeque<>();
+        for (int i = 0; i < fnames.size(); i += Consts.SYNC_ZIP_COUNT) {
+            toFetch.add(new ArrayList<>(fnames.subList(i, Math.min(fnames.size(), i + Consts.SYNC_ZIP_COUNT))));
+        }
+        ExecutorService network = Executors.newFixedThreadPool(DOWNLOADS_IN_FLIGHT);
+        ExecutorService extraction = Executors.newFixedThreadPool(Math.max(1, Math.min(DOWNLOADS_IN_FLIGHT, Runtime.getRuntime().availableProcessors() - 1)));
+        CompletionService<Batch> extracted = new ExecutorCompletionService<>(extraction);
+        List<Object[]> media = new ArrayList<>();
+        int inFlight = 0;
+        try {
+            while (!toFetch.isEmpty() || inFlight > 0) {
+                while (!toFetch.isEmpty() && inFlight < DOWNLOADS_IN_FLIGHT) {
+                    List<String> top = toFetch.poll();
+                    mCol.log("fetch " + top);
+                    network.submit(() -> download(top, extracted));
+                    inFlight++;
+                }
+                Future<Batch> next = extracted.poll(CANCEL_CHECK_MS, TimeUnit.MILLISECONDS);
+                // Allow cancellation (note: media sync has no finish command, so just throw)
+                if (Connection.getIsCancelled()) {
+                    Timber.i("Sync was cancelled");
+                    throw new RuntimeException(USER_ABORTED_SYNC.toString());
+                }
+                if (next == null) {
+                    continue;
+                }
+                inFlight--;
+                Batch batch = next.get();
+                int cnt = batch.mMedia.size();
                 mCol.log("received " + cnt + " files");
-                // NOTE: The python version uses slices which return an empty list when indexed beyond what
-                // the list contains. Since we can't slice out an empty sublist in Java, we must check
-                // if we've reached the end and clear the fnames list manually.
-                if (cnt == fnames.size()) {
-                    fnames.clear();
-                } else {
-                    fnames = fnames.subList(cnt, fnames.size());
+                if (cnt == 0) {
+                    // Requesting the same files again would never end
+                    throw new RuntimeException("No files received for " + batch.mFnames);
+                }
+                if (cnt < batch.mFnames.size()) {
+                    // The server may send fewer files than requested, the others are requested again
+                    toFetch.addFirst(new ArrayList<>(batch.mFnames.subList(cnt, batch.mFnames.size())));
                 }
+                media.addAll(batch.mMedia);
+                if (media.size() >= MEDIA_COMMIT_ROWS) {
+                    mCol.getMedia().addFilesToDb(media);
+                    media.clear();
+                }
+                downloaded += cnt;
+                mDownloadCount += cnt;
                 mCon.publishProgress(String.format(
                         AnkiDroidApp.getAppResources().getString(R.string.sync_media_downloaded_count), mDownloadCount));
-            } catch (IOException | UnknownHttpResponseException e) {
-                Timber.e(e, "Error downloading media files");
-                throw new RuntimeException(e);
             }
+            Timber.i("Downloaded %d media files in %d ms", downloaded, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(USER_ABORTED_SYNC.toString());
+        } catch (ExecutionException e) {
+            Timber.e(e.getCause(), "Error downloading media files");
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // The files on disk are recorded even if the sync failed, the usn is not updated so they are checked again
+            mCol.getMedia().addFilesToDb(media);
+            // Downloads which are still running delete their zip once the extraction is refused
+            network.shutdownNow();
+            extraction.shutdownNow();
+            awaitExtraction(extraction);
+            // Files of batches which were extracted but not recorded, or whose extraction stopped
+            mCol.getMedia().clearDownloads();
+        }
+    }
+
+
+    /** Wait for the extractions which already started, so that none of them writes a file once the sync returns. */
+    private static void awaitExtraction(ExecutorService extraction) {
+        try {
+            if (!extraction.awaitTermination(EXTRACTION_TIMEOUT_S, TimeUnit.SECONDS)) {
+                Timber.w("Media extraction did not stop in %d s", EXTRACTION_TIMEOUT_S);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /** Download a batch, then hand it over to the extraction threads. Runs on a network thread. */
+    private void download(List<String> top, CompletionService<Batch> extracted) {
+        ZipFile zipData;
+        try {
+            zipData = mServer.downloadFiles(top);
+        } catch (UnknownHttpResponseException | RuntimeException e) {
+            try {
+                extracted.submit(() -> {
+                    throw e;
+                });
+            } catch (RejectedExecutionException ignored) {
+                // The sync already stopped
+            }
+            return;
+        }
+        try {
+            extracted.submit(() -> new Batch(top, mCol.getMedia().extractFilesFromZip(zipData)));
+        } catch (RejectedExecutionException e) {
+            try {
+                zipData.close();
+            } catch (IOException ignored) {
+                // The zip is a temporary file in the collection folder, which is not read again
+            }
+        }
+    }
+
+
+    /** The files requested in a download, and the media rows of those which were extracted */
+    private static class Batch {
+        private final List<String> mFnames;
+        private final List<Object[]> mMedia;
+
+
+        private Batch(List<String> fnames, List<Object[]> media) {
+            mFnames = fnames;
+            mMedia = media;
         }
     }
 }
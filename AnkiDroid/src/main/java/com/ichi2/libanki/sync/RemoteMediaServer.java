@@ -34,7 +34,6 @@ import com.ichi2.utils.JSONObject;
 import com.ichi2.utils.VersionUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -119,10 +118,11 @@ public class RemoteMediaServer extends HttpSyncer {
         try {
             resp = super.req("downloadFiles",
                     HttpSyncer.getInputStream(Utils.jsonToString(new JSONObject().put("files", new JSONArray(top)))));
-            String zipPath = mCol.getPath().replaceFirst("collection\\.anki2$", "tmpSyncFromServer.zip");
+            // Several batches are downloaded at once, so each has its own file
+            File zip = File.createTempFile("tmpSyncFromServer", ".zip", new File(mCol.getPath()).getParentFile());
             // retrieve contents and save to file on disk:
-            super.writeToFile(resp.body().byteStream(), zipPath);
-            return new ZipFile(new File(zipPath), ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+            super.writeToFile(resp.body().byteStream(), zip.getAbsolutePath());
+            return new ZipFile(zip, ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
         } catch (IOException | NullPointerException e) {
             Timber.e(e, "Failed to download requested media files");
             throw new RuntimeException(e);
@@ -134,10 +134,10 @@ public class RemoteMediaServer extends HttpSyncer {
     }
 
 
-    public JSONArray uploadChanges(File zip) throws UnknownHttpResponseException, MediaSyncException {
+    public JSONArray uploadChanges(StreamingRequestBody.Payload zip) throws UnknownHttpResponseException, MediaSyncException {
         try {
             // no compression, as we compress the zip file instead
-            Response resp = super.req("uploadChanges", new FileInputStream(zip), 0);
+            Response resp = super.req("uploadChanges", zip, 0);
             JSONObject jresp = new JSONObject(resp.body().string());
             return _dataOnly(jresp, JSONArray.class);
         } catch (IOException | NullPointerException e) {
@@ -27,7 +27,9 @@ import com.ichi2.utils.VersionUtils;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -79,14 +81,19 @@ public class RemoteServer extends HttpSyncer {
     }
 
 
-    public JSONObject chunk() throws UnknownHttpResponseException {
-        JSONObject co = new JSONObject();
-        return parseDict(_run("chunk", co));
+    /** @return The next chunk of the server's changes, parsed while the response is read */
+    public Syncer.Chunk chunk() throws UnknownHttpResponseException, IOException {
+        Response ret = super.req("chunk", HttpSyncer.getInputStream(Utils.jsonToString(new JSONObject())));
+        try (InputStream body = ret.body().byteStream()) {
+            return Syncer.Chunk.read(body);
+        }
     }
 
 
-    public void applyChunk(JSONObject sech) throws UnknownHttpResponseException {
-        _run("applyChunk", sech);
+    /** @param sech The json request {"chunk": ...}, as written by {@link Syncer#writeChunk(java.io.OutputStream)} */
+    public void applyChunk(byte[] sech) throws UnknownHttpResponseException {
+        Response ret = super.req("applyChunk", new ByteArrayInputStream(sech));
+        ret.close();
     }
 
     public JSONObject sanityCheck2(JSONObject client) throws UnknownHttpResponseException {
@@ -0,0 +1,234 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * A sync request: the multipart framing around an optional payload, which is gzipped while it is written to the
+ * socket. Nothing is written to disk. Bytes are counted as they are sent.
+ *
+ * OkHttp may send a body again when a connection fails, so the payload is a {@link Payload} which can be written
+ * again each time.
+ *
+ * A body whose length is not known is sent in chunks, which some servers and proxies refuse. Such a body can be
+ * buffered first, see {@link #bufferedInMemory()} and {@link #bufferedInto(File)}.
+ */
+public class StreamingRequestBody extends RequestBody {
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The data sent in a request, which can be written as many times as the request is sent */
+    public interface Payload {
+        void writeTo(@NonNull OutputStream out) throws IOException;
+
+
+        /** @return The number of bytes written by {@link #writeTo(OutputStream)}, or -1 if it is not known */
+        default long length() {
+            return -1;
+        }
+    }
+
+    public interface ProgressListener {
+        void transferred(long num);
+    }
+
+    private final MediaType mContentType;
+    private final byte[] mHead;
+    @Nullable
+    private final Payload mPayload;
+    private final boolean mCompress;
+    private final byte[] mTail;
+    private final ProgressListener mListener;
+
+
+    /**
+     * @param head The framing before the payload
+     * @param payload The data, or null if the request has none
+     * @param compress Whether the payload is gzipped
+     * @param tail The framing after the payload
+     */
+    public StreamingRequestBody(@NonNull MediaType contentType, @NonNull byte[] head, @Nullable Payload payload,
+                                boolean compress, @NonNull byte[] tail, @NonNull ProgressListener listener) {
+        mContentType = contentType;
+        mHead = head;
+        mPayload = payload;
+        mCompress = compress;
+        mTail = tail;
+        mListener = listener;
+    }
+
+
+    /** @return A payload reading a file. It is reopened each time the request is sent. */
+    @NonNull
+    public static Payload payloadOf(@NonNull File file) {
+        return new Payload() {
+            @Override
+            public void writeTo(@NonNull OutputStream out) throws IOException {
+                copy(new FileInputStream(file), out);
+            }
+
+
+            @Override
+            public long length() {
+                return file.length();
+            }
+        };
+    }
+
+
+    /** @return A payload of bytes which are already in memory */
+    @NonNull
+    public static Payload payloadOf(@NonNull byte[] data) {
+        return new Payload() {
+            @Override
+            public void writeTo(@NonNull OutputStream out) throws IOException {
+                out.write(data);
+            }
+
+
+            @Override
+            public long length() {
+                return data.length;
+            }
+        };
+    }
+
+
+    private static void copy(@NonNull InputStream source, @NonNull OutputStream out) throws IOException {
+        try (InputStream in = source) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                out.write(buf, 0, len);
+            }
+        }
+    }
+
+
+    @Override
+    public MediaType contentType() {
+        return mContentType;
+    }
+
+
+    /** The length of compressed data, or of a payload of unknown length, is only known once it is written */
+    @Override
+    public long contentLength() {
+        if (mPayload == null) {
+            return mHead.length + mTail.length;
+        }
+        long length = mPayload.length();
+        if (mCompress || length < 0) {
+            return -1;
+        }
+        return mHead.length + length + mTail.length;
+    }
+
+
+    /** @return This body, with its payload compressed in memory, so that its length is known */
+    @NonNull
+    public StreamingRequestBody bufferedInMemory() throws IOException {
+        if (contentLength() >= 0) {
+            return this;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writePayload(out);
+        return new StreamingRequestBody(mContentType, mHead, payloadOf(out.toByteArray()), false, mTail, mListener);
+    }
+
+
+    /**
+     * @param file A file which the caller deletes once the request is sent
+     * @return This body, with its payload compressed into file, so that its length is known
+     */
+    @NonNull
+    public StreamingRequestBody bufferedInto(@NonNull File file) throws IOException {
+        if (contentLength() >= 0) {
+            return this;
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            writePayload(out);
+        }
+        return new StreamingRequestBody(mContentType, mHead, payloadOf(file), false, mTail, mListener);
+    }
+
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        BufferedSink counted = Okio.buffer(new CountingSink(sink));
+        counted.write(mHead);
+        if (mPayload != null) {
+            // The sink is closed by OkHttp, after the tail is written
+            OutputStream out = new FilterOutputStream(counted.outputStream()) {
+                // FilterOutputStream would write byte by byte
+                @Override
+                public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
+                }
+            };
+            writePayload(out);
+            out.flush();
+        }
+        counted.write(mTail);
+        counted.flush();
+    }
+
+
+    private void writePayload(@NonNull OutputStream out) throws IOException {
+        if (!mCompress) {
+            mPayload.writeTo(out);
+            return;
+        }
+        GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+        mPayload.writeTo(gzip);
+        // Writes the gzip trailer, without closing out
+        gzip.finish();
+    }
+
+
+    /** Reports the bytes passed to the socket */
+    private class CountingSink extends ForwardingSink {
+        CountingSink(@NonNull Sink delegate) {
+            super(delegate);
+        }
+
+
+        @Override
+        public void write(@NonNull Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            mListener.transferred(byteCount);
+        }
+    }
+}
@@ -22,7 +22,11 @@ import android.database.SQLException;
 import android.util.Pair;
 
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.ichi2.anki.AnkiDroidApp;
+import com.ichi2.anki.AnkiSerialization;
 import com.ichi2.anki.R;
 import com.ichi2.anki.analytics.UsageAnalytics;
 import com.ichi2.anki.exception.UnknownHttpResponseException;
@@ -43,15 +47,24 @@ import com.ichi2.utils.JSONArray;
 import com.ichi2.utils.JSONException;
 import com.ichi2.utils.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import okhttp3.Response;
 import timber.log.Timber;
 import static com.ichi2.libanki.sync.Syncer.ConnectionResultType.*;
@@ -82,7 +95,13 @@ public class Syncer {
     private boolean mLNewer;
     private String mSyncMsg;
 
+    /** Maximal number of rows in a chunk sent to the server */
+    private static final int CHUNK_ROWS = 250;
+
     private LinkedList<String> mTablesLeft;
+    /** Rows of the server's chunks merged, and time spent merging them */
+    private long mMergedRows;
+    private long mMergeNanos;
     private Cursor mCursor;
 
 
@@ -237,33 +256,8 @@ public class Syncer {
                     _forceFullSync();
                 }
                 // step 3: stream large tables from server
-                publishProgress(con, R.string.sync_download_chunk);
-                while (true) {
-                    throwExceptionIfCancelled(con);
-                    Timber.i("Sync: downloading chunked data");
-                    JSONObject chunk = mRemoteServer.chunk();
-                    mCol.log("server chunk", chunk);
-                    Timber.i("Sync: applying chunked data");
-                    applyChunk(chunk);
-                    if (chunk.getBoolean("done")) {
-                        break;
-                    }
-                }
                 // step 4: stream to server
-                publishProgress(con, R.string.sync_upload_chunk);
-                while (true) {
-                    throwExceptionIfCancelled(con);
-                    Timber.i("Sync: collecting chunked data");
-                    JSONObject chunk = chunk();
-                    mCol.log("client chunk", chunk);
-                    JSONObject sech = new JSONObject();
-                    sech.put("chunk", chunk);
-                    Timber.i("Sync: sending chunked data");
-                    mRemoteServer.applyChunk(sech);
-                    if (chunk.getBoolean("done")) {
-                        break;
-                    }
-                }
+                streamChunks(con);
                 // step 5: sanity check
                 JSONObject c = sanityCheck();
                 JSONObject sanity = mRemoteServer.sanityCheck2(c);
@@ -524,7 +518,8 @@ public class Syncer {
      * Chunked syncing ********************************************************************
      */
 
-    private void prepareToChunk() {
+    @VisibleForTesting
+    void prepareToChunk() {
         mTablesLeft = new LinkedList<>();
         mTablesLeft.add("revlog");
         mTablesLeft.add("cards");
@@ -566,69 +561,272 @@ public class Syncer {
     }
 
 
-    public JSONObject chunk() {
-        JSONObject buf = new JSONObject();
-        buf.put("done", false);
-        int lim = 250;
-        List<Integer> colTypes = null;
-        while (!mTablesLeft.isEmpty() && lim > 0) {
-            String curTable = mTablesLeft.getFirst();
-            if (mCursor == null) {
-                mCursor = cursorForTable(curTable);
-            }
-            colTypes = columnTypesForQuery(curTable);
-            JSONArray rows = new JSONArray();
-            int count = mCursor.getColumnCount();
-            int fetched = 0;
-            while (mCursor.moveToNext()) {
-                JSONArray r = new JSONArray();
-                for (int i = 0; i < count; i++) {
-                    switch (colTypes.get(i)) {
-                    case TYPE_STRING:
-                        r.put(mCursor.getString(i));
-                        break;
-                    case TYPE_FLOAT:
-                        r.put(mCursor.getDouble(i));
-                        break;
-                    case TYPE_INTEGER:
-                        r.put(mCursor.getLong(i));
-                        break;
-                    }
+    /**
+     * Download the server's chunks then upload ours. Requests are sent on another thread, so that the next chunk
+     * is downloaded while the previous one is applied, and the next chunk is read from the database while the previous
+     * one is uploaded. The database is only accessed from the calling thread, which owns the sync transaction, and
+     * only one request is in flight at a time.
+     */
+    private void streamChunks(Connection con) throws UnknownHttpResponseException, IOException {
+        mMergedRows = 0;
+        mMergeNanos = 0;
+        ExecutorService network = Executors.newSingleThreadExecutor();
+        try {
+            publishProgress(con, R.string.sync_download_chunk);
+            Timber.i("Sync: downloading chunked data");
+            Future<Chunk> next = network.submit(mRemoteServer::chunk);
+            while (true) {
+                Chunk chunk = await(next);
+                throwExceptionIfCancelled(con);
+                if (!chunk.isDone()) {
+                    next = network.submit(mRemoteServer::chunk);
                 }
-                rows.put(r);
-                if (++fetched == lim) {
+                mCol.log("server chunk", chunk);
+                Timber.i("Sync: applying chunked data");
+                applyChunk(chunk);
+                if (chunk.isDone()) {
+                    break;
+                }
+            }
+            Timber.i("Sync: merged %d rows in %d ms, %.0f rows/s", mMergedRows, mMergeNanos / 1000000, mergeRate());
+            mCol.log("merged", mMergedRows, "rows,", Math.round(mergeRate()), "rows/s");
+
+            publishProgress(con, R.string.sync_upload_chunk);
+            Future<?> sending = null;
+            while (true) {
+                Timber.i("Sync: collecting chunked data");
+                // Buffered rather than written into the request: the database is only read from this thread, while
+                // the previous chunk is uploaded from the network thread
+                ByteArrayOutputStream sech = new ByteArrayOutputStream();
+                boolean done = writeChunk(sech);
+                if (sending != null) {
+                    await(sending);
+                }
+                throwExceptionIfCancelled(con);
+                Timber.i("Sync: sending chunked data, %d bytes", sech.size());
+                sending = network.submit(() -> {
+                    mRemoteServer.applyChunk(sech.toByteArray());
+                    return null;
+                });
+                if (done) {
                     break;
                 }
             }
-            if (fetched != lim) {
-                // table is empty
-                mTablesLeft.removeFirst();
-                mCursor.close();
-                mCursor = null;
-                // if we're the client, mark the objects as having been sent
-                if (!mCol.getServer()) {
-                    mCol.getDb().execute("UPDATE " + curTable + " SET usn=? WHERE usn=-1", mMaxUsn);
+            await(sending);
+        } finally {
+            network.shutdownNow();
+        }
+    }
+
+
+    /** @return The result of a request sent on the network thread, rethrowing its exception */
+    private static <T> T await(@NonNull Future<T> request) throws UnknownHttpResponseException, IOException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnknownHttpResponseException) {
+                throw (UnknownHttpResponseException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+
+    /**
+     * Write the next chunk of local changes as the request {"chunk": {"revlog": [...], ..., "done": ...}}.
+     * Rows are written straight from the cursor, without building json objects. The sync buffers out in memory, so
+     * that the chunk is uploaded while the next one is written.
+     * @return Whether it is the last chunk
+     */
+    public boolean writeChunk(@NonNull OutputStream out) throws IOException {
+        int lim = CHUNK_ROWS;
+        try (JsonGenerator gen = AnkiSerialization.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeObjectFieldStart("chunk");
+            while (!mTablesLeft.isEmpty() && lim > 0) {
+                String curTable = mTablesLeft.getFirst();
+                if (mCursor == null) {
+                    mCursor = cursorForTable(curTable);
+                }
+                List<Integer> colTypes = columnTypesForQuery(curTable);
+                gen.writeArrayFieldStart(curTable);
+                int count = mCursor.getColumnCount();
+                int fetched = 0;
+                while (mCursor.moveToNext()) {
+                    gen.writeStartArray();
+                    for (int i = 0; i < count; i++) {
+                        switch (colTypes.get(i)) {
+                        case TYPE_STRING:
+                            gen.writeString(mCursor.getString(i));
+                            break;
+                        case TYPE_FLOAT:
+                            gen.writeNumber(mCursor.getDouble(i));
+                            break;
+                        case TYPE_INTEGER:
+                            gen.writeNumber(mCursor.getLong(i));
+                            break;
+                        }
+                    }
+                    gen.writeEndArray();
+                    if (++fetched == lim) {
+                        break;
+                    }
                 }
+                gen.writeEndArray();
+                if (fetched != lim) {
+                    // table is empty
+                    mTablesLeft.removeFirst();
+                    mCursor.close();
+                    mCursor = null;
+                    // if we're the client, mark the objects as having been sent
+                    if (!mCol.getServer()) {
+                        mCol.getDb().execute("UPDATE " + curTable + " SET usn=? WHERE usn=-1", mMaxUsn);
+                    }
+                }
+                lim -= fetched;
             }
-            buf.put(curTable, rows);
-            lim -= fetched;
+            boolean done = mTablesLeft.isEmpty();
+            gen.writeBooleanField("done", done);
+            gen.writeEndObject();
+            gen.writeEndObject();
+            mCol.log("client chunk", CHUNK_ROWS - lim, "rows", done ? "done" : "");
+            return done;
+        }
+    }
+
+
+    public void applyChunk(@NonNull Chunk chunk) {
+        long start = System.nanoTime();
+        int rows = 0;
+        List<Object[]> revlog = chunk.getRows("revlog");
+        if (revlog != null) {
+            mergeRevlog(revlog);
+            rows += revlog.size();
         }
-        if (mTablesLeft.isEmpty()) {
-            buf.put("done", true);
+        List<Object[]> cards = chunk.getRows("cards");
+        if (cards != null) {
+            mergeCards(cards);
+            rows += cards.size();
+        }
+        List<Object[]> notes = chunk.getRows("notes");
+        if (notes != null) {
+            long[] nids = mergeNotes(notes);
+            rows += notes.size();
+            // Checksums and sort fields of all merged notes are computed at once
+            if (nids.length > 0) {
+                mCol.updateFieldCache(nids);
+            }
         }
-        return buf;
+        long nanos = System.nanoTime() - start;
+        mMergedRows += rows;
+        mMergeNanos += nanos;
+        Timber.d("Sync: merged %d rows in %d ms", rows, nanos / 1000000);
     }
 
 
-    public void applyChunk(JSONObject chunk) {
-        if (chunk.has("revlog")) {
-            mergeRevlog(chunk.getJSONArray("revlog"));
+    /** @return Rows per second merged by {@link #applyChunk(Chunk)} since the sync started */
+    private double mergeRate() {
+        return mMergeNanos == 0 ? 0 : mMergedRows * 1e9 / mMergeNanos;
+    }
+
+
+    /**
+     * The rows of a chunk received from the server. The response is parsed as it is read, each row becoming the
+     * arguments of the statement which merges it, without intermediate json objects.
+     */
+    public static class Chunk {
+        private boolean mDone = false;
+        private final Map<String, List<Object[]>> mRows = new HashMap<>(3);
+
+
+        @NonNull
+        public static Chunk read(@NonNull InputStream in) throws IOException {
+            Chunk chunk = new Chunk();
+            try (JsonParser jp = AnkiSerialization.getFactory().createParser(in)) {
+                if (jp.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Chunk is not a json object");
+                }
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = jp.getCurrentName();
+                    JsonToken token = jp.nextToken();
+                    if ("done".equals(name)) {
+                        chunk.mDone = jp.getValueAsBoolean();
+                    } else if (token == JsonToken.START_ARRAY) {
+                        chunk.mRows.put(name, readRows(jp));
+                    } else {
+                        jp.skipChildren();
+                    }
+                }
+            }
+            return chunk;
+        }
+
+
+        @NonNull
+        private static List<Object[]> readRows(@NonNull JsonParser jp) throws IOException {
+            List<Object[]> rows = new ArrayList<>();
+            List<Object> row = new ArrayList<>();
+            while (jp.nextToken() == JsonToken.START_ARRAY) {
+                row.clear();
+                JsonToken token;
+                while ((token = jp.nextToken()) != JsonToken.END_ARRAY) {
+                    switch (token) {
+                        case VALUE_NUMBER_INT:
+                            row.add(jp.getLongValue());
+                            break;
+                        case VALUE_NUMBER_FLOAT:
+                            row.add(jp.getDoubleValue());
+                            break;
+                        case VALUE_STRING:
+                            row.add(jp.getText());
+                            break;
+                        case VALUE_TRUE:
+                        case VALUE_FALSE:
+                            row.add(jp.getBooleanValue());
+                            break;
+                        case VALUE_NULL:
+                            row.add(null);
+                            break;
+                        default:
+                            throw new IOException("Unexpected " + token + " in a row of a chunk");
+                    }
+                }
+                rows.add(row.toArray());
+            }
+            return rows;
+        }
+
+
+        public boolean isDone() {
+            return mDone;
         }
-        if (chunk.has("cards")) {
-            mergeCards(chunk.getJSONArray("cards"));
+
+
+        /** @return The rows of table, each one an array of column values; null if the chunk has none */
+        @Nullable
+        public List<Object[]> getRows(@NonNull String table) {
+            return mRows.get(table);
         }
-        if (chunk.has("notes")) {
-            mergeNotes(chunk.getJSONArray("notes"));
+
+
+        @NonNull
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder("chunk");
+            for (Map.Entry<String, List<Object[]>> table : mRows.entrySet()) {
+                s.append(' ').append(table.getKey()).append(": ").append(table.getValue().size());
+            }
+            return s.append(mDone ? ", done" : "").toString();
         }
     }
 
@@ -847,30 +1045,23 @@ public class Syncer {
      * Cards/notes/revlog ********************************************************************
      */
 
-    private void mergeRevlog(JSONArray logs) {
-        for (JSONArray log: logs.jsonArrayIterable()) {
-            try {
-                mCol.getDb().execute("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)",
-                        Utils.jsonArray2Objects(log));
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
+    private void mergeRevlog(List<Object[]> logs) {
+        try {
+            mCol.getDb().executeManyNoTransaction("INSERT OR IGNORE INTO revlog VALUES (?,?,?,?,?,?,?,?,?)", logs);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
-
     }
 
 
-    private ArrayList<Object[]> newerRows(JSONArray data, String table, int modIdx) {
-        long[] ids = new long[data.length()];
-        for (int i = 0; i < data.length(); i++) {
-            ids[i] = data.getJSONArray(i).getLong(0);
+    /** @return The rows of data which are not in the collection, or whose mod is newer than the collection's one. */
+    private ArrayList<Object[]> newerRows(List<Object[]> data, String table, int modIdx) {
+        long[] ids = new long[data.size()];
+        for (int i = 0; i < data.size(); i++) {
+            ids[i] = ((Number) data.get(i)[0]).longValue();
         }
         Pair<String, Object[]> limAndArg = usnLim();
-        Map<Long, Long> lmods = HashUtil.HashMapInit(mCol
-                    .getDb()
-                    .queryScalar(
-                            "SELECT count() FROM " + table + " WHERE id IN " + Utils.ids2str(ids) + " AND "
-                                    +  limAndArg.first, limAndArg.second));
+        Map<Long, Long> lmods = HashUtil.HashMapInit(data.size());
         try (Cursor cur = mCol
                     .getDb()
                     .query(
@@ -880,29 +1071,36 @@ public class Syncer {
                 lmods.put(cur.getLong(0), cur.getLong(1));
             }
         }
-        ArrayList<Object[]> update = new ArrayList<>(data.length());
-        for (JSONArray r: data.jsonArrayIterable()) {
-            if (!lmods.containsKey(r.getLong(0)) || lmods.get(r.getLong(0)) < r.getLong(modIdx)) {
-                update.add(Utils.jsonArray2Objects(r));
+        ArrayList<Object[]> update = new ArrayList<>(data.size());
+        for (Object[] r : data) {
+            Long lmod = lmods.get(((Number) r[0]).longValue());
+            if (lmod == null || lmod < ((Number) r[modIdx]).longValue()) {
+                update.add(r);
             }
         }
-        mCol.log(table, data);
+        mCol.log(table, data.size(), "rows,", update.size(), "newer");
         return update;
     }
 
 
-    private void mergeCards(JSONArray cards) {
-        for (Object[] r : newerRows(cards, "cards", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", r);
-        }
+    private void mergeCards(List<Object[]> cards) {
+        mCol.getDb().executeManyNoTransaction("INSERT OR REPLACE INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)",
+                newerRows(cards, "cards", 4));
     }
 
 
-    private void mergeNotes(JSONArray notes) {
-        for (Object[] n : newerRows(notes, "notes", 4)) {
-            mCol.getDb().execute("INSERT OR REPLACE INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)", n);
-            mCol.updateFieldCache(new long[]{((Number) n[0]).longValue()});
+    /**
+     * Insert the newer notes. Their field cache is not updated, the caller must do it.
+     * @return The ids of the inserted notes
+     */
+    private long[] mergeNotes(List<Object[]> notes) {
+        List<Object[]> newer = newerRows(notes, "notes", 4);
+        mCol.getDb().executeManyNoTransaction("INSERT OR REPLACE INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)", newer);
+        long[] nids = new long[newer.size()];
+        for (int i = 0; i < nids.length; i++) {
+            nids[i] = ((Number) newer.get(i)[0]).longValue();
         }
+        return nids;
     }
 
 
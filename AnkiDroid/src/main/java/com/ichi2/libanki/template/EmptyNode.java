@@ -30,7 +30,12 @@ public class EmptyNode extends ParsedNode {
 
 
     @Override
-    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder) {
+    public void add_used_fields(@NonNull Set<String> fields) {
+    }
+
+
+    @Override
+    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder, int card_ord, boolean question) {
     }
 
 
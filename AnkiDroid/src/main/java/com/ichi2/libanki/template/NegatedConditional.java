@@ -39,11 +39,17 @@ public class NegatedConditional extends ParsedNode {
         return nonempty_fields.contains(mKey) || mChild.template_is_empty(nonempty_fields);
     }
 
+    @Override
+    public void add_used_fields(@NonNull Set<String> fields) {
+        fields.add(mKey);
+        mChild.add_used_fields(fields);
+    }
+
     @NonNull
     @Override
-    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder) throws TemplateError {
+    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder, int card_ord, boolean question) throws TemplateError {
         if (!nonempty_fields.contains(mKey)) {
-            mChild.render_into(fields, nonempty_fields, builder);
+            mChild.render_into(fields, nonempty_fields, builder, card_ord, question);
         }
     }
 
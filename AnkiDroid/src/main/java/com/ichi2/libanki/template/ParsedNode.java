@@ -26,10 +26,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -54,37 +54,65 @@ public abstract class ParsedNode {
      */
     public abstract boolean template_is_empty(Set<String> nonempty_fields);
 
+    /**
+     * @param fields Set to which the names of the fields read by {@link #template_is_empty(Set)} are added.
+     *               Whether the template is empty does not depend on any other field.
+     */
+    public abstract void add_used_fields(Set<String> fields);
+
     // Used only fot testing
     @VisibleForTesting
     public boolean template_is_empty(String... nonempty_fields) {
         return template_is_empty(new HashSet<>(Arrays.asList(nonempty_fields)));
     }
 
-    public abstract void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder) throws TemplateError;
+    /**
+     * @param card_ord The ordinal of the card, starting at 1, whose cloze is shown by the "cloze" filter; or 0 to leave
+     *                 "cloze" filters unchanged.
+     * @param question Whether the question side is rendered. On the question side, the cloze of a "type" tag is kept.
+     */
+    public abstract void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder, int card_ord, boolean question) throws TemplateError;
+
 
+    /** Number of templates whose tree is kept. A collection rarely has more than a few dozens card types. */
+    private static final int PARSE_INNER_CACHE_SIZE = 256;
 
     /**
-     * Associate to each template its node, or the error it generates
+     * Associate to each template its node, or the error it generates.
+     * Templates are rendered unchanged for every card, so the same string is looked up again and again; it is kept with
+     * a strong reference until it is the least recently used one.
      */
-    private static WeakHashMap<String, Pair<ParsedNode, TemplateError>> parse_inner_cache = new WeakHashMap<>();
+    private static final Map<String, Pair<ParsedNode, TemplateError>> parse_inner_cache =
+            new LinkedHashMap<String, Pair<ParsedNode, TemplateError>>(PARSE_INNER_CACHE_SIZE, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pair<ParsedNode, TemplateError>> eldest) {
+                    return size() > PARSE_INNER_CACHE_SIZE;
+                }
+            };
 
     /**
      * @param template A question or answer template
-     * @return A tree representing the template.
+     * @return A tree representing the template. It is shared by all callers parsing the same template and must not be
+     * modified.
      * @throws TemplateError if the template is not valid
      */
     public static @NonNull ParsedNode parse_inner(@NonNull String template) throws TemplateError{
-        if (!parse_inner_cache.containsKey(template)) {
-            Pair<ParsedNode, TemplateError> res;
+        Pair<ParsedNode, TemplateError> res;
+        synchronized (parse_inner_cache) {
+            res = parse_inner_cache.get(template);
+        }
+        if (res == null) {
+            // Parsing is done outside the lock. Two threads may parse the same template, which is harmless.
             try {
                 ParsedNode node = parse_inner(new Tokenizer(template));
                 res = new Pair<>(node, null);
             } catch (TemplateError er) {
                 res = new Pair<>(null, er);
             }
-            parse_inner_cache.put(template, res);
+            synchronized (parse_inner_cache) {
+                parse_inner_cache.put(template, res);
+            }
         }
-        Pair<ParsedNode, TemplateError> res = parse_inner_cache.get(template);
         if (res.first != null) {
             return res.first;
         }
@@ -155,9 +183,17 @@ public abstract class ParsedNode {
     }
 
     public @NonNull String render(Map<String, String> fields, boolean question, Context context) {
+        return render(fields, question, 0, context);
+    }
+
+    /**
+     * @param card_ord The ordinal of the rendered card, starting at 1, used by the "cloze" filter. 0 if no card is
+     *                 rendered.
+     */
+    public @NonNull String render(Map<String, String> fields, boolean question, int card_ord, Context context) {
         try {
             StringBuilder builder = new StringBuilder();
-            render_into(fields, Utils.nonEmptyFields(fields), builder);
+            render_into(fields, Utils.nonEmptyFields(fields), builder, card_ord, question);
             return builder.toString();
         } catch (TemplateError er) {
             Timber.w(er);
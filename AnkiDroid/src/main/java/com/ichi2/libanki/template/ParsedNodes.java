@@ -67,10 +67,18 @@ public class ParsedNodes extends ParsedNode {
     }
 
 
+    @Override
+    public void add_used_fields(@NonNull Set<String> fields) {
+        for (ParsedNode child : mChildren) {
+            child.add_used_fields(fields);
+        }
+    }
+
+
     @NonNull
-    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder) throws TemplateError {
+    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder, int card_ord, boolean question) throws TemplateError {
         for (ParsedNode child: mChildren) {
-            child.render_into(fields, nonempty_fields, builder);
+            child.render_into(fields, nonempty_fields, builder, card_ord, question);
         }
     }
 
@@ -32,6 +32,8 @@ import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 public class Replacement extends ParsedNode {
+    private static final String CLOZE = "cloze";
+
     /**
      * The name of the field to show
      */
@@ -44,11 +46,32 @@ public class Replacement extends ParsedNode {
      * The entire content between {{ and }}
      */
     private final String mTag;
+    /**
+     * Index in {@link #mFilters} of the filter ending with "cloze", replaced by "cq-N" or "ca-N" when card N is rendered;
+     * or -1 if there is no such filter.
+     */
+    private final int mClozeFilter;
+    /** Position of "cloze:" in {@link #mTag}, or -1 */
+    private final int mClozePos;
+    /** Whether the tag is a "type" tag, whose cloze is not replaced on the question side */
+    private final boolean mTypeTag;
 
     public Replacement(String key, List<String> filters, String tag) {
         mKey = key;
         mFilters = filters;
         mTag = tag;
+        mTypeTag = tag.startsWith("type:");
+        mClozePos = tag.indexOf(CLOZE + ":");
+        if (mClozePos == -1) {
+            mClozeFilter = -1;
+        } else {
+            // The tag is "filter_n:...:filter_1:key" and the filters are stored from filter_1 to filter_n
+            int segment = 0;
+            for (int i = tag.indexOf(':'); i != -1 && i < mClozePos; i = tag.indexOf(':', i + 1)) {
+                segment++;
+            }
+            mClozeFilter = filters.size() - 1 - segment;
+        }
     }
 
     // Only used for test
@@ -63,6 +86,12 @@ public class Replacement extends ParsedNode {
         return !nonempty_fields.contains(mKey);
     }
 
+
+    @Override
+    public void add_used_fields(@NonNull Set<String> fields) {
+        fields.add(mKey);
+    }
+
     private static String runHint(String txt, String tag) {
         if (txt.trim().length() == 0) {
             return "";
@@ -79,7 +108,17 @@ public class Replacement extends ParsedNode {
 
     @NonNull
     @Override
-    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder) throws TemplateError.FieldNotFound {
+    public void render_into(Map<String, String> fields, Set<String> nonempty_fields, StringBuilder builder, int card_ord, boolean question) throws TemplateError.FieldNotFound {
+        List<String> filters = mFilters;
+        String tag = mTag;
+        if (card_ord > 0 && mClozeFilter != -1 && !(question && mTypeTag)) {
+            // The same tree is used for all cards of the template; the cloze of the card is chosen here.
+            String cardCloze = (question ? "cq-" : "ca-") + card_ord;
+            String filter = mFilters.get(mClozeFilter);
+            filters = new ArrayList<>(mFilters);
+            filters.set(mClozeFilter, filter.substring(0, filter.length() - CLOZE.length()) + cardCloze);
+            tag = mTag.substring(0, mClozePos) + cardCloze + mTag.substring(mClozePos + CLOZE.length());
+        }
         String txt = fields.get(mKey);
         if (txt == null) {
             if (mKey.trim().isEmpty() && !mFilters.isEmpty()) {
@@ -88,8 +127,8 @@ public class Replacement extends ParsedNode {
                 throw new TemplateError.FieldNotFound(mFilters, mKey);
             }
         }
-        for (String filter: mFilters) {
-            txt = TemplateFilters.apply_filter(txt, filter, mKey, mTag);
+        for (String filter: filters) {
+            txt = TemplateFilters.apply_filter(txt, filter, mKey, tag);
         }
         builder.append(txt);
     }
@@ -0,0 +1,171 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from long to long, without boxing of keys or values.
+ *
+ * Used for card, note and checksum indexes which may contain hundreds of thousands of entries, where a
+ * {@code HashMap<Long, Long>} would allocate three objects per entry.
+ *
+ * Uses open addressing with linear probing. Not thread safe.
+ */
+public class LongLongHashMap {
+    private static final float LOAD_FACTOR = .75f;
+
+    private long[] mKeys;
+    private long[] mValues;
+    private boolean[] mUsed;
+    private int mSize = 0;
+    /** Number of entries at which the tables are doubled */
+    private int mThreshold;
+
+
+    public LongLongHashMap() {
+        this(16);
+    }
+
+
+    /** @param expectedSize Number of entries the map can contain without being resized */
+    public LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR) + 1, 16) - 1) << 1;
+        allocate(capacity);
+    }
+
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new long[capacity];
+        mUsed = new boolean[capacity];
+        mThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+
+    private static int hash(long key) {
+        // Card and note ids are timestamps in milliseconds, mix the bits so that consecutive ids spread.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+
+    /** @return The slot containing key, or the negation minus one of the slot where it would be inserted. */
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mUsed[slot]) {
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+
+    /** @return The value associated to key, or defaultValue if there is none. */
+    public long get(long key, long defaultValue) {
+        int slot = find(key);
+        return slot >= 0 ? mValues[slot] : defaultValue;
+    }
+
+
+    /** Associate value to key, replacing any previous value. */
+    public void put(long key, long value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            mValues[slot] = value;
+            return;
+        }
+        if (mSize >= mThreshold) {
+            rehash(mKeys.length << 1);
+            slot = find(key);
+        }
+        slot = -slot - 1;
+        mUsed[slot] = true;
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+    }
+
+
+    /** @return Whether key was present. */
+    public boolean remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        // Shift back the following entries of the probe sequence, so that no lookup stops early on the freed slot.
+        int mask = mKeys.length - 1;
+        int free = slot;
+        int next = (free + 1) & mask;
+        while (mUsed[next]) {
+            int ideal = hash(mKeys[next]) & mask;
+            // Move the entry if its ideal slot is not strictly between the freed slot and its current slot
+            if (((next - ideal) & mask) >= ((next - free) & mask)) {
+                mKeys[free] = mKeys[next];
+                mValues[free] = mValues[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mUsed[free] = false;
+        mSize--;
+        return true;
+    }
+
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        long[] values = mValues;
+        boolean[] used = mUsed;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = -find(keys[i]) - 1;
+                mUsed[slot] = true;
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+}
@@ -17,6 +17,8 @@
 package com.ichi2.anki;
 
 import com.ichi2.async.CollectionTask;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Storage;
 import com.ichi2.testutils.AnkiAssert;
 import com.ichi2.testutils.BackupManagerTestUtilities;
 
@@ -25,6 +27,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.IOException;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
@@ -34,6 +37,12 @@ import static org.hamcrest.Matchers.is;
 @RunWith(AndroidJUnit4.class)
 public class BackupManagerIntegrationTest extends RobolectricTest {
 
+    @Override
+    protected boolean useInMemoryDatabase() {
+        return false;
+    }
+
+
     @Test
     @Ignore("Fails on line: if (!f.renameTo(new File(colPath))) {")
     public void restoreBackupLeavesCollectionWritable() throws InterruptedException {
@@ -50,6 +59,35 @@ public class BackupManagerIntegrationTest extends RobolectricTest {
     }
 
 
+    @Test
+    public void incrementalBackupIsRestored() throws IOException {
+        addNoteUsingBasicModel("Hello", "World");
+        File colFile = new File(getCol().getPath());
+        File full = new File(colFile.getParentFile(), "collection-2021-01-01-00-00.colpkg");
+        closeCollection();
+        IncrementalBackup.writeFull(colFile, full);
+        addNoteUsingBasicModel("Hello", "Again");
+        closeCollection();
+        File delta = new File(colFile.getParentFile(), "collection-2021-01-01-05-00.coldelta");
+        assertThat(IncrementalBackup.writeDelta(colFile, full, IncrementalBackup.readPageHashes(full), delta, colFile.length()), is(true));
+        File restored = new File(colFile.getParentFile(), "restored/collection.anki2");
+
+        assertThat(BackupManager.restoreIncrementalBackup(delta, restored, getTargetContext()), is(true));
+
+        Collection col = Storage.Collection(getTargetContext(), restored.getAbsolutePath());
+        try {
+            assertThat(col.noteCount(), is(2));
+        } finally {
+            col.close();
+        }
+    }
+
+
+    private void closeCollection() {
+        CollectionHelper.getInstance().closeCollection(false, "BackupManagerIntegrationTest");
+    }
+
+
     private String createBackup() {
         try {
             BackupManagerTestUtilities.setupSpaceForBackup(getTargetContext());
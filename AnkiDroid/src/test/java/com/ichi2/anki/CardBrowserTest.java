@@ -31,6 +31,7 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowActivity;
 import org.robolectric.shadows.ShadowApplication;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -416,6 +417,40 @@ public class CardBrowserTest extends RobolectricTest {
         assertThat("after: cards", intentAfterReverse.getLongArrayExtra("cardList"), is(new long[] { cid2, cid1 }));
     }
 
+    @Test
+    public void selectionFollowsCardAfterSort() {
+        long cid1 = addNoteUsingBasicModel("Hello", "World").cards().get(0).getId();
+        long cid2 = addNoteUsingBasicModel("Hello2", "World2").cards().get(0).getId();
+
+        CardBrowser b = getBrowserWithNoNewCards();
+
+        b.checkCardsAtPositions(0);
+
+        // reverse, keeping the selection
+        b.changeCardOrder(1);
+
+        assertThat(b.hasCheckedCardAtPosition(1), is(true));
+        assertThat(b.hasCheckedCardAtPosition(0), is(false));
+        Intent previewIntent = b.getPreviewIntent();
+        assertThat("index of the checked card", previewIntent.getIntExtra("index", -100), is(1));
+        assertThat(previewIntent.getLongArrayExtra("cardList"), is(new long[] { cid2, cid1 }));
+    }
+
+    @Test
+    public void selectAllChecksEveryCard() {
+        long cid1 = addNoteUsingBasicModel("Hello", "World").cards().get(0).getId();
+        long cid2 = addNoteUsingBasicModel("Hello2", "World2").cards().get(0).getId();
+
+        CardBrowser b = getBrowserWithNoNewCards();
+
+        b.onSelectAll();
+
+        assertThat(b.checkedCardCount(), is(2));
+        assertThat(b.hasCheckedCardAtPosition(0), is(true));
+        assertThat(b.hasCheckedCardAtPosition(1), is(true));
+        assertThat(b.getCheckedCardIds(), is(Arrays.asList(cid1, cid2)));
+    }
+
     /** 7420 */
     @Test
     public void addCardDeckIsNotSetIfAllDecksSelectedAfterLoad() {
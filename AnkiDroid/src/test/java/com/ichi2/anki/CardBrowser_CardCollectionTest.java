@@ -16,15 +16,21 @@
 
 package com.ichi2.anki;
 
+import com.ichi2.libanki.Collection;
+
 import org.junit.Test;
 
 import java.util.Arrays;
-
+import java.util.Collections;
 
 import androidx.annotation.NonNull;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
 
 public class CardBrowser_CardCollectionTest {
 
@@ -42,6 +48,39 @@ public class CardBrowser_CardCollectionTest {
     }
 
 
+    @Test
+    public void cacheListOnlyKeepsAWindowOfCaches() {
+        int size = CardBrowser.CardCacheList.WINDOW * 3;
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = 1000 + i;
+        }
+        CardBrowser.CardCollection<CardBrowser.CardCache> cards = new CardBrowser.CardCollection<>();
+        CardBrowser.CardCacheList list = new CardBrowser.CardCacheList(mock(Collection.class), ids);
+        cards.replaceWith(list);
+
+        CardBrowser.CardCache first = cards.get(0);
+        assertThat(cards.get(0), sameInstance(first));
+        for (int i = 0; i < size; i++) {
+            assertThat(cards.get(i).getId(), is(1000L + i));
+            assertThat(cards.get(i).getPosition(), is(i));
+        }
+        assertThat(list.getCreated().size(), lessThanOrEqualTo(CardBrowser.CardCacheList.WINDOW));
+        // dropped from the window, but still equal for the selection
+        assertThat(cards.get(0), not(sameInstance(first)));
+        assertThat(cards.get(0), is(first));
+
+        cards.reverse();
+        assertThat(cards.get(0).getId(), is(1000L + size - 1));
+        assertThat(cards.get(0).getPosition(), is(0));
+
+        CardBrowser.CardCacheList without = list.without(Collections.singleton(1001L));
+        assertThat(without.size(), is(size - 1));
+        assertThat(without.get(1).getId(), is(1002L));
+        assertThat(without.get(1).getPosition(), is(1));
+    }
+
+
     @NonNull
     protected CardBrowser.CardCollection<Positioned> createCollection(Positioned... toInsert) {
         CardBrowser.CardCollection<Positioned> cardCollection = new CardBrowser.CardCollection<>();
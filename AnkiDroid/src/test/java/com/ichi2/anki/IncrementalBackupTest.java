@@ -0,0 +1,150 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.anki;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+@RunWith(AndroidJUnit4.class)
+public class IncrementalBackupTest {
+
+    private static final int PAGE_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mCol;
+    private File mFull;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mCol = mFolder.newFile("collection.anki2");
+        byte[] content = new byte[PAGE_SIZE * 50];
+        new Random(42).nextBytes(content);
+        // The page size in the header of the database
+        content[16] = (byte) (PAGE_SIZE >> 8);
+        content[17] = 0;
+        try (FileOutputStream out = new FileOutputStream(mCol)) {
+            out.write(content);
+        }
+        mFull = new File(mFolder.getRoot(), "collection-2021-01-01-00-00.colpkg");
+        IncrementalBackup.writeFull(mCol, mFull);
+    }
+
+
+    @Test
+    public void deltaContainsOnlyChangedPages() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mCol, "rw")) {
+            raf.seek(PAGE_SIZE * 7 + 10);
+            raf.write(new byte[] {1, 2, 3});
+            // the database grows by a page
+            raf.setLength(PAGE_SIZE * 51L);
+        }
+        File delta = new File(mFolder.getRoot(), "collection-2021-01-01-05-00.coldelta");
+
+        boolean written = IncrementalBackup.writeDelta(mCol, mFull, IncrementalBackup.readPageHashes(mFull), delta, mCol.length() / 2);
+
+        assertThat(written, is(true));
+        assertThat(delta.length(), lessThan(PAGE_SIZE * 3L));
+        assertThat(IncrementalBackup.baseName(delta), is(mFull.getName()));
+        assertRestoresCollection(delta);
+    }
+
+
+    @Test
+    public void shrunkDatabaseIsRestored() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mCol, "rw")) {
+            raf.setLength(PAGE_SIZE * 20L);
+        }
+        File delta = new File(mFolder.getRoot(), "collection-2021-01-01-05-00.coldelta");
+
+        IncrementalBackup.writeDelta(mCol, mFull, IncrementalBackup.readPageHashes(mFull), delta, mCol.length() / 2);
+
+        assertRestoresCollection(delta);
+    }
+
+
+    @Test
+    public void largeDeltaIsNotWritten() throws IOException {
+        byte[] content = new byte[PAGE_SIZE * 30];
+        Arrays.fill(content, (byte) 7);
+        try (RandomAccessFile raf = new RandomAccessFile(mCol, "rw")) {
+            raf.seek(PAGE_SIZE);
+            raf.write(content);
+        }
+        File delta = new File(mFolder.getRoot(), "collection-2021-01-01-05-00.coldelta");
+
+        boolean written = IncrementalBackup.writeDelta(mCol, mFull, IncrementalBackup.readPageHashes(mFull), delta, mCol.length() / 2);
+
+        assertThat(written, is(false));
+        assertThat("partial delta is removed", delta.exists(), is(false));
+    }
+
+
+    @Test
+    public void pruningKeepsTheFullBackupOfAKeptDelta() throws IOException {
+        File oldDelta = writeDelta("collection-2021-01-01-05-00.coldelta", mFull);
+        File keptDelta = writeDelta("collection-2021-01-01-10-00.coldelta", mFull);
+        File newFull = new File(mFolder.getRoot(), "collection-2021-01-01-15-00.colpkg");
+        IncrementalBackup.writeFull(mCol, newFull);
+        File newDelta = writeDelta("collection-2021-01-01-20-00.coldelta", newFull);
+
+        BackupManager.deleteDeckBackups(new File[] {mFull, oldDelta, keptDelta, newFull, newDelta}, 3);
+
+        assertThat(mFolder.getRoot().list(), arrayContainingInAnyOrder(mCol.getName(), mFull.getName(),
+                keptDelta.getName(), newFull.getName(), newDelta.getName()));
+    }
+
+
+    /** Change a page of the collection, and save it as a delta of base */
+    private File writeDelta(String name, File base) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mCol, "rw")) {
+            raf.seek(PAGE_SIZE * 3);
+            raf.write(name.getBytes(StandardCharsets.UTF_8));
+        }
+        File delta = new File(mFolder.getRoot(), name);
+        assertThat(IncrementalBackup.writeDelta(mCol, base, IncrementalBackup.readPageHashes(base), delta, mCol.length() / 2), is(true));
+        return delta;
+    }
+
+
+    private void assertRestoresCollection(File delta) throws IOException {
+        File restored = new File(mFolder.getRoot(), "restored/collection.anki2");
+        IncrementalBackup.restoreDelta(delta, restored);
+        assertThat(Arrays.equals(Files.readAllBytes(restored.toPath()), Files.readAllBytes(mCol.toPath())), is(true));
+    }
+}
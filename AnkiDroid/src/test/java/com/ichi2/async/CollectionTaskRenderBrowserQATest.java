@@ -0,0 +1,61 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.async;
+
+import android.util.Pair;
+
+import com.ichi2.anki.CardBrowser;
+import com.ichi2.anki.RunInBackground;
+import com.ichi2.libanki.Collection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(AndroidJUnit4.class)
+public class CollectionTaskRenderBrowserQATest extends AbstractCollectionTaskTest {
+
+    @Test
+    @RunInBackground
+    public void rendersRequestedCardsAndReportsMissingOnes() {
+        Collection col = getCol();
+        long missingId = 42;
+        long[] ids = new long[12];
+        for (int i = 0; i < ids.length - 1; i++) {
+            ids[i] = addNoteUsingBasicModel("front " + i, "back " + i).firstCard().getId();
+        }
+        ids[ids.length - 1] = missingId;
+        CardBrowser.CardCollection<CardBrowser.CardCache> cards = new CardBrowser.CardCollection<>();
+        cards.replaceWith(new CardBrowser.CardCacheList(col, ids));
+
+        Pair<CardBrowser.CardCollection<CardBrowser.CardCache>, List<Long>> result =
+                execute(new CollectionTask.RenderBrowserQA(cards, 2, ids.length, 0, 0));
+
+        assertThat(result.second, contains(missingId));
+        for (int i = 0; i < ids.length - 1; i++) {
+            assertThat("card at " + i, cards.get(i).isLoaded(), is(i >= 2));
+        }
+        assertThat(cards.get(5).getCard().note().getFields()[0], is("front 5"));
+    }
+}
@@ -19,6 +19,7 @@ package com.ichi2.libanki;
 import com.ichi2.anki.RobolectricTest;
 import com.ichi2.anki.exception.ImportExportException;
 import com.ichi2.libanki.exception.EmptyMediaException;
+import com.ichi2.utils.JSONObject;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -33,6 +34,7 @@ import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
 
 import androidx.annotation.NonNull;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
@@ -40,7 +42,11 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.everyItem;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
 
 @RunWith(AndroidJUnit4.class)
@@ -111,6 +117,50 @@ public class AnkiPackageExporterTest extends RobolectricTest {
     }
 
 
+    @Test
+    public void compressedMediaIsStored() throws IOException, ImportExportException {
+        File image = addTempFileToMediaAndNote(".jpg");
+        File text = addTempFileToMediaAndNote(".txt");
+
+        AnkiPackageExporter exporter = getExporterForDeckWithMedia();
+        Path tempExportDir = Files.createTempDirectory("AnkiDroid-compressedMediaIsStored-export");
+        File exportedFile = new File(tempExportDir.toFile(), "export.apkg");
+
+        exporter.exportInto(exportedFile.getAbsolutePath(), getTargetContext());
+
+        Path unzipDirectory = unzipFilesTo(tempExportDir, exportedFile);
+        JSONObject media = new JSONObject(new String(Files.readAllBytes(unzipDirectory.resolve("media"))));
+        assertThat(media.length(), is(2));
+        try (org.apache.commons.compress.archivers.zip.ZipFile zip = new org.apache.commons.compress.archivers.zip.ZipFile(exportedFile)) {
+            for (String num : media.names().stringIterable()) {
+                int expected = media.getString(num).equals(image.getName()) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                assertThat(media.getString(num), zip.getEntry(num).getMethod(), is(expected));
+            }
+        }
+        // the parallel compression's temporary files are removed
+        assertThat(Arrays.asList(tempExportDir.toFile().list()), everyItem(not(startsWith("scatter"))));
+    }
+
+
+    @Test
+    public void foldersOfTheMediaFolderAreNotExported() throws IOException, ImportExportException {
+        File text = addTempFileToMediaAndNote(".txt");
+        File folder = new File(getCol().getMedia().dir(), "folder");
+        assertThat(folder.mkdir(), is(true));
+
+        AnkiPackageExporter exporter = new AnkiPackageExporter(getCol(), true, true);
+        Path tempExportDir = Files.createTempDirectory("AnkiDroid-foldersOfTheMediaFolderAreNotExported-export");
+        File exportedFile = new File(tempExportDir.toFile(), "export.colpkg");
+
+        exporter.exportInto(exportedFile.getAbsolutePath(), getTargetContext());
+
+        Path unzipDirectory = unzipFilesTo(tempExportDir, exportedFile);
+        JSONObject media = new JSONObject(new String(Files.readAllBytes(unzipDirectory.resolve("media"))));
+        assertThat(media.length(), is(1));
+        assertThat(media.getString("0"), is(text.getName()));
+    }
+
+
     @Test
     public void stripHTML_will_remove_html_with_unicode_whitespace() {
         Exporter exporter = getExporterForDeckWithMedia();
@@ -167,7 +217,12 @@ public class AnkiPackageExporterTest extends RobolectricTest {
 
 
     private File addTempFileToMediaAndNote() throws IOException {
-        File temp = File.createTempFile("AnkiDroid-missingFileInExportDoesNotThrowException", ".txt");
+        return addTempFileToMediaAndNote(".txt");
+    }
+
+
+    private File addTempFileToMediaAndNote(String suffix) throws IOException {
+        File temp = File.createTempFile("AnkiDroid-missingFileInExportDoesNotThrowException", suffix);
         PrintWriter writer = new PrintWriter(temp);
         writer.println("unit test data");
         writer.close();
@@ -4,6 +4,7 @@ import com.ichi2.anki.RobolectricTest;
 import com.ichi2.anki.UIUtils;
 import com.ichi2.anki.exception.ConfirmModSchemaException;
 import com.ichi2.anki.exception.FilteredAncestor;
+import com.ichi2.anki.exception.DeckRenameException;
 import com.ichi2.libanki.utils.Time;
 import com.ichi2.testutils.MockTime;
 import com.ichi2.utils.JSONArray;
@@ -24,6 +25,7 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import static com.ichi2.utils.JSONObject.NULL;
 import static org.hamcrest.Matchers.hasItemInArray;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
 
@@ -379,4 +381,72 @@ public class CardTest extends RobolectricTest {
 
     }
 
+
+    @Test
+    public void renderIsReusedUntilNoteOrDeckChanges() throws DeckRenameException {
+        Collection col = getCol();
+        Model model = col.getModels().byName("Basic");
+        model.getJSONArray("tmpls").getJSONObject(0).put("qfmt", "{{Front}} in {{Deck}}");
+        col.getModels().save(model, true);
+        Note note = addNoteUsingBasicModel("foo", "bar");
+        RenderCache cache = col.getRenderCache();
+        long hits = cache.getHits();
+
+        assertEquals("foo in Default", note.firstCard()._getQA(true).get("q"));
+        assertEquals("foo in Default", note.firstCard()._getQA(true).get("q"));
+        assertThat(cache.getHits(), is(hits + 1));
+
+        note.setItem("Front", "baz");
+        note.flush();
+        assertEquals("baz in Default", note.firstCard()._getQA(true).get("q"));
+
+        col.getDecks().rename(col.getDecks().get(1), "Renamed");
+        assertEquals("baz in Renamed", note.firstCard()._getQA(true).get("q"));
+    }
+
+
+    @Test
+    public void renderIsKeptWhenACardIsAnswered() {
+        Collection col = getCol();
+        Note note = addNoteUsingBasicModel("foo", "bar");
+        RenderCache cache = col.getRenderCache();
+        note.firstCard()._getQA(true);
+        long hits = cache.getHits();
+
+        // saves the deck, to update its counts
+        col.reset();
+        col.getSched().answerCard(col.getSched().getCard(), Consts.BUTTON_THREE);
+
+        assertEquals("foo", note.firstCard()._getQA(true).get("q"));
+        assertThat(cache.getHits(), is(hits + 1));
+    }
+
+
+    @Test
+    public void genCardsFollowsFieldsUsedByEachTemplate() {
+        Collection col = getCol();
+        Note both = addNoteUsingBasicModel("front", "back");
+        Note frontOnly = addNoteUsingBasicModel("front only", "");
+        Model m = col.getModels().current();
+        ModelManager mm = col.getModels();
+        JSONObject t = Models.newTemplate("rev");
+        t.put("qfmt", "{{#Back}}{{Back}}{{/Back}}");
+        t.put("afmt", "");
+        mm.addTemplateModChanged(m, t);
+        mm.save(m, true);
+        assertEquals(2, both.numberOfCards());
+        assertEquals(1, frontOnly.numberOfCards());
+
+        // siblings share the due of the first card
+        List<Card> cards = both.cards();
+        assertEquals(cards.get(0).getDue(), cards.get(1).getDue());
+
+        t = m.getJSONArray("tmpls").getJSONObject(1);
+        t.put("qfmt", "{{^Back}}{{Front}}{{/Back}}");
+        mm.save(m, true);
+        List<Long> rem = col.genCards(mm.nids(m), m);
+        assertThat(rem.size(), is(1));
+        assertEquals(both.cards().get(1).getId(), (long) rem.get(0));
+        assertEquals(2, frontOnly.numberOfCards());
+    }
 }
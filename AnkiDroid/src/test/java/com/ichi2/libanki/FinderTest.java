@@ -357,6 +357,34 @@ public class FinderTest extends RobolectricTest {
         assertEquals(1L, cb.getCardCount());
     }
 
+    @Test
+    public void searchPlansAreReusedUntilDecksChange() {
+        Collection col = getCol();
+        SearchPlanCache cache = col.getSearchPlanCache();
+        addNoteUsingBasicModel("foo", "bar");
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        assertThat(col.findCards("deck:Foo"), hasSize(0));
+        assertThat(cache.getMisses(), is(misses + 1));
+        // same search, different spacing
+        assertThat(col.findCards("  deck:Foo "), hasSize(0));
+        assertThat(cache.getHits(), is(hits + 1));
+
+        // a new deck must be seen by the search
+        long did = addDeck("Foo");
+        Note note = addNoteUsingBasicModel("baz", "qux");
+        Card card = note.firstCard();
+        card.setDid(did);
+        card.flush();
+        assertThat(col.findCards("deck:Foo"), is(Arrays.asList(card.getId())));
+
+        // field searches depend on note content and are never reused
+        int size = cache.size();
+        assertThat(col.findCards("front:baz"), hasSize(1));
+        assertThat(cache.size(), is(size));
+    }
+
     @Test
     public void test_findReplace() {
         Collection col = getCol();
@@ -0,0 +1,166 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.utils.JSONArray;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import timber.log.Timber;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(AndroidJUnit4.class)
+public class MediaChangesZipTest extends RobolectricTest {
+
+    @Test
+    public void mixedMediaIsZipped() throws IOException {
+        Media media = getCol().getMedia();
+        Map<String, byte[]> files = addMixedMedia(media, 10);
+        media.removeFile("deleted.mp3");
+
+        MediaChangesZip zip = media.mediaChangesZip();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        zip.writeTo(out);
+
+        assertThat(zip.getFnames(), hasSize(files.size() + 1));
+        // written twice, as when a request is retried
+        ByteArrayOutputStream again = new ByteArrayOutputStream();
+        zip.writeTo(again);
+        assertThat(again.toByteArray(), is(out.toByteArray()));
+
+        Map<String, byte[]> entries = new HashMap<>();
+        Map<String, Integer> methods = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                entries.put(entry.getName(), read(in));
+                methods.put(entry.getName(), entry.getMethod());
+            }
+        }
+        JSONArray meta = new JSONArray(new String(entries.get("_meta"), StandardCharsets.UTF_8));
+        assertThat(meta.length(), is(files.size() + 1));
+        for (int i = 0; i < meta.length(); i++) {
+            String fname = meta.getJSONArray(i).getString(0);
+            String zipName = meta.getJSONArray(i).getString(1);
+            if ("deleted.mp3".equals(fname)) {
+                assertThat(zipName, is(""));
+                continue;
+            }
+            assertThat(fname, entries.get(zipName), is(files.get(fname)));
+            assertThat(fname, methods.get(zipName), is(fname.endsWith(".jpg") ? ZipEntry.STORED : ZipEntry.DEFLATED));
+        }
+    }
+
+
+    @Test
+    @Ignore("Benchmark, to be run manually")
+    public void mediaZipBenchmark() throws IOException {
+        Media media = getCol().getMedia();
+        Map<String, byte[]> files = addMixedMedia(media, 50);
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        media.mediaChangesZip().writeTo(out);
+        long elapsed = System.nanoTime() - start;
+        start = System.nanoTime();
+        byte[] legacy = legacyZip(media, files);
+        Timber.i("Media zip of %d files: %d bytes in %d ms, every file deflated with small buffers: %d bytes in %d ms",
+                files.size(), out.size(), elapsed / 1000000, legacy.length, (System.nanoTime() - start) / 1000000);
+    }
+
+
+    /**
+     * Write count random, hence incompressible, images and count text files to the media folder, as changes to send.
+     * @return The content of the files, by name
+     */
+    private static Map<String, byte[]> addMixedMedia(Media media, int count) throws IOException {
+        Random random = new Random(42);
+        Map<String, byte[]> files = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] jpg = new byte[100 * 1024];
+            random.nextBytes(jpg);
+            files.put("image" + i + ".jpg", jpg);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 100 * 1024) {
+                text.append("<div>line ").append(text.length() % 97).append(" of a compressible file</div>\n");
+            }
+            files.put("page" + i + ".svg", text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            try (FileOutputStream out = new FileOutputStream(new File(media.dir(), file.getKey()))) {
+                out.write(file.getValue());
+            }
+            media.markFileAdd(file.getKey());
+        }
+        return files;
+    }
+
+
+    /** The zip as it was built before, for comparison */
+    private static byte[] legacyZip(Media media, Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream z = new ZipOutputStream(bytes)) {
+            z.setMethod(ZipOutputStream.DEFLATED);
+            byte[] buffer = new byte[2048];
+            int c = 0;
+            for (String fname : files.keySet()) {
+                z.putNextEntry(new ZipEntry(Integer.toString(c++)));
+                try (InputStream in = new FileInputStream(new File(media.dir(), fname))) {
+                    int count;
+                    while ((count = in.read(buffer, 0, 2048)) != -1) {
+                        z.write(buffer, 0, count);
+                    }
+                }
+                z.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) >= 0) {
+            out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
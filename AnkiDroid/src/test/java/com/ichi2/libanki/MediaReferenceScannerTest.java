@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.async.CancelListener;
+import com.ichi2.async.ProgressSender;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(AndroidJUnit4.class)
+public class MediaReferenceScannerTest extends RobolectricTest {
+
+    @Test
+    public void tokenizerFindsTheSameFilesAsTheRegularExpressions() {
+        long mid = getCol().getModels().current().getLong("id");
+        String[] fields = {
+                "aoeu",
+                "aoeu<img src='foo.jpg'>ao",
+                "aoeu<img src='foo.jpg' style='test'>ao",
+                "aoeu<img src='foo.jpg'><img src=\"bar.jpg\">ao",
+                "aoeu<img src=foo.jpg style=bar>ao",
+                "<img src=one><img src=two>",
+                "aoeu<img src=\"foo.jpg\"><img class=yo src=fo>ao",
+                "aou[sound:foo.mp3]aou[SOUND:bar.mp3]",
+                "<IMG SRC='upper.jpg'>",
+                "<img src='http://example.com/remote.jpg'><img src=local.png>",
+                "[sound:]x] [sound:unclosed",
+                "[sound:<img src=inside.jpg>]",
+                "<img src=\"\" alt=\"x\">",
+                "<img alt=\"a\" src='a.jpg' src=b.jpg>",
+                "<img src='unterminated.jpg>",
+                "<img data-src='not.jpg'>",
+                "<img src=\"a b.jpg\">\u001f<img src='second.jpg'>",
+        };
+        for (String field : fields) {
+            List<String> refs = new ArrayList<>();
+            MediaReferenceScanner.addReferences(field, refs);
+            assertThat(field, new HashSet<>(refs), is(new HashSet<>(getCol().getMedia().filesInStr(mid, field))));
+        }
+    }
+
+
+    @Test
+    public void checkFindsMissingAndUnusedFiles() throws IOException {
+        Collection col = getCol();
+        Media media = col.getMedia();
+        addNoteUsingBasicModel("<img src='used.jpg'>", "[sound:missing.mp3]");
+        addNoteUsingBasicModel("<img src=used.jpg>", "<img src='_ignored.jpg'>");
+        write(media, "used.jpg");
+        write(media, "unused.jpg");
+
+        List<List<String>> result = media.check();
+
+        assertThat(result.get(0), contains("missing.mp3"));
+        assertThat(result.get(1), contains("unused.jpg"));
+        assertThat(result.get(2), is(empty()));
+    }
+
+
+    @Test
+    public void clozeInAFileNameIsExpanded() {
+        Collection col = getCol();
+        addNoteUsingModelName("Cloze", "<img src=\"{{c1::cloze.jpg}}\">", "");
+        addNoteUsingModelName("Cloze", "{{c1::text}} <img src=\"plain.jpg\">", "");
+
+        MediaReferenceScanner.Result result = new MediaReferenceScanner(col, col.getMedia()).scan(new Task(new ArrayList<>(), false));
+
+        assertThat(Arrays.asList(result.getRefs()), hasItems("cloze.jpg", "plain.jpg"));
+    }
+
+
+    @Test
+    public void scanReportsProgressAndCanBeCancelled() {
+        Collection col = getCol();
+        col.getDb().executeInTransaction(() -> {
+            for (int i = 0; i < 5000; i++) {
+                addNoteUsingBasicModel("<img src='file" + (i % 1000) + ".jpg'>", "[sound:sound" + i + ".mp3]");
+            }
+        });
+        List<Integer> progress = new ArrayList<>();
+        MediaReferenceScanner.Result result = new MediaReferenceScanner(col, col.getMedia()).scan(new Task(progress, false));
+
+        assertThat(result.getRefs().length, is(6000));
+        String[] sorted = result.getRefs().clone();
+        Arrays.sort(sorted);
+        assertThat(result.getRefs(), is(sorted));
+        // once per range of 2000 notes, when it is scanned
+        assertThat(progress, contains(40, 80, 100));
+
+        assertThat(new MediaReferenceScanner(col, col.getMedia()).scan(new Task(progress, true)), is(nullValue()));
+    }
+
+
+    private static class Task implements ProgressSender<Integer>, CancelListener {
+        private final List<Integer> mProgress;
+        private final boolean mCancelled;
+
+
+        private Task(List<Integer> progress, boolean cancelled) {
+            mProgress = progress;
+            mCancelled = cancelled;
+        }
+
+
+        @Override
+        public void doProgress(@Nullable Integer value) {
+            mProgress.add(value);
+        }
+
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+
+    private static void write(Media media, String fname) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(media.dir(), fname))) {
+            out.write(fname.getBytes());
+        }
+    }
+}
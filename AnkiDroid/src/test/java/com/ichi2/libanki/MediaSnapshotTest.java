@@ -0,0 +1,113 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.anki.RobolectricTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(AndroidJUnit4.class)
+public class MediaSnapshotTest extends RobolectricTest {
+
+    @Test
+    public void changesAreFoundFromTheSnapshot() throws IOException {
+        Media media = getCol().getMedia();
+        File foo = write(media, "foo.jpg", "foo");
+        write(media, "bar.jpg", "bar");
+
+        media.findChanges(true);
+        assertThat(media.dirtyCount(), is(2));
+        assertThat(media.getDb().queryScalar("select count() from snapshot"), is(2));
+        media.getDb().execute("update media set dirty = 0");
+
+        // same stat, not read again
+        media.findChanges(true);
+        assertThat(media.dirtyCount(), is(0));
+
+        // touched but not modified
+        assertThat(foo.setLastModified(foo.lastModified() - 10000), is(true));
+        media.findChanges(true);
+        assertThat(media.dirtyCount(), is(0));
+
+        // modified without changing the modification time
+        long mtime = foo.lastModified();
+        write(media, "foo.jpg", "modified foo");
+        assertThat(foo.setLastModified(mtime), is(true));
+        media.findChanges(true);
+        assertThat(media.dirtyCount(), is(1));
+        assertThat(media.syncInfo("foo.jpg").first, is(Utils.fileChecksum(foo)));
+
+        assertThat(foo.delete(), is(true));
+        media.findChanges(true);
+        assertThat(media.syncInfo("foo.jpg").first, is(nullValue()));
+        assertThat(media.getDb().queryScalar("select count() from snapshot where fname = 'foo.jpg'"), is(0));
+    }
+
+
+    @Test
+    public void filesRecordedWithoutSnapshotAreNotReportedAsChanged() throws IOException {
+        Media media = getCol().getMedia();
+        write(media, "foo.jpg", "foo");
+        media.findChanges(true);
+        media.getDb().execute("update media set dirty = 0");
+        // as in a media database from before the snapshot
+        media.getDb().execute("delete from snapshot");
+
+        media.findChanges(true);
+        assertThat(media.dirtyCount(), is(0));
+        assertThat(media.getDb().queryScalar("select count() from snapshot"), is(1));
+    }
+
+
+    @Test
+    public void unchangedFilesAreNotReportedOnTheNextScan() throws IOException {
+        Media media = getCol().getMedia();
+        int files = 2000;
+        for (int i = 0; i < files; i++) {
+            write(media, "file" + i + ".txt", "content " + i);
+        }
+        media.findChanges(true);
+        assertThat(media.mediacount(), is(files));
+        assertThat(media.getDb().queryScalar("select count() from snapshot"), is(files));
+        media.getDb().execute("update media set dirty = 0");
+
+        media.findChanges(true);
+        assertThat(media.mediacount(), is(files));
+        assertThat(media.dirtyCount(), is(0));
+    }
+
+
+    private static File write(Media media, String fname, String content) throws IOException {
+        File file = new File(media.dir(), fname);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki;
+
+import com.ichi2.anki.RobolectricTest;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import timber.log.Timber;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class NoteSearchIndexTest extends RobolectricTest {
+
+    @Test
+    public void wordSearchWithoutIndex() {
+        Collection col = getCol();
+        Note dog = addNoteUsingBasicModel("the <b>dog</b>", "barks");
+        addNoteUsingBasicModel("hotdog", "");
+
+        assertThat(col.getSearchIndex().isEnabled(), is(false));
+        assertThat(col.findNotes("w:dog"), contains(dog.getId()));
+        assertThat(col.findNotes("w:do*"), contains(dog.getId()));
+        assertThat(col.findNotes("\"w:dog barks\""), contains(dog.getId()));
+        assertThat(col.findNotes("\"w:dog meows\""), is(empty()));
+    }
+
+
+    @Test
+    public void indexFollowsNoteChanges() {
+        Collection col = getCol();
+        Note dog = addNoteUsingBasicModel("the <b>dog</b>", "barks");
+        addNoteUsingBasicModel("hotdog", "");
+        assumeTrue("FTS4 is not available", col.getSearchIndex().enable());
+
+        assertThat(col.findNotes("w:dog"), contains(dog.getId()));
+        assertThat(col.findNotes("w:do*"), contains(dog.getId()));
+        assertThat(col.findNotes("\"w:dog barks\""), contains(dog.getId()));
+
+        Note cat = addNoteUsingBasicModel("cat", "meows");
+        assertThat(col.findNotes("w:meows"), contains(cat.getId()));
+
+        cat.setField(1, "purrs");
+        cat.flush();
+        assertThat(col.findNotes("w:meows"), is(empty()));
+        assertThat(col.findNotes("w:purrs"), contains(cat.getId()));
+
+        col.remNotes(new long[] {cat.getId()});
+        assertThat(col.findNotes("w:purrs"), is(empty()));
+
+        // changes written directly in the database are indexed by updateFieldCache
+        col.getDb().execute("update notes set flds = ? where id = ?", "the cat\u001fmeows", dog.getId());
+        col.updateFieldCache(new long[] {dog.getId()});
+        assertThat(col.findNotes("w:dog"), is(empty()));
+        assertThat(col.findNotes("w:cat"), contains(dog.getId()));
+
+        col.getSearchIndex().disable();
+        assertThat(col.getSearchIndex().getSize(), is(0L));
+        assertThat(col.findNotes("w:cat"), contains(dog.getId()));
+    }
+
+
+    @Test
+    public void indexIsRebuiltWhenTheCollectionDoesNotMatch() {
+        Collection col = getCol();
+        Note dog = addNoteUsingBasicModel("dog", "barks");
+        assumeTrue("FTS4 is not available", col.getSearchIndex().enable());
+        col.getSearchIndex().close();
+        col.getDb().execute("detach search");
+        // as if the collection file was replaced while the index was closed
+        col.getDb().execute("update notes set flds = ? where id = ?", "cat\u001fmeows", dog.getId());
+        col.getDb().execute("update col set mod = mod + 1");
+
+        col.getSearchIndex().open();
+        assertThat(col.getSearchIndex().isEnabled(), is(true));
+        col.getSearchIndex().awaitRebuild();
+
+        assertThat(col.getSearchIndex().isSearchable(), is(true));
+        assertThat(col.findNotes("w:dog"), is(empty()));
+        assertThat(col.findNotes("w:cat"), contains(dog.getId()));
+    }
+
+
+    @Test
+    public void indexIsRebuiltWhenTheCollectionWasNotClosed() {
+        Collection col = getCol();
+        Note dog = addNoteUsingBasicModel("dog", "barks");
+        assumeTrue("FTS4 is not available", col.getSearchIndex().enable());
+        // as if the application was killed
+        col.getDb().execute("detach search");
+        col.getSearchIndex().open();
+        Note cat = addNoteUsingBasicModel("cat", "meows");
+        col.getSearchIndex().awaitRebuild();
+
+        assertThat(col.getSearchIndex().isSearchable(), is(true));
+        assertThat(col.findNotes("w:dog"), contains(dog.getId()));
+        assertThat(col.findNotes("w:cat"), contains(cat.getId()));
+    }
+
+
+    @Test
+    public void incompleteIndexIsRebuiltWhenItIsOpenedAgain() {
+        Collection col = getCol();
+        Note dog = addNoteUsingBasicModel("dog", "barks");
+        assumeTrue("FTS4 is not available", col.getSearchIndex().enable());
+        col.getDb().execute("detach search");
+        col.getSearchIndex().open();
+        // closed before the rebuild is done, or at least without waiting for it
+        col.getSearchIndex().close();
+        col.getDb().execute("detach search");
+
+        col.getSearchIndex().open();
+        col.getSearchIndex().awaitRebuild();
+
+        assertThat(col.getSearchIndex().isSearchable(), is(true));
+        assertThat(col.findNotes("w:dog"), contains(dog.getId()));
+    }
+
+
+    @Test
+    public void indexFindsTheSameNotesAsWithoutIndex() {
+        Collection col = getCol();
+        int notes = 2000;
+        col.getDb().executeInTransaction(() -> {
+            for (int i = 0; i < notes; i++) {
+                addNoteUsingBasicModel("note " + i + " <i>front</i> word" + (i % 100), "back of the note " + i);
+            }
+        });
+        List<Long> withoutIndex = col.findNotes("w:word42");
+
+        assumeTrue("FTS4 is not available", col.getSearchIndex().enable());
+        List<Long> withIndex = col.findNotes("w:word42");
+
+        Collections.sort(withoutIndex);
+        Collections.sort(withIndex);
+        assertThat(withIndex, hasSize(notes / 100));
+        assertThat(withIndex, is(withoutIndex));
+    }
+
+
+    @Test
+    @Ignore("Benchmark, to be run manually")
+    public void indexBenchmark() {
+        Collection col = getCol();
+        int notes = 20000;
+        col.getDb().executeInTransaction(() -> {
+            for (int i = 0; i < notes; i++) {
+                addNoteUsingBasicModel("note " + i + " <i>front</i> word" + (i % 100), "back of the note " + i);
+            }
+        });
+        searchAndLog(col, "without index");
+
+        long start = System.currentTimeMillis();
+        assumeTrue("FTS4 is not available", col.getSearchIndex().enable());
+        Timber.i("Index of %d notes built in %d ms, %d bytes", notes, System.currentTimeMillis() - start, col.getSearchIndex().getSize());
+        searchAndLog(col, "with index");
+    }
+
+
+    private static void searchAndLog(Collection col, String description) {
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            col.findNotes("w:word42");
+        }
+        Timber.i("10 word searches %s in %d ms", description, (System.nanoTime() - start) / 1000000);
+    }
+}
@@ -24,7 +24,9 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -154,4 +156,14 @@ public class UtilsTest {
                     "", Utils.stripHTML(s));
         }
     }
+
+    @Test
+    public void sha1HexIsPaddedLikeChecksums() throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA1").digest("foo".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Utils.checksum("foo"), Utils.sha1Hex(digest));
+
+        byte[] leadingZeros = new byte[20];
+        leadingZeros[19] = 1;
+        assertEquals("0000000000000000000000000000000000000001", Utils.sha1Hex(leadingZeros));
+    }
 }
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.anki.exception.ImportExportException;
+import com.ichi2.libanki.AnkiPackageExporter;
+import com.ichi2.libanki.MediaReferenceScanner;
+import com.ichi2.libanki.Note;
+import com.ichi2.libanki.exception.EmptyMediaException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThrows;
+
+@RunWith(AndroidJUnit4.class)
+public class AnkiPackageImporterTest extends RobolectricTest {
+
+    private static final String IMAGE = "image.jpg";
+
+
+    @Override
+    protected boolean useInMemoryDatabase() {
+        return false;
+    }
+
+
+    @Test
+    public void absentMediaIsAdded() throws Exception {
+        File apkg = exportNoteWithImage("exported");
+        assertThat(new File(getCol().getMedia().dir(), IMAGE).delete(), is(true));
+
+        importPackage(apkg);
+
+        assertThat(importedReferences(), contains(IMAGE));
+        assertThat(read(IMAGE), is("exported"));
+    }
+
+
+    @Test
+    public void identicalMediaIsKept() throws Exception {
+        File apkg = exportNoteWithImage("exported");
+
+        importPackage(apkg);
+
+        assertThat(importedReferences(), contains(IMAGE));
+        assertThat(read(IMAGE), is("exported"));
+        assertThat(getCol().getMedia().dir() + " has a single file", new File(getCol().getMedia().dir()).list().length, is(1));
+    }
+
+
+    @Test
+    public void differentMediaIsRenamed() throws Exception {
+        File apkg = exportNoteWithImage("exported");
+        // same size, and changed since the media database recorded its checksum
+        File local = new File(getCol().getMedia().dir(), IMAGE);
+        write(local, "modified");
+        assertThat(local.setLastModified(local.lastModified() + 10000), is(true));
+
+        importPackage(apkg);
+
+        List<String> refs = importedReferences();
+        assertThat(refs.size(), is(1));
+        assertThat(refs.get(0), not(IMAGE));
+        assertThat(read(refs.get(0)), is("exported"));
+        assertThat(read(IMAGE), is("modified"));
+    }
+
+
+    @Test
+    public void mediaIsReadFromTheZipWhenItCannotBeStaged() throws Exception {
+        File apkg = exportNoteWithImage("exported");
+        assertThat(new File(getCol().getMedia().dir(), IMAGE).delete(), is(true));
+        // a file where the staging directory would be created
+        File tempDir = new File(new File(getCol().getPath()).getParent(), "tmpzip");
+        assertThat(tempDir.mkdirs(), is(true));
+        write(new File(tempDir, "staged"), "not a directory");
+
+        importPackage(apkg);
+
+        assertThat(importedReferences(), contains(IMAGE));
+        assertThat(read(IMAGE), is("exported"));
+    }
+
+
+    @Test
+    public void cancelledImportAddsNothing() throws Exception {
+        File apkg = exportNoteWithImage("exported");
+        AnkiPackageImporter importer = new AnkiPackageImporter(getCol(), apkg.getAbsolutePath());
+        importer.setCancelListener(() -> true);
+
+        assertThrows(ImportExportException.class, importer::run);
+
+        assertThat(getCol().noteCount(), is(0));
+        assertThat(getCol().cardCount(), is(0));
+    }
+
+
+    /** Export a note referencing {@link #IMAGE}, then remove the note so that the package adds it again. */
+    private File exportNoteWithImage(String content) throws IOException, ImportExportException, EmptyMediaException {
+        File source = File.createTempFile("AnkiPackageImporterTest", ".jpg");
+        write(source, content);
+        File named = new File(source.getParentFile(), IMAGE);
+        assertThat(source.renameTo(named), is(true));
+        assertThat(getCol().getMedia().addFile(named), is(IMAGE));
+        assertThat(named.delete(), is(true));
+        Note note = addNoteUsingBasicModel(String.format("<img src=\"%s\">", IMAGE), "back");
+
+        File apkg = new File(Files.createTempDirectory("AnkiPackageImporterTest").toFile(), "export.apkg");
+        new AnkiPackageExporter(getCol(), 1L, true, true).exportInto(apkg.getAbsolutePath(), getTargetContext());
+        getCol().remNotes(new long[] {note.getId()});
+        return apkg;
+    }
+
+
+    private void importPackage(File apkg) throws ImportExportException {
+        new AnkiPackageImporter(getCol(), apkg.getAbsolutePath()).run();
+    }
+
+
+    private List<String> importedReferences() {
+        List<String> refs = new ArrayList<>();
+        MediaReferenceScanner.addReferences(getCol().getDb().queryString("select flds from notes"), refs);
+        return refs;
+    }
+
+
+    private String read(String fname) throws IOException {
+        return new String(Files.readAllBytes(new File(getCol().getMedia().dir(), fname).toPath()), StandardCharsets.UTF_8);
+    }
+
+
+    private static void write(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
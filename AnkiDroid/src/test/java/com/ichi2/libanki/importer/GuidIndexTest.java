@@ -0,0 +1,103 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Note;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(AndroidJUnit4.class)
+public class GuidIndexTest extends RobolectricTest {
+
+    private final int mDefaultThreshold = GuidIndex.sSpillThreshold;
+
+
+    @After
+    public void restoreThreshold() {
+        GuidIndex.sSpillThreshold = mDefaultThreshold;
+    }
+
+
+    @Test
+    public void smallCollectionIsIndexedInMemory() {
+        Note note = addNoteUsingBasicModel("a", "b");
+
+        GuidIndex index = GuidIndex.build(getCol().getDb());
+
+        assertThat(index.isSpilled(), is(false));
+        assertThat(index.get(note.getGuId()).mNid, is(note.getId()));
+        index.close();
+    }
+
+
+    @Test
+    public void spilledIndexFindsPrefetchedAndAddedNotes() {
+        GuidIndex.sSpillThreshold = 1;
+        Note first = addNoteUsingBasicModel("a", "b");
+        Note second = addNoteUsingBasicModel("c", "d");
+
+        GuidIndex index = GuidIndex.build(getCol().getDb());
+        assertThat(index.isSpilled(), is(true));
+
+        // nothing is known before a prefetch
+        assertThat(index.contains(first.getGuId()), is(false));
+        index.prefetch(Collections.singletonList(first.getGuId()));
+        assertThat(index.get(first.getGuId()).mNid, is(first.getId()));
+        assertThat(index.get(second.getGuId()), is(nullValue()));
+
+        // notes added in a batch are found by later batches
+        index.put("added", 42, 1, second.getMid());
+        index.prefetch(Arrays.asList(second.getGuId(), "added"));
+        assertThat(index.contains(first.getGuId()), is(false));
+        assertThat(index.get(second.getGuId()).mMod, is(second.getMod()));
+        assertThat(index.get("added").mNid, is(42L));
+
+        index.close();
+        assertThat(getCol().getDb().queryScalar("select count() from sqlite_temp_master where name = 'import_guids'"), is(0));
+    }
+
+
+    @Test
+    public void duplicateGuidsKeepTheLastNote() {
+        Note first = addNoteUsingBasicModel("a", "b");
+        Note second = addNoteUsingBasicModel("c", "d");
+        getCol().getDb().execute("update notes set guid = ? where id = ?", first.getGuId(), second.getId());
+
+        GuidIndex inMemory = GuidIndex.build(getCol().getDb());
+        assertThat(inMemory.get(first.getGuId()).mNid, is(second.getId()));
+        inMemory.close();
+
+        GuidIndex.sSpillThreshold = 1;
+        GuidIndex spilled = GuidIndex.build(getCol().getDb());
+        assertThat(spilled.isSpilled(), is(true));
+        spilled.prefetch(Collections.singletonList(first.getGuId()));
+        assertThat(spilled.get(first.getGuId()).mNid, is(second.getId()));
+        spilled.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.importer;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.importer.NoteImporter.ForeignNote;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(AndroidJUnit4.class)
+public class NoteImporterTest extends RobolectricTest {
+
+    @Test
+    public void duplicatesAreFoundAcrossBatches() {
+        addNoteUsingBasicModel("existing", "old back");
+        List<ForeignNote> notes = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            notes.add(note("front " + i, "back " + i));
+        }
+        // in a later batch than its first occurrence
+        notes.add(note("front 3", "other back"));
+        notes.add(note("existing", "new back"));
+
+        TwoFieldImporter importer = new TwoFieldImporter(getCol());
+        importer.importNotes(notes);
+
+        assertThat(getCol().noteCount(), is(1201));
+        assertThat(importer.getTotal(), is(1201));
+        assertThat(importer.getLog(), hasItem("Appeared twice in file: front 3"));
+        assertThat(getCol().getDb().queryString("select flds from notes where sfld = 'existing'"), is("existing\u001fnew back"));
+    }
+
+
+    @Test
+    public void cancellingStopsAfterTheCurrentBatch() {
+        List<ForeignNote> notes = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            notes.add(note("front " + i, "back " + i));
+        }
+
+        TwoFieldImporter importer = new TwoFieldImporter(getCol());
+        int[] batches = {0};
+        importer.setCancelListener(() -> batches[0]++ > 0);
+        importer.importNotes(notes);
+
+        assertThat(getCol().noteCount(), is(500));
+    }
+
+
+    private static ForeignNote note(String front, String back) {
+        ForeignNote note = new ForeignNote();
+        note.mFields.add(front);
+        note.mFields.add(back);
+        return note;
+    }
+
+
+    private static class TwoFieldImporter extends NoteImporter {
+        TwoFieldImporter(Collection col) {
+            super(col, "");
+            initMapping();
+        }
+
+
+        @Override
+        public int fields() {
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sched;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Card;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(AndroidJUnit4.class)
+public class CardQueueTest extends RobolectricTest {
+
+    @Test
+    public void cardsArePoppedInOrderAfterTheBufferWrapsAround() {
+        TestQueue queue = new TestQueue();
+        List<Long> expected = new ArrayList<>();
+        long cid = 1;
+        // the head moves forward while cards are added, so that the positions go around the initial buffer several times
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 40; i++) {
+                queue.addCard(cid, cid * 10);
+                expected.add(cid++);
+            }
+            for (int i = 0; i < 30; i++) {
+                assertThat(queue.popId(), is(expected.remove(0)));
+            }
+        }
+
+        assertThat(queue.size(), is(expected.size()));
+        assertThat(queue.getFirstDueValue(), is(expected.get(0) * 10));
+        assertThat(queue.drain(), is(expected));
+    }
+
+
+    @Test
+    public void removedCardsLeaveNoVisibleHole() {
+        TestQueue queue = new TestQueue();
+        for (long cid = 1; cid <= 10; cid++) {
+            queue.addCard(cid, cid);
+        }
+
+        assertThat(queue.remove(1), is(true));
+        assertThat(queue.remove(4), is(true));
+        assertThat(queue.remove(5), is(true));
+        assertThat(queue.remove(10), is(true));
+        assertThat(queue.remove(10), is(false));
+        assertThat(queue.remove(42), is(false));
+
+        assertThat(queue.size(), is(6));
+        assertThat(queue.getFirstDueValue(), is(2L));
+        assertThat(queue.drain(), contains(2L, 3L, 6L, 7L, 8L, 9L));
+        assertThat(queue.isEmpty(), is(true));
+    }
+
+
+    @Test
+    public void cardAddedAgainMovesToTheEnd() {
+        TestQueue queue = new TestQueue();
+        queue.addCard(1, 0);
+        queue.addCard(2, 0);
+        queue.addCard(3, 0);
+
+        queue.addCard(1, 0);
+
+        assertThat(queue.size(), is(3));
+        assertThat(queue.drain(), contains(2L, 3L, 1L));
+    }
+
+
+    @Test
+    public void insertedCardFollowsTheCardsDueAtTheSameTime() {
+        TestQueue queue = new TestQueue();
+        queue.addCard(1, 10);
+        queue.addCard(2, 20);
+        queue.addCard(3, 20);
+        queue.addCard(4, 30);
+        // a hole before the insertion point
+        queue.remove(2);
+        // the head was already created, and must be replaced
+        queue.loadFirstCard();
+
+        queue.insertCard(5, 20);
+        queue.insertCard(6, 5);
+        queue.insertCard(7, 40);
+        // moves the card rather than adding it twice
+        queue.insertCard(3, 25);
+
+        assertThat(queue.getFirstDueValue(), is(5L));
+        assertThat(queue.drainWithDues(), contains(6L, 5L, 1L, 10L, 5L, 20L, 3L, 25L, 4L, 30L, 7L, 40L));
+    }
+
+
+    @Test
+    public void insertionsAroundTheEndOfTheBuffer() {
+        TestQueue queue = new TestQueue();
+        for (long cid = 1; cid <= 60; cid++) {
+            queue.addCard(cid, cid * 10);
+        }
+        for (int i = 0; i < 50; i++) {
+            queue.popId();
+        }
+        // 51 to 60 are at the end of the buffer, the insertions wrap around
+        List<Long> expected = new ArrayList<>();
+        for (long cid = 51; cid <= 60; cid++) {
+            expected.add(cid);
+        }
+        for (long cid = 100; cid < 110; cid++) {
+            queue.insertCard(cid, 555);
+        }
+        expected.addAll(5, Arrays.asList(100L, 101L, 102L, 103L, 104L, 105L, 106L, 107L, 108L, 109L));
+
+        assertThat(queue.drain(), is(expected));
+    }
+
+
+    @Test
+    public void queueGrowsAndDropsHolesWhenFull() {
+        TestQueue queue = new TestQueue();
+        List<Long> expected = new ArrayList<>();
+        for (long cid = 1; cid <= 64; cid++) {
+            queue.addCard(cid, cid);
+        }
+        // most of the buffer becomes holes, which are dropped rather than growing the buffer
+        for (long cid = 1; cid <= 64; cid++) {
+            if (cid % 4 != 0) {
+                queue.remove(cid);
+            } else {
+                expected.add(cid);
+            }
+        }
+        for (long cid = 100; cid < 400; cid++) {
+            queue.addCard(cid, cid);
+            expected.add(cid);
+        }
+        // holes in a grown buffer, then an insertion among them
+        for (long cid = 100; cid < 400; cid += 3) {
+            queue.remove(cid);
+            expected.remove(cid);
+        }
+        queue.insertCard(1000, 398);
+        expected.add(expected.size() - 1, 1000L);
+
+        assertThat(queue.size(), is(expected.size()));
+        assertThat(queue.drain(), is(expected));
+    }
+
+
+    @Test
+    public void sortByDueIsStable() {
+        TestQueue queue = new TestQueue();
+        long[] dues = {3, 1, 2, 1, 3, 2, 1};
+        for (int i = 0; i < dues.length; i++) {
+            queue.addCard(i + 1, dues[i]);
+        }
+        queue.remove(6);
+
+        queue.sortByDue();
+
+        assertThat(queue.drainWithDues(), contains(2L, 1L, 4L, 1L, 7L, 1L, 3L, 2L, 1L, 3L, 5L, 3L));
+    }
+
+
+    @Test
+    public void shuffleIsTheSameAsCollectionsShuffle() {
+        TestQueue queue = new TestQueue();
+        List<Long> expected = new ArrayList<>();
+        for (long cid = 1; cid <= 100; cid++) {
+            queue.addCard(cid, 0);
+            expected.add(cid);
+        }
+
+        queue.shuffle(new Random(42));
+        Collections.shuffle(expected, new Random(42));
+
+        assertThat(queue.drain(), is(expected));
+    }
+
+
+    /** A queue which never loads its cards, so that any id can be used */
+    private class TestQueue extends CardQueue<Card.Cache> {
+        /** The last cache created, which is the head of the queue once it is requested */
+        private Card.Cache mLastCreated;
+
+
+        TestQueue() {
+            super(CardQueueTest.this.getCol().getSched());
+        }
+
+
+        @NonNull
+        @Override
+        protected Card.Cache newCache(long cid, long due) {
+            mLastCreated = new Card.Cache(getCol(), cid) {
+                @NonNull
+                @Override
+                public synchronized Card getCard() {
+                    throw new UnsupportedOperationException();
+                }
+
+
+                @Override
+                public void loadQA(boolean reload, boolean browser) {
+                    // nothing to render
+                }
+            };
+            return mLastCreated;
+        }
+
+
+        long popId() {
+            try {
+                removeFirstCard();
+            } catch (UnsupportedOperationException e) {
+                // the card is not loaded
+            }
+            return mLastCreated.getId();
+        }
+
+
+        List<Long> drain() {
+            List<Long> ids = new ArrayList<>();
+            while (!isEmpty()) {
+                ids.add(popId());
+            }
+            return ids;
+        }
+
+
+        /** @return The id and due of each card, in order */
+        List<Long> drainWithDues() {
+            List<Long> idsAndDues = new ArrayList<>();
+            while (!isEmpty()) {
+                long due = getFirstDueValue();
+                idsAndDues.add(popId());
+                idsAndDues.add(due);
+            }
+            return idsAndDues;
+        }
+    }
+}
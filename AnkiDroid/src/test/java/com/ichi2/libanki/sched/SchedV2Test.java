@@ -46,8 +46,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import timber.log.Timber;
 
 import static com.ichi2.libanki.Consts.CARD_TYPE_LRN;
 import static com.ichi2.libanki.Consts.CARD_TYPE_NEW;
@@ -1754,4 +1756,122 @@ public class SchedV2Test extends RobolectricTest {
         sched.answerCard(card, Consts.BUTTON_ONE);
         assertDoesNotThrow(col::undo);
     }
+
+    @Test
+    public void queuesAreUpdatedRatherThanRefilled() throws Exception {
+        Collection col = getColV2();
+        addNoteUsingBasicModel("one", "1");
+        addNoteUsingBasicModel("two", "2");
+        addNoteUsingBasicModel("three", "3");
+        SchedV2 sched = (SchedV2) col.getSched();
+        sched.reset();
+        int refills = sched.getQueueRefillCount();
+        int deltas = sched.getQueueDeltaCount();
+
+        Card card = sched.getCard();
+        long[] cids = new long[] {card.getId()};
+        sched.buryCards(cids);
+        sched.deferReset(cids);
+        sched.resetCounts();
+        assertThat(sched.newCount(), is(2));
+        Card next = sched.getCard();
+        assertThat(next, notNullValue());
+        assertThat(next.getId(), not(card.getId()));
+        assertThat("Burying a card should not refill the queues", sched.getQueueRefillCount(), is(refills));
+        assertThat(sched.getQueueDeltaCount(), is(deltas + 1));
+
+        // the unburied card is due again, so only the new queue is emptied
+        sched.unburyCards();
+        sched.deferReset(cids);
+        sched.resetCounts();
+        assertThat(sched.newCount(), is(3));
+        assertThat(sched.getCard(), notNullValue());
+        assertThat(sched.getQueueRefillCount(), is(refills));
+        assertThat(sched.getQueueDeltaCount(), is(deltas + 2));
+
+        // unknown changes
+        sched.deferReset();
+        sched.resetCounts();
+        assertThat(sched.getCard(), notNullValue());
+        assertThat(sched.getQueueRefillCount(), is(refills + 1));
+    }
+
+    /** Compares the batched and the per-deck computation of the deck list on a synthetic collection. */
+    @Test
+    public void batchedDeckDueListIsSameAsPerDeck() throws Exception {
+        SchedV2 sched = fillSyntheticDecks(10, 300);
+
+        List<DeckDueTreeNode> perDeck = sched.deckDueList(null, false);
+        List<DeckDueTreeNode> batched = sched.deckDueList(null, true);
+
+        assertThat(batched, is(perDeck));
+        for (int i = 0; i < batched.size(); i++) {
+            assertThat(batched.get(i).getDid(), is(perDeck.get(i).getDid()));
+        }
+    }
+
+
+    @Test
+    @Ignore("Benchmark, to be run manually")
+    public void deckDueListBenchmark() throws Exception {
+        SchedV2 sched = fillSyntheticDecks(50, 10000);
+        int decks = getCol().getDecks().count();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            sched.deckDueList(null, false);
+        }
+        long perDeckTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            sched.deckDueList(null, true);
+        }
+        long batchedTime = System.nanoTime() - start;
+        Timber.i("10 deckDueList on %d decks: per deck %d ms, batched %d ms", decks, perDeckTime / 1_000_000, batchedTime / 1_000_000);
+    }
+
+
+    /**
+     * Create topDecks decks, each with children and grandchildren, and the cards of notes notes spread over them in
+     * every queue. The first deck's limits are lower than its number of cards, so that limits are applied.
+     */
+    private SchedV2 fillSyntheticDecks(int topDecks, int notes) throws Exception {
+        Collection col = getColV2();
+        SchedV2 sched = (SchedV2) col.getSched();
+        Random random = new Random(42);
+        List<Long> dids = new ArrayList<>();
+        for (int i = 0; i < topDecks; i++) {
+            dids.add(addDeck("deck" + i));
+            for (int j = 0; j < 3; j++) {
+                dids.add(addDeck("deck" + i + "::child" + j));
+                dids.add(addDeck("deck" + i + "::child" + j + "::grandchild"));
+            }
+        }
+        DeckConfig conf = col.getDecks().confForDid(dids.get(0));
+        conf.getJSONObject("new").put("perDay", 3);
+        conf.getJSONObject("rev").put("perDay", 4);
+        col.getDecks().save(conf);
+
+        for (int i = 0; i < notes; i++) {
+            addNoteUsingBasicModel("front" + i, "back");
+        }
+        List<Object[]> updates = new ArrayList<>();
+        long now = col.getTime().intTime();
+        int today = sched.getToday();
+        int[] queues = {QUEUE_TYPE_NEW, QUEUE_TYPE_LRN, QUEUE_TYPE_REV, QUEUE_TYPE_DAY_LEARN_RELEARN, QUEUE_TYPE_SIBLING_BURIED};
+        for (long cid : col.getDb().queryLongList("SELECT id FROM cards")) {
+            int queue = queues[random.nextInt(queues.length)];
+            long due;
+            if (queue == QUEUE_TYPE_LRN) {
+                due = now + random.nextInt(3600 * 4) - 3600;
+            } else if (queue == QUEUE_TYPE_NEW) {
+                due = random.nextInt(1000);
+            } else {
+                due = today + random.nextInt(4) - 2;
+            }
+            updates.add(new Object[] {dids.get(random.nextInt(dids.size())), queue, due, cid});
+        }
+        col.getDb().executeMany("UPDATE cards SET did = ?, queue = ?, due = ? WHERE id = ?", updates);
+        return sched;
+    }
 }
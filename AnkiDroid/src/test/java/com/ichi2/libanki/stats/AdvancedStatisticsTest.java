@@ -0,0 +1,66 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.stats;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.anki.stats.StatsMetaInfo;
+import com.ichi2.libanki.Card;
+import com.ichi2.libanki.Consts;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(AndroidJUnit4.class)
+public class AdvancedStatisticsTest extends RobolectricTest {
+
+    @Test
+    public void forecastWithTheSameSeedIsTheSame() {
+        for (int i = 0; i < 40; i++) {
+            addNoteUsingBasicModel("front " + i, "back");
+        }
+        // some history, so that the outcomes of the simulated reviews are drawn from it
+        for (int i = 0; i < 10; i++) {
+            getCol().reset();
+            Card card = getCol().getSched().getCard();
+            getCol().getSched().answerCard(card, i % 3 == 0 ? Consts.BUTTON_ONE : Consts.BUTTON_THREE);
+        }
+        getPreferences().edit()
+                .putBoolean("advanced_statistics_enabled", true)
+                .putInt("advanced_forecast_stats_mc_n_iterations", 8)
+                .apply();
+
+        StatsMetaInfo first = forecast(42);
+        StatsMetaInfo second = forecast(42);
+
+        assertThat(first.isStatsCalculated(), is(true));
+        assertThat(second.getmSeriesList(), is(first.getmSeriesList()));
+        assertThat(second.getmCumulative(), is(first.getmCumulative()));
+    }
+
+
+    private StatsMetaInfo forecast(long seed) {
+        AdvancedStatistics statistics = new AdvancedStatistics();
+        statistics.setSeed(seed);
+        String dids = Stats.deckLimit(Stats.ALL_DECKS_ID, getCol());
+        return statistics.calculateDueAsMetaInfo(new StatsMetaInfo(), Stats.AxisType.TYPE_MONTH, getTargetContext(), dids);
+    }
+}
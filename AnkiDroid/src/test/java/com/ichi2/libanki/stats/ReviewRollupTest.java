@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.stats;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Card;
+import com.ichi2.libanki.Consts;
+import com.ichi2.libanki.DB;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+@RunWith(AndroidJUnit4.class)
+public class ReviewRollupTest extends RobolectricTest {
+
+    @Test
+    public void backfillCoversExistingReviews() {
+        addNoteUsingBasicModel("one", "two");
+        addNoteUsingBasicModel("three", "four");
+        answer(Consts.BUTTON_ONE);
+        answer(Consts.BUTTON_THREE);
+
+        ensureCurrent();
+
+        assertThat(rolledUp(), is(2L));
+        assertThat(rolledUpWithEase(1), is(1L));
+    }
+
+
+    @Test
+    public void reviewsAreAddedAsTheyAreLogged() {
+        addNoteUsingBasicModel("one", "two");
+        addNoteUsingBasicModel("three", "four");
+        ensureCurrent();
+
+        answer(Consts.BUTTON_ONE);
+        answer(Consts.BUTTON_THREE);
+
+        assertThat(rolledUp(), is(2L));
+        assertThat(state(), is(new long[] {2L, maxRevlogId()}));
+    }
+
+
+    @Test
+    public void undoneReviewIsRemoved() {
+        addNoteUsingBasicModel("one", "two");
+        ensureCurrent();
+
+        getCol().reset();
+        Card card = getCol().getSched().getCard();
+        getCol().markReview(card);
+        getCol().getSched().answerCard(card, Consts.BUTTON_THREE);
+        assertThat(rolledUp(), is(1L));
+
+        getCol().undo();
+
+        assertThat(rolledUp(), is(0L));
+        assertThat(state(), is(new long[] {0L, 0L}));
+    }
+
+
+    @Test
+    public void reviewsAddedBehindItsBackAreCaughtUp() {
+        addNoteUsingBasicModel("one", "two");
+        answer(Consts.BUTTON_THREE);
+        ensureCurrent();
+
+        // As a sync would
+        long cid = getCol().getDb().queryLongScalar("SELECT id FROM cards");
+        getCol().getDb().execute("INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)", maxRevlogId() + 1000, cid, -1, 3, 1, 0, 2500, 6000, 1);
+        ensureCurrent();
+        assertThat(rolledUp(), is(2L));
+
+        // Removing one can only be handled by a rebuild
+        getCol().getDb().execute("DELETE FROM revlog WHERE id = ?", maxRevlogId());
+        ensureCurrent();
+        assertThat(rolledUp(), is(1L));
+        assertThat(state(), is(new long[] {1L, maxRevlogId()}));
+    }
+
+
+    @Test
+    public void rollupsAreKeptOutsideOfTheCollection() {
+        addNoteUsingBasicModel("one", "two");
+        answer(Consts.BUTTON_THREE);
+
+        ensureCurrent();
+
+        assertThat(getCol().getDb().queryScalar("SELECT count() FROM main.sqlite_master WHERE name LIKE 'revlog_daily%'"), is(0));
+        assertThat(rolledUp(), is(1L));
+    }
+
+
+    @Test
+    public void replacedCollectionIsRolledUpAgain() {
+        addNoteUsingBasicModel("one", "two");
+        answer(Consts.BUTTON_THREE);
+        ensureCurrent();
+
+        // As a full sync would: the rollups don't match the new collection, which has the same number of reviews
+        getCol().getDb().execute("UPDATE rollup.revlog_daily SET cnt = 5");
+        getCol().getDb().execute("UPDATE col SET scm = scm + 1");
+        ensureCurrent();
+
+        assertThat(rolledUp(), is(1L));
+    }
+
+
+    private void ensureCurrent() {
+        ReviewRollup.ensureCurrent(getCol().getDb(), getCol().getSched().getDayCutoff());
+    }
+
+
+    private void answer(int ease) {
+        getCol().reset();
+        Card card = getCol().getSched().getCard();
+        getCol().getSched().answerCard(card, ease);
+    }
+
+
+    private long rolledUp() {
+        return getCol().getDb().queryLongScalar("SELECT ifnull(sum(cnt), 0) FROM rollup.revlog_daily");
+    }
+
+
+    private long rolledUpWithEase(int ease) {
+        return getCol().getDb().queryLongScalar("SELECT ifnull(sum(cnt), 0) FROM rollup.revlog_daily WHERE ease = ?", ease);
+    }
+
+
+    private long maxRevlogId() {
+        return getCol().getDb().queryLongScalar("SELECT ifnull(max(id), 0) FROM revlog");
+    }
+
+
+    private long[] state() {
+        DB db = getCol().getDb();
+        return new long[] {db.queryLongScalar("SELECT cnt FROM rollup.revlog_daily_state"), db.queryLongScalar("SELECT maxid FROM rollup.revlog_daily_state")};
+    }
+}
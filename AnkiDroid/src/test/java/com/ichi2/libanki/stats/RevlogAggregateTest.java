@@ -0,0 +1,106 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.stats;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.anki.stats.OverviewStatsBuilder.OverviewStats;
+import com.ichi2.libanki.Card;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Consts;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+@RunWith(AndroidJUnit4.class)
+public class RevlogAggregateTest extends RobolectricTest {
+
+    @Override
+    public void setUp() {
+        super.setUp();
+        RevlogAggregate.clearCache();
+    }
+
+
+    @Test
+    public void overviewCountsReviews() {
+        addNoteUsingBasicModel("one", "two");
+        addNoteUsingBasicModel("three", "four");
+        answer(Consts.BUTTON_ONE);
+        answer(Consts.BUTTON_THREE);
+
+        OverviewStats oStats = new OverviewStats();
+        new Stats(getCol(), Stats.ALL_DECKS_ID).calculateOverviewStatistics(Stats.AxisType.TYPE_MONTH, oStats);
+
+        assertThat(oStats.totalReviews, is(2));
+        assertThat(oStats.daysStudied, is(1));
+    }
+
+
+    @Test
+    public void easesAreCountedPerButton() {
+        addNoteUsingBasicModel("one", "two");
+        addNoteUsingBasicModel("three", "four");
+        answer(Consts.BUTTON_ONE);
+        answer(Consts.BUTTON_THREE);
+
+        ArrayList<double[]> eases = aggregate(getCol()).getEases(getCol().schedVer());
+
+        assertThat(eases.size(), is(2));
+        assertThat(eases.get(0)[1], is(1.0));
+        assertThat(eases.get(0)[2], is(1.0));
+        assertThat(eases.get(1)[1], is(3.0));
+        assertThat(eases.get(1)[2], is(1.0));
+    }
+
+
+    @Test
+    public void aggregateIsReusedUntilReviewsAreLogged() {
+        addNoteUsingBasicModel("one", "two");
+        addNoteUsingBasicModel("three", "four");
+        answer(Consts.BUTTON_THREE);
+
+        Collection col = getCol();
+        RevlogAggregate first = aggregate(col);
+        assertThat(aggregate(col), is(sameInstance(first)));
+
+        answer(Consts.BUTTON_THREE);
+        RevlogAggregate second = aggregate(col);
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(second.getTotalReviews(), is(2));
+    }
+
+
+    private RevlogAggregate aggregate(Collection col) {
+        return RevlogAggregate.get(col, "", Stats.AxisType.TYPE_MONTH, col.getSched().getDayCutoff(), 4, 0);
+    }
+
+
+    private void answer(int ease) {
+        getCol().reset();
+        Card card = getCol().getSched().getCard();
+        getCol().getSched().answerCard(card, ease);
+    }
+}
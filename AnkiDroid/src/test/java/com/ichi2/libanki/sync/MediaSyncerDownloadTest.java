@@ -0,0 +1,139 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sync;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.async.Connection;
+import com.ichi2.libanki.Collection;
+import com.ichi2.utils.JSONObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+
+@RunWith(AndroidJUnit4.class)
+public class MediaSyncerDownloadTest extends RobolectricTest {
+
+    @Test
+    public void allFilesAreDownloadedWhenTheServerSendsPartialBatches() {
+        Collection col = getCol();
+        // The server sends at most 20 of the 25 files requested, the others must be requested again
+        MockMediaServer server = new MockMediaServer(col, 20, 30, Integer.MAX_VALUE);
+        List<String> fnames = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            fnames.add("file" + i + ".txt");
+        }
+
+        new MediaSyncer(col, server, mock(Connection.class))._downloadFiles(fnames);
+
+        for (String fname : fnames) {
+            assertThat(fname, new File(col.getMedia().dir(), fname).exists(), is(true));
+        }
+        assertThat(col.getMedia().getDb().queryScalar("select count() from media where csum is not null and dirty = 0"), is(fnames.size()));
+        assertThat(server.mRequests.get(), greaterThan(fnames.size() / 20 - 1));
+        File[] leftovers = new File(col.getPath()).getParentFile().listFiles((dir, name) -> name.startsWith("tmpSyncFromServer"));
+        assertThat(leftovers.length, is(0));
+    }
+
+
+    @Test
+    public void noFileIsLeftWithoutItsRowWhenTheDownloadFails() {
+        Collection col = getCol();
+        // The sixth request fails while other batches are being downloaded and extracted
+        MockMediaServer server = new MockMediaServer(col, 25, 30, 5);
+        List<String> fnames = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            fnames.add("file" + i + ".txt");
+        }
+
+        assertThrows(RuntimeException.class, () -> new MediaSyncer(col, server, mock(Connection.class))._downloadFiles(fnames));
+
+        for (String fname : fnames) {
+            boolean recorded = col.getMedia().getDb().queryScalar("select count() from media where fname = ?", fname) == 1;
+            assertThat(fname, new File(col.getMedia().dir(), fname).exists(), is(recorded));
+        }
+        // staged next to the media folder, and removed once the sync stops
+        assertThat(new File(col.getMedia().dir() + ".download").exists(), is(false));
+        assertThat(new File(col.getMedia().dir()).listFiles(File::isDirectory), emptyArray());
+    }
+
+
+    /** Serves zips built locally, with a delay standing for the network */
+    private static class MockMediaServer extends RemoteMediaServer {
+        private final Collection mCol;
+        private final int mMaxFiles;
+        private final long mLatencyMs;
+        /** Number of requests which succeed before the others fail */
+        private final int mSuccessfulRequests;
+        private final AtomicInteger mRequests = new AtomicInteger();
+
+
+        private MockMediaServer(Collection col, int maxFiles, long latencyMs, int successfulRequests) {
+            super(col, "hkey", mock(Connection.class), new HostNum(null));
+            mCol = col;
+            mMaxFiles = maxFiles;
+            mLatencyMs = latencyMs;
+            mSuccessfulRequests = successfulRequests;
+        }
+
+
+        @Override
+        public ZipFile downloadFiles(List<String> top) {
+            if (mRequests.incrementAndGet() > mSuccessfulRequests) {
+                throw new RuntimeException("Connection lost");
+            }
+            try {
+                Thread.sleep(mLatencyMs);
+                File zip = File.createTempFile("tmpSyncFromServer", ".zip", new File(mCol.getPath()).getParentFile());
+                JSONObject meta = new JSONObject();
+                try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+                    for (int i = 0; i < Math.min(mMaxFiles, top.size()); i++) {
+                        out.putNextEntry(new ZipEntry(Integer.toString(i)));
+                        out.write(("content of " + top.get(i)).getBytes(StandardCharsets.UTF_8));
+                        out.closeEntry();
+                        meta.put(Integer.toString(i), top.get(i));
+                    }
+                    out.putNextEntry(new ZipEntry("_meta"));
+                    out.write(meta.toString().getBytes(StandardCharsets.UTF_8));
+                    out.closeEntry();
+                }
+                return new ZipFile(zip, ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
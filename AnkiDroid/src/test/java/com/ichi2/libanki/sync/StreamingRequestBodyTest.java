@@ -0,0 +1,164 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sync;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+
+public class StreamingRequestBodyTest {
+    private static final MediaType TYPE = MediaType.get("multipart/form-data; boundary=b");
+
+    @Test
+    public void payloadIsCompressedBetweenTheFraming() throws IOException {
+        byte[] data = "{\"a\": 1}".getBytes(StandardCharsets.UTF_8);
+        AtomicLong sent = new AtomicLong();
+        StreamingRequestBody body = new StreamingRequestBody(TYPE, bytes("head"),
+                StreamingRequestBody.payloadOf(data), true, bytes("tail"), sent::addAndGet);
+
+        Buffer first = new Buffer();
+        body.writeTo(first);
+        long size = first.size();
+        Buffer second = new Buffer();
+        body.writeTo(second);
+
+        assertThat("every byte is counted", sent.get(), is(2 * size));
+        assertThat("the body can be sent again", second.readByteString(), is(first.snapshot()));
+        assertThat(first.readUtf8(4), is("head"));
+        ByteString compressed = first.readByteString(first.size() - 4);
+        assertThat(first.readUtf8(), is("tail"));
+        Buffer payload = new Buffer();
+        payload.writeAll(Okio.source(new GZIPInputStream(new Buffer().write(compressed).inputStream())));
+        assertThat(payload.readUtf8(), is("{\"a\": 1}"));
+    }
+
+
+    @Test
+    public void requestWithoutPayload() throws IOException {
+        StreamingRequestBody body = new StreamingRequestBody(TYPE, bytes("head"), null, true, bytes("tail"), n -> { });
+
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assertThat(sink.readUtf8(), is("headtail"));
+    }
+
+
+    @Test
+    public void lengthIsKnownWithoutCompression() throws IOException {
+        StreamingRequestBody body = new StreamingRequestBody(TYPE, bytes("head"),
+                StreamingRequestBody.payloadOf(bytes("data")), false, bytes("tail"), n -> { });
+
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assertThat(body.contentLength(), is(sink.size()));
+        assertThat(sink.readUtf8(), is("headdatatail"));
+    }
+
+
+    @Test
+    public void bufferedBodyHasTheLengthOfTheCompressedBody() throws IOException {
+        StreamingRequestBody streamed = new StreamingRequestBody(TYPE, bytes("head"),
+                StreamingRequestBody.payloadOf(bytes("{\"a\": 1}")), true, bytes("tail"), n -> { });
+        assertThat(streamed.contentLength(), is(-1L));
+        Buffer expected = new Buffer();
+        streamed.writeTo(expected);
+
+        File file = File.createTempFile("StreamingRequestBodyTest", ".tmp");
+        try {
+            for (StreamingRequestBody buffered : new StreamingRequestBody[] {streamed.bufferedInMemory(), streamed.bufferedInto(file)}) {
+                Buffer sink = new Buffer();
+                buffered.writeTo(sink);
+                assertThat(buffered.contentLength(), is(sink.size()));
+                assertThat(sink.readByteString(), is(expected.snapshot()));
+            }
+        } finally {
+            assertThat(file.delete(), is(true));
+        }
+    }
+
+
+    @Test
+    public void bufferedBodyIsNotSentInChunks() throws Exception {
+        StreamingRequestBody body = new StreamingRequestBody(TYPE, bytes("head"),
+                StreamingRequestBody.payloadOf(bytes("{\"a\": 1}")), true, bytes("tail"), n -> { }).bufferedInMemory();
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            FutureTask<List<String>> headers = new FutureTask<>(() -> readRequestHeaders(server));
+            new Thread(headers).start();
+            Request request = new Request.Builder().url("http://localhost:" + server.getLocalPort() + "/sync").post(body).build();
+            try (Response response = new OkHttpClient().newCall(request).execute()) {
+                assertThat(response.code(), is(200));
+            }
+
+            assertThat(headers.get(), hasItem("Content-Length: " + body.contentLength()));
+            assertThat(headers.get().stream().anyMatch(h -> h.toLowerCase(Locale.ROOT).startsWith("transfer-encoding")), is(false));
+        }
+    }
+
+
+    /** Accepts a single request, and answers it once its body is read */
+    private static List<String> readRequestHeaders(ServerSocket server) throws IOException {
+        try (Socket socket = server.accept()) {
+            BufferedSource in = Okio.buffer(Okio.source(socket));
+            List<String> headers = new ArrayList<>();
+            long length = 0;
+            String line;
+            while (!(line = in.readUtf8LineStrict()).isEmpty()) {
+                headers.add(line);
+                if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                    length = Long.parseLong(line.substring("content-length:".length()).trim());
+                }
+            }
+            in.skip(length);
+            OutputStream out = socket.getOutputStream();
+            out.write(bytes("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"));
+            out.flush();
+            return headers;
+        }
+    }
+
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.libanki.sync;
+
+import com.ichi2.anki.RobolectricTest;
+import com.ichi2.libanki.Note;
+import com.ichi2.utils.JSONArray;
+import com.ichi2.utils.JSONObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(AndroidJUnit4.class)
+public class SyncerChunkTest extends RobolectricTest {
+
+    @Test
+    public void chunkIsReadAsRows() throws IOException {
+        String json = "{\"done\": true, \"cards\": [], \"notes\": [[1, \"guid\", 2, 3, 4, \"\", \"a\\u001fb\", \"\", 0, 0, null]], \"extra\": {\"a\": [1]}}";
+
+        Syncer.Chunk chunk = Syncer.Chunk.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(chunk.isDone(), is(true));
+        assertThat(chunk.getRows("revlog"), is(nullValue()));
+        assertThat(chunk.getRows("cards"), hasSize(0));
+        List<Object[]> notes = chunk.getRows("notes");
+        assertThat(notes, hasSize(1));
+        assertThat(notes.get(0), arrayContaining(1L, "guid", 2L, 3L, 4L, "", "a\u001fb", "", 0L, 0L, null));
+    }
+
+
+    @Test
+    public void localChangesAreWrittenFromTheCursor() throws IOException {
+        Note note = addNoteUsingBasicModel("Hello", "World");
+        Syncer syncer = new Syncer(getCol(), null, null);
+        syncer.prepareToChunk();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean done = syncer.writeChunk(out);
+
+        assertThat(done, is(true));
+        JSONObject chunk = new JSONObject(out.toString("UTF-8")).getJSONObject("chunk");
+        assertThat(chunk.getBoolean("done"), is(true));
+        assertThat(chunk.getJSONArray("revlog").length(), is(0));
+        assertThat(chunk.getJSONArray("cards").length(), is(1));
+        JSONArray noteRow = chunk.getJSONArray("notes").getJSONArray(0);
+        assertThat(noteRow.getLong(0), is(note.getId()));
+        assertThat(noteRow.getString(6), is("Hello\u001fWorld"));
+        // sent rows are marked as synced
+        assertThat(getCol().getDb().queryScalar("select count() from notes where usn = -1"), is(0));
+    }
+
+
+    @Test
+    public void newerNotesAreMergedWithTheirFieldCache() throws IOException {
+        Note local = addNoteUsingBasicModel("local", "change");
+        long mid = local.model().getLong("id");
+        long newNid = local.getId() + 1000;
+        String json = String.format(Locale.US, "{\"done\": true, \"notes\": [" +
+                        "[%d, \"g1\", %d, %d, 5, \"\", \"server\\u001fchange\", \"\", 0, 0, \"\"]," +
+                        "[%d, \"g2\", %d, 10, 5, \"\", \"<b>new</b>\\u001fnote\", \"\", 0, 0, \"\"]]}",
+                local.getId(), mid, local.getMod() - 1, newNid, mid);
+        Syncer syncer = new Syncer(getCol(), null, null);
+
+        syncer.applyChunk(Syncer.Chunk.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))));
+
+        // The local note was modified after the server's one
+        assertThat(getCol().getNote(local.getId()).getFields()[0], is("local"));
+        assertThat(getCol().getDb().queryString("select sfld from notes where id = ?", newNid), is("new"));
+        assertThat(getCol().getDb().queryLongScalar("select csum from notes where id = ?", newNid), is(not(0L)));
+    }
+}
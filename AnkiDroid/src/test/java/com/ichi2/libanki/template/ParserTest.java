@@ -174,4 +174,11 @@ public class ParserTest extends RobolectricTest {
         test_parsing_is_non_empty(switchField, "Field0", "Field2");
         test_parsing_is_non_empty(switchField, "Useless1", "Field0", "Field2");
     }
+
+    @Test
+    public void test_used_fields() {
+        Set<String> used = new HashSet<>();
+        ParsedNode.parse_inner("Foo{{^Useless1}}{{Field0}}{{/Useless1}}{{#Useless1}}{{text:Field2}}{{/Useless1}}").add_used_fields(used);
+        assertThat(used, is(new HashSet<>(Arrays.asList("Useless1", "Field0", "Field2"))));
+    }
 }
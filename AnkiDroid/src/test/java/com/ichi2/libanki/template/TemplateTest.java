@@ -41,6 +41,7 @@ import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
 
@@ -176,4 +177,20 @@ public class TemplateTest extends RobolectricTest {
         test_render("{{}}", m, "Test");
         m.clear();
     }
+
+    @Test
+    public void clozeIsChosenWhenRendering() {
+        Map<String, String> m = new HashMap<>();
+        m.put("Text", "{{c1::one}} {{c2::two}}");
+        String template = "{{cloze:Text}}{{type:cloze:Text}}";
+        ParsedNode node = ParsedNode.parse_inner(template);
+        // The same tree is used for each card and each side
+        assertThat(ParsedNode.parse_inner(template), sameInstance(node));
+
+        assertThat(node.render(m, true, 1, getTargetContext()), is("<span class=cloze>[...]</span> two[[type:cloze:Text]]"));
+        assertThat(node.render(m, true, 2, getTargetContext()), is("one <span class=cloze>[...]</span>[[type:cloze:Text]]"));
+        assertThat(node.render(m, false, 2, getTargetContext()), is("one <span class=cloze>two</span>[[type:ca-2:Text]]"));
+        // Without a card, the cloze filter does nothing
+        assertThat(node.render(m, true, getTargetContext()), is("{{c1::one}} {{c2::two}}[[type:cloze:Text]]"));
+    }
 }
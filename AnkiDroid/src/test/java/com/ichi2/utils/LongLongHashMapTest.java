@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2021 AnkiDroid Open Source Team
+ *
+ *  This program is free software; you can redistribute it and/or modify it under
+ *  the terms of the GNU General Public License as published by the Free Software
+ *  Foundation; either version 3 of the License, or (at your option) any later
+ *  version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ *  WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ *  this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ichi2.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class LongLongHashMapTest {
+
+    @Test
+    public void putGetRemove() {
+        LongLongHashMap map = new LongLongHashMap();
+        map.put(1600000000000L, 3);
+        map.put(-5, 4);
+        map.put(0, 5);
+        assertThat(map.size(), is(3));
+        assertThat(map.get(1600000000000L, -1), is(3L));
+        assertThat(map.get(-5, -1), is(4L));
+        assertThat(map.get(0, -1), is(5L));
+        assertThat(map.get(7, -1), is(-1L));
+
+        map.put(0, 6);
+        assertThat(map.size(), is(3));
+        assertThat(map.get(0, -1), is(6L));
+
+        assertThat(map.remove(-5), is(true));
+        assertThat(map.remove(-5), is(false));
+        assertThat(map.containsKey(-5), is(false));
+        assertThat(map.size(), is(2));
+
+        map.clear();
+        assertThat(map.isEmpty(), is(true));
+        assertThat(map.containsKey(0), is(false));
+    }
+
+
+    @Test
+    public void behavesAsHashMap() {
+        Random random = new Random(42);
+        LongLongHashMap map = new LongLongHashMap(4);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            // Consecutive ids, as card ids created during an import
+            long key = 1600000000000L + random.nextInt(2000);
+            if (random.nextBoolean()) {
+                map.put(key, i);
+                expected.put(key, (long) i);
+            } else {
+                assertThat(map.remove(key), is(expected.remove(key) != null));
+            }
+            assertThat(map.size(), is(expected.size()));
+        }
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertThat(map.get(entry.getKey(), -1), is(entry.getValue()));
+        }
+    }
+}